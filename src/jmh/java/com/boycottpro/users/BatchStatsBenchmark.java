@@ -0,0 +1,105 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.boycottpro.users.model.UserStats;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The stats of {@code users} users with materialised counters, once as one
+ * {@link GetUserStatsBatchHandler} invocation and once as an invocation of
+ * {@link GetUserStatsHandler} per user, the way the dashboard called it before. The global
+ * stats are cached in both, so what differs is the per-user reads and the invocation overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchStatsBenchmark {
+
+    @Param({"100"})
+    int users;
+
+    @Param({"0", "1000"})
+    long latencyMicros;
+
+    private GetUserStatsHandler handler;
+    private GetUserStatsBatchHandler batchHandler;
+    private final List<APIGatewayProxyRequestEvent> events = new ArrayList<>();
+    private byte[] batchInput;
+    private ByteArrayOutputStream output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // every invocation prints its EMF line; the formatting is still paid for
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        InMemoryDynamoDb dynamoDb = BenchmarkTables.seed(1000, 100, 10, 1000);
+        List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            String userId = "user" + i;
+            userIds.add(userId);
+            Map<String, AttributeValue> item = UserStatsRepository.toItem(new UserStats(i, 5, 1L));
+            item.put(UserStatsRepository.PARTITION_KEY, AttributeValue.fromS(userId));
+            item.put(UserStatsRepository.SORT_KEY, AttributeValue.fromS(UserStatsRepository.TOTALS_KEY));
+            dynamoDb.put(UserStatsRepository.TABLE_NAME, item);
+            events.add(event(userId));
+        }
+        dynamoDb.latencyMicros(latencyMicros);
+        handler = new GetUserStatsHandler(dynamoDb);
+        batchHandler = new GetUserStatsBatchHandler(handler);
+        batchInput = new ObjectMapper().writeValueAsBytes(Map.of("user_ids", userIds));
+        output = new ByteArrayOutputStream(64 * 1024);
+        GetUserStatsHandler.globalStatsCache().clear();
+    }
+
+    @Benchmark
+    public int singleCalls() {
+        int bytes = 0;
+        for (APIGatewayProxyRequestEvent event : events) {
+            bytes += handler.handleRequest(event, null).getBody().length();
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int batchCall() throws IOException {
+        output.reset();
+        batchHandler.handleRequest(new ByteArrayInputStream(batchInput), output, null);
+        return output.size();
+    }
+
+    private static APIGatewayProxyRequestEvent event(String sub) {
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", sub));
+        APIGatewayProxyRequestEvent.ProxyRequestContext context = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        context.setAuthorizer(authorizer);
+        event.setRequestContext(context);
+        return event;
+    }
+}
@@ -0,0 +1,125 @@
+package com.boycottpro.users;
+
+import com.boycottpro.users.model.UserStats;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.Map;
+
+/**
+ * Seeds an {@link InMemoryDynamoDb} with the tables {@link GetUserStatsHandler} reads, sized by
+ * the benchmark parameters. Every row of the user has two causes per company, so the
+ * distinct-company count is half the number of boycott rows. Companies and causes are on their
+ * leaderboard shards, and every company has one top reason.
+ */
+final class BenchmarkTables {
+
+    static final String USER_ID = "11111111-2222-3333-4444-555555555555";
+
+    private BenchmarkTables() {
+    }
+
+    static InMemoryDynamoDb seed(int companies, int causes, int boycottRows, int pageSize) {
+        InMemoryDynamoDb dynamoDb = new InMemoryDynamoDb()
+                .pageSize(pageSize)
+                .createTable("companies", "company_id", null)
+                .createIndex("companies", LeaderboardRepository.COMPANIES_INDEX,
+                        LeaderboardRepository.SHARD_ATTRIBUTE, "boycott_count")
+                .createTable("causes", "cause_id", null)
+                .createIndex("causes", LeaderboardRepository.CAUSES_INDEX,
+                        LeaderboardRepository.SHARD_ATTRIBUTE, "follower_count")
+                .createTable("cause_company_stats", "cause_id", "company_id")
+                .createIndex("cause_company_stats", "company_cause_stats_index", "company_id", "boycott_count")
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        AttributeValue companyName = AttributeValue.fromS("Synthetic Co");
+        AttributeValue reason = AttributeValue.fromS("Labor");
+        for (int i = 0; i < companies; i++) {
+            AttributeValue boycottCount = AttributeValue.fromN(Integer.toString((i * 7919) % companies));
+            dynamoDb.put("companies", Map.of(
+                    "company_id", AttributeValue.fromS("company" + i),
+                    "company_name", companyName,
+                    "boycott_count", boycottCount,
+                    LeaderboardRepository.SHARD_ATTRIBUTE, shard("company" + i)));
+            dynamoDb.put("cause_company_stats", Map.of(
+                    "cause_id", AttributeValue.fromS("cause0"),
+                    "company_id", AttributeValue.fromS("company" + i),
+                    "cause_desc", reason,
+                    "boycott_count", boycottCount));
+        }
+        AttributeValue causeDesc = AttributeValue.fromS("Synthetic cause");
+        for (int i = 0; i < causes; i++) {
+            dynamoDb.put("causes", Map.of(
+                    "cause_id", AttributeValue.fromS("cause" + i),
+                    "cause_desc", causeDesc,
+                    "follower_count", AttributeValue.fromN(Integer.toString((i * 7919) % causes)),
+                    LeaderboardRepository.SHARD_ATTRIBUTE, shard("cause" + i)));
+        }
+        AttributeValue user = AttributeValue.fromS(USER_ID);
+        int userCompanies = Math.max(1, boycottRows / 2);
+        for (int i = 0; i < boycottRows; i++) {
+            dynamoDb.put("user_boycotts", Map.of("user_id", user,
+                    "company_cause_id", AttributeValue.fromS("company" + (i % userCompanies) + "#cause" + (i / userCompanies)),
+                    "company_id", AttributeValue.fromS("company" + (i % userCompanies))));
+        }
+        for (int i = 0; i < Math.min(causes, 50); i++) {
+            dynamoDb.put("user_causes", Map.of("user_id", user, "cause_id", AttributeValue.fromS("cause" + i)));
+        }
+        dynamoDb.put("global_stats", Map.of(
+                "stat_id", AttributeValue.fromS(GlobalStatsRepository.LEADERBOARD_ID),
+                "worst_company_id", AttributeValue.fromS("company0"),
+                "worst_company_name", companyName,
+                "worst_count", AttributeValue.fromN(Integer.toString(companies)),
+                "top_reason", reason,
+                "top_cause_id", AttributeValue.fromS("cause0"),
+                "top_cause_desc", causeDesc,
+                "top_cause_follower_count", AttributeValue.fromN(Integer.toString(causes)),
+                "version", AttributeValue.fromN("1")));
+        return dynamoDb;
+    }
+
+    private static AttributeValue shard(String id) {
+        return AttributeValue.fromN(Integer.toString(LeaderboardRepository.shardOf(id, LeaderboardRepository.SHARDS)));
+    }
+
+    /**
+     * The totals item the stream handler maintains, which switches the handler to the single
+     * getItem path.
+     */
+    static void materialise(InMemoryDynamoDb dynamoDb, int boycottRows, int causesFollowed) {
+        Map<String, AttributeValue> item = UserStatsRepository.toItem(
+                new UserStats(Math.max(1, boycottRows / 2), causesFollowed, 1L));
+        item.put(UserStatsRepository.PARTITION_KEY, AttributeValue.fromS(USER_ID));
+        item.put(UserStatsRepository.SORT_KEY, AttributeValue.fromS(UserStatsRepository.TOTALS_KEY));
+        dynamoDb.put(UserStatsRepository.TABLE_NAME, item);
+    }
+
+    /**
+     * Users {@code user0} to {@code user<users - 1>}, each with the rows of {@link #seed}'s
+     * user, of whom the first {@code materialisedPercent} of every hundred also have the totals
+     * item. The companies and causes must have been seeded.
+     */
+    static void seedUsers(InMemoryDynamoDb dynamoDb, int users, int boycottRows, int causesFollowed,
+                          int materialisedPercent) {
+        int userCompanies = Math.max(1, boycottRows / 2);
+        for (int u = 0; u < users; u++) {
+            AttributeValue user = AttributeValue.fromS("user" + u);
+            for (int i = 0; i < boycottRows; i++) {
+                dynamoDb.put("user_boycotts", Map.of("user_id", user,
+                        "company_cause_id", AttributeValue.fromS("company" + (i % userCompanies) + "#cause" + (i / userCompanies)),
+                        "company_id", AttributeValue.fromS("company" + (i % userCompanies))));
+            }
+            for (int i = 0; i < causesFollowed; i++) {
+                dynamoDb.put("user_causes", Map.of("user_id", user, "cause_id", AttributeValue.fromS("cause" + i)));
+            }
+            if (u % 100 < materialisedPercent) {
+                Map<String, AttributeValue> item = UserStatsRepository.toItem(
+                        new UserStats(userCompanies, causesFollowed, 1L));
+                item.put(UserStatsRepository.PARTITION_KEY, user);
+                item.put(UserStatsRepository.SORT_KEY, AttributeValue.fromS(UserStatsRepository.TOTALS_KEY));
+                dynamoDb.put(UserStatsRepository.TABLE_NAME, item);
+            }
+        }
+    }
+}
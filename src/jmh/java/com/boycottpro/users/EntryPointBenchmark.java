@@ -0,0 +1,86 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The two entry points on the same request, with the user stats materialised and the global
+ * stats cached, so what differs is the event and response handling. For
+ * {@link GetUserStatsHandler} the runtime's part is included the way a Jackson-based runtime
+ * does it: the whole API Gateway event is bound to its POJO and the response POJO is
+ * serialised again. {@link GetUserStatsStreamHandler} gets the raw bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntryPointBenchmark {
+
+    private static final ObjectMapper RUNTIME_MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private byte[] event;
+    private GetUserStatsHandler handler;
+    private GetUserStatsStreamHandler streamHandler;
+    private ObjectReader eventReader;
+    private ObjectWriter responseWriter;
+    private ByteArrayOutputStream output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // every invocation prints its EMF line; the formatting is still paid for
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        InMemoryDynamoDb dynamoDb = BenchmarkTables.seed(10, 10, 10, 1000);
+        BenchmarkTables.materialise(dynamoDb, 10, 10);
+        handler = new GetUserStatsHandler(dynamoDb);
+        streamHandler = new GetUserStatsStreamHandler(handler);
+        eventReader = RUNTIME_MAPPER.readerFor(APIGatewayProxyRequestEvent.class);
+        responseWriter = RUNTIME_MAPPER.writerFor(APIGatewayProxyResponseEvent.class);
+        output = new ByteArrayOutputStream(1024);
+        try (var in = EntryPointBenchmark.class.getResourceAsStream("/api-gateway-event.json")) {
+            event = new String(in.readAllBytes(), StandardCharsets.UTF_8)
+                    .replace("${sub}", BenchmarkTables.USER_ID).getBytes(StandardCharsets.UTF_8);
+        }
+        GetUserStatsHandler.globalStatsCache().clear();
+    }
+
+    @Benchmark
+    public byte[] requestHandler() throws IOException {
+        APIGatewayProxyRequestEvent request = eventReader.readValue(event);
+        return responseWriter.writeValueAsBytes(handler.handleRequest(request, null));
+    }
+
+    @Benchmark
+    public int requestStreamHandler() throws IOException {
+        output.reset();
+        streamHandler.handleRequest(new ByteArrayInputStream(event), output, null);
+        return output.size();
+    }
+}
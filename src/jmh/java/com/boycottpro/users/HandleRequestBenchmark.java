@@ -0,0 +1,84 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole {@link GetUserStatsHandler#handleRequest} path against {@link InMemoryDynamoDb}:
+ * the per-user stats either counted from user_boycotts/user_causes or read from the
+ * materialised user_stats item, and the global stats either served from the cache or read
+ * from the leaderboard item on every call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandleRequestBenchmark {
+
+    @Param({"100", "10000"})
+    int boycottRows;
+
+    @Param({"0", "1000"})
+    long latencyMicros;
+
+    @Param({"counted", "materialised"})
+    String userStats;
+
+    @Param({"cached", "loaded"})
+    String globalStats;
+
+    private GetUserStatsHandler handler;
+    private APIGatewayProxyRequestEvent event;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // every invocation prints its EMF line; the formatting is still paid for
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        InMemoryDynamoDb dynamoDb = BenchmarkTables.seed(1000, 100, boycottRows, 1000);
+        if ("materialised".equals(userStats)) {
+            BenchmarkTables.materialise(dynamoDb, boycottRows, 50);
+        }
+        dynamoDb.latencyMicros(latencyMicros);
+        handler = new GetUserStatsHandler(dynamoDb);
+        GetUserStatsHandler.globalStatsCache().clear();
+
+        event = new APIGatewayProxyRequestEvent();
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", BenchmarkTables.USER_ID));
+        APIGatewayProxyRequestEvent.ProxyRequestContext context = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        context.setAuthorizer(authorizer);
+        event.setRequestContext(context);
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent handleRequest() {
+        if ("loaded".equals(globalStats)) {
+            GetUserStatsHandler.globalStatsCache().clear();
+        }
+        APIGatewayProxyResponseEvent response = handler.handleRequest(event, null);
+        if (response.getStatusCode() != 200) {
+            throw new IllegalStateException("unexpected response " + response.getBody());
+        }
+        return response;
+    }
+}
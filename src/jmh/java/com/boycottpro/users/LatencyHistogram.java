@@ -0,0 +1,115 @@
+package com.boycottpro.users;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A log-linear histogram of latencies in microseconds, bucketed the way HdrHistogram does it:
+ * exact below 128, and above that 128 buckets per power of two, so a recorded value is
+ * reported at most 1/128 (under 1%) above what it was, up to hours. Recording is one array
+ * increment, so each load-generator thread keeps its own and they are added up at the end.
+ * Not thread-safe.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // up to 2^40 us, about 12 days
+    private static final int MAX_MAGNITUDE = 40;
+
+    private final long[] counts = new long[(MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS];
+    private long count;
+    private long sum;
+    private long max;
+
+    void record(long micros) {
+        long value = Math.max(0, Math.min(micros, (1L << MAX_MAGNITUDE) - 1));
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @return the highest value of the bucket that holds the given percentile (0-100), or of
+     * the largest value for 100
+     */
+    long valueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestInBucket(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * The percentile distribution, as HdrHistogram prints it: the value in milliseconds, the
+     * percentile and the count at or below it.
+     */
+    List<String> distribution(double... percentiles) {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("%12s %10s %12s", "Value(ms)", "Percentile", "TotalCount"));
+        for (double percentile : percentiles) {
+            long value = valueAtPercentile(percentile);
+            lines.add(String.format("%12.3f %10.4f %12d", value / 1000.0, percentile / 100, countAtOrBelow(value)));
+        }
+        lines.add(String.format("#[Mean = %.3f ms, Max = %.3f ms, Total count = %d]",
+                mean() / 1000, max / 1000.0, count));
+        return lines;
+    }
+
+    private long countAtOrBelow(long value) {
+        long below = 0;
+        for (int i = 0; i <= index(value); i++) {
+            below += counts[i];
+        }
+        return below;
+    }
+
+    private static int index(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        // the top SUB_BUCKET_BITS + 1 bits of the value, of which the first is always set
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestInBucket(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,243 @@
+package com.boycottpro.users;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load-tests {@link LocalStatsServer}: {@code concurrency} clients, each on a virtual thread
+ * when the JVM has them, send {@code GET /stats} for users drawn at random from
+ * {@code user0} to {@code user<users - 1>}, for {@code warmup} and then {@code duration}
+ * seconds. Only the requests sent after the warmup are counted.
+ * <p>
+ * Without {@code rate}, each client sends its next request when the previous one is answered
+ * (closed loop), and the latencies are those of the requests that were sent. With
+ * {@code rate} (requests per second over all clients), each client has a schedule, and a
+ * request's latency is counted from when it was due, so a stall counts against every request
+ * it held up instead of slowing the load down.
+ * <p>
+ * The report states the threads of the clients and of the server, then has the requests per
+ * second, the statuses, the latency distribution of {@link LatencyHistogram}, and the
+ * collections, GC time and heap of the server's JVM over the measurement, from its
+ * {@code /jvm}. Without {@code url} the server is started in this JVM with the stand-in
+ * options of {@link LocalStatsServer} (dynamodb, users, boycottRows, causesFollowed,
+ * materialised, latencyMicros), and its GC figures include the load generator's own
+ * allocation. Run with
+ * <pre>
+ * mvn -B -P dev,jmh test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.boycottpro.users.LoadGenerator \
+ *     -Dexec.args="concurrency=256 duration=30 warmup=10 dynamodb=memory users=10000 latencyMicros=2000"
+ * </pre>
+ * Other options: {@code url} of a running server, {@code fields} and {@code window} for every
+ * request, and {@code report}, a file to write the report to as well.
+ */
+public class LoadGenerator {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final double[] PERCENTILES = {0, 50, 75, 90, 95, 99, 99.9, 99.99, 100};
+
+    private final URI stats;
+    private final int concurrency;
+    private final int users;
+    private final double rate;
+
+    private LoadGenerator(URI stats, int concurrency, int users, double rate) {
+        this.stats = stats;
+        this.concurrency = concurrency;
+        this.users = users;
+        this.rate = rate;
+    }
+
+    /**
+     * What one client measured.
+     */
+    private static final class Result {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final Map<Integer, Long> statuses = new TreeMap<>();
+        long errors;
+        // how long after the end the last request counted was answered
+        long overrunNanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LocalStatsServer.options(args);
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        int users = Integer.parseInt(options.getOrDefault("users", "10000"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "10")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+
+        PrintStream out = System.out;
+        LocalStatsServer server = null;
+        String url = options.get("url");
+        if (url == null) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            server = LocalStatsServer.start(0, LocalStatsServer.handler(options));
+            url = "http://localhost:" + server.port();
+        }
+        StringBuilder query = new StringBuilder();
+        for (String parameter : List.of("fields", "window")) {
+            if (options.containsKey(parameter)) {
+                query.append(query.length() == 0 ? '?' : '&').append(parameter).append('=').append(options.get(parameter));
+            }
+        }
+        List<String> report = new ArrayList<>();
+        try {
+            LoadGenerator generator = new LoadGenerator(URI.create(url + "/stats" + query), concurrency, users, rate);
+            report.add(String.format("%s, %s server, %d clients on %s, %s, %d users", generator.stats,
+                    server == null ? "remote" : "in-process", concurrency, LocalStatsServer.threads(),
+                    rate > 0 ? String.format("%.0f req/s scheduled", rate) : "closed loop", users));
+            generator.run(warmup, duration, URI.create(url + "/jvm"), report);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        report.forEach(out::println);
+        if (options.containsKey("report")) {
+            Files.write(Paths.get(options.get("report")), report, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void run(long warmupNanos, long durationNanos, URI jvm, List<String> report) throws Exception {
+        ExecutorService executor = LocalStatsServer.threadPerRequest("load-generator");
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .executor(executor)
+                .build();
+        try {
+            long start = System.nanoTime();
+            long measureFrom = start + warmupNanos;
+            long end = measureFrom + durationNanos;
+            List<Future<Result>> clients = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                long first = start + (rate > 0 ? (long) (i * 1e9 / rate) : 0);
+                clients.add(executor.submit(() -> client(client, first, measureFrom, end)));
+            }
+            LockSupport.parkNanos(measureFrom - System.nanoTime());
+            Map<String, Object> before = jvm(client, jvm);
+            // on Java 17 the server falls back to platform threads, which changes what is measured
+            report.add("server requests on " + before.getOrDefault("requestThreads", "unknown threads"));
+            Result total = new Result();
+            for (Future<Result> future : clients) {
+                Result result = future.get();
+                total.latencies.add(result.latencies);
+                result.statuses.forEach((status, count) -> total.statuses.merge(status, count, Long::sum));
+                total.errors += result.errors;
+                total.overrunNanos = Math.max(total.overrunNanos, result.overrunNanos);
+            }
+            Map<String, Object> after = jvm(client, jvm);
+            // with a rate, the requests due by the end may be answered well after it
+            double seconds = (durationNanos + total.overrunNanos) / 1e9;
+            report.add(String.format("%d requests in %.1f s: %.1f req/s; statuses %s, %d failed",
+                    total.latencies.count(), seconds, total.latencies.count() / seconds, total.statuses, total.errors));
+            report.add(String.format("latency ms: p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f",
+                    total.latencies.valueAtPercentile(50) / 1000.0, total.latencies.valueAtPercentile(90) / 1000.0,
+                    total.latencies.valueAtPercentile(99) / 1000.0, total.latencies.valueAtPercentile(99.9) / 1000.0,
+                    total.latencies.max() / 1000.0));
+            report.addAll(total.latencies.distribution(PERCENTILES));
+            report.addAll(gc(before, after));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Result client(HttpClient client, long first, long measureFrom, long end) {
+        Result result = new Result();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long interval = rate > 0 ? (long) (1e9 * concurrency / rate) : 0;
+        long due = first;
+        while (true) {
+            long sent;
+            if (interval > 0) {
+                if (due >= end) {
+                    return result;
+                }
+                LockSupport.parkNanos(due - System.nanoTime());
+                sent = due;
+                due += interval;
+            } else {
+                sent = System.nanoTime();
+                if (sent >= end) {
+                    return result;
+                }
+            }
+            HttpRequest request = HttpRequest.newBuilder(stats)
+                    .header(LocalStatsServer.USER_HEADER, "user" + random.nextInt(users))
+                    .timeout(Duration.ofSeconds(30))
+                    .GET()
+                    .build();
+            int status;
+            try {
+                status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (IOException e) {
+                status = -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            }
+            long answered = System.nanoTime();
+            if (sent < measureFrom) {
+                continue;
+            }
+            result.latencies.record((answered - sent) / 1000);
+            result.overrunNanos = Math.max(result.overrunNanos, answered - end);
+            if (status < 0) {
+                result.errors++;
+            } else {
+                result.statuses.merge(status, 1L, Long::sum);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> jvm(HttpClient client, URI jvm) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder(jvm).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        return MAPPER.readValue(response.body(), Map.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> gc(Map<String, Object> before, Map<String, Object> after) {
+        List<String> lines = new ArrayList<>();
+        long wallMillis = ((Number) after.get("uptimeMillis")).longValue() - ((Number) before.get("uptimeMillis")).longValue();
+        List<Map<String, Object>> collectorsBefore = (List<Map<String, Object>>) before.get("gc");
+        List<Map<String, Object>> collectorsAfter = (List<Map<String, Object>>) after.get("gc");
+        long gcMillis = 0;
+        for (int i = 0; i < collectorsAfter.size(); i++) {
+            Map<String, Object> collector = collectorsAfter.get(i);
+            long count = ((Number) collector.get("count")).longValue()
+                    - ((Number) collectorsBefore.get(i).get("count")).longValue();
+            long millis = ((Number) collector.get("timeMillis")).longValue()
+                    - ((Number) collectorsBefore.get(i).get("timeMillis")).longValue();
+            gcMillis += millis;
+            lines.add(String.format("gc %s: %d collections, %d ms", collector.get("name"), count, millis));
+        }
+        lines.add(String.format("gc time %.2f%% of %d ms; heap used %.1f MB, committed %.1f MB, max %.1f MB; %s threads",
+                wallMillis == 0 ? 0 : 100.0 * gcMillis / wallMillis, wallMillis,
+                ((Number) after.get("heapUsed")).longValue() / 1048576.0,
+                ((Number) after.get("heapCommitted")).longValue() / 1048576.0,
+                ((Number) after.get("heapMax")).longValue() / 1048576.0, after.get("threads")));
+        return lines;
+    }
+}
@@ -0,0 +1,266 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link GetUserStatsHandler#handleRequest} over HTTP on this machine, so it can be
+ * load-tested with many requests in flight against one handler object, e.g. with
+ * {@link LoadGenerator}. Every request runs on a virtual thread when the JVM has them (Java 21)
+ * and on a platform thread of its own otherwise, which {@code /jvm} and the reports state.
+ * <p>
+ * {@code GET /stats} is one invocation: the user is the {@code X-User-Id} header or the
+ * {@code user} query parameter and becomes the authorizer's sub claim, the other query
+ * parameters (fields, window) and the headers (If-None-Match) are passed on, and status,
+ * headers and body come back as the handler returned them. {@code GET /jvm} has the GC counts
+ * and times, the heap and the request threads of this JVM. The handler's EMF lines are dropped.
+ * <p>
+ * The handler and its DynamoDB are one of
+ * <ul>
+ *     <li>{@code dynamodb=endpoint} (default): the handler Lambda builds, with the client of
+ *     {@link DynamoDbClients} pointed at DYNAMODB_ENDPOINT (e.g. DynamoDB Local with the
+ *     tables created), so its HTTP connections and the fan-out pool are under load too</li>
+ *     <li>{@code dynamodb=memory}: a handler on an {@link InMemoryDynamoDb} of
+ *     {@link BenchmarkTables} with {@code users} users of {@code boycottRows} rows, of whom
+ *     {@code materialised} percent have the totals item, and {@code latencyMicros} per call</li>
+ * </ul>
+ * Run with
+ * <pre>
+ * DYNAMODB_ENDPOINT=http://localhost:8000 mvn -B -P dev,jmh test-compile exec:java \
+ *     -Dexec.classpathScope=test -Dexec.mainClass=com.boycottpro.users.LocalStatsServer \
+ *     -Dexec.args="port=8080 users=10000"
+ * </pre>
+ * or, without DynamoDB, with
+ * {@code -Dexec.args="port=8080 dynamodb=memory users=10000 boycottRows=20 materialised=50 latencyMicros=2000"}.
+ */
+public class LocalStatsServer implements AutoCloseable {
+
+    static final String USER_HEADER = "X-User-Id";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static {
+        // the server writes the headers and the body separately, and with Nagle's algorithm the
+        // body waits for the client's delayed ACK, about 40 ms; read once, by the first server
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final GetUserStatsHandler handler;
+
+    private LocalStatsServer(HttpServer server, ExecutorService executor, GetUserStatsHandler handler) {
+        this.server = server;
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        LocalStatsServer server = start(Integer.parseInt(options.getOrDefault("port", "8080")),
+                handler(options));
+        out.println("serving http://localhost:" + server.port() + "/stats on " + threads()
+                + ", users user0 to user" + (Integer.parseInt(options.getOrDefault("users", "10000")) - 1));
+    }
+
+    /**
+     * @param port 0 for any free one
+     */
+    static LocalStatsServer start(int port, GetUserStatsHandler handler) throws IOException {
+        // the backlog takes the connections of a load generator that opens them all at once
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 4096);
+        ExecutorService executor = threadPerRequest("local-stats-server");
+        LocalStatsServer stats = new LocalStatsServer(server, executor, handler);
+        server.createContext("/stats", stats::stats);
+        server.createContext("/jvm", LocalStatsServer::jvm);
+        server.setExecutor(executor);
+        server.start();
+        return stats;
+    }
+
+    /**
+     * The handler named by the {@code dynamodb} option, its stand-in seeded as the options say.
+     */
+    static GetUserStatsHandler handler(Map<String, String> options) {
+        String kind = options.getOrDefault("dynamodb", "endpoint");
+        if ("endpoint".equals(kind)) {
+            return new GetUserStatsHandler();
+        }
+        return new GetUserStatsHandler(dynamoDb(options));
+    }
+
+    private static DynamoDbClient dynamoDb(Map<String, String> options) {
+        String kind = options.getOrDefault("dynamodb", "endpoint");
+        if (!"memory".equals(kind)) {
+            throw new IllegalArgumentException("dynamodb must be memory or endpoint, not " + kind);
+        }
+        int boycottRows = Integer.parseInt(options.getOrDefault("boycottRows", "20"));
+        InMemoryDynamoDb dynamoDb = BenchmarkTables.seed(1000, 100, boycottRows, 1000);
+        BenchmarkTables.seedUsers(dynamoDb, Integer.parseInt(options.getOrDefault("users", "10000")), boycottRows,
+                Integer.parseInt(options.getOrDefault("causesFollowed", "10")),
+                Integer.parseInt(options.getOrDefault("materialised", "50")));
+        return dynamoDb.latencyMicros(Long.parseLong(options.getOrDefault("latencyMicros", "0")));
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Virtual threads, looked up reflectively because the project compiles for Java 17; before
+     * Java 21 a cached pool of platform threads, which also gives every request its own thread.
+     */
+    static ExecutorService threadPerRequest(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * What {@link #threadPerRequest} runs on here, for the reports.
+     */
+    static String threads() {
+        return Runtime.version().feature() >= 21
+                ? "virtual threads"
+                : "a cached pool of platform threads (Java " + Runtime.version().feature() + " has no virtual threads)";
+    }
+
+    /**
+     * key=value arguments
+     */
+    static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 1) {
+                throw new IllegalArgumentException("expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getRequestBody().readAllBytes();
+            Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+            String sub = exchange.getRequestHeaders().getFirst(USER_HEADER);
+            if (sub == null) {
+                sub = query.get("user");
+            }
+            query.remove("user");
+            APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+            if (sub != null) {
+                Map<String, Object> authorizer = new HashMap<>();
+                authorizer.put("claims", Map.of("sub", sub));
+                APIGatewayProxyRequestEvent.ProxyRequestContext context = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+                context.setAuthorizer(authorizer);
+                event.setRequestContext(context);
+            }
+            event.setHttpMethod(exchange.getRequestMethod());
+            event.setPath(exchange.getRequestURI().getPath());
+            event.setQueryStringParameters(query.isEmpty() ? null : query);
+            Map<String, String> headers = new HashMap<>();
+            exchange.getRequestHeaders().forEach((name, values) -> headers.put(name, values.get(0)));
+            event.setHeaders(headers);
+
+            APIGatewayProxyResponseEvent response = handler.handleRequest(event, null);
+
+            if (response.getHeaders() != null) {
+                response.getHeaders().forEach(exchange.getResponseHeaders()::set);
+            }
+            int status = response.getStatusCode() == null ? 200 : response.getStatusCode();
+            byte[] body = response.getBody() == null ? new byte[0] : response.getBody().getBytes(StandardCharsets.UTF_8);
+            if (status == 304 || body.length == 0) {
+                exchange.sendResponseHeaders(status, -1);
+            } else {
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+            }
+        } catch (RuntimeException e) {
+            // the handler answers its own errors; this is one it let through
+            byte[] body = MAPPER.writeValueAsBytes(Map.of("error", String.valueOf(e)));
+            exchange.sendResponseHeaders(500, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void jvm(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getRequestBody().readAllBytes();
+            Map<String, Object> jvm = new LinkedHashMap<>();
+            jvm.put("uptimeMillis", ManagementFactory.getRuntimeMXBean().getUptime());
+            List<Map<String, Object>> collectors = new ArrayList<>();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                Map<String, Object> collector = new LinkedHashMap<>();
+                collector.put("name", gc.getName());
+                collector.put("count", gc.getCollectionCount());
+                collector.put("timeMillis", gc.getCollectionTime());
+                collectors.add(collector);
+            }
+            jvm.put("gc", collectors);
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            jvm.put("heapUsed", heap.getUsed());
+            jvm.put("heapCommitted", heap.getCommitted());
+            jvm.put("heapMax", heap.getMax());
+            jvm.put("threads", ManagementFactory.getThreadMXBean().getThreadCount());
+            jvm.put("requestThreads", threads());
+            byte[] body = MAPPER.writeValueAsBytes(jvm);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static Map<String, String> query(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            query.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+}
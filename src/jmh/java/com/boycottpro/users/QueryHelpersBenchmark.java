@@ -0,0 +1,123 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.boycottpro.users.model.ResponsePojo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The helpers behind {@link GetUserStatsHandler}, each with only the parameters it depends on:
+ * the distinct-company count over the user's boycott pages, the max-by-boycott_count reduction
+ * over a parallel scan of companies, and the serialisation of the response.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryHelpersBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class UserBoycotts {
+        @Param({"100", "10000"})
+        int boycottRows;
+
+        @Param({"0", "1000"})
+        long latencyMicros;
+
+        UserStatsRepository repository;
+        private ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            InMemoryDynamoDb dynamoDb = BenchmarkTables.seed(0, 0, boycottRows, 1000).latencyMicros(latencyMicros);
+            executor = daemonPool();
+            repository = new UserStatsRepository(AsyncDynamoDb.of(dynamoDb, executor));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            executor.shutdownNow();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class CompaniesTable {
+        @Param({"1000", "100000"})
+        int companies;
+
+        @Param({"0", "1000"})
+        long latencyMicros;
+
+        // 1 is the sequential scan the segments replaced
+        @Param({"1", "4", "8"})
+        int scanSegments;
+
+        GlobalStatsRepository repository;
+        private ExecutorService executor;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            InMemoryDynamoDb dynamoDb = BenchmarkTables.seed(companies, 0, 0, 1000).latencyMicros(latencyMicros);
+            executor = daemonPool();
+            repository = new GlobalStatsRepository(AsyncDynamoDb.of(dynamoDb, executor), scanSegments);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            executor.shutdownNow();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Serialisation {
+        GetUserStatsHandler handler;
+        ResponsePojo stats;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            handler = new GetUserStatsHandler(new InMemoryDynamoDb());
+            stats = new ResponsePojo(12, 4, "Worst Co", 15, "Labor", "Environment", 99);
+        }
+    }
+
+    @Benchmark
+    public int distinctCompanyCount(UserBoycotts state) {
+        return AsyncDynamoDb.join(state.repository.countDistinctCompanies(BenchmarkTables.USER_ID));
+    }
+
+    @Benchmark
+    public Map<String, AttributeValue> maxByBoycottCount(CompaniesTable state) {
+        return AsyncDynamoDb.join(state.repository.worstCompanyItem());
+    }
+
+    @Benchmark
+    public APIGatewayProxyResponseEvent responseSerialisation(Serialisation state) {
+        return state.handler.response(200, state.stats);
+    }
+
+    private static ExecutorService daemonPool() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "benchmark-fan-out");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,413 @@
+package com.boycottpro.users;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * The DynamoDB calls this project makes, returned as futures so independent calls can run
+ * concurrently. Backed either by a {@link DynamoDbAsyncClient}, or by a
+ * {@link DynamoDbClient} whose blocking calls run on an executor. The second form keeps
+ * handlers that are built with a (mocked) sync client working unchanged.
+ */
+public abstract class AsyncDynamoDb {
+
+    public abstract CompletableFuture<GetItemResponse> getItem(GetItemRequest request);
+
+    public abstract CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request);
+
+    public abstract CompletableFuture<PutItemResponse> putItem(PutItemRequest request);
+
+    public abstract CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request);
+
+    public abstract CompletableFuture<QueryResponse> query(QueryRequest request);
+
+    public abstract CompletableFuture<ScanResponse> scan(ScanRequest request);
+
+    public abstract CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request);
+
+    public abstract CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request);
+
+    public static AsyncDynamoDb of(DynamoDbAsyncClient client) {
+        return new AsyncDynamoDb() {
+            @Override
+            public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+                return client.getItem(request);
+            }
+
+            @Override
+            public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+                return client.batchGetItem(request);
+            }
+
+            @Override
+            public CompletableFuture<PutItemResponse> putItem(PutItemRequest request) {
+                return client.putItem(request);
+            }
+
+            @Override
+            public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+                return client.updateItem(request);
+            }
+
+            @Override
+            public CompletableFuture<QueryResponse> query(QueryRequest request) {
+                return client.query(request);
+            }
+
+            @Override
+            public CompletableFuture<ScanResponse> scan(ScanRequest request) {
+                return client.scan(request);
+            }
+
+            @Override
+            public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+                return client.transactWriteItems(request);
+            }
+
+            @Override
+            public CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request) {
+                return client.batchWriteItem(request);
+            }
+        };
+    }
+
+    /**
+     * @param executor runs the blocking calls; {@code Runnable::run} runs them on the caller's thread
+     */
+    public static AsyncDynamoDb of(DynamoDbClient client, Executor executor) {
+        return new AsyncDynamoDb() {
+            @Override
+            public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+                return call(() -> client.getItem(request));
+            }
+
+            @Override
+            public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+                return call(() -> client.batchGetItem(request));
+            }
+
+            @Override
+            public CompletableFuture<PutItemResponse> putItem(PutItemRequest request) {
+                return call(() -> client.putItem(request));
+            }
+
+            @Override
+            public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+                return call(() -> client.updateItem(request));
+            }
+
+            @Override
+            public CompletableFuture<QueryResponse> query(QueryRequest request) {
+                return call(() -> client.query(request));
+            }
+
+            @Override
+            public CompletableFuture<ScanResponse> scan(ScanRequest request) {
+                return call(() -> client.scan(request));
+            }
+
+            @Override
+            public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+                return call(() -> client.transactWriteItems(request));
+            }
+
+            @Override
+            public CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request) {
+                return call(() -> client.batchWriteItem(request));
+            }
+
+            private <T> CompletableFuture<T> call(Supplier<T> call) {
+                return CompletableFuture.supplyAsync(call, executor);
+            }
+        };
+    }
+
+    /**
+     * Asks for the consumed capacity of every read and put, and records each call (each page,
+     * for {@link #queryPages} and {@link #scanPages}, each table of a BatchGetItem) with its
+     * wall time in {@code metrics}.
+     * Updates, transactions and batch writes are passed through unrecorded; only the stream,
+     * reconciliation and backfill handlers make them.
+     */
+    public static AsyncDynamoDb instrumented(AsyncDynamoDb delegate, RequestMetrics metrics) {
+        return new AsyncDynamoDb() {
+            @Override
+            public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+                long start = System.nanoTime();
+                return delegate.getItem(request.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build())
+                        .whenComplete((response, error) -> {
+                            if (response != null) {
+                                metrics.record(request.tableName(), RequestMetrics.Operation.GetItem,
+                                        System.nanoTime() - start, response.hasItem() ? 1 : 0,
+                                        capacityUnits(response.consumedCapacity()));
+                            }
+                        });
+            }
+
+            @Override
+            public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+                long start = System.nanoTime();
+                return delegate.batchGetItem(request.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build())
+                        .whenComplete((response, error) -> {
+                            if (response == null) {
+                                return;
+                            }
+                            long nanos = System.nanoTime() - start;
+                            for (String table : request.requestItems().keySet()) {
+                                Double units = null;
+                                for (ConsumedCapacity consumed : response.consumedCapacity()) {
+                                    if (table.equals(consumed.tableName())) {
+                                        units = consumed.capacityUnits();
+                                    }
+                                }
+                                metrics.record(table, RequestMetrics.Operation.BatchGetItem, nanos,
+                                        response.responses().getOrDefault(table, List.of()).size(), units);
+                            }
+                        });
+            }
+
+            @Override
+            public CompletableFuture<PutItemResponse> putItem(PutItemRequest request) {
+                long start = System.nanoTime();
+                return delegate.putItem(request.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build())
+                        .whenComplete((response, error) -> {
+                            if (response != null) {
+                                metrics.record(request.tableName(), RequestMetrics.Operation.PutItem,
+                                        System.nanoTime() - start, 0, capacityUnits(response.consumedCapacity()));
+                            }
+                        });
+            }
+
+            @Override
+            public CompletableFuture<QueryResponse> query(QueryRequest request) {
+                long start = System.nanoTime();
+                return delegate.query(request.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build())
+                        .whenComplete((response, error) -> {
+                            if (response != null) {
+                                metrics.record(request.tableName(), RequestMetrics.Operation.Query,
+                                        System.nanoTime() - start, items(response.count(), response.items()),
+                                        capacityUnits(response.consumedCapacity()));
+                            }
+                        });
+            }
+
+            @Override
+            public CompletableFuture<ScanResponse> scan(ScanRequest request) {
+                long start = System.nanoTime();
+                return delegate.scan(request.toBuilder().returnConsumedCapacity(ReturnConsumedCapacity.TOTAL).build())
+                        .whenComplete((response, error) -> {
+                            if (response != null) {
+                                metrics.record(request.tableName(), RequestMetrics.Operation.Scan,
+                                        System.nanoTime() - start, items(response.count(), response.items()),
+                                        capacityUnits(response.consumedCapacity()));
+                            }
+                        });
+            }
+
+            @Override
+            public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+                return delegate.updateItem(request);
+            }
+
+            @Override
+            public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+                return delegate.transactWriteItems(request);
+            }
+
+            @Override
+            public CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request) {
+                return delegate.batchWriteItem(request);
+            }
+        };
+    }
+
+    /**
+     * Sends reads under {@code policy}: each attempt with its own timeout, at most what is left
+     * of {@code deadline} and passed on to the SDK as well. GetItem and each page of
+     * {@link #queryPages} get a duplicate when the first attempt is slow; BatchGetItem and scan
+     * pages are too costly to send twice. Writes are passed through; a duplicated write would
+     * not be idempotent.
+     */
+    static AsyncDynamoDb hedged(AsyncDynamoDb delegate, HedgingPolicy policy, Deadline deadline,
+                                RequestMetrics metrics) {
+        return new AsyncDynamoDb() {
+            @Override
+            public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+                return policy.read(request.tableName() + ".GetItem", deadline, timeout -> delegate.getItem(
+                        request.toBuilder().overrideConfiguration(o -> o.apiCallAttemptTimeout(timeout)).build()),
+                        metrics);
+            }
+
+            @Override
+            public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+                String key = String.join(",", new TreeSet<>(request.requestItems().keySet())) + ".BatchGetItem";
+                return policy.readOnce(key, deadline, timeout -> delegate.batchGetItem(
+                        request.toBuilder().overrideConfiguration(o -> o.apiCallAttemptTimeout(timeout)).build()),
+                        metrics);
+            }
+
+            @Override
+            public CompletableFuture<QueryResponse> query(QueryRequest request) {
+                String key = request.tableName() + (request.indexName() == null ? "" : "/" + request.indexName())
+                        + ".Query";
+                return policy.read(key, deadline, timeout -> delegate.query(
+                        request.toBuilder().overrideConfiguration(o -> o.apiCallAttemptTimeout(timeout)).build()),
+                        metrics);
+            }
+
+            @Override
+            public CompletableFuture<ScanResponse> scan(ScanRequest request) {
+                return policy.readOnce(request.tableName() + ".Scan", deadline, timeout -> delegate.scan(
+                        request.toBuilder().overrideConfiguration(o -> o.apiCallAttemptTimeout(timeout)).build()),
+                        metrics);
+            }
+
+            @Override
+            public CompletableFuture<PutItemResponse> putItem(PutItemRequest request) {
+                return delegate.putItem(request);
+            }
+
+            @Override
+            public CompletableFuture<UpdateItemResponse> updateItem(UpdateItemRequest request) {
+                return delegate.updateItem(request);
+            }
+
+            @Override
+            public CompletableFuture<TransactWriteItemsResponse> transactWriteItems(TransactWriteItemsRequest request) {
+                return delegate.transactWriteItems(request);
+            }
+
+            @Override
+            public CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request) {
+                return delegate.batchWriteItem(request);
+            }
+        };
+    }
+
+    private static Double capacityUnits(ConsumedCapacity consumed) {
+        return consumed == null ? null : consumed.capacityUnits();
+    }
+
+    /**
+     * Count is set by DynamoDB, but not always by the test doubles.
+     */
+    private static int items(Integer count, List<?> items) {
+        return count == null ? items.size() : count;
+    }
+
+    /**
+     * Scans from {@code request} to the last page, handing each page to {@code onPage} as it
+     * arrives. Pages of one scan are read one after another, so {@code onPage} needs no locking.
+     */
+    public CompletableFuture<Void> scanPages(ScanRequest request, Consumer<ScanResponse> onPage) {
+        return new PageWalker<ScanRequest, ScanResponse>(this::scan, page -> {
+            onPage.accept(page);
+            return hasMore(page.lastEvaluatedKey(), page.hasLastEvaluatedKey());
+        }, (previous, page) -> previous.toBuilder().exclusiveStartKey(page.lastEvaluatedKey()).build())
+                .walk(request);
+    }
+
+    /**
+     * Queries from {@code request} to the last page, handing each page to {@code onPage} as it arrives.
+     */
+    public CompletableFuture<Void> queryPages(QueryRequest request, Consumer<QueryResponse> onPage) {
+        return new PageWalker<QueryRequest, QueryResponse>(this::query, page -> {
+            onPage.accept(page);
+            return hasMore(page.lastEvaluatedKey(), page.hasLastEvaluatedKey());
+        }, (previous, page) -> previous.toBuilder().exclusiveStartKey(page.lastEvaluatedKey()).build())
+                .walk(request);
+    }
+
+    private static boolean hasMore(Map<String, AttributeValue> lastEvaluatedKey, boolean present) {
+        return present && !lastEvaluatedKey.isEmpty();
+    }
+
+    /**
+     * Follows LastEvaluatedKey without growing the stack: pages that complete synchronously
+     * (a sync client on {@code Runnable::run}) are handled in a loop, and only a page that
+     * is still in flight continues in a callback.
+     */
+    private static final class PageWalker<Q, R> {
+        private final Function<Q, CompletableFuture<R>> call;
+        private final Predicate<R> onPage;
+        private final BiFunction<Q, R, Q> nextRequest;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PageWalker(Function<Q, CompletableFuture<R>> call, Predicate<R> onPage, BiFunction<Q, R, Q> nextRequest) {
+            this.call = call;
+            this.onPage = onPage;
+            this.nextRequest = nextRequest;
+        }
+
+        CompletableFuture<Void> walk(Q request) {
+            try {
+                Q current = request;
+                while (current != null) {
+                    CompletableFuture<R> page = call.apply(current);
+                    if (!page.isDone()) {
+                        Q inFlight = current;
+                        page.whenComplete((response, error) -> {
+                            if (error != null) {
+                                done.completeExceptionally(error);
+                            } else {
+                                try {
+                                    walk(next(inFlight, response));
+                                } catch (RuntimeException e) {
+                                    done.completeExceptionally(e);
+                                }
+                            }
+                        });
+                        return done;
+                    }
+                    current = next(current, join(page));
+                }
+                done.complete(null);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+            return done;
+        }
+
+        private Q next(Q request, R response) {
+            return onPage.test(response) ? nextRequest.apply(request, response) : null;
+        }
+    }
+
+    /**
+     * Waits for {@code future} and rethrows a failure as the exception the call itself threw,
+     * so callers see the same errors as with the blocking client.
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable cause) {
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new CompletionException(cause);
+    }
+}
@@ -0,0 +1,42 @@
+package com.boycottpro.users;
+
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+
+/**
+ * Lambda SnapStart (CRaC) hooks for {@link GetUserStatsHandler}. Before the snapshot is taken
+ * the handler runs its Jackson serialisation and one marshalled, signed DynamoDB round trip,
+ * so the restored instance starts with those classes loaded and initialised. After restore
+ * the DynamoDB client is rebuilt, since connections and credentials from the snapshot are stale.
+ * <p>
+ * On a JVM without CRaC support, registering is a no-op.
+ */
+final class ColdStartPriming implements Resource {
+
+    private final GetUserStatsHandler handler;
+
+    private ColdStartPriming(GetUserStatsHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * CRaC only keeps a weak reference to registered resources, so the caller must hold on to
+     * the returned instance.
+     */
+    static ColdStartPriming register(GetUserStatsHandler handler) {
+        ColdStartPriming priming = new ColdStartPriming(handler);
+        Core.getGlobalContext().register(priming);
+        return priming;
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context) {
+        handler.prime();
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context) {
+        handler.reconnect(DynamoDbClients.create());
+    }
+}
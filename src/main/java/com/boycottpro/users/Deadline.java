@@ -0,0 +1,86 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The time an invocation may spend waiting for DynamoDB: what
+ * {@link Context#getRemainingTimeInMillis()} reports at the start, less DEADLINE_RESERVE_MS
+ * (250 by default) kept for building and writing the response. Every wait of the request
+ * path draws from the same budget, so a slow read ends in a timely answer instead of the
+ * Lambda timing out.
+ */
+final class Deadline {
+
+    static final long RESERVE_MILLIS = Long.parseLong(System.getenv().getOrDefault("DEADLINE_RESERVE_MS", "250"));
+    static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    // System.nanoTime() at which the budget is used up
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Without a context, or with one that reports no remaining time as test doubles do, there
+     * is no deadline.
+     */
+    static Deadline of(Context context) {
+        int remaining = context == null ? 0 : context.getRemainingTimeInMillis();
+        if (remaining <= 0) {
+            return NONE;
+        }
+        return in(remaining - RESERVE_MILLIS);
+    }
+
+    /**
+     * A budget of {@code millis} from now.
+     */
+    static Deadline in(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis)));
+    }
+
+    long remainingNanos() {
+        return this == NONE ? Long.MAX_VALUE : Math.max(0, expiresAt - System.nanoTime());
+    }
+
+    /**
+     * Waits for {@code future} at most until the deadline. A failure is rethrown as in
+     * {@link AsyncDynamoDb#join}; the future itself keeps running after a timeout.
+     *
+     * @throws TimeoutException when the budget is used up first
+     */
+    <T> T await(CompletableFuture<T> future) throws TimeoutException {
+        if (this == NONE || future.isDone()) {
+            return join(future);
+        }
+        try {
+            return future.get(remainingNanos(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            return join(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for DynamoDB", e);
+        } catch (TimeoutException e) {
+            throw new TimeoutException("time budget of the invocation used up");
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws TimeoutException {
+        try {
+            return AsyncDynamoDb.join(future);
+        } catch (CompletionException e) {
+            // a call whose attempt was cut to this budget may give up just before the wait does
+            if (e.getCause() instanceof TimeoutException) {
+                throw new TimeoutException("time budget of the invocation used up");
+            }
+            throw e;
+        }
+    }
+}
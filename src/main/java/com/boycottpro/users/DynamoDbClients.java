@@ -0,0 +1,58 @@
+package com.boycottpro.users;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.ContainerCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClientBuilder;
+
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * Builds the DynamoDB client the handlers use in Lambda. What the SDK would otherwise discover
+ * during cold start is set explicitly: the region from AWS_REGION, the credentials provider
+ * and the URLConnection HTTP client, which loads far fewer classes than the Apache client and
+ * starts no connection-pool threads. Build with the lean-http profile to leave the other HTTP
+ * clients out of the jar. DYNAMODB_ENDPOINT points the client at a local endpoint.
+ */
+public final class DynamoDbClients {
+
+    private DynamoDbClients() {
+    }
+
+    public static DynamoDbClient create() {
+        return create(System.getenv());
+    }
+
+    static DynamoDbClient create(Map<String, String> env) {
+        DynamoDbClientBuilder builder = DynamoDbClient.builder()
+                .httpClient(UrlConnectionHttpClient.create())
+                .credentialsProvider(credentialsProvider(env));
+        if (env.get("AWS_REGION") != null) {
+            builder.region(Region.of(env.get("AWS_REGION")));
+        }
+        if (env.get("DYNAMODB_ENDPOINT") != null) {
+            builder.endpointOverride(URI.create(env.get("DYNAMODB_ENDPOINT")));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Under SnapStart Lambda serves credentials from a container endpoint rather than from
+     * environment variables, so they are fetched after restore instead of being frozen into
+     * the snapshot. Outside Lambda the default chain (profiles, SSO, ...) is used.
+     */
+    static AwsCredentialsProvider credentialsProvider(Map<String, String> env) {
+        if (env.get("AWS_CONTAINER_CREDENTIALS_FULL_URI") != null) {
+            return ContainerCredentialsProvider.builder().build();
+        }
+        if (env.get("AWS_ACCESS_KEY_ID") != null) {
+            return EnvironmentVariableCredentialsProvider.create();
+        }
+        return DefaultCredentialsProvider.builder().build();
+    }
+}
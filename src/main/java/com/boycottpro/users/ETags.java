@@ -0,0 +1,102 @@
+package com.boycottpro.users;
+
+import com.boycottpro.users.model.ResponsePojo;
+import com.boycottpro.users.model.TopCause;
+import com.boycottpro.users.model.TopCompany;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Entity tags of the stats response: a 64-bit FNV-1a hash of the field selection and the
+ * values, so an unchanged poll is answered with a 304 without serialising anything, and every
+ * instance computes the same tag.
+ */
+final class ETags {
+
+    // bump when the response shape changes, so that clients do not keep a body of the old shape
+    private static final int FORMAT = 2;
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private ETags() {
+    }
+
+    static String of(Set<StatsField> fields, ResponsePojo stats) {
+        long hash = mix(OFFSET_BASIS, FORMAT);
+        int selection = 0;
+        for (StatsField field : fields) {
+            selection |= 1 << field.ordinal();
+        }
+        hash = mix(hash, selection);
+        hash = mix(hash, stats.getTotalBoycotts());
+        hash = mix(hash, stats.getNumCausesFollowed());
+        hash = mix(hash, stats.getWorstCompanyName());
+        hash = mix(hash, stats.getWorstCount());
+        hash = mix(hash, stats.getTopReason());
+        hash = mix(hash, stats.getCauseName());
+        hash = mix(hash, stats.getFollowerCount());
+        hash = mix(hash, stats.getTopCompanies() == null ? null : stats.getTopCompanies().size());
+        for (TopCompany company : stats.getTopCompanies() == null ? List.<TopCompany>of() : stats.getTopCompanies()) {
+            hash = mix(hash, company.getCompanyId());
+            hash = mix(hash, company.getCompanyName());
+            hash = mix(hash, company.getBoycottCount());
+            hash = mix(hash, company.getTopReason());
+        }
+        hash = mix(hash, stats.getTopCauses() == null ? null : stats.getTopCauses().size());
+        for (TopCause cause : stats.getTopCauses() == null ? List.<TopCause>of() : stats.getTopCauses()) {
+            hash = mix(hash, cause.getCauseId());
+            hash = mix(hash, cause.getCauseName());
+            hash = mix(hash, cause.getFollowerCount());
+        }
+        return '"' + Long.toHexString(hash) + '"';
+    }
+
+    /**
+     * True when {@code ifNoneMatch} lists {@code etag} or is "*". Weak tags (W/"...") match
+     * their strong form, as the weak comparison of If-None-Match requires.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long mix(long hash, Integer value) {
+        // a presence marker first, so that absent differs from every number
+        return value == null ? mix(hash, 0) : mix(mix(hash, 1), value.intValue());
+    }
+
+    private static long mix(long hash, int value) {
+        for (int shift = 0; shift < 32; shift += 8) {
+            hash = (hash ^ ((value >>> shift) & 0xff)) * PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * The length goes first, so that ("ab", "c") and ("a", "bc") hash differently; null is -1.
+     */
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            return mix(hash, -1);
+        }
+        hash = mix(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * PRIME;
+            hash = (hash ^ (c >>> 8)) * PRIME;
+        }
+        return hash;
+    }
+}
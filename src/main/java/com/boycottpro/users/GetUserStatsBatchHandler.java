@@ -0,0 +1,121 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.boycottpro.users.model.ResponsePojo;
+import com.boycottpro.utilities.Logger;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The stats of many users in one invocation, for the admin dashboard and the notification
+ * service, which would otherwise invoke {@link GetUserStatsHandler} once per user. It answers
+ * for any user, so it is invoked directly rather than through API Gateway, and only the roles
+ * of those services may invoke it.
+ * <p>
+ * Input: {@code {"user_ids": ["...", "..."], "fields": "totalBoycotts,worstCompanyName",
+ * "window": "24h"}}, with fields and window as the query parameters of
+ * {@link GetUserStatsHandler} and both optional; at most STATS_BATCH_LIMIT (100 by default)
+ * users. Output: {@code {"stats": {"<user_id>": {...}, ...}, "failed": ["..."]}}, each stats
+ * object as in the single-user response. Invalid input fails the invocation.
+ */
+public class GetUserStatsBatchHandler implements RequestStreamHandler {
+
+    static final int LIMIT = Integer.parseInt(System.getenv().getOrDefault("STATS_BATCH_LIMIT", "100"));
+    // the streams belong to the Lambda runtime, so Jackson must not close them
+    private static final ObjectMapper MAPPER = new ObjectMapper(JsonFactory.builder()
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build());
+    // one flush at the end instead of one per user
+    private static final ObjectWriter STATS_WRITER = MAPPER.writerFor(ResponsePojo.class)
+            .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    private final GetUserStatsHandler handler;
+
+    public GetUserStatsBatchHandler() {
+        this(new GetUserStatsHandler());
+    }
+
+    /**
+     * @param handler supplies the repositories, the global stats cache and the metrics
+     */
+    public GetUserStatsBatchHandler(GetUserStatsHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        JsonNode request = MAPPER.readTree(input);
+        List<String> userIds;
+        Set<StatsField> fields;
+        TrendingRepository.Window window;
+        try {
+            userIds = userIds(request == null ? null : request.get("user_ids"));
+            fields = StatsField.parse(text(request, "fields"));
+            window = TrendingRepository.Window.parse(text(request, "window"));
+        } catch (IllegalArgumentException e) {
+            Logger.error(SourceLines.here(), null, e.getMessage());
+            throw e;
+        }
+        List<String> failed = new ArrayList<>();
+        Map<String, ResponsePojo> stats;
+        try {
+            stats = handler.serveBatch(userIds, fields, window, context, failed);
+        } catch (RuntimeException e) {
+            Logger.error(SourceLines.here(), null, "stats of " + userIds.size() + " users failed: " + e.getMessage());
+            stats = Map.of();
+            failed = userIds;
+        }
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(output)) {
+            generator.writeStartObject();
+            generator.writeObjectFieldStart("stats");
+            for (Map.Entry<String, ResponsePojo> user : stats.entrySet()) {
+                generator.writeFieldName(user.getKey());
+                STATS_WRITER.writeValue(generator, user.getValue());
+            }
+            generator.writeEndObject();
+            generator.writeArrayFieldStart("failed");
+            for (String userId : failed) {
+                generator.writeString(userId);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    private static List<String> userIds(JsonNode userIds) {
+        if (userIds == null || !userIds.isArray()) {
+            throw new IllegalArgumentException("user_ids must be a list of user ids");
+        }
+        if (userIds.size() > LIMIT) {
+            throw new IllegalArgumentException("at most " + LIMIT + " user_ids per request, got " + userIds.size());
+        }
+        List<String> ids = new ArrayList<>(userIds.size());
+        for (JsonNode userId : userIds) {
+            if (!userId.isTextual() || userId.asText().isBlank()) {
+                throw new IllegalArgumentException("user_ids must be a list of user ids");
+            }
+            ids.add(userId.asText());
+        }
+        return ids;
+    }
+
+    private static String text(JsonNode request, String name) {
+        JsonNode value = request == null ? null : request.get(name);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+}
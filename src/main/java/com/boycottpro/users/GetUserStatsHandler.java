@@ -5,165 +5,654 @@ import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 
-import com.boycottpro.models.Causes;
-import com.boycottpro.models.Companies;
+import com.boycottpro.users.model.GlobalStats;
+import com.boycottpro.users.model.Leaderboards;
 import com.boycottpro.users.model.ResponsePojo;
-import com.boycottpro.utilities.CausesUtility;
-import com.boycottpro.utilities.CompanyUtility;
+import com.boycottpro.users.model.TopCause;
+import com.boycottpro.users.model.TopCompany;
+import com.boycottpro.users.model.UserStats;
 import com.boycottpro.utilities.JwtUtility;
 import com.boycottpro.utilities.Logger;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
-import java.awt.event.FocusEvent;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class GetUserStatsHandler implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
 
-    private static final String TABLE_NAME = "";
-    private final DynamoDbClient dynamoDb;
-    private final ObjectMapper objectMapper = new ObjectMapper();
+    // the start of the Lambda init phase, as far as this code can see it
+    private static final long LOADED_AT_NANOS = System.nanoTime();
+    // a stale read waits up to GLOBAL_STATS_REFRESH_WAIT_MS for the refresh it shares with
+    // concurrent requests before it serves the last-known-good value
+    private static final String GLOBAL_STATS_CACHE_TTL_SECONDS =
+            System.getenv().getOrDefault("GLOBAL_STATS_CACHE_TTL_SECONDS", "60");
+    private static final GlobalStatsCache GLOBAL_STATS_CACHE = new GlobalStatsCache(
+            Long.parseLong(GLOBAL_STATS_CACHE_TTL_SECONDS) * 1000,
+            Long.parseLong(System.getenv().getOrDefault("GLOBAL_STATS_REFRESH_WAIT_MS", "50")));
+    // runs the blocking calls concurrently when the handler is built with a sync client only:
+    // the user_stats read or the two per-user queries, one scan per segment of companies and
+    // causes or one leaderboard query per shard of both, the bucket queries of a trending window,
+    // and the hedged duplicates of any of them. Each call holds its thread until DynamoDB answers,
+    // so none may queue behind the others: FAN_OUT_THREADS, by default one request's fan-out,
+    // are kept, and concurrent requests and hedges get extra threads that end after a minute idle
+    private static final ExecutorService FAN_OUT_EXECUTOR = new ThreadPoolExecutor(
+            Integer.parseInt(System.getenv().getOrDefault("FAN_OUT_THREADS", String.valueOf(
+                    2 + 2 * Math.max(GlobalStatsRepository.SCAN_SEGMENTS, LeaderboardRepository.SHARDS)))),
+            Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "user-stats-fan-out");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // runs the global lookups that miss the cache, so the request can stop waiting for them;
+    // they block on their own calls, which run on FAN_OUT_EXECUTOR
+    private static final ExecutorService LOOKUP_EXECUTOR = Executors.newFixedThreadPool(4, r -> {
+        Thread thread = new Thread(r, "user-stats-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int BATCH_COUNT_CONCURRENCY = Integer.parseInt(
+            System.getenv().getOrDefault("BATCH_COUNT_CONCURRENCY", "8"));
+    private static final GlobalStats GLOBAL_STATS_UNAVAILABLE = new GlobalStats(null, "N/A", 0, "N/A",
+            null, "N/A", 0, 0);
+    // Jackson builds its serialisers once per mapper, so one mapper is shared by all instances
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    // the response is per user, so only the caller's own cache may keep it, for
+    // STATS_MAX_AGE_SECONDS and then revalidated with If-None-Match
+    private static final String STATS_MAX_AGE_SECONDS = System.getenv().getOrDefault("STATS_MAX_AGE_SECONDS", "0");
+    private static final String CACHE_CONTROL = "private, max-age=" + STATS_MAX_AGE_SECONDS + ", must-revalidate";
+    // a response without per-user fields is the same for everyone, so API Gateway and CDNs may
+    // keep it for STATS_SHARED_MAX_AGE_SECONDS, by default as long as an instance caches it
+    private static final String SHARED_CACHE_CONTROL = "public, max-age=" + STATS_MAX_AGE_SECONDS + ", s-maxage="
+            + System.getenv().getOrDefault("STATS_SHARED_MAX_AGE_SECONDS", GLOBAL_STATS_CACHE_TTL_SECONDS);
+    // each request counts its calls in metrics of its own, see Repositories; the latencies that
+    // decide when to hedge are learned per handler
+    private volatile HedgingPolicy hedging = HedgingPolicy.fromEnv();
+    private volatile GlobalStatsCache globalStatsCache = GLOBAL_STATS_CACHE;
+    // the calls of background refreshes, written with the next invocation's metrics
+    private final RequestMetrics refreshMetrics = new RequestMetrics();
+    private volatile DynamoDbClient dynamoDb;
+    private volatile AsyncDynamoDb calls;
+    private ColdStartPriming priming;
+    private final AtomicBoolean coldStart = new AtomicBoolean(true);
+    private volatile long initNanos;
+    private final Responses<APIGatewayProxyResponseEvent> proxyResponses = new Responses<>() {
+        @Override
+        public APIGatewayProxyResponseEvent ok(ResponsePojo stats, String etag, boolean shared) {
+            return response(200, stats, cacheHeaders(etag, true, shared));
+        }
+
+        @Override
+        public APIGatewayProxyResponseEvent notModified(String etag, boolean shared) {
+            return new APIGatewayProxyResponseEvent()
+                    .withStatusCode(304)
+                    .withHeaders(cacheHeaders(etag, false, shared));
+        }
+
+        @Override
+        public APIGatewayProxyResponseEvent badRequest(String message) {
+            return response(400, Map.of("message", message));
+        }
+
+        @Override
+        public APIGatewayProxyResponseEvent unauthorized() {
+            return response(401, Map.of("message", "Unauthorized"));
+        }
 
+        @Override
+        public APIGatewayProxyResponseEvent serverError(String message) {
+            // the legacy body, a JSON string holding the error object
+            return response(500, "{\"error\": \"" + message + "\"}");
+        }
+    };
+
+    /**
+     * The Lambda entry point. It uses the explicitly configured client of {@link DynamoDbClients}
+     * with the fan-out pool, and registers the SnapStart priming hooks.
+     */
     public GetUserStatsHandler() {
-        this.dynamoDb = DynamoDbClient.create();
+        this(DynamoDbClients.create(), null);
+        this.priming = ColdStartPriming.register(this);
     }
 
     public GetUserStatsHandler(DynamoDbClient dynamoDb) {
+        this(dynamoDb, null);
+    }
+
+    /**
+     * @param dynamoDbAsync used for every call on the request path; when null, the calls of
+     *                      {@code dynamoDb} run concurrently on the fan-out pool instead
+     */
+    public GetUserStatsHandler(DynamoDbClient dynamoDb, DynamoDbAsyncClient dynamoDbAsync) {
+        connect(dynamoDb, dynamoDbAsync);
+        this.initNanos = System.nanoTime() - LOADED_AT_NANOS;
+    }
+
+    private void connect(DynamoDbClient dynamoDb, DynamoDbAsyncClient dynamoDbAsync) {
         this.dynamoDb = dynamoDb;
+        this.calls = dynamoDbAsync == null
+                ? AsyncDynamoDb.of(dynamoDb, FAN_OUT_EXECUTOR)
+                : AsyncDynamoDb.of(dynamoDbAsync);
+    }
+
+    /**
+     * Sends the reads under {@code hedging} instead of the handler's own policy of
+     * HEDGE_PERCENTILE.
+     */
+    GetUserStatsHandler hedgedBy(HedgingPolicy hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+
+    /**
+     * Keeps the global lookups in {@code cache} instead of the process-wide one.
+     */
+    GetUserStatsHandler cachedIn(GlobalStatsCache cache) {
+        this.globalStatsCache = cache;
+        return this;
+    }
+
+    /**
+     * The repositories of one request, with the calls counted in the request's own metrics and
+     * their attempts cut to its deadline. A lookup that concurrent requests share through the
+     * global stats cache is counted by, and runs within the budget of, the request that
+     * started it; a refresh has repositories of its own, see {@link #refresh}.
+     */
+    private static final class Repositories {
+        final RequestMetrics metrics;
+        final GlobalStatsRepository globalStats;
+        final LeaderboardRepository leaderboards;
+        final TrendingRepository trending;
+        final UserStatsRepository userStats;
+
+        Repositories(AsyncDynamoDb dynamoDb, HedgingPolicy hedging, Deadline deadline) {
+            this(dynamoDb, hedging, deadline, new RequestMetrics());
+        }
+
+        Repositories(AsyncDynamoDb dynamoDb, HedgingPolicy hedging, Deadline deadline, RequestMetrics metrics) {
+            this.metrics = metrics;
+            AsyncDynamoDb calls = AsyncDynamoDb.instrumented(
+                    AsyncDynamoDb.hedged(dynamoDb, hedging, deadline, metrics), metrics);
+            this.globalStats = new GlobalStatsRepository(calls, GlobalStatsRepository.SCAN_SEGMENTS);
+            this.leaderboards = new LeaderboardRepository(calls, globalStats, LeaderboardRepository.SHARDS);
+            this.trending = new TrendingRepository(calls, globalStats, TrendingRepository.SHARDS, System::currentTimeMillis);
+            this.userStats = new UserStatsRepository(calls);
+        }
+    }
+
+    /**
+     * Replaces the client after a SnapStart restore; no request is running at that point. The
+     * next invocation reports a cold start whose init duration is the time spent here.
+     */
+    void reconnect(DynamoDbClient fresh) {
+        long start = System.nanoTime();
+        DynamoDbClient stale = dynamoDb;
+        connect(fresh, null);
+        stale.close();
+        initNanos = System.nanoTime() - start;
+        coldStart.set(true);
+    }
+
+    /**
+     * Loads and initialises what the first request needs, before a SnapStart snapshot:
+     * serialisation of the response and one read of each item the handler gets. The reads
+     * bypass {@link #GLOBAL_STATS_CACHE}, which must not carry snapshot-time values.
+     */
+    void prime() {
+        response(200, new ResponsePojo(0, 0, "", 0, "", "", 0));
+        // its metrics are dropped: they were recorded outside an invocation
+        Repositories repositories = new Repositories(calls, hedging, Deadline.NONE);
+        try {
+            repositories.globalStats.load(false);
+            AsyncDynamoDb.join(repositories.userStats.load("priming"));
+            repositories.leaderboards.load(LeaderboardRepository.SIZE);
+        } catch (RuntimeException e) {
+            // priming is best effort; the classes are loaded even when the call fails
+            Logger.error(SourceLines.here(), null, "priming read failed: " + e.getMessage());
+        }
     }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        return serve(() -> new StatsRequest(JwtUtility.getSubFromRestEvent(event),
+                StatsRequest.header(event.getHeaders(), "If-None-Match"),
+                parameter(event, "fields"), parameter(event, "window")), context, proxyResponses);
+    }
+
+    private static String parameter(APIGatewayProxyRequestEvent event, String name) {
+        return event.getQueryStringParameters() == null ? null : event.getQueryStringParameters().get(name);
+    }
+
+    /**
+     * The request path of both entry points: {@code request} extracts what is needed from the
+     * event, {@code responses} renders the outcome in the entry point's output format.
+     * <p>
+     * A poll whose If-None-Match still matches gets a 304 without a body. For a user whose
+     * counters are materialised, with the global part cached, the tag is checked against the
+     * totals item and the cached values, fresh or stale, before any other call is made, so the
+     * 304 costs one GetItem and a hash of the values; see {@link ETags}. A response without
+     * per-user fields may be kept by shared caches, see {@link #cacheHeaders}.
+     * <p>
+     * With {@code window=24h} or {@code window=7d} the global fields and the top lists are
+     * about the boycotts and follows within that window instead of all time; see
+     * {@link TrendingRepository}.
+     * <p>
+     * All waits share the time budget of a {@link Deadline}. When the global lookups use it
+     * up, the response carries the personal stats with "N/A" and 0 in the global fields and
+     * empty top lists; when the personal stats do, the request fails.
+     */
+    <R> R serve(Callable<StatsRequest> request, Context context, Responses<R> responses) {
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.of(context);
+        Repositories repositories = new Repositories(calls, hedging, deadline);
         String sub = null;
-        int lineNum = 41;
         try {
-            sub = JwtUtility.getSubFromRestEvent(event);
+            StatsRequest parsed = request.call();
+            sub = parsed.getSub();
             if (sub == null) {
-                Logger.error(45, sub, "user is Unauthorized");
-                return response(401, Map.of("message", "Unauthorized"));
+                Logger.error(SourceLines.here(), sub, "user is Unauthorized");
+                return responses.unauthorized();
+            }
+            Set<StatsField> fields;
+            TrendingRepository.Window window;
+            try {
+                fields = StatsField.parse(parsed.getFields());
+                window = TrendingRepository.Window.parse(parsed.getWindow());
+            } catch (IllegalArgumentException e) {
+                Logger.error(SourceLines.here(), sub, e.getMessage());
+                return responses.badRequest(e.getMessage());
+            }
+            boolean user = StatsField.any(fields, StatsField.USER);
+            boolean shared = !user;
+            // only the calls the requested fields need are made
+            CompletableFuture<UserStats> totals = user
+                    ? repositories.userStats.load(sub)
+                    : CompletableFuture.completedFuture(null);
+            GlobalLookup cached = parsed.getIfNoneMatch() == null
+                    ? null
+                    : lookUpGlobal(repositories, sub, fields, window, this::peek);
+            if (cached != null) {
+                UserStats stored = deadline.await(totals);
+                if (!user || stored != null) {
+                    String etag = ETags.of(fields, render(fields, stored, cached));
+                    if (ETags.matches(parsed.getIfNoneMatch(), etag)) {
+                        return responses.notModified(etag, shared);
+                    }
+                }
             }
-            lineNum = 48;
-            int totalBoycotts = getNumCompaniesBoycotted(sub);
-            lineNum = 50;
-            int numCausesFollowed = getNumCausesFollowed(sub);
-            lineNum = 52;
-            Companies worstCompany = getCompanyWithMostBoycotts();
-            lineNum = 54;
-            String worstCompanyName = worstCompany.getCompany_name();
-            lineNum = 56;
-            int worstCount = worstCompany.getBoycott_count();
-            String topReason = reasonPeopleAreBoycottingCompany(worstCompany.getCompany_id());
-            lineNum = 59;
-            Causes bestCause = topCauseBeingFollowed();
-            lineNum = 61;
-            String causeName = bestCause.getCause_desc();
-            int followerCount = bestCause.getFollower_count();
-            if(followerCount == 0){
-                causeName = "no causes yet";
+            // the per-user counters are read while the global stats come from the cache or
+            // DynamoDB; users the stream has not materialised yet are counted from
+            // user_boycotts/user_causes
+            CompletableFuture<UserStats> personal = user
+                    ? repositories.userStats.countIfMissing(totals, sub, fields.contains(StatsField.TOTAL_BOYCOTTS),
+                            fields.contains(StatsField.NUM_CAUSES_FOLLOWED))
+                    : totals;
+            GlobalLookup lookup = lookUpGlobal(repositories, sub, fields, window, this::fetch);
+            UserStats userStats = deadline.await(personal);
+            GlobalLookup global = awaitGlobal(repositories, lookup, deadline, sub);
+            ResponsePojo stats = render(fields, userStats, global);
+            String etag = ETags.of(fields, stats);
+            if (ETags.matches(parsed.getIfNoneMatch(), etag)) {
+                return responses.notModified(etag, shared);
             }
-            ResponsePojo stats = new ResponsePojo(totalBoycotts,numCausesFollowed,worstCompanyName,
-                    worstCount,topReason,causeName,followerCount);
-            lineNum = 69;
-            return response(200, stats);
+            return responses.ok(stats, etag, shared);
         } catch (Exception e) {
-            Logger.error(lineNum, sub, e.getMessage());
-            return response(500,"{\"error\": \"Unexpected server error: " + e.getMessage() + "\"}");
+            Logger.error(SourceLines.of(e, GetUserStatsHandler.class), sub, e.getMessage());
+            return responses.serverError("Unexpected server error: " + e.getMessage());
+        } finally {
+            emitMetrics(repositories.metrics, context, start);
+        }
+    }
+
+    /**
+     * The stats of many users in one invocation, for the services that act on their behalf;
+     * see {@link GetUserStatsBatchHandler}. The global fields are looked up once for all of
+     * them, and the per-user counters of up to 100 users come from one BatchGetItem, see
+     * {@link UserStatsRepository#loadOrCountAll}. Users without materialised counters are
+     * counted from the source tables, BATCH_COUNT_CONCURRENCY (8 by default) at a time.
+     * <p>
+     * All waits share one {@link Deadline}. A user whose stats miss it or cannot be read is
+     * left out and added to {@code failed}; a failure of the global lookups fails the batch.
+     *
+     * @return the stats by user id, in the order of {@code userIds}
+     */
+    Map<String, ResponsePojo> serveBatch(List<String> userIds, Set<StatsField> fields,
+                                         TrendingRepository.Window window, Context context, List<String> failed) {
+        long start = System.nanoTime();
+        Deadline deadline = Deadline.of(context);
+        Repositories repositories = new Repositories(calls, hedging, deadline);
+        try {
+            Map<String, CompletableFuture<UserStats>> personal = new LinkedHashMap<>();
+            if (StatsField.any(fields, StatsField.USER)) {
+                personal = repositories.userStats.loadOrCountAll(userIds, fields.contains(StatsField.TOTAL_BOYCOTTS),
+                        fields.contains(StatsField.NUM_CAUSES_FOLLOWED), BATCH_COUNT_CONCURRENCY);
+            } else {
+                for (String userId : userIds) {
+                    personal.put(userId, CompletableFuture.completedFuture(null));
+                }
+            }
+            GlobalLookup global = awaitGlobal(repositories, lookUpGlobal(repositories, null, fields, window, this::fetch),
+                    deadline, null);
+            Map<String, ResponsePojo> stats = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<UserStats>> user : personal.entrySet()) {
+                try {
+                    stats.put(user.getKey(), render(fields, deadline.await(user.getValue()), global));
+                } catch (TimeoutException | RuntimeException e) {
+                    Logger.error(SourceLines.here(), user.getKey(), e.getMessage());
+                    failed.add(user.getKey());
+                }
+            }
+            return stats;
+        } finally {
+            emitMetrics(repositories.metrics, context, start);
+        }
+    }
+
+    /**
+     * The global fields and the top lists of a request, looked up while the personal stats
+     * are read.
+     */
+    private static final class GlobalLookup {
+        static final GlobalLookup UNAVAILABLE = new GlobalLookup(
+                CompletableFuture.completedFuture(GLOBAL_STATS_UNAVAILABLE),
+                CompletableFuture.completedFuture(Leaderboards.EMPTY));
+
+        final CompletableFuture<GlobalStats> stats;
+        final CompletableFuture<Leaderboards> top;
+
+        GlobalLookup(CompletableFuture<GlobalStats> stats, CompletableFuture<Leaderboards> top) {
+            this.stats = stats;
+            this.top = top;
+        }
+    }
+
+    /**
+     * A value that is the same for every user: its key in the global stats cache and how it is
+     * read from DynamoDB.
+     */
+    private static final class GlobalPart<V> {
+        final String key;
+        final Function<Repositories, V> loader;
+
+        GlobalPart(String key, Function<Repositories, V> loader) {
+            this.key = key;
+            this.loader = loader;
         }
     }
 
-    private APIGatewayProxyResponseEvent response(int status, Object body) {
+    /**
+     * Where the parts of a {@link GlobalLookup} come from, {@link #fetch} or {@link #peek}.
+     */
+    private interface GlobalParts {
+        <V> CompletableFuture<V> get(GlobalPart<V> part, Repositories repositories);
+    }
+
+    /**
+     * @return the part from the cache, or loaded into it by {@code repositories} when it is missing
+     */
+    private <V> CompletableFuture<V> fetch(GlobalPart<V> part, Repositories repositories) {
+        return globalStatsCache.getAsync(part.key, () -> part.loader.apply(repositories), () -> refresh(part),
+                LOOKUP_EXECUTOR);
+    }
+
+    /**
+     * @return the part as last cached, or null when it has not been loaded yet
+     */
+    private <V> CompletableFuture<V> peek(GlobalPart<V> part, Repositories repositories) {
+        V value = globalStatsCache.peek(part.key, () -> refresh(part));
+        return value == null ? null : CompletableFuture.completedFuture(value);
+    }
+
+    /**
+     * Reloads a stale part in the background. It outlives the request that found the part
+     * stale, so it runs without a deadline and counts its calls in {@link #refreshMetrics}.
+     */
+    private <V> V refresh(GlobalPart<V> part) {
+        return part.loader.apply(new Repositories(calls, hedging, Deadline.NONE, refreshMetrics));
+    }
+
+    /**
+     * @return null when {@code parts} lacks one the fields need
+     */
+    private static GlobalLookup lookUpGlobal(Repositories repositories, String sub, Set<StatsField> fields,
+                                             TrendingRepository.Window window, GlobalParts parts) {
+        boolean global = StatsField.any(fields, StatsField.GLOBAL);
+        boolean lists = fields.contains(StatsField.TOP_COMPANIES) || fields.contains(StatsField.TOP_CAUSES);
+        CompletableFuture<Leaderboards> trending = null;
+        if (window != null && (global || lists)) {
+            trending = parts.get(trending(window, fields), repositories);
+            if (trending == null) {
+                return null;
+            }
+        }
+        CompletableFuture<GlobalStats> stats = !global ? CompletableFuture.completedFuture(null)
+                : trending == null ? parts.get(globalStats(fields), repositories)
+                : trending.thenApply(GetUserStatsHandler::trendingStats);
+        CompletableFuture<Leaderboards> top = !lists ? CompletableFuture.completedFuture(Leaderboards.EMPTY)
+                : trending == null ? orEmpty(parts.get(leaderboards(fields), repositories), sub)
+                : trending;
+        return stats == null || top == null ? null : new GlobalLookup(stats, top);
+    }
+
+    /**
+     * @return {@code lookup} once it is done, or the placeholders when the deadline comes first
+     */
+    private static GlobalLookup awaitGlobal(Repositories repositories, GlobalLookup lookup, Deadline deadline,
+                                            String sub) {
+        try {
+            deadline.await(lookup.stats);
+            deadline.await(lookup.top);
+            return lookup;
+        } catch (TimeoutException e) {
+            // the personal stats are what the caller cannot get elsewhere; a lookup that
+            // another request started with more time left still fills the cache
+            Logger.error(SourceLines.here(), sub, "global stats " + e.getMessage() + ", serving placeholders");
+            repositories.metrics.count(RequestMetrics.Event.DegradedResponses);
+            return GlobalLookup.UNAVAILABLE;
+        }
+    }
+
+    /**
+     * @param global a lookup that is done
+     */
+    private static ResponsePojo render(Set<StatsField> fields, UserStats userStats, GlobalLookup global) {
+        GlobalStats globalStats = global.stats.join();
+        Leaderboards top = global.top.join();
+        return new ResponsePojo(
+                pick(fields, StatsField.TOTAL_BOYCOTTS, () -> userStats.getDistinctCompaniesBoycotted()),
+                pick(fields, StatsField.NUM_CAUSES_FOLLOWED, () -> userStats.getCausesFollowed()),
+                pick(fields, StatsField.WORST_COMPANY_NAME, () -> globalStats.getWorstCompanyName()),
+                pick(fields, StatsField.WORST_COUNT, () -> globalStats.getWorstCount()),
+                pick(fields, StatsField.TOP_REASON, () -> globalStats.getTopReason()),
+                pick(fields, StatsField.CAUSE_NAME, () -> globalStats.getFollowerCount() == 0
+                        && globalStats != GLOBAL_STATS_UNAVAILABLE
+                        ? "no causes yet"
+                        : globalStats.getCauseName()),
+                pick(fields, StatsField.FOLLOWER_COUNT, () -> globalStats.getFollowerCount()),
+                pick(fields, StatsField.TOP_COMPANIES, top::getCompanies),
+                pick(fields, StatsField.TOP_CAUSES, top::getCauses));
+    }
+
+    /**
+     * @return the value of {@code field}, or null to leave it out of the response
+     */
+    private static <T> T pick(Set<StatsField> fields, StatsField field, Supplier<T> value) {
+        return fields.contains(field) ? value.get() : null;
+    }
+
+    /**
+     * Renders the outcomes of a request. Error bodies are {"message": ...} for 400 and 401
+     * and {"error": ...} for 500, which the API Gateway responses keep as a JSON string.
+     */
+    interface Responses<R> {
+        /**
+         * @param shared whether the response is the same for every user, see {@link #cacheHeaders}
+         */
+        R ok(ResponsePojo stats, String etag, boolean shared);
+
+        R notModified(String etag, boolean shared);
+
+        R badRequest(String message);
+
+        R unauthorized();
+
+        R serverError(String message);
+    }
+
+    /**
+     * One EMF line per invocation on stdout, which Lambda forwards to CloudWatch Logs, where
+     * the metrics are extracted under {@link RequestMetrics#NAMESPACE}. It also carries the
+     * calls of the refreshes that finished since the last line and the cache reads in between.
+     */
+    private void emitMetrics(RequestMetrics metrics, Context context, long start) {
+        metrics.takeOver(refreshMetrics);
+        globalStatsCache.flushCounters(metrics);
+        boolean cold = coldStart.getAndSet(false);
+        String functionName = context == null ? null : context.getFunctionName();
+        if (functionName == null) {
+            functionName = System.getenv().getOrDefault("AWS_LAMBDA_FUNCTION_NAME", "local");
+        }
+        System.out.println(metrics.flush(functionName, context == null ? null : context.getAwsRequestId(),
+                System.nanoTime() - start, cold, initNanos, System.currentTimeMillis()));
+    }
+
+    /**
+     * The headers of a 200 and of a 304. A per-user response is private, and Vary tells caches
+     * keyed on the URL alone that it depends on who asks; a {@code shared} one, without
+     * per-user fields, is public for STATS_SHARED_MAX_AGE_SECONDS.
+     */
+    static Map<String, String> cacheHeaders(String etag, boolean withContentType, boolean shared) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        if (withContentType) {
+            headers.put("Content-Type", "application/json");
+        }
+        headers.put("ETag", etag);
+        headers.put("Cache-Control", shared ? SHARED_CACHE_CONTROL : CACHE_CONTROL);
+        if (!shared) {
+            headers.put("Vary", "Authorization");
+        }
+        return headers;
+    }
+
+    APIGatewayProxyResponseEvent response(int status, Object body) {
+        return response(status, body, Map.of("Content-Type", "application/json"));
+    }
+
+    private APIGatewayProxyResponseEvent response(int status, Object body, Map<String, String> headers) {
         String responseBody = null;
         try {
-            responseBody = objectMapper.writeValueAsString(body);
+            responseBody = OBJECT_MAPPER.writeValueAsString(body);
         } catch (JsonProcessingException e) {
             throw new RuntimeException(e);
         }
         return new APIGatewayProxyResponseEvent()
                 .withStatusCode(status)
-                .withHeaders(Map.of("Content-Type", "application/json"))
+                .withHeaders(headers)
                 .withBody(responseBody);
     }
 
-    private int getNumCompaniesBoycotted(String userId) {
-        QueryRequest query = QueryRequest.builder()
-                .tableName("user_boycotts")
-                .keyConditionExpression("user_id = :uid")
-                .expressionAttributeValues(Map.of(":uid", AttributeValue.fromS(userId)))
-                .build();
-
-        QueryResponse response = dynamoDb.query(query);
-
-        Set<String> distinctCompanyIds = response.items().stream()
-                .map(item -> item.get("company_id").s())
-                .collect(Collectors.toSet());
-
-        int companyCount = distinctCompanyIds.size();
-        return companyCount;
-    }
-    private int getNumCausesFollowed(String userId) {
-        QueryRequest query = QueryRequest.builder()
-                .tableName("user_causes")
-                .keyConditionExpression("user_id = :uid")
-                .expressionAttributeValues(Map.of(":uid", AttributeValue.fromS(userId)))
-                .build();
-
-        QueryResponse response = dynamoDb.query(query);
-        int causeCount = response.items().size();  // or response.items().size()
-        return causeCount;
-    }
-    private Companies getCompanyWithMostBoycotts() {
-        ScanRequest scan = ScanRequest.builder()
-                .tableName("companies")
-                .projectionExpression("company_id, company_name, boycott_count")
-                .build();
-
-        ScanResponse scanResponse = dynamoDb.scan(scan);
-
-        return scanResponse.items().stream()
-                .filter(item -> item.containsKey("boycott_count"))
-                .max(Comparator.comparingInt(item ->
-                        Integer.parseInt(item.get("boycott_count").n())))
-                .map(CompanyUtility::mapToCompany)
-                .orElse(null);
-    }
-
-    private String reasonPeopleAreBoycottingCompany(String companyId) {
-        QueryRequest query = QueryRequest.builder()
-                .tableName("cause_company_stats")
-                .indexName("company_cause_stats_index")
-                .keyConditionExpression("company_id = :cid")
-                .expressionAttributeValues(Map.of(
-                        ":cid", AttributeValue.fromS(companyId)
-                ))
-                .projectionExpression("cause_desc, boycott_count")
-                .scanIndexForward(false) // descending by boycott_count
-                .limit(1) // get only top cause
-                .build();
-
-        QueryResponse response = dynamoDb.query(query);
-
-        return response.items().stream()
-                .filter(item -> item.containsKey("boycott_count"))
-                .map(item -> item.get("cause_desc").s())
-                .findFirst()
-                .orElse("N/A");
-    }
-
-    private Causes topCauseBeingFollowed() {
-        ScanRequest scan = ScanRequest.builder()
-                .tableName("causes")
-                .projectionExpression("cause_id, category, cause_desc, follower_count")
-                .build();
-
-        ScanResponse response = dynamoDb.scan(scan);
-
-        return response.items().stream()
-                .filter(item -> item.containsKey("follower_count"))
-                .max(Comparator.comparingInt(item -> Integer.parseInt(item.get("follower_count").n())))
-                .map(CausesUtility::mapToCauses)
-                .orElse(null);
-    }
-}
\ No newline at end of file
+    /**
+     * The worst company, its top reason and the top cause are the same for every user, so a warm
+     * instance serves them from the global stats cache and only the per-user queries hit
+     * DynamoDB on every request. Set GLOBAL_STATS_CACHE_TTL_SECONDS to 0 to disable the cache.
+     * The fallback computes only the parts {@code fields} need, so each combination of parts is
+     * cached under its own key and a partial value is never served for other fields.
+     */
+    private static GlobalPart<GlobalStats> globalStats(Set<StatsField> fields) {
+        boolean company = StatsField.any(fields, StatsField.WORST_COMPANY);
+        boolean reason = fields.contains(StatsField.TOP_REASON);
+        boolean cause = StatsField.any(fields, StatsField.TOP_CAUSE);
+        String key = company && reason && cause
+                ? GlobalStatsRepository.LEADERBOARD_ID
+                : GlobalStatsRepository.LEADERBOARD_ID + "#" + (company ? "company" : "")
+                        + (reason ? "reason" : "") + (cause ? "cause" : "");
+        return new GlobalPart<>(key, repositories -> loadGlobalStats(repositories.globalStats, company, reason, cause));
+    }
+
+    /**
+     * The leaderboard item is kept up to date by {@link GlobalStatsStreamHandler}. Until the
+     * stream handler has seeded it we fall back to computing it from the source tables.
+     */
+    private static GlobalStats loadGlobalStats(GlobalStatsRepository globalStatsRepository, boolean company,
+                                               boolean reason, boolean cause) {
+        GlobalStats global = globalStatsRepository.load(false);
+        if (global == null) {
+            global = globalStatsRepository.computeFromTables(0, company, reason, cause);
+        }
+        return global;
+    }
+
+    /**
+     * The top-N lists are cached like the global stats. Until the leaderboard indexes exist
+     * and are backfilled the queries fail, and the lists are left empty rather than failing
+     * the request, see {@link #orEmpty}; nothing is cached then, so the next request tries again.
+     */
+    private static GlobalPart<Leaderboards> leaderboards(Set<StatsField> fields) {
+        boolean companies = fields.contains(StatsField.TOP_COMPANIES);
+        boolean causes = fields.contains(StatsField.TOP_CAUSES);
+        String key = companies && causes
+                ? LeaderboardRepository.CACHE_KEY
+                : LeaderboardRepository.CACHE_KEY + "#" + (companies ? "companies" : "causes");
+        return new GlobalPart<>(key,
+                repositories -> repositories.leaderboards.load(LeaderboardRepository.SIZE, companies, causes));
+    }
+
+    private static CompletableFuture<Leaderboards> orEmpty(CompletableFuture<Leaderboards> top, String sub) {
+        return top == null ? null : top.exceptionally(e -> {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            Logger.error(SourceLines.here(), sub, "leaderboards unavailable: " + cause.getMessage());
+            return Leaderboards.EMPTY;
+        });
+    }
+
+    /**
+     * The top company and cause of the window, and the top lists when they are asked for,
+     * cached like the all-time stats under a key per window and per combination of parts.
+     */
+    private static GlobalPart<Leaderboards> trending(TrendingRepository.Window window, Set<StatsField> fields) {
+        boolean companies = StatsField.any(fields, StatsField.WORST_COMPANY) || fields.contains(StatsField.TOP_REASON)
+                || fields.contains(StatsField.TOP_COMPANIES);
+        boolean causes = StatsField.any(fields, StatsField.TOP_CAUSE) || fields.contains(StatsField.TOP_CAUSES);
+        int size = fields.contains(StatsField.TOP_COMPANIES) || fields.contains(StatsField.TOP_CAUSES)
+                ? LeaderboardRepository.SIZE
+                : 1;
+        String key = "trending#" + window.windowName() + "#" + (companies ? "companies" : "")
+                + (causes ? "causes" : "") + "#" + size;
+        return new GlobalPart<>(key, repositories -> repositories.trending.load(window, size, companies, causes));
+    }
+
+    /**
+     * The global stats of a window are the heads of its lists, with the same placeholders as
+     * the all-time stats when nothing happened in the window.
+     */
+    private static GlobalStats trendingStats(Leaderboards trending) {
+        TopCompany company = trending.getCompanies().isEmpty() ? null : trending.getCompanies().get(0);
+        TopCause cause = trending.getCauses().isEmpty() ? null : trending.getCauses().get(0);
+        return new GlobalStats(
+                company == null ? null : company.getCompanyId(),
+                company == null ? null : company.getCompanyName(),
+                company == null ? 0 : company.getBoycottCount(),
+                company == null ? "N/A" : company.getTopReason(),
+                cause == null ? null : cause.getCauseId(),
+                cause == null ? null : cause.getCauseName(),
+                cause == null ? 0 : cause.getFollowerCount(),
+                0);
+    }
+
+    static GlobalStatsCache globalStatsCache() {
+        return GLOBAL_STATS_CACHE;
+    }
+}
@@ -0,0 +1,215 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.boycottpro.users.model.ResponsePojo;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * Stream entry point for the same request as {@link GetUserStatsHandler}, without the POJO
+ * round trips: what the request needs is pulled out of the API Gateway event with Jackson's
+ * streaming parser, and the response is written straight to the output stream. Point the
+ * function's handler at {@code com.boycottpro.users.GetUserStatsStreamHandler::handleRequest}.
+ */
+public class GetUserStatsStreamHandler implements RequestStreamHandler {
+
+    // the streams belong to the Lambda runtime, so Jackson must not close them
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(StreamReadFeature.AUTO_CLOSE_SOURCE)
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectWriter STATS_WRITER = MAPPER.writerFor(ResponsePojo.class);
+    private static final String[] SUB_PATH = {"requestContext", "authorizer", "claims", "sub"};
+    private static final Map<String, String> JSON_HEADERS = Map.of("Content-Type", "application/json");
+    private final GetUserStatsHandler handler;
+
+    public GetUserStatsStreamHandler() {
+        this(new GetUserStatsHandler());
+    }
+
+    /**
+     * @param handler supplies the repositories, the global stats cache and the metrics
+     */
+    public GetUserStatsStreamHandler(GetUserStatsHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        try {
+            handler.serve(() -> readRequest(input), context, new StreamResponses(output));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Reads requestContext.authorizer.claims.sub, the If-None-Match header and the fields and
+     * window query parameters, and stops before the body. The sub is null when the event has none.
+     */
+    static StatsRequest readRequest(InputStream input) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(input)) {
+            String sub = null;
+            String ifNoneMatch = null;
+            String[] parameters = new String[2];
+            boolean contextRead = false;
+            boolean headersRead = false;
+            boolean parametersRead = false;
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (!(contextRead && headersRead && parametersRead) && parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (SUB_PATH[0].equals(name) && value == JsonToken.START_OBJECT) {
+                        sub = find(parser, 1);
+                        contextRead = true;
+                    } else if ("headers".equals(name)) {
+                        // null when the request has no headers, and likewise for the parameters
+                        if (value == JsonToken.START_OBJECT) {
+                            ifNoneMatch = fields(parser, true, "If-None-Match")[0];
+                        }
+                        headersRead = true;
+                    } else if ("queryStringParameters".equals(name)) {
+                        if (value == JsonToken.START_OBJECT) {
+                            parameters = fields(parser, false, "fields", "window");
+                        }
+                        parametersRead = true;
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            return new StatsRequest(sub, ifNoneMatch, parameters[0], parameters[1]);
+        }
+    }
+
+    /**
+     * Finds SUB_PATH from {@code depth} on in the current object and reads to its end.
+     */
+    private static String find(JsonParser parser, int depth) throws IOException {
+        String found = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (found == null && SUB_PATH[depth].equals(name)) {
+                if (depth == SUB_PATH.length - 1) {
+                    found = value.isScalarValue() && value != JsonToken.VALUE_NULL ? parser.getText() : null;
+                } else if (value == JsonToken.START_OBJECT) {
+                    found = find(parser, depth + 1);
+                    continue;
+                }
+            }
+            parser.skipChildren();
+        }
+        return found;
+    }
+
+    /**
+     * Reads the current object of string values to its end. Header names are matched
+     * ignoring case, as in {@link StatsRequest#header}; parameter names are case-sensitive.
+     *
+     * @return the value of each of {@code names}, null where absent
+     */
+    private static String[] fields(JsonParser parser, boolean ignoreCase, String... names) throws IOException {
+        String[] found = new String[names.length];
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_STRING) {
+                for (int i = 0; i < names.length; i++) {
+                    if (found[i] == null && (ignoreCase ? names[i].equalsIgnoreCase(name) : names[i].equals(name))) {
+                        found[i] = parser.getText();
+                    }
+                }
+            }
+            parser.skipChildren();
+        }
+        return found;
+    }
+
+    private static final class StreamResponses implements GetUserStatsHandler.Responses<Void> {
+        private final OutputStream output;
+
+        StreamResponses(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public Void ok(ResponsePojo stats, String etag, boolean shared) {
+            try {
+                // serialised before anything is written, so a failure still leaves room for the 500
+                writeResponse(200, GetUserStatsHandler.cacheHeaders(etag, true, shared), STATS_WRITER.writeValueAsBytes(stats));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        }
+
+        @Override
+        public Void notModified(String etag, boolean shared) {
+            try {
+                writeResponse(304, GetUserStatsHandler.cacheHeaders(etag, false, shared), null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        }
+
+        @Override
+        public Void badRequest(String message) {
+            return message(400, "message", message);
+        }
+
+        @Override
+        public Void unauthorized() {
+            return message(401, "message", "Unauthorized");
+        }
+
+        @Override
+        public Void serverError(String message) {
+            return message(500, "error", message);
+        }
+
+        private Void message(int status, String field, String message) {
+            try {
+                writeResponse(status, JSON_HEADERS, MAPPER.writeValueAsBytes(Map.of(field, message)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        }
+
+        /**
+         * @param body written as the escaped body string; null for none
+         */
+        private void writeResponse(int status, Map<String, String> headers, byte[] body) throws IOException {
+            try (JsonGenerator generator = JSON_FACTORY.createGenerator(output)) {
+                generator.writeStartObject();
+                generator.writeNumberField("statusCode", status);
+                generator.writeObjectFieldStart("headers");
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    generator.writeStringField(header.getKey(), header.getValue());
+                }
+                generator.writeEndObject();
+                if (body != null) {
+                    generator.writeFieldName("body");
+                    generator.writeUTF8String(body, 0, body.length);
+                }
+                generator.writeEndObject();
+            }
+        }
+    }
+}
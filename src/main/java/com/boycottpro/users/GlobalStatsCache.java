@@ -0,0 +1,296 @@
+package com.boycottpro.users;
+
+import com.boycottpro.utilities.Logger;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide cache for values that are the same for every user, such as the global
+ * leaderboard. It lives in a static field of the handler, so a warm Lambda instance keeps
+ * it across invocations.
+ * <p>
+ * Fresh entries are served as-is. Stale entries are still served while one background
+ * refresh reloads them (stale-while-revalidate). When that refresh fails, the
+ * last-known-good value keeps being served. Only a key that was never loaded blocks the caller.
+ * <p>
+ * Concurrent callers share one load per key (single flight). A caller that finds the entry
+ * stale waits up to refreshWaitMillis for the refresh before it takes the last-known-good
+ * value. The state of a key is an immutable entry swapped with compare-and-set, so no caller
+ * ever holds a lock. A refresh may outlive the invocation that started it, so it runs a
+ * loader of its own.
+ */
+public class GlobalStatsCache {
+
+    // the value of an entry whose first load is in flight
+    private static final Object NONE = new Object();
+    // what the counters below are reported as, in this order
+    private static final RequestMetrics.Event[] COUNTER_EVENTS = {
+            RequestMetrics.Event.CacheHits, RequestMetrics.Event.CacheStaleHits, RequestMetrics.Event.CacheMisses,
+            RequestMetrics.Event.CacheCoalesced, RequestMetrics.Event.CacheRefreshes,
+            RequestMetrics.Event.CacheRefreshFailures};
+
+    private final long ttlMillis;
+    private final long refreshWaitMillis;
+    private final LongSupplier clock;
+    private final Executor refresher;
+    // replaced by clear(), so that loads started before it fill the discarded map
+    private volatile Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder refreshFailures = new LongAdder();
+    // the counters as of the last flushCounters, in the order of COUNTER_EVENTS
+    private final long[] flushed = new long[COUNTER_EVENTS.length];
+
+    public GlobalStatsCache(long ttlMillis, long refreshWaitMillis) {
+        this(ttlMillis, refreshWaitMillis, System::currentTimeMillis, Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "global-stats-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Serves stale entries without waiting for their refresh.
+     */
+    public GlobalStatsCache(long ttlMillis, LongSupplier clock, Executor refresher) {
+        this(ttlMillis, 0, clock, refresher);
+    }
+
+    public GlobalStatsCache(long ttlMillis, long refreshWaitMillis, LongSupplier clock, Executor refresher) {
+        this.ttlMillis = ttlMillis;
+        this.refreshWaitMillis = refreshWaitMillis;
+        this.clock = clock;
+        this.refresher = refresher;
+    }
+
+    /**
+     * @param loader reads the value from DynamoDB; it runs on the caller's thread for a miss
+     *               and on the refresh thread for a stale entry
+     */
+    public <V> V get(String key, Supplier<V> loader) {
+        if (ttlMillis <= 0) {
+            misses.increment();
+            return loader.get();
+        }
+        try {
+            return this.<V>lookup(key, loader, loader, Runnable::run).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Like {@link #get}, but a miss is loaded on {@code executor} so that the caller can stop
+     * waiting for it; the value is still cached when it arrives. Loaded keys are answered on
+     * the caller's thread.
+     */
+    public <V> CompletableFuture<V> getAsync(String key, Supplier<V> loader, Executor executor) {
+        return getAsync(key, loader, loader, executor);
+    }
+
+    /**
+     * Like {@link #getAsync(String, Supplier, Executor)}, with {@code reloader} for the
+     * refresh of a stale entry, which outlives the caller.
+     */
+    public <V> CompletableFuture<V> getAsync(String key, Supplier<V> loader, Supplier<V> reloader,
+                                             Executor executor) {
+        if (ttlMillis <= 0) {
+            misses.increment();
+            return CompletableFuture.supplyAsync(loader, executor);
+        }
+        return lookup(key, loader, reloader, executor);
+    }
+
+    /**
+     * The last value loaded for {@code key}, fresh or stale, without waiting for anything; a
+     * stale entry starts its refresh on the refresh thread as a stale read would.
+     *
+     * @return null when the key has no value yet or caching is disabled
+     */
+    @SuppressWarnings("unchecked")
+    public <V> V peek(String key, Supplier<V> reloader) {
+        if (ttlMillis <= 0) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null || entry.value == NONE) {
+            return null;
+        }
+        if (clock.getAsLong() - entry.loadedAt < ttlMillis) {
+            hits.increment();
+        } else if (entry.load == null) {
+            lookup(key, reloader, reloader, refresher);
+        } else {
+            staleHits.increment();
+        }
+        return (V) entry.value;
+    }
+
+    /**
+     * @return a future of its own for each caller, so that none can complete or cancel the
+     *         shared load for the others
+     */
+    @SuppressWarnings("unchecked")
+    private <V> CompletableFuture<V> lookup(String key, Supplier<V> loader, Supplier<V> reloader,
+                                            Executor executor) {
+        while (true) {
+            Map<String, Entry> current = entries;
+            Entry entry = current.get(key);
+            if (entry == null) {
+                Entry loading = new Entry(NONE, 0, new CompletableFuture<>());
+                if (current.putIfAbsent(key, loading) != null) {
+                    continue;
+                }
+                misses.increment();
+                executor.execute(() -> load(current, key, loading, loader));
+                return (CompletableFuture<V>) loading.load.copy();
+            }
+            if (entry.value == NONE) {
+                coalesced.increment();
+                return (CompletableFuture<V>) entry.load.copy();
+            }
+            if (clock.getAsLong() - entry.loadedAt < ttlMillis) {
+                hits.increment();
+                return CompletableFuture.completedFuture((V) entry.value);
+            }
+            staleHits.increment();
+            CompletableFuture<Object> refresh = entry.load;
+            if (refresh == null) {
+                Entry refreshing = new Entry(entry.value, entry.loadedAt, new CompletableFuture<>());
+                if (!current.replace(key, entry, refreshing)) {
+                    continue;
+                }
+                refresh = refreshing.load;
+                refresher.execute(() -> load(current, key, refreshing, reloader));
+            } else {
+                coalesced.increment();
+            }
+            if (refreshWaitMillis <= 0 || refresh.isDone()) {
+                return CompletableFuture.completedFuture((V) (refresh.isDone() && !refresh.isCompletedExceptionally()
+                        ? refresh.join()
+                        : entry.value));
+            }
+            return (CompletableFuture<V>) refresh.copy()
+                    .completeOnTimeout(entry.value, refreshWaitMillis, TimeUnit.MILLISECONDS)
+                    .exceptionally(e -> entry.value);
+        }
+    }
+
+    /**
+     * Runs the load of {@code pending}, stores its value and completes it. A failed first load
+     * leaves no entry, so the next caller tries again; a failed refresh keeps the
+     * last-known-good value, and the next stale read retries.
+     */
+    private void load(Map<String, Entry> current, String key, Entry pending, Supplier<?> loader) {
+        boolean refresh = pending.value != NONE;
+        Object value;
+        try {
+            value = loader.get();
+        } catch (RuntimeException e) {
+            if (refresh) {
+                refreshFailures.increment();
+                Logger.error(SourceLines.here(), null, "global stats refresh of " + key + " failed, serving last-known-good: "
+                        + e.getMessage());
+                current.replace(key, pending, new Entry(pending.value, pending.loadedAt, null));
+            } else {
+                current.remove(key, pending);
+            }
+            pending.load.completeExceptionally(e);
+            return;
+        }
+        current.replace(key, pending, new Entry(value, clock.getAsLong(), null));
+        if (refresh) {
+            refreshes.increment();
+        }
+        pending.load.complete(value);
+    }
+
+    /**
+     * Forgets every entry. A load or refresh still running does not bring its value back.
+     */
+    public void clear() {
+        entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Reads served from a fresh entry.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Reads served from an entry older than the TTL while it was being refreshed.
+     */
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    /**
+     * Reads that found no entry and started its load.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Reads that joined a load or refresh another caller had started.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.sum();
+    }
+
+    /**
+     * Counts the reads and refreshes since the last call in {@code metrics}, so that each
+     * invocation's EMF line carries what the cache did in the meantime.
+     */
+    synchronized void flushCounters(RequestMetrics metrics) {
+        long[] counters = {getHits(), getStaleHits(), getMisses(), getCoalesced(), getRefreshes(),
+                getRefreshFailures()};
+        for (int i = 0; i < counters.length; i++) {
+            metrics.count(COUNTER_EVENTS[i], counters[i] - flushed[i]);
+            flushed[i] = counters[i];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GlobalStatsCache{ttlMillis=" + ttlMillis + ", hits=" + getHits() + ", staleHits=" + getStaleHits()
+                + ", misses=" + getMisses() + ", coalesced=" + getCoalesced() + ", refreshes=" + getRefreshes()
+                + ", refreshFailures=" + getRefreshFailures() + "}";
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long loadedAt;
+        // the load or refresh in flight, null when there is none
+        final CompletableFuture<Object> load;
+
+        Entry(Object value, long loadedAt, CompletableFuture<Object> load) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+            this.load = load;
+        }
+    }
+}
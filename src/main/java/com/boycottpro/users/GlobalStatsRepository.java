@@ -0,0 +1,272 @@
+package com.boycottpro.users;
+
+import com.boycottpro.models.Causes;
+import com.boycottpro.models.Companies;
+import com.boycottpro.users.model.GlobalStats;
+import com.boycottpro.utilities.CausesUtility;
+import com.boycottpro.utilities.CompanyUtility;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Reads and writes the "global_stats" leaderboard item and holds the table scans
+ * that can rebuild it from the companies, causes and cause_company_stats tables.
+ */
+public class GlobalStatsRepository {
+
+    static final String TABLE_NAME = "global_stats";
+    static final String KEY_NAME = "stat_id";
+    static final String LEADERBOARD_ID = "leaderboard";
+    // parallel segments for the fallback scans, set with SCAN_TOTAL_SEGMENTS
+    static final int SCAN_SEGMENTS = Integer.parseInt(System.getenv().getOrDefault("SCAN_TOTAL_SEGMENTS", "4"));
+
+    private final AsyncDynamoDb dynamoDb;
+    private final int scanSegments;
+
+    public GlobalStatsRepository(DynamoDbClient dynamoDb) {
+        this(AsyncDynamoDb.of(dynamoDb, Runnable::run), 1);
+    }
+
+    /**
+     * @param scanSegments number of parallel scan segments (TotalSegments) the fallback scans use
+     */
+    public GlobalStatsRepository(AsyncDynamoDb dynamoDb, int scanSegments) {
+        this.dynamoDb = dynamoDb;
+        this.scanSegments = Math.max(1, scanSegments);
+    }
+
+    /**
+     * @return the leaderboard item, or null if the stream handler has not seeded it yet
+     */
+    public GlobalStats load(boolean consistentRead) {
+        GetItemRequest request = GetItemRequest.builder()
+                .tableName(TABLE_NAME)
+                .key(Map.of(KEY_NAME, AttributeValue.fromS(LEADERBOARD_ID)))
+                .consistentRead(consistentRead)
+                .build();
+        GetItemResponse response = AsyncDynamoDb.join(dynamoDb.getItem(request));
+        if (!response.hasItem() || response.item().isEmpty()) {
+            return null;
+        }
+        return fromItem(response.item());
+    }
+
+    /**
+     * Writes the leaderboard item if nobody else has written it since {@code expectedVersion}.
+     * Pass {@code expectedVersion} 0 when the item does not exist yet.
+     *
+     * @return false if the write lost an optimistic-locking race and should be retried
+     */
+    public boolean save(GlobalStats stats, long expectedVersion) {
+        Map<String, AttributeValue> item = toItem(stats);
+        item.put("version", AttributeValue.fromN(Long.toString(expectedVersion + 1)));
+        PutItemRequest.Builder put = PutItemRequest.builder()
+                .tableName(TABLE_NAME)
+                .item(item);
+        if (expectedVersion == 0) {
+            put.conditionExpression("attribute_not_exists(" + KEY_NAME + ")");
+        } else {
+            put.conditionExpression("version = :v")
+                    .expressionAttributeValues(Map.of(":v", AttributeValue.fromN(Long.toString(expectedVersion))));
+        }
+        try {
+            AsyncDynamoDb.join(dynamoDb.putItem(put.build()));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Builds the leaderboard from the source tables. This is the slow path: it scans
+     * companies and causes in full and is only used to seed or repair the item. The causes
+     * scan runs alongside the companies scan and the top-reason query that depends on it.
+     */
+    public GlobalStats computeFromTables(long version) {
+        return computeFromTables(version, true, true, true);
+    }
+
+    /**
+     * Like {@link #computeFromTables(long)}, but only the parts asked for are read; the others
+     * are left empty. Only for callers that read just those parts, never for the stored item.
+     *
+     * @param company the worst company and its count, one scan of companies
+     * @param reason  the top reason of the worst company, which needs the company as well
+     * @param cause   the top cause, one scan of causes
+     */
+    public GlobalStats computeFromTables(long version, boolean company, boolean reason, boolean cause) {
+        CompletableFuture<Map<String, AttributeValue>> topCauseItem = cause
+                ? topCauseItem()
+                : CompletableFuture.completedFuture(null);
+        Companies worstCompany = company || reason ? getCompanyWithMostBoycotts() : null;
+        String worstCompanyId = worstCompany == null ? null : worstCompany.getCompany_id();
+        String topReason = !reason || worstCompanyId == null ? "N/A" : reasonPeopleAreBoycottingCompany(worstCompanyId);
+        Causes bestCause = toCauses(AsyncDynamoDb.join(topCauseItem));
+        return new GlobalStats(worstCompanyId,
+                worstCompany == null ? null : worstCompany.getCompany_name(),
+                worstCompany == null ? 0 : worstCompany.getBoycott_count(),
+                topReason,
+                bestCause == null ? null : bestCause.getCause_id(),
+                bestCause == null ? null : bestCause.getCause_desc(),
+                bestCause == null ? 0 : bestCause.getFollower_count(),
+                version);
+    }
+
+    // Items are mapped on the caller's thread once the scans are done, never inside a future callback.
+
+    public Companies getCompanyWithMostBoycotts() {
+        Map<String, AttributeValue> item = AsyncDynamoDb.join(worstCompanyItem());
+        return item == null ? null : CompanyUtility.mapToCompany(item);
+    }
+
+    public Causes topCauseBeingFollowed() {
+        return toCauses(AsyncDynamoDb.join(topCauseItem()));
+    }
+
+    public String reasonPeopleAreBoycottingCompany(String companyId) {
+        return AsyncDynamoDb.join(topReason(companyId));
+    }
+
+    /**
+     * The cause most of the company's boycotts are for, or "N/A" when it has none.
+     */
+    CompletableFuture<String> topReason(String companyId) {
+        QueryRequest query = QueryRequest.builder()
+                .tableName("cause_company_stats")
+                .indexName("company_cause_stats_index")
+                .keyConditionExpression("company_id = :cid")
+                .expressionAttributeValues(Map.of(
+                        ":cid", AttributeValue.fromS(companyId)
+                ))
+                .projectionExpression("cause_desc, boycott_count")
+                .scanIndexForward(false) // descending by boycott_count
+                .limit(1) // get only top cause
+                .build();
+
+        return dynamoDb.query(query).thenApply(response -> response.items().stream()
+                .filter(item -> item.containsKey("boycott_count"))
+                .map(item -> item.get("cause_desc").s())
+                .findFirst()
+                .orElse("N/A"));
+    }
+
+    CompletableFuture<Map<String, AttributeValue>> worstCompanyItem() {
+        return maxItem(ScanRequest.builder()
+                .tableName("companies")
+                .projectionExpression("company_id, company_name, boycott_count")
+                .build(), "boycott_count");
+    }
+
+    private CompletableFuture<Map<String, AttributeValue>> topCauseItem() {
+        return maxItem(ScanRequest.builder()
+                .tableName("causes")
+                .projectionExpression("cause_id, category, cause_desc, follower_count")
+                .build(), "follower_count");
+    }
+
+    /**
+     * Finds the item with the largest {@code countAttribute} with a parallel scan of
+     * {@link #scanSegments} segments. Each segment follows LastEvaluatedKey to the end and
+     * only remembers its best item so far, so memory does not grow with the table. The
+     * segment winners are then merged into the global max.
+     */
+    private CompletableFuture<Map<String, AttributeValue>> maxItem(ScanRequest scan, String countAttribute) {
+        List<MaxItem> segmentMax = new ArrayList<>(scanSegments);
+        CompletableFuture<?>[] segments = new CompletableFuture<?>[scanSegments];
+        for (int segment = 0; segment < scanSegments; segment++) {
+            MaxItem max = new MaxItem(countAttribute);
+            segmentMax.add(max);
+            ScanRequest request = scanSegments == 1 ? scan : scan.toBuilder()
+                    .segment(segment)
+                    .totalSegments(scanSegments)
+                    .build();
+            segments[segment] = dynamoDb.scanPages(request, page -> page.items().forEach(max::offer));
+        }
+        return CompletableFuture.allOf(segments).thenApply(done -> {
+            MaxItem max = new MaxItem(countAttribute);
+            segmentMax.forEach(max::merge);
+            return max.item;
+        });
+    }
+
+    /**
+     * Running max of one scan segment.
+     */
+    private static final class MaxItem {
+        private final String countAttribute;
+        private Map<String, AttributeValue> item;
+        private int count;
+
+        MaxItem(String countAttribute) {
+            this.countAttribute = countAttribute;
+        }
+
+        void offer(Map<String, AttributeValue> candidate) {
+            AttributeValue value = candidate.get(countAttribute);
+            if (value == null) {
+                return;
+            }
+            int candidateCount = Integer.parseInt(value.n());
+            if (item == null || candidateCount > count) {
+                item = candidate;
+                count = candidateCount;
+            }
+        }
+
+        void merge(MaxItem other) {
+            if (other.item != null && (item == null || other.count > count)) {
+                item = other.item;
+                count = other.count;
+            }
+        }
+    }
+
+    private static Causes toCauses(Map<String, AttributeValue> item) {
+        return item == null ? null : CausesUtility.mapToCauses(item);
+    }
+
+    static GlobalStats fromItem(Map<String, AttributeValue> item) {
+        return new GlobalStats(
+                stringOrNull(item, "worst_company_id"),
+                stringOrNull(item, "worst_company_name"),
+                intOrZero(item, "worst_count"),
+                item.containsKey("top_reason") ? item.get("top_reason").s() : "N/A",
+                stringOrNull(item, "top_cause_id"),
+                stringOrNull(item, "top_cause_desc"),
+                intOrZero(item, "top_cause_follower_count"),
+                item.containsKey("version") ? Long.parseLong(item.get("version").n()) : 0L);
+    }
+
+    static Map<String, AttributeValue> toItem(GlobalStats stats) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(KEY_NAME, AttributeValue.fromS(LEADERBOARD_ID));
+        putIfNotNull(item, "worst_company_id", stats.getWorstCompanyId());
+        putIfNotNull(item, "worst_company_name", stats.getWorstCompanyName());
+        item.put("worst_count", AttributeValue.fromN(Integer.toString(stats.getWorstCount())));
+        putIfNotNull(item, "top_reason", stats.getTopReason());
+        putIfNotNull(item, "top_cause_id", stats.getTopCauseId());
+        putIfNotNull(item, "top_cause_desc", stats.getCauseName());
+        item.put("top_cause_follower_count", AttributeValue.fromN(Integer.toString(stats.getFollowerCount())));
+        return item;
+    }
+
+    private static String stringOrNull(Map<String, AttributeValue> item, String name) {
+        return item.containsKey(name) ? item.get(name).s() : null;
+    }
+
+    private static int intOrZero(Map<String, AttributeValue> item, String name) {
+        return item.containsKey(name) ? Integer.parseInt(item.get(name).n()) : 0;
+    }
+
+    private static void putIfNotNull(Map<String, AttributeValue> item, String name, String value) {
+        if (value != null) {
+            item.put(name, AttributeValue.fromS(value));
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue;
+import com.boycottpro.users.model.GlobalStats;
+import com.boycottpro.users.model.TopCause;
+import com.boycottpro.users.model.TopCompany;
+import com.boycottpro.utilities.Logger;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Consumes the DynamoDB streams of the companies, causes and cause_company_stats tables
+ * and keeps the "global_stats" leaderboard item up to date, so that
+ * {@link GetUserStatsHandler} can read the global numbers with one GetItem instead of
+ * scanning whole tables on every request. It also puts new companies and causes on a
+ * shard of the top-N indexes that {@link LeaderboardRepository} reads, which is also where the
+ * runner-up comes from when the leader loses boycotts or followers.
+ */
+public class GlobalStatsStreamHandler implements RequestHandler<DynamodbEvent, StreamsEventResponse> {
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final ExecutorService SCAN_EXECUTOR = Executors.newFixedThreadPool(
+            GlobalStatsRepository.SCAN_SEGMENTS, r -> {
+                Thread thread = new Thread(r, "global-stats-scan");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private final GlobalStatsRepository repository;
+    private final LeaderboardRepository leaderboards;
+
+    public GlobalStatsStreamHandler() {
+        this(DynamoDbClients.create());
+    }
+
+    public GlobalStatsStreamHandler(DynamoDbClient dynamoDb) {
+        AsyncDynamoDb async = AsyncDynamoDb.of(dynamoDb, SCAN_EXECUTOR);
+        this.repository = new GlobalStatsRepository(async, GlobalStatsRepository.SCAN_SEGMENTS);
+        this.leaderboards = new LeaderboardRepository(async, repository, LeaderboardRepository.SHARDS);
+    }
+
+    @Override
+    public StreamsEventResponse handleRequest(DynamodbEvent event, Context context) {
+        List<StreamsEventResponse.BatchItemFailure> failures = new ArrayList<>();
+        for (DynamodbEvent.DynamodbStreamRecord record : event.getRecords()) {
+            try {
+                apply(record);
+            } catch (Exception e) {
+                Logger.error(SourceLines.here(), null, "failed to apply stream record " + record.getEventID() + ": " + e.getMessage());
+                // records of a shard must be applied in order, so everything from here on is retried
+                failures.add(new StreamsEventResponse.BatchItemFailure(record.getDynamodb().getSequenceNumber()));
+                break;
+            }
+        }
+        return new StreamsEventResponse(failures);
+    }
+
+    void apply(DynamodbEvent.DynamodbStreamRecord record) {
+        String table = tableName(record.getEventSourceARN());
+        Map<String, AttributeValue> image = "REMOVE".equals(record.getEventName())
+                ? record.getDynamodb().getOldImage()
+                : record.getDynamodb().getNewImage();
+        if (image == null) {
+            return;
+        }
+        switch (table) {
+            case "companies":
+                assignShard(record, image, table, "company_id");
+                if (changed(record, "boycott_count", "company_name")) {
+                    applyCompany(image.get("company_id").getS(), stringOrNull(image, "company_name"),
+                            "REMOVE".equals(record.getEventName()) ? -1 : count(image, "boycott_count"));
+                }
+                break;
+            case "causes":
+                assignShard(record, image, table, "cause_id");
+                if (changed(record, "follower_count", "cause_desc")) {
+                    applyCause(image.get("cause_id").getS(), stringOrNull(image, "cause_desc"),
+                            "REMOVE".equals(record.getEventName()) ? -1 : count(image, "follower_count"));
+                }
+                break;
+            case "cause_company_stats":
+                if (image.containsKey("company_id")) {
+                    applyReason(image.get("company_id").getS());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * New companies and causes are put on a leaderboard shard here, so the services writing
+     * those tables need not know about the leaderboard indexes; so is an item that changes
+     * while it is still on the shard of an earlier LEADERBOARD_SHARDS. The update comes back as
+     * a MODIFY record with an unchanged count, which is a no-op.
+     */
+    private void assignShard(DynamodbEvent.DynamodbStreamRecord record, Map<String, AttributeValue> image,
+                             String table, String keyName) {
+        AttributeValue shard = image.get(LeaderboardRepository.SHARD_ATTRIBUTE);
+        if (!"REMOVE".equals(record.getEventName()) && image.containsKey(keyName)
+                && !leaderboards.onShard(image.get(keyName).getS(), shard == null ? null : shard.getN())) {
+            leaderboards.assignShard(table, keyName, image.get(keyName).getS());
+        }
+    }
+
+    private void applyCompany(String companyId, String companyName, int boycottCount) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            GlobalStats current = repository.load(true);
+            if (current == null) {
+                if (repository.save(repository.computeFromTables(0), 0)) {
+                    return;
+                }
+                continue;
+            }
+            GlobalStats next;
+            if (companyId.equals(current.getWorstCompanyId())) {
+                // the leader lost boycotts, so another company may have overtaken it
+                TopCompany runnerUp = boycottCount >= current.getWorstCount() ? null : runnerUp(
+                        leaderboards.load(2, true, false).getCompanies(), TopCompany::getCompanyId, companyId);
+                if (runnerUp != null && runnerUp.getBoycottCount() > boycottCount) {
+                    next = withCompany(current, runnerUp.getCompanyId(), runnerUp.getCompanyName(),
+                            runnerUp.getBoycottCount(), runnerUp.getTopReason());
+                } else if (boycottCount >= 0) {
+                    next = withCompany(current, companyId, companyName, boycottCount, current.getTopReason());
+                } else {
+                    next = withCompany(current, null, null, 0, "N/A");
+                }
+            } else if (boycottCount > current.getWorstCount()) {
+                next = withCompany(current, companyId, companyName, boycottCount,
+                        repository.reasonPeopleAreBoycottingCompany(companyId));
+            } else {
+                return;
+            }
+            if (unchanged(current, next) || repository.save(next, current.getVersion())) {
+                return;
+            }
+        }
+        throw new IllegalStateException("leaderboard update for company " + companyId + " kept conflicting");
+    }
+
+    private void applyCause(String causeId, String causeDesc, int followerCount) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            GlobalStats current = repository.load(true);
+            if (current == null) {
+                if (repository.save(repository.computeFromTables(0), 0)) {
+                    return;
+                }
+                continue;
+            }
+            GlobalStats next;
+            if (causeId.equals(current.getTopCauseId())) {
+                // the top cause lost followers, so another cause may have overtaken it
+                TopCause runnerUp = followerCount >= current.getFollowerCount() ? null : runnerUp(
+                        leaderboards.load(2, false, true).getCauses(), TopCause::getCauseId, causeId);
+                if (runnerUp != null && runnerUp.getFollowerCount() > followerCount) {
+                    next = withCause(current, runnerUp.getCauseId(), runnerUp.getCauseName(),
+                            runnerUp.getFollowerCount());
+                } else if (followerCount >= 0) {
+                    next = withCause(current, causeId, causeDesc, followerCount);
+                } else {
+                    next = withCause(current, null, null, 0);
+                }
+            } else if (followerCount > current.getFollowerCount()) {
+                next = withCause(current, causeId, causeDesc, followerCount);
+            } else {
+                return;
+            }
+            if (unchanged(current, next) || repository.save(next, current.getVersion())) {
+                return;
+            }
+        }
+        throw new IllegalStateException("leaderboard update for cause " + causeId + " kept conflicting");
+    }
+
+    private void applyReason(String companyId) {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            GlobalStats current = repository.load(true);
+            if (current == null || !companyId.equals(current.getWorstCompanyId())) {
+                // reasons only matter for the leading company; seeding picks them up anyway
+                return;
+            }
+            String topReason = repository.reasonPeopleAreBoycottingCompany(companyId);
+            if (topReason.equals(current.getTopReason())) {
+                return;
+            }
+            GlobalStats next = withCompany(current, current.getWorstCompanyId(), current.getWorstCompanyName(),
+                    current.getWorstCount(), topReason);
+            if (repository.save(next, current.getVersion())) {
+                return;
+            }
+        }
+        throw new IllegalStateException("leaderboard update for reasons of " + companyId + " kept conflicting");
+    }
+
+    /**
+     * The first of the top two entries of the leaderboard index other than the leader, whose
+     * index entry may still carry its count from before the change.
+     *
+     * @return null when there is no other entry
+     */
+    private static <T> T runnerUp(List<T> top, Function<T, String> id, String leaderId) {
+        for (T entry : top) {
+            if (!leaderId.equals(id.apply(entry))) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static GlobalStats withCompany(GlobalStats current, String companyId, String companyName,
+                                           int boycottCount, String topReason) {
+        return new GlobalStats(companyId, companyName, boycottCount, topReason,
+                current.getTopCauseId(), current.getCauseName(), current.getFollowerCount(),
+                current.getVersion());
+    }
+
+    private static GlobalStats withCause(GlobalStats current, String causeId, String causeDesc, int followerCount) {
+        return new GlobalStats(current.getWorstCompanyId(), current.getWorstCompanyName(),
+                current.getWorstCount(), current.getTopReason(), causeId, causeDesc, followerCount,
+                current.getVersion());
+    }
+
+    /**
+     * Re-delivered stream records must not bump the version, so identical snapshots are not written.
+     */
+    private static boolean unchanged(GlobalStats current, GlobalStats next) {
+        return GlobalStatsRepository.toItem(current).equals(GlobalStatsRepository.toItem(next));
+    }
+
+    /**
+     * A MODIFY record matters when it changes the count, or the name, which the leaderboard
+     * item holds for the leader.
+     */
+    private static boolean changed(DynamodbEvent.DynamodbStreamRecord record, String countName, String nameName) {
+        if (!"MODIFY".equals(record.getEventName())) {
+            return true;
+        }
+        Map<String, AttributeValue> oldImage = record.getDynamodb().getOldImage();
+        Map<String, AttributeValue> newImage = record.getDynamodb().getNewImage();
+        return oldImage == null || count(oldImage, countName) != count(newImage, countName)
+                || !Objects.equals(stringOrNull(oldImage, nameName), stringOrNull(newImage, nameName));
+    }
+
+    private static int count(Map<String, AttributeValue> image, String name) {
+        AttributeValue value = image.get(name);
+        return value == null || value.getN() == null ? 0 : Integer.parseInt(value.getN());
+    }
+
+    private static String stringOrNull(Map<String, AttributeValue> image, String name) {
+        AttributeValue value = image.get(name);
+        return value == null ? null : value.getS();
+    }
+
+    /**
+     * arn:aws:dynamodb:us-east-1:123456789012:table/companies/stream/2024-01-01T00:00:00.000
+     */
+    static String tableName(String eventSourceArn) {
+        if (eventSourceArn == null) {
+            return "";
+        }
+        int start = eventSourceArn.indexOf(":table/");
+        if (start < 0) {
+            return "";
+        }
+        start += ":table/".length();
+        int end = eventSourceArn.indexOf('/', start);
+        return end < 0 ? eventSourceArn.substring(start) : eventSourceArn.substring(start, end);
+    }
+}
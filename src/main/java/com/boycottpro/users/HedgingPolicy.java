@@ -0,0 +1,209 @@
+package com.boycottpro.users;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Per-attempt timeouts and hedged reads against DynamoDB tail latency. Every read attempt is
+ * given DYNAMODB_ATTEMPT_TIMEOUT_MS (1000 by default), or what is left of the request's
+ * {@link Deadline} when that is less; once the budget is used up no attempt and no duplicate
+ * is sent. When the first attempt of a hedged read has not answered after the HEDGE_PERCENTILE
+ * (95 by default, 0 disables hedging) of the recent latencies of the same table and operation,
+ * one duplicate is sent and whichever answers first wins. Hedging is on latency only: a failed
+ * or timed-out attempt is not duplicated, and throttling is left to the SDK's retries, so a
+ * throttled table is not sent twice the load. At most one duplicate per read bounds the extra
+ * load to the share of reads slower than the percentile.
+ */
+public class HedgingPolicy {
+
+    private static final int WINDOW = 128;
+    // latencies needed before the percentile is trusted
+    private static final int MIN_SAMPLES = 20;
+
+    private final long attemptTimeoutNanos;
+    private final int percentile;
+    private final long minDelayNanos;
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    /**
+     * @param percentile  of the recent latencies after which a duplicate is sent; 0 for none
+     * @param minDelayMillis the shortest wait before a duplicate, so a fast table is not hedged on jitter
+     */
+    public HedgingPolicy(long attemptTimeoutMillis, int percentile, long minDelayMillis) {
+        this.attemptTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(attemptTimeoutMillis);
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    }
+
+    public static HedgingPolicy fromEnv() {
+        return new HedgingPolicy(
+                Long.parseLong(System.getenv().getOrDefault("DYNAMODB_ATTEMPT_TIMEOUT_MS", "1000")),
+                Integer.parseInt(System.getenv().getOrDefault("HEDGE_PERCENTILE", "95")),
+                Long.parseLong(System.getenv().getOrDefault("HEDGE_MIN_DELAY_MS", "5")));
+    }
+
+    /**
+     * @param key  the table and operation whose latencies decide when to hedge
+     * @param call sends one attempt of the read with the given timeout, which it also passes
+     *             to the SDK as ApiCallAttemptTimeout, so the HTTP request of an abandoned
+     *             attempt is cancelled rather than left running
+     */
+    <R> CompletableFuture<R> read(String key, Deadline deadline, Function<Duration, CompletableFuture<R>> call,
+                                  RequestMetrics metrics) {
+        Read<R> read = new Read<>(key, deadline, call, metrics);
+        read.attempt();
+        long delay = hedgeDelayNanos(key);
+        if (delay > 0 && delay < deadline.remainingNanos()) {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(read::duplicate);
+        }
+        return read.result;
+    }
+
+    /**
+     * Like {@link #read}, but the attempt is never duplicated, for reads too large to send twice.
+     */
+    <R> CompletableFuture<R> readOnce(String key, Deadline deadline, Function<Duration, CompletableFuture<R>> call,
+                                      RequestMetrics metrics) {
+        Read<R> read = new Read<>(key, deadline, call, metrics);
+        read.attempt();
+        return read.result;
+    }
+
+    /**
+     * @return how long the first attempt may take before a duplicate is sent, 0 for never
+     */
+    long hedgeDelayNanos(String key) {
+        if (percentile <= 0) {
+            return 0;
+        }
+        LatencyWindow window = latencies.get(key);
+        long delay = window == null ? -1 : window.percentile(percentile);
+        return delay < 0 ? 0 : Math.max(minDelayNanos, delay);
+    }
+
+    /**
+     * Forgets the latencies, so nothing is hedged until they are learned again.
+     */
+    public void clear() {
+        latencies.clear();
+    }
+
+    private void record(String key, long nanos) {
+        LatencyWindow window = latencies.get(key);
+        if (window == null) {
+            window = latencies.computeIfAbsent(key, k -> new LatencyWindow());
+        }
+        window.add(nanos);
+    }
+
+    /**
+     * One read: the first attempt and at most one duplicate. The result is the first answer;
+     * it fails only once every attempt sent has failed.
+     */
+    private final class Read<R> {
+        private final String key;
+        private final Deadline deadline;
+        private final Function<Duration, CompletableFuture<R>> call;
+        private final RequestMetrics metrics;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean duplicated = new AtomicBoolean();
+
+        Read(String key, Deadline deadline, Function<Duration, CompletableFuture<R>> call, RequestMetrics metrics) {
+            this.key = key;
+            this.deadline = deadline;
+            this.call = call;
+            this.metrics = metrics;
+        }
+
+        void attempt() {
+            pending.incrementAndGet();
+            long start = System.nanoTime();
+            long timeoutNanos = Math.min(attemptTimeoutNanos, deadline.remainingNanos());
+            CompletableFuture<R> attempt;
+            if (timeoutNanos <= 0) {
+                attempt = CompletableFuture.failedFuture(new TimeoutException("time budget of the invocation used up"));
+            } else {
+                try {
+                    attempt = call.apply(Duration.ofNanos(timeoutNanos));
+                } catch (RuntimeException e) {
+                    attempt = CompletableFuture.failedFuture(e);
+                }
+            }
+            attempt.orTimeout(timeoutNanos, TimeUnit.NANOSECONDS).whenComplete((response, error) -> {
+                if (error == null) {
+                    record(key, System.nanoTime() - start);
+                    result.complete(response);
+                    return;
+                }
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+                if (cause instanceof TimeoutException) {
+                    metrics.count(RequestMetrics.Event.AttemptTimeouts);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    result.completeExceptionally(cause);
+                }
+            });
+        }
+
+        /**
+         * @return false when the read is answered, was duplicated before or is out of time
+         */
+        boolean duplicate() {
+            if (result.isDone() || deadline.remainingNanos() <= 0 || !duplicated.compareAndSet(false, true)) {
+                return false;
+            }
+            metrics.count(RequestMetrics.Event.HedgedReads);
+            attempt();
+            return true;
+        }
+    }
+
+    /**
+     * The last {@value #WINDOW} latencies of one table and operation. The percentile is
+     * recomputed at most once per 16 new samples, so most reads only look it up.
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[WINDOW];
+        private int count;
+        private int next;
+        private int sinceSorted;
+        private final long[] sorted = new long[WINDOW];
+        private int sortedCount;
+
+        synchronized void add(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % WINDOW;
+            count = Math.min(WINDOW, count + 1);
+            sinceSorted++;
+        }
+
+        /**
+         * @return -1 while there are too few samples
+         */
+        synchronized long percentile(int percentile) {
+            if (count < MIN_SAMPLES) {
+                return -1;
+            }
+            if (sortedCount == 0 || sinceSorted >= 16) {
+                System.arraycopy(samples, 0, sorted, 0, count);
+                Arrays.sort(sorted, 0, count);
+                sortedCount = count;
+                sinceSorted = 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * sortedCount) - 1;
+            return sorted[Math.max(0, Math.min(sortedCount - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.boycottpro.users;
+
+import com.boycottpro.users.model.Leaderboards;
+import com.boycottpro.users.model.TopCause;
+import com.boycottpro.users.model.TopCompany;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the top N companies by boycott_count and the top N causes by follower_count from
+ * write-sharded GSIs instead of scanning the tables.
+ * <p>
+ * Every company and cause item carries a {@value #SHARD_ATTRIBUTE} number in [0, shards).
+ * The indexes {@value #COMPANIES_INDEX} (leaderboard_shard, boycott_count) and
+ * {@value #CAUSES_INDEX} (leaderboard_shard, follower_count) project the name attributes.
+ * Spreading the items over shards keeps one index partition from taking every count update.
+ * The top N of a table are among the first N items of each shard, so one Limit N query per
+ * shard, all in parallel, reads at most N * shards items whatever the table size. A k-way
+ * merge of the per-shard pages then picks the overall top N.
+ */
+public class LeaderboardRepository {
+
+    static final String SHARD_ATTRIBUTE = "leaderboard_shard";
+    static final String COMPANIES_INDEX = "companies_leaderboard_index";
+    static final String CAUSES_INDEX = "causes_leaderboard_index";
+    static final String CACHE_KEY = "top";
+    // shards of both indexes, set with LEADERBOARD_SHARDS. After a change, run
+    // LeaderboardShardBackfillHandler to move the items to their new shards; until then, when
+    // the count went down, the items on the shards above it are missing from the lists
+    static final int SHARDS = Integer.parseInt(System.getenv().getOrDefault("LEADERBOARD_SHARDS", "4"));
+    // entries per list, set with LEADERBOARD_SIZE
+    static final int SIZE = Integer.parseInt(System.getenv().getOrDefault("LEADERBOARD_SIZE", "5"));
+
+    private final AsyncDynamoDb dynamoDb;
+    private final GlobalStatsRepository reasons;
+    private final int shards;
+
+    /**
+     * @param reasons looks up the top reason of each top company
+     */
+    public LeaderboardRepository(AsyncDynamoDb dynamoDb, GlobalStatsRepository reasons, int shards) {
+        this.dynamoDb = dynamoDb;
+        this.reasons = reasons;
+        this.shards = Math.max(1, shards);
+    }
+
+    /**
+     * Both lists, {@code size} entries at most.
+     */
+    public Leaderboards load(int size) {
+        return load(size, true, true);
+    }
+
+    /**
+     * The lists asked for, in parallel; a list not asked for is empty and costs no reads. The
+     * top reasons of the companies are one more Limit 1 query per company, started as soon as
+     * the companies are known.
+     */
+    public Leaderboards load(int size, boolean companies, boolean causes) {
+        CompletableFuture<List<TopCompany>> topCompanies = companies
+                ? top("companies", COMPANIES_INDEX, "company_id, company_name, boycott_count", "boycott_count", size)
+                        .thenCompose(this::withReasons)
+                : CompletableFuture.completedFuture(List.of());
+        CompletableFuture<List<Map<String, AttributeValue>>> causeItems = causes
+                ? top("causes", CAUSES_INDEX, "cause_id, cause_desc, follower_count", "follower_count", size)
+                : CompletableFuture.completedFuture(List.of());
+        List<TopCause> topCauses = new ArrayList<>(size);
+        for (Map<String, AttributeValue> item : AsyncDynamoDb.join(causeItems)) {
+            topCauses.add(new TopCause(stringOrNull(item, "cause_id"), stringOrNull(item, "cause_desc"),
+                    count(item, "follower_count")));
+        }
+        return new Leaderboards(AsyncDynamoDb.join(topCompanies), topCauses);
+    }
+
+    private CompletableFuture<List<TopCompany>> withReasons(List<Map<String, AttributeValue>> items) {
+        List<CompletableFuture<TopCompany>> entries = new ArrayList<>(items.size());
+        for (Map<String, AttributeValue> item : items) {
+            String companyId = item.get("company_id").s();
+            entries.add(reasons.topReason(companyId).thenApply(reason -> new TopCompany(companyId,
+                    stringOrNull(item, "company_name"), count(item, "boycott_count"), reason)));
+        }
+        return CompletableFuture.allOf(entries.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<TopCompany> companies = new ArrayList<>(entries.size());
+            entries.forEach(entry -> companies.add(entry.join()));
+            return companies;
+        });
+    }
+
+    private CompletableFuture<List<Map<String, AttributeValue>>> top(String table, String index, String projection,
+                                                                     String countAttribute, int size) {
+        List<CompletableFuture<QueryResponse>> pages = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            pages.add(dynamoDb.query(QueryRequest.builder()
+                    .tableName(table)
+                    .indexName(index)
+                    .keyConditionExpression(SHARD_ATTRIBUTE + " = :shard")
+                    .expressionAttributeValues(Map.of(":shard", AttributeValue.fromN(Integer.toString(shard))))
+                    .projectionExpression(projection)
+                    .scanIndexForward(false) // highest count first
+                    .limit(size)
+                    .build()));
+        }
+        return CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<List<Map<String, AttributeValue>>> shardPages = new ArrayList<>(pages.size());
+            pages.forEach(page -> shardPages.add(page.join().items()));
+            return merge(shardPages, countAttribute, size);
+        });
+    }
+
+    /**
+     * K-way merge of pages that are each sorted by {@code countAttribute}, highest first. A heap
+     * holds the head of every page, and the largest head is taken until {@code size} items are
+     * out. Equal counts are taken in page order, so the result does not depend on timing.
+     */
+    static List<Map<String, AttributeValue>> merge(List<List<Map<String, AttributeValue>>> pages,
+                                                   String countAttribute, int size) {
+        PriorityQueue<Cursor> heads = new PriorityQueue<>(Math.max(1, pages.size()),
+                Comparator.comparingInt((Cursor cursor) -> cursor.count).reversed()
+                        .thenComparingInt(cursor -> cursor.page));
+        for (int page = 0; page < pages.size(); page++) {
+            Cursor cursor = new Cursor(page, pages.get(page), countAttribute);
+            if (cursor.advance()) {
+                heads.add(cursor);
+            }
+        }
+        List<Map<String, AttributeValue>> top = new ArrayList<>(size);
+        while (top.size() < size && !heads.isEmpty()) {
+            Cursor head = heads.poll();
+            top.add(head.item);
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Position in one shard's page.
+     */
+    private static final class Cursor {
+        private final int page;
+        private final List<Map<String, AttributeValue>> items;
+        private final String countAttribute;
+        private int next;
+        private Map<String, AttributeValue> item;
+        private int count;
+
+        Cursor(int page, List<Map<String, AttributeValue>> items, String countAttribute) {
+            this.page = page;
+            this.items = items;
+            this.countAttribute = countAttribute;
+        }
+
+        boolean advance() {
+            if (next == items.size()) {
+                return false;
+            }
+            item = items.get(next++);
+            count = count(item, countAttribute);
+            return true;
+        }
+    }
+
+    static int shardOf(String id, int shards) {
+        return Math.floorMod(id.hashCode(), shards);
+    }
+
+    /**
+     * @param shard the item's {@value #SHARD_ATTRIBUTE}, null when it has none
+     * @return whether the item is on the shard of its id for the current shard count
+     */
+    boolean onShard(String id, String shard) {
+        return Integer.toString(shardOf(id, shards)).equals(shard);
+    }
+
+    /**
+     * Puts the item on the shard of its id for the current shard count, unless it is on it
+     * already. Items deleted in the meantime stay deleted.
+     *
+     * @return false when nothing was written
+     */
+    public boolean assignShard(String table, String keyName, String id) {
+        UpdateItemRequest request = UpdateItemRequest.builder()
+                .tableName(table)
+                .key(Map.of(keyName, AttributeValue.fromS(id)))
+                .updateExpression("SET " + SHARD_ATTRIBUTE + " = :shard")
+                // AND binds tighter than OR, and an item with a shard exists
+                .conditionExpression("attribute_exists(" + keyName + ") AND attribute_not_exists(" + SHARD_ATTRIBUTE
+                        + ") OR " + SHARD_ATTRIBUTE + " <> :shard")
+                .expressionAttributeValues(Map.of(":shard", AttributeValue.fromN(Integer.toString(shardOf(id, shards)))))
+                .build();
+        try {
+            AsyncDynamoDb.join(dynamoDb.updateItem(request));
+            return true;
+        } catch (ConditionalCheckFailedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Puts every item of {@code table} on the shard of its id for the current shard count:
+     * items written before the stream handler started assigning shards, and items on the shard
+     * of an earlier count. Pages are handled as they arrive, one update at a time, so memory
+     * does not grow with the table.
+     *
+     * @return the number of items assigned or moved
+     */
+    public int assignShards(String table, String keyName) {
+        AtomicInteger assigned = new AtomicInteger();
+        AsyncDynamoDb.join(dynamoDb.scanPages(ScanRequest.builder()
+                .tableName(table)
+                .projectionExpression(keyName + ", " + SHARD_ATTRIBUTE)
+                .build(), page -> {
+            for (Map<String, AttributeValue> item : page.items()) {
+                String id = item.get(keyName).s();
+                AttributeValue shard = item.get(SHARD_ATTRIBUTE);
+                if (!onShard(id, shard == null ? null : shard.n()) && assignShard(table, keyName, id)) {
+                    assigned.incrementAndGet();
+                }
+            }
+        }));
+        return assigned.get();
+    }
+
+    private static int count(Map<String, AttributeValue> item, String name) {
+        AttributeValue value = item.get(name);
+        return value == null || value.n() == null ? 0 : Integer.parseInt(value.n());
+    }
+
+    private static String stringOrNull(Map<String, AttributeValue> item, String name) {
+        AttributeValue value = item.get(name);
+        return value == null ? null : value.s();
+    }
+}
@@ -0,0 +1,55 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.boycottpro.utilities.Logger;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts the existing companies and causes on their leaderboard shard; run it after creating the
+ * indexes and again after changing LEADERBOARD_SHARDS. Input:
+ * {@code {"tables": ["companies", "causes"]}}, both tables when omitted.
+ */
+public class LeaderboardShardBackfillHandler implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+
+    private static final Map<String, String> KEY_NAMES = Map.of("companies", "company_id", "causes", "cause_id");
+    private final LeaderboardRepository repository;
+
+    public LeaderboardShardBackfillHandler() {
+        this(DynamoDbClients.create());
+    }
+
+    public LeaderboardShardBackfillHandler(DynamoDbClient dynamoDb) {
+        // one call at a time on the caller's thread: the updates are made from the scan callback
+        AsyncDynamoDb sync = AsyncDynamoDb.of(dynamoDb, Runnable::run);
+        this.repository = new LeaderboardRepository(sync, new GlobalStatsRepository(sync, 1),
+                LeaderboardRepository.SHARDS);
+    }
+
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> input, Context context) {
+        Object tables = input == null ? null : input.get("tables");
+        List<?> names = tables instanceof List ? (List<?>) tables : List.of("companies", "causes");
+        List<String> failed = new ArrayList<>();
+        Map<String, Object> assigned = new HashMap<>();
+        for (Object name : names) {
+            String table = String.valueOf(name);
+            String keyName = KEY_NAMES.get(table);
+            try {
+                if (keyName == null) {
+                    throw new IllegalArgumentException("no leaderboard on table " + table);
+                }
+                assigned.put(table, repository.assignShards(table, keyName));
+            } catch (Exception e) {
+                Logger.error(SourceLines.here(), null, "leaderboard shard backfill of " + table + " failed: " + e.getMessage());
+                failed.add(table);
+            }
+        }
+        return Map.of("assigned", assigned, "failed", failed);
+    }
+}
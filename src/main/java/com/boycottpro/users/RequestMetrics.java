@@ -0,0 +1,213 @@
+package com.boycottpro.users;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * DynamoDB call statistics of one invocation, written as a single CloudWatch Embedded Metric
+ * Format (EMF) log line when the invocation ends. For every table and operation it keeps the
+ * number of calls (one per page of a paginated query or scan), their summed and maximum wall
+ * time, the items returned and the consumed capacity units; and how often each {@link Event}
+ * happened, when it did. Recording updates preallocated counters and allocates nothing once
+ * a table has been seen.
+ * <p>
+ * Each invocation records into an instance of its own, also when invocations run
+ * concurrently. A lookup of {@link GlobalStatsCache} that several invocations share is
+ * counted by the one that started it, and calls that finish after its line was written are
+ * not counted. Background refreshes record into an instance of the handler's that the next
+ * invocation's line takes over, see {@link #takeOver}.
+ */
+public class RequestMetrics {
+
+    static final String NAMESPACE = "BoycottPro/UsersStats";
+    private static final JsonStringEncoder JSON = JsonStringEncoder.getInstance();
+
+    enum Operation {
+        GetItem, BatchGetItem, PutItem, Query, Scan
+    }
+
+    /**
+     * What happened to the invocation as a whole rather than to one table.
+     */
+    enum Event {
+        // a second attempt of a read was sent, see HedgingPolicy
+        HedgedReads,
+        // an attempt ran into the per-attempt timeout of HedgingPolicy
+        AttemptTimeouts,
+        // the global fields were replaced by placeholders because the time budget ran out
+        DegradedResponses,
+        // the reads and refreshes of GlobalStatsCache, see its getters
+        CacheHits,
+        CacheStaleHits,
+        CacheMisses,
+        CacheCoalesced,
+        CacheRefreshes,
+        CacheRefreshFailures
+    }
+
+    private final Map<String, CallStats[]> tables = new ConcurrentHashMap<>();
+    private final LongAdder[] events = new LongAdder[Event.values().length];
+
+    RequestMetrics() {
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param capacityUnits ConsumedCapacity.CapacityUnits of the response, null when DynamoDB did not return it
+     */
+    void record(String table, Operation operation, long nanos, int items, Double capacityUnits) {
+        stats(table, operation).add(nanos, items, capacityUnits == null ? 0 : capacityUnits);
+    }
+
+    private CallStats stats(String table, Operation operation) {
+        CallStats[] operations = tables.get(table);
+        if (operations == null) {
+            operations = tables.computeIfAbsent(table, t -> new CallStats[Operation.values().length]);
+        }
+        CallStats stats = operations[operation.ordinal()];
+        if (stats == null) {
+            synchronized (operations) {
+                stats = operations[operation.ordinal()];
+                if (stats == null) {
+                    stats = new CallStats();
+                    operations[operation.ordinal()] = stats;
+                }
+            }
+        }
+        return stats;
+    }
+
+    void count(Event event) {
+        events[event.ordinal()].increment();
+    }
+
+    void count(Event event, long times) {
+        events[event.ordinal()].add(times);
+    }
+
+    /**
+     * Moves what {@code other} recorded into this instance, which writes it with its own line.
+     */
+    void takeOver(RequestMetrics other) {
+        for (Event event : Event.values()) {
+            count(event, other.events[event.ordinal()].sumThenReset());
+        }
+        for (Map.Entry<String, CallStats[]> table : other.tables.entrySet()) {
+            for (Operation operation : Operation.values()) {
+                CallStats stats = table.getValue()[operation.ordinal()];
+                if (stats != null) {
+                    stats.drainTo(stats(table.getKey(), operation));
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the EMF line for the invocation that just ended and resets the counters.
+     *
+     * @param initNanos reported as InitDuration on a cold start only
+     */
+    String flush(String functionName, String requestId, long durationNanos, boolean coldStart, long initNanos,
+                 long timestampMillis) {
+        StringBuilder names = new StringBuilder(1024);
+        StringBuilder values = new StringBuilder(1024);
+        metric(names, values, "Duration", "Milliseconds", millis(durationNanos));
+        metric(names, values, "ColdStart", "Count", coldStart ? "1" : "0");
+        if (coldStart) {
+            metric(names, values, "InitDuration", "Milliseconds", millis(initNanos));
+        }
+        for (Event event : Event.values()) {
+            long count = events[event.ordinal()].sumThenReset();
+            if (count > 0) {
+                metric(names, values, event.name(), "Count", Long.toString(count));
+            }
+        }
+        for (Map.Entry<String, CallStats[]> table : tables.entrySet()) {
+            for (Operation operation : Operation.values()) {
+                CallStats stats = table.getValue()[operation.ordinal()];
+                if (stats != null) {
+                    stats.drainTo(names, values, table.getKey() + "." + operation.name());
+                }
+            }
+        }
+        StringBuilder line = new StringBuilder(names.length() + values.length() + 256);
+        line.append("{\"_aws\":{\"Timestamp\":").append(timestampMillis)
+                .append(",\"CloudWatchMetrics\":[{\"Namespace\":\"").append(NAMESPACE)
+                .append("\",\"Dimensions\":[[\"FunctionName\"]],\"Metrics\":[").append(names)
+                .append("]}]},\"FunctionName\":\"");
+        // the names of tables and metrics are plain identifiers; these come from outside
+        JSON.quoteAsString(functionName, line);
+        line.append('"');
+        if (requestId != null) {
+            line.append(",\"requestId\":\"");
+            JSON.quoteAsString(requestId, line);
+            line.append('"');
+        }
+        line.append(values).append('}');
+        return line.toString();
+    }
+
+    private static void metric(StringBuilder names, StringBuilder values, String name, String unit, String value) {
+        if (names.length() > 0) {
+            names.append(',');
+        }
+        names.append("{\"Name\":\"").append(name).append("\",\"Unit\":\"").append(unit).append("\"}");
+        values.append(",\"").append(name).append("\":").append(value);
+    }
+
+    private static String millis(long nanos) {
+        return Double.toString(Math.round(nanos / 1e3) / 1e3);
+    }
+
+    private static final class CallStats {
+        private long calls;
+        private long nanos;
+        private long maxNanos;
+        private long items;
+        private double capacityUnits;
+
+        synchronized void add(long callNanos, int callItems, double callCapacityUnits) {
+            calls++;
+            nanos += callNanos;
+            maxNanos = Math.max(maxNanos, callNanos);
+            items += callItems;
+            capacityUnits += callCapacityUnits;
+        }
+
+        synchronized void drainTo(StringBuilder names, StringBuilder values, String prefix) {
+            if (calls == 0) {
+                return;
+            }
+            metric(names, values, prefix + ".Calls", "Count", Long.toString(calls));
+            metric(names, values, prefix + ".Time", "Milliseconds", millis(nanos));
+            metric(names, values, prefix + ".MaxTime", "Milliseconds", millis(maxNanos));
+            metric(names, values, prefix + ".Items", "Count", Long.toString(items));
+            metric(names, values, prefix + ".ConsumedCapacity", "Count", Double.toString(capacityUnits));
+            reset();
+        }
+
+        synchronized void drainTo(CallStats other) {
+            synchronized (other) {
+                other.calls += calls;
+                other.nanos += nanos;
+                other.maxNanos = Math.max(other.maxNanos, maxNanos);
+                other.items += items;
+                other.capacityUnits += capacityUnits;
+            }
+            reset();
+        }
+
+        synchronized void reset() {
+            calls = 0;
+            nanos = 0;
+            maxNanos = 0;
+            items = 0;
+            capacityUnits = 0;
+        }
+    }
+}
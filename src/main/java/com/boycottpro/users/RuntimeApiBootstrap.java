@@ -0,0 +1,201 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Entry point of the native executable for the provided.al2023 runtime: it runs the Lambda
+ * runtime API loop (fetch the next invocation, post its response or error) around
+ * {@link GetUserStatsHandler}. It talks to the runtime API over plain HTTP instead of using
+ * the runtime interface client, whose JNI transport would need its own native-image
+ * configuration. It runs on a JVM as well, which is how the startup report compares the two.
+ */
+public class RuntimeApiBootstrap {
+
+    private static final String API_PATH = "/2018-06-01/runtime";
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    private final String runtimeApi;
+    private final RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> handler;
+
+    /**
+     * @param runtimeApi host:port of the runtime API, as in AWS_LAMBDA_RUNTIME_API
+     */
+    public RuntimeApiBootstrap(String runtimeApi,
+                               RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> handler) {
+        this.runtimeApi = runtimeApi;
+        this.handler = handler;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String runtimeApi = System.getenv("AWS_LAMBDA_RUNTIME_API");
+        GetUserStatsHandler handler;
+        try {
+            handler = new GetUserStatsHandler();
+        } catch (RuntimeException e) {
+            new RuntimeApiBootstrap(runtimeApi, null).post("/init/error", error(e));
+            throw e;
+        }
+        RuntimeApiBootstrap bootstrap = new RuntimeApiBootstrap(runtimeApi, handler);
+        while (true) {
+            bootstrap.processNext();
+        }
+    }
+
+    /**
+     * Waits for the next invocation, hands it to the handler and posts the result.
+     */
+    void processNext() throws IOException {
+        HttpURLConnection next = open("/invocation/next", "GET");
+        String requestId = next.getHeaderField("Lambda-Runtime-Aws-Request-Id");
+        String deadline = next.getHeaderField("Lambda-Runtime-Deadline-Ms");
+        String functionArn = next.getHeaderField("Lambda-Runtime-Invoked-Function-Arn");
+        String traceId = next.getHeaderField("Lambda-Runtime-Trace-Id");
+        if (traceId != null) {
+            System.setProperty("com.amazonaws.xray.traceHeader", traceId);
+        }
+        byte[] event;
+        try (InputStream in = next.getInputStream()) {
+            event = in.readAllBytes();
+        }
+
+        byte[] result;
+        String path;
+        try {
+            APIGatewayProxyRequestEvent request = MAPPER.readValue(event, APIGatewayProxyRequestEvent.class);
+            Context context = new InvocationContext(requestId,
+                    deadline == null ? Long.MAX_VALUE : Long.parseLong(deadline), functionArn);
+            result = MAPPER.writeValueAsBytes(handler.handleRequest(request, context));
+            path = "/invocation/" + requestId + "/response";
+        } catch (Exception e) {
+            result = error(e);
+            path = "/invocation/" + requestId + "/error";
+        }
+        post(path, result);
+    }
+
+    private void post(String path, byte[] body) throws IOException {
+        HttpURLConnection connection = open(path, "POST");
+        connection.setDoOutput(true);
+        if (path.endsWith("/error")) {
+            connection.setRequestProperty("Lambda-Runtime-Function-Error-Type", "Unhandled");
+        }
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        int status = connection.getResponseCode();
+        connection.getInputStream().close();
+        if (status / 100 != 2) {
+            throw new IOException("runtime API answered " + status + " to " + path);
+        }
+    }
+
+    private HttpURLConnection open(String path, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + runtimeApi + API_PATH + path)
+                .openConnection();
+        connection.setRequestMethod(method);
+        // the next invocation may be minutes away
+        connection.setReadTimeout(0);
+        return connection;
+    }
+
+    private static byte[] error(Exception e) throws IOException {
+        return MAPPER.writeValueAsBytes(Map.of(
+                "errorMessage", String.valueOf(e.getMessage()),
+                "errorType", e.getClass().getName()));
+    }
+
+    private static final class InvocationContext implements Context {
+        private final String requestId;
+        private final long deadlineMillis;
+        private final String functionArn;
+
+        InvocationContext(String requestId, long deadlineMillis, String functionArn) {
+            this.requestId = requestId;
+            this.deadlineMillis = deadlineMillis;
+            this.functionArn = functionArn;
+        }
+
+        @Override
+        public String getAwsRequestId() {
+            return requestId;
+        }
+
+        @Override
+        public String getLogGroupName() {
+            return System.getenv("AWS_LAMBDA_LOG_GROUP_NAME");
+        }
+
+        @Override
+        public String getLogStreamName() {
+            return System.getenv("AWS_LAMBDA_LOG_STREAM_NAME");
+        }
+
+        @Override
+        public String getFunctionName() {
+            return System.getenv("AWS_LAMBDA_FUNCTION_NAME");
+        }
+
+        @Override
+        public String getFunctionVersion() {
+            return System.getenv("AWS_LAMBDA_FUNCTION_VERSION");
+        }
+
+        @Override
+        public String getInvokedFunctionArn() {
+            return functionArn;
+        }
+
+        @Override
+        public CognitoIdentity getIdentity() {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext() {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, deadlineMillis - System.currentTimeMillis()));
+        }
+
+        @Override
+        public int getMemoryLimitInMB() {
+            return Integer.parseInt(System.getenv().getOrDefault("AWS_LAMBDA_FUNCTION_MEMORY_SIZE", "0"));
+        }
+
+        @Override
+        public LambdaLogger getLogger() {
+            return new LambdaLogger() {
+                @Override
+                public void log(String message) {
+                    System.out.print(message);
+                }
+
+                @Override
+                public void log(byte[] message) {
+                    System.out.write(message, 0, message.length);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.boycottpro.users;
+
+/**
+ * The line numbers passed to {@code Logger}, read from the stack so that they stay right
+ * when the code around them moves. Only error paths ask for them.
+ */
+final class SourceLines {
+
+    private static final StackWalker WALKER = StackWalker.getInstance();
+
+    private SourceLines() {
+    }
+
+    /**
+     * The line of the code that calls this method.
+     */
+    static int here() {
+        return WALKER.walk(frames -> frames.skip(1).findFirst())
+                .map(StackWalker.StackFrame::getLineNumber)
+                .orElse(-1);
+    }
+
+    /**
+     * The last line of {@code type}, or of its nested classes and lambdas, that {@code e}
+     * passed through, or the caller's line when it never did, e.g. when it was thrown on a
+     * pool thread.
+     */
+    static int of(Throwable e, Class<?> type) {
+        for (StackTraceElement frame : e.getStackTrace()) {
+            if (frame.getClassName().startsWith(type.getName())) {
+                return frame.getLineNumber();
+            }
+        }
+        return WALKER.walk(frames -> frames.skip(1).findFirst())
+                .map(StackWalker.StackFrame::getLineNumber)
+                .orElse(-1);
+    }
+}
@@ -0,0 +1,80 @@
+package com.boycottpro.users;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The fields of the stats response a caller can ask for with the {@code fields} query
+ * parameter, e.g. {@code ?fields=totalBoycotts,numCausesFollowed}. Names are the JSON names.
+ * Without the parameter the seven fields of the response before the parameter existed are
+ * returned; the top lists only when they are asked for.
+ */
+enum StatsField {
+    TOTAL_BOYCOTTS("totalBoycotts"),
+    NUM_CAUSES_FOLLOWED("numCausesFollowed"),
+    WORST_COMPANY_NAME("worstCompanyName"),
+    WORST_COUNT("worstCount"),
+    TOP_REASON("topReason"),
+    CAUSE_NAME("causeName"),
+    FOLLOWER_COUNT("followerCount"),
+    TOP_COMPANIES("topCompanies"),
+    TOP_CAUSES("topCauses");
+
+    // the fields read from the same source, so asking for any of them costs the same calls
+    static final Set<StatsField> USER = EnumSet.of(TOTAL_BOYCOTTS, NUM_CAUSES_FOLLOWED);
+    static final Set<StatsField> WORST_COMPANY = EnumSet.of(WORST_COMPANY_NAME, WORST_COUNT);
+    static final Set<StatsField> TOP_CAUSE = EnumSet.of(CAUSE_NAME, FOLLOWER_COUNT);
+    static final Set<StatsField> GLOBAL = EnumSet.of(WORST_COMPANY_NAME, WORST_COUNT, TOP_REASON,
+            CAUSE_NAME, FOLLOWER_COUNT);
+    private static final Set<StatsField> DEFAULT = EnumSet.range(TOTAL_BOYCOTTS, FOLLOWER_COUNT);
+
+    private final String jsonName;
+
+    StatsField(String jsonName) {
+        this.jsonName = jsonName;
+    }
+
+    String jsonName() {
+        return jsonName;
+    }
+
+    /**
+     * @param fields comma-separated JSON names; null or blank for the default fields
+     * @throws IllegalArgumentException for a name that is not a field
+     */
+    static Set<StatsField> parse(String fields) {
+        if (fields == null || fields.isBlank()) {
+            return EnumSet.copyOf(DEFAULT);
+        }
+        Set<StatsField> selected = EnumSet.noneOf(StatsField.class);
+        for (String name : fields.split(",")) {
+            String trimmed = name.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            selected.add(byJsonName(trimmed));
+        }
+        if (selected.isEmpty()) {
+            return EnumSet.copyOf(DEFAULT);
+        }
+        return selected;
+    }
+
+    static boolean any(Set<StatsField> fields, Set<StatsField> of) {
+        for (StatsField field : of) {
+            if (fields.contains(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static StatsField byJsonName(String name) {
+        for (StatsField field : values()) {
+            if (field.jsonName.equals(name)) {
+                return field;
+            }
+        }
+        throw new IllegalArgumentException("unknown field " + name);
+    }
+}
@@ -0,0 +1,59 @@
+package com.boycottpro.users;
+
+import java.util.Map;
+
+/**
+ * What {@link GetUserStatsHandler#serve} needs from the API Gateway event. Each entry point
+ * extracts it in its own way.
+ */
+final class StatsRequest {
+
+    private final String sub;
+    private final String ifNoneMatch;
+    private final String fields;
+    private final String window;
+
+    /**
+     * @param sub         the caller's Cognito sub, null when the event has none
+     * @param ifNoneMatch the If-None-Match header, null when absent
+     * @param fields      the {@code fields} query parameter, null when absent
+     * @param window      the {@code window} query parameter, null when absent
+     */
+    StatsRequest(String sub, String ifNoneMatch, String fields, String window) {
+        this.sub = sub;
+        this.ifNoneMatch = ifNoneMatch;
+        this.fields = fields;
+        this.window = window;
+    }
+
+    String getSub() {
+        return sub;
+    }
+
+    String getIfNoneMatch() {
+        return ifNoneMatch;
+    }
+
+    String getFields() {
+        return fields;
+    }
+
+    String getWindow() {
+        return window;
+    }
+
+    /**
+     * API Gateway passes header names as the client sent them, so they are matched ignoring case.
+     */
+    static String header(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+}
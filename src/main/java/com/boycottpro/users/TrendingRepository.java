@@ -0,0 +1,269 @@
+package com.boycottpro.users;
+
+import com.boycottpro.users.model.Leaderboards;
+import com.boycottpro.users.model.TopCause;
+import com.boycottpro.users.model.TopCompany;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Bucketed counters of new boycotts per company and new follows per cause, in the table
+ * "trending_stats", for the top company and cause of the last 24 hours or 7 days. Keys:
+ * <ul>
+ *   <li>{@code <kind>#h#<hours since the epoch>#<shard>} and
+ *       {@code <kind>#d#<days since the epoch>#<shard>} partitions, one item per company or
+ *       cause id with an event_count counter</li>
+ *   <li>{@code event#<event_id>}: a marker per applied stream record, as in
+ *       {@link UserStatsRepository}, so a re-delivered record is counted once</li>
+ * </ul>
+ * Every event adds one to its hour and to its day, in one transaction together with its
+ * marker. Each bucket is write-sharded like the leaderboards, see
+ * {@link LeaderboardRepository#shardOf}: an id is counted on the shard of its hash, so the
+ * events of one hour are spread over TRENDING_SHARDS partitions instead of all hitting one. A
+ * window reads a fixed number of buckets, 24 hours or 7 days, each shard of each in parallel,
+ * and merges the shards, so the cost of a read depends on the number of companies or causes
+ * active in those buckets and not on the number of events. Buckets expire through the
+ * expires_at TTL attribute once no window reads them any more.
+ */
+public class TrendingRepository {
+
+    static final String TABLE_NAME = "trending_stats";
+    static final String PARTITION_KEY = "bucket";
+    static final String SORT_KEY = "item_id";
+    static final String COUNT_ATTRIBUTE = "event_count";
+    private static final String EVENT_PREFIX = "event#";
+    private static final String CONDITIONAL_CHECK_FAILED = "ConditionalCheckFailed";
+    // partitions per bucket, set with TRENDING_SHARDS. Raising it is safe, as the shards of an
+    // id are summed; after lowering it, the counts on the shards above it are missing from the
+    // windows until their buckets expire
+    static final int SHARDS = Integer.parseInt(System.getenv().getOrDefault("TRENDING_SHARDS", "4"));
+
+    /**
+     * What is counted: boycotts of a company, follows of a cause.
+     */
+    enum Kind {
+        COMPANY("company", "companies", "company_id", "company_name"),
+        CAUSE("cause", "causes", "cause_id", "cause_desc");
+
+        private final String prefix;
+        private final String table;
+        private final String keyName;
+        private final String nameAttribute;
+
+        Kind(String prefix, String table, String keyName, String nameAttribute) {
+            this.prefix = prefix;
+            this.table = table;
+            this.keyName = keyName;
+            this.nameAttribute = nameAttribute;
+        }
+    }
+
+    /**
+     * The {@code window} query parameter. The current bucket is only partly over, so the last
+     * 24 hours are 23 to 24 hours long and the last 7 days 6 to 7 days long.
+     */
+    enum Window {
+        LAST_24_HOURS("24h", "h", 60 * 60, 24),
+        LAST_7_DAYS("7d", "d", 24 * 60 * 60, 7);
+
+        private final String name;
+        private final String unit;
+        private final long bucketSeconds;
+        private final int buckets;
+
+        Window(String name, String unit, long bucketSeconds, int buckets) {
+            this.name = name;
+            this.unit = unit;
+            this.bucketSeconds = bucketSeconds;
+            this.buckets = buckets;
+        }
+
+        String windowName() {
+            return name;
+        }
+
+        /**
+         * @return null for no window, which selects the all-time stats
+         * @throws IllegalArgumentException for a name that is not a window
+         */
+        static Window parse(String window) {
+            if (window == null || window.isBlank()) {
+                return null;
+            }
+            for (Window candidate : values()) {
+                if (candidate.name.equals(window.trim())) {
+                    return candidate;
+                }
+            }
+            throw new IllegalArgumentException("unknown window " + window);
+        }
+
+        private String bucket(Kind kind, long index, int shard) {
+            return kind.prefix + "#" + unit + "#" + index + "#" + shard;
+        }
+    }
+
+    private final AsyncDynamoDb dynamoDb;
+    private final GlobalStatsRepository reasons;
+    private final int shards;
+    private final LongSupplier clock;
+
+    /**
+     * @param reasons looks up the top reason of each trending company
+     * @param clock   epoch millis, for the current buckets and the marker expiry
+     */
+    public TrendingRepository(AsyncDynamoDb dynamoDb, GlobalStatsRepository reasons, int shards, LongSupplier clock) {
+        this.dynamoDb = dynamoDb;
+        this.reasons = reasons;
+        this.shards = Math.max(1, shards);
+        this.clock = clock;
+    }
+
+    /**
+     * Counts one boycott or follow of {@code id} at {@code eventMillis} in each window.
+     *
+     * @return false if the stream record {@code eventId} was counted before and was skipped
+     */
+    public boolean record(Kind kind, String id, String eventId, long eventMillis) {
+        List<TransactWriteItem> items = new ArrayList<>(1 + Window.values().length);
+        items.add(marker(eventId));
+        for (Window window : Window.values()) {
+            items.add(increment(kind, window, id, eventMillis / 1000));
+        }
+        try {
+            AsyncDynamoDb.join(dynamoDb.transactWriteItems(TransactWriteItemsRequest.builder()
+                    .transactItems(items)
+                    .build()));
+            return true;
+        } catch (TransactionCanceledException e) {
+            // only the marker has a condition
+            if (CONDITIONAL_CHECK_FAILED.equals(e.cancellationReasons().get(0).code())) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private TransactWriteItem marker(String eventId) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put(PARTITION_KEY, AttributeValue.fromS(EVENT_PREFIX + eventId));
+        item.put(SORT_KEY, AttributeValue.fromS(EVENT_PREFIX));
+        item.put("expires_at", AttributeValue.fromN(Long.toString(
+                clock.getAsLong() / 1000 + UserStatsRepository.EVENT_MARKER_TTL_SECONDS)));
+        return TransactWriteItem.builder().put(Put.builder()
+                .tableName(TABLE_NAME)
+                .item(item)
+                .conditionExpression("attribute_not_exists(" + SORT_KEY + ")")
+                .build()).build();
+    }
+
+    /**
+     * Bucket b is read until bucket b + buckets starts, and may be deleted from then on.
+     */
+    private TransactWriteItem increment(Kind kind, Window window, String id, long eventSeconds) {
+        long index = eventSeconds / window.bucketSeconds;
+        return TransactWriteItem.builder().update(Update.builder()
+                .tableName(TABLE_NAME)
+                .key(Map.of(PARTITION_KEY, AttributeValue.fromS(
+                                window.bucket(kind, index, LeaderboardRepository.shardOf(id, shards))),
+                        SORT_KEY, AttributeValue.fromS(id)))
+                .updateExpression("ADD " + COUNT_ATTRIBUTE + " :one SET expires_at = :expires")
+                .expressionAttributeValues(Map.of(
+                        ":one", AttributeValue.fromN("1"),
+                        ":expires", AttributeValue.fromN(Long.toString((index + window.buckets) * window.bucketSeconds))))
+                .build()).build();
+    }
+
+    /**
+     * The lists asked for, highest count first, {@code size} entries at most; counts are the
+     * boycotts and follows within the window. A list not asked for is empty and costs no reads.
+     * Names and the top reasons of the companies are looked up for the entries only.
+     */
+    public Leaderboards load(Window window, int size, boolean companies, boolean causes) {
+        CompletableFuture<List<TopCompany>> topCompanies = companies
+                ? top(Kind.COMPANY, window, size).thenCompose(this::companies)
+                : CompletableFuture.completedFuture(List.of());
+        CompletableFuture<List<TopCause>> topCauses = causes
+                ? top(Kind.CAUSE, window, size).thenCompose(this::causes)
+                : CompletableFuture.completedFuture(List.of());
+        return new Leaderboards(AsyncDynamoDb.join(topCompanies), AsyncDynamoDb.join(topCauses));
+    }
+
+    /**
+     * Sums the shards of the buckets of the window per id and keeps the {@code size} highest
+     * sums; equal sums are ordered by id, so the result does not depend on timing.
+     */
+    CompletableFuture<List<Map.Entry<String, Integer>>> top(Kind kind, Window window, int size) {
+        long current = clock.getAsLong() / 1000 / window.bucketSeconds;
+        Map<String, Integer> sums = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> buckets = new ArrayList<>(window.buckets * shards);
+        for (long index = current - window.buckets + 1; index <= current; index++) {
+            for (int shard = 0; shard < shards; shard++) {
+                buckets.add(dynamoDb.queryPages(QueryRequest.builder()
+                        .tableName(TABLE_NAME)
+                        .keyConditionExpression(PARTITION_KEY + " = :bucket")
+                        .expressionAttributeValues(Map.of(":bucket",
+                                AttributeValue.fromS(window.bucket(kind, index, shard))))
+                        .projectionExpression(SORT_KEY + ", " + COUNT_ATTRIBUTE)
+                        .build(), page -> {
+                    for (Map<String, AttributeValue> item : page.items()) {
+                        sums.merge(item.get(SORT_KEY).s(), Integer.parseInt(item.get(COUNT_ATTRIBUTE).n()),
+                                Integer::sum);
+                    }
+                }));
+            }
+        }
+        return CompletableFuture.allOf(buckets.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>(sums.entrySet());
+            entries.sort(Map.Entry.<String, Integer>comparingByValue(Comparator.reverseOrder())
+                    .thenComparing(Map.Entry.comparingByKey()));
+            return entries.size() > size ? new ArrayList<>(entries.subList(0, size)) : entries;
+        });
+    }
+
+    private CompletableFuture<List<TopCompany>> companies(List<Map.Entry<String, Integer>> top) {
+        List<CompletableFuture<TopCompany>> entries = new ArrayList<>(top.size());
+        for (Map.Entry<String, Integer> entry : top) {
+            String companyId = entry.getKey();
+            entries.add(name(Kind.COMPANY, companyId).thenCombine(reasons.topReason(companyId),
+                    (name, reason) -> new TopCompany(companyId, name, entry.getValue(), reason)));
+        }
+        return all(entries);
+    }
+
+    private CompletableFuture<List<TopCause>> causes(List<Map.Entry<String, Integer>> top) {
+        List<CompletableFuture<TopCause>> entries = new ArrayList<>(top.size());
+        for (Map.Entry<String, Integer> entry : top) {
+            entries.add(name(Kind.CAUSE, entry.getKey())
+                    .thenApply(name -> new TopCause(entry.getKey(), name, entry.getValue())));
+        }
+        return all(entries);
+    }
+
+    private CompletableFuture<String> name(Kind kind, String id) {
+        return dynamoDb.getItem(GetItemRequest.builder()
+                .tableName(kind.table)
+                .key(Map.of(kind.keyName, AttributeValue.fromS(id)))
+                .projectionExpression(kind.nameAttribute)
+                .build()).thenApply(response -> {
+            AttributeValue name = response.hasItem() ? response.item().get(kind.nameAttribute) : null;
+            return name == null ? null : name.s();
+        });
+    }
+
+    private static <T> CompletableFuture<List<T>> all(List<CompletableFuture<T>> entries) {
+        return CompletableFuture.allOf(entries.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<T> results = new ArrayList<>(entries.size());
+            entries.forEach(entry -> results.add(entry.join()));
+            return results;
+        });
+    }
+}
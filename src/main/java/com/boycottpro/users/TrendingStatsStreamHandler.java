@@ -0,0 +1,78 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue;
+import com.boycottpro.utilities.Logger;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A second consumer of the user_boycotts and user_causes streams, next to
+ * {@link UserStatsStreamHandler}: every new boycott row counts for its company and every new
+ * follow for its cause in the buckets of {@link TrendingRepository}. Removed rows are not
+ * subtracted; trending is about what people started doing in the window. Events are bucketed
+ * by the time the stream recorded them, so retries and a backlog do not shift them.
+ */
+public class TrendingStatsStreamHandler implements RequestHandler<DynamodbEvent, StreamsEventResponse> {
+
+    private final TrendingRepository repository;
+
+    public TrendingStatsStreamHandler() {
+        this(DynamoDbClients.create());
+    }
+
+    public TrendingStatsStreamHandler(DynamoDbClient dynamoDb) {
+        AsyncDynamoDb sync = AsyncDynamoDb.of(dynamoDb, Runnable::run);
+        this.repository = new TrendingRepository(sync, new GlobalStatsRepository(sync, 1), TrendingRepository.SHARDS,
+                System::currentTimeMillis);
+    }
+
+    @Override
+    public StreamsEventResponse handleRequest(DynamodbEvent event, Context context) {
+        List<StreamsEventResponse.BatchItemFailure> failures = new ArrayList<>();
+        for (DynamodbEvent.DynamodbStreamRecord record : event.getRecords()) {
+            try {
+                apply(record);
+            } catch (Exception e) {
+                Logger.error(SourceLines.here(), null, "failed to count stream record " + record.getEventID() + ": " + e.getMessage());
+                // everything from here on is retried; the markers skip what was counted already
+                failures.add(new StreamsEventResponse.BatchItemFailure(record.getDynamodb().getSequenceNumber()));
+                break;
+            }
+        }
+        return new StreamsEventResponse(failures);
+    }
+
+    void apply(DynamodbEvent.DynamodbStreamRecord record) {
+        Map<String, AttributeValue> image = record.getDynamodb().getNewImage();
+        if (!"INSERT".equals(record.getEventName()) || image == null) {
+            return;
+        }
+        switch (GlobalStatsStreamHandler.tableName(record.getEventSourceARN())) {
+            case "user_boycotts":
+                count(record, TrendingRepository.Kind.COMPANY, image.get("company_id"));
+                break;
+            case "user_causes":
+                count(record, TrendingRepository.Kind.CAUSE, image.get("cause_id"));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void count(DynamodbEvent.DynamodbStreamRecord record, TrendingRepository.Kind kind, AttributeValue id) {
+        if (id == null || id.getS() == null) {
+            return;
+        }
+        Date created = record.getDynamodb().getApproximateCreationDateTime();
+        repository.record(kind, id.getS(), record.getEventID(),
+                created == null ? System.currentTimeMillis() : created.getTime());
+    }
+}
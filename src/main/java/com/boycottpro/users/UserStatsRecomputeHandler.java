@@ -0,0 +1,57 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.boycottpro.utilities.Logger;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs {@link UserStatsRecomputeJob} for the weekly digest. Input: {@code {"run_id": "..."}},
+ * today's UTC date when omitted. One invocation scans until its time is nearly up; invoke it
+ * again with the same run id until the output says {@code "done": true}, e.g. from a Step
+ * Functions loop. A new run id starts over.
+ */
+public class UserStatsRecomputeHandler implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+
+    private final DynamoDbClient dynamoDb;
+    private final LongSupplier clock;
+
+    public UserStatsRecomputeHandler() {
+        this(DynamoDbClients.create(), System::currentTimeMillis);
+    }
+
+    public UserStatsRecomputeHandler(DynamoDbClient dynamoDb, LongSupplier clock) {
+        this.dynamoDb = dynamoDb;
+        this.clock = clock;
+    }
+
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> input, Context context) {
+        Object runId = input == null ? null : input.get("run_id");
+        String run = runId == null
+                ? DateTimeFormatter.ISO_LOCAL_DATE.format(Instant.ofEpochMilli(clock.getAsLong()).atOffset(ZoneOffset.UTC))
+                : String.valueOf(runId);
+        // the segment threads each make one call at a time
+        UserStatsRecomputeJob job = new UserStatsRecomputeJob(AsyncDynamoDb.of(dynamoDb, Runnable::run),
+                UserStatsRecomputeJob.SEGMENTS, clock);
+        Map<String, Object> output = new HashMap<>();
+        output.put("run_id", run);
+        try {
+            output.put("done", job.run(run, Deadline.of(context)));
+        } catch (Exception e) {
+            Logger.error(SourceLines.here(), null, "user stats recompute " + run + " failed: " + e.getMessage());
+            output.put("done", false);
+            output.put("error", e.getMessage());
+        }
+        output.put("users_written", job.usersWritten());
+        output.put("throttled_writes", job.throttledWrites());
+        return output;
+    }
+}
@@ -0,0 +1,306 @@
+package com.boycottpro.users;
+
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Recomputes totalBoycotts and numCausesFollowed of every user for the weekly digest, from
+ * parallel segmented scans of user_boycotts and user_causes instead of two queries per user.
+ * <p>
+ * DynamoDB returns the rows of a partition key together, and a partition key belongs to one
+ * segment, so a segment sees each user's rows one after another. A user is counted while the
+ * rows go by and written once the next user starts: a segment holds one
+ * {@link DistinctCounter} for the current user and one batch of writes, whatever the number
+ * of users.
+ * <p>
+ * The counts go to user_stats as {@code digest#totalBoycotts} and
+ * {@code digest#numCausesFollowed} items with a value, the run id and an expires_at of
+ * DIGEST_TTL_DAYS (8 by default). A user without rows in a table gets no item for it, so a
+ * missing item, or one of an older run, reads as 0.
+ * <p>
+ * Each table and segment checkpoints the key of the last row of the last user written, in
+ * a {@code job#<run_id>} item of user_stats. When the time budget runs out, the segments stop
+ * and the next run with the same id continues from their checkpoints; a user that was being
+ * counted or waiting in an unwritten batch is counted again from the start.
+ */
+public class UserStatsRecomputeJob {
+
+    static final String DIGEST_PREFIX = "digest#";
+    static final String JOB_PREFIX = "job#";
+    static final int SEGMENTS = Integer.parseInt(System.getenv().getOrDefault("RECOMPUTE_SEGMENTS", "8"));
+    private static final long TTL_SECONDS = Long.parseLong(System.getenv().getOrDefault("DIGEST_TTL_DAYS", "8"))
+            * 24 * 60 * 60;
+    private static final int BATCH_WRITE_LIMIT = 25;
+    // a checkpoint is written per this many batches, and when a segment stops or is done
+    private static final int CHECKPOINT_EVERY = 10;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final int MAX_COUNTER_CAPACITY = 1 << 20;
+
+    /**
+     * The tables scanned, and how a user's rows are counted.
+     */
+    enum Source {
+        BOYCOTTS("user_boycotts", "company_cause_id", "totalBoycotts"),
+        CAUSES("user_causes", "cause_id", "numCausesFollowed");
+
+        final String table;
+        final String sortKey;
+        final String field;
+
+        Source(String table, String sortKey, String field) {
+            this.table = table;
+            this.sortKey = sortKey;
+            this.field = field;
+        }
+    }
+
+    private final AsyncDynamoDb dynamoDb;
+    private final int segments;
+    private final LongSupplier clock;
+    private final AtomicLong usersWritten = new AtomicLong();
+    private final AtomicLong throttledWrites = new AtomicLong();
+
+    /**
+     * @param dynamoDb called from the segment threads, one call at a time per segment
+     */
+    public UserStatsRecomputeJob(AsyncDynamoDb dynamoDb, int segments, LongSupplier clock) {
+        this.dynamoDb = dynamoDb;
+        this.segments = segments;
+        this.clock = clock;
+    }
+
+    /**
+     * Scans every segment of both tables that the run has not finished yet, concurrently.
+     *
+     * @return true once every segment of the run is done
+     */
+    public boolean run(String runId, Deadline deadline) {
+        ExecutorService executor = Executors.newFixedThreadPool(Source.values().length * segments, r -> {
+            Thread thread = new Thread(r, "user-stats-recompute");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Boolean>> scans = new ArrayList<>();
+            for (Source source : Source.values()) {
+                for (int segment = 0; segment < segments; segment++) {
+                    int s = segment;
+                    scans.add(executor.submit(() -> new SegmentScan(runId, source, s, deadline).run()));
+                }
+            }
+            boolean done = true;
+            for (Future<Boolean> scan : scans) {
+                try {
+                    done &= scan.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new IllegalStateException(e.getCause());
+                }
+            }
+            return done;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while recomputing user stats", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    long usersWritten() {
+        return usersWritten.get();
+    }
+
+    /**
+     * @return how often a batch write came back with unprocessed items or throttled
+     */
+    long throttledWrites() {
+        return throttledWrites.get();
+    }
+
+    /**
+     * One segment of one table, from its checkpoint to the end or the deadline.
+     */
+    private final class SegmentScan {
+        private final String runId;
+        private final Source source;
+        private final int segment;
+        private final Deadline deadline;
+        private DistinctCounter companies = new DistinctCounter();
+        private final List<WriteRequest> batch = new ArrayList<>(BATCH_WRITE_LIMIT);
+        private String user;
+        private int rows;
+        // the last row seen; the keys of the last rows of the last user added to the batch and written
+        private Map<String, AttributeValue> lastRow;
+        private Map<String, AttributeValue> batchEnd;
+        private Map<String, AttributeValue> written;
+        private int batchesSinceCheckpoint;
+
+        SegmentScan(String runId, Source source, int segment, Deadline deadline) {
+            this.runId = runId;
+            this.source = source;
+            this.segment = segment;
+            this.deadline = deadline;
+        }
+
+        boolean run() {
+            GetItemResponse checkpoint = AsyncDynamoDb.join(dynamoDb.getItem(GetItemRequest.builder()
+                    .tableName(UserStatsRepository.TABLE_NAME)
+                    .key(checkpointKey())
+                    .consistentRead(true)
+                    .build()));
+            if (checkpoint.hasItem() && checkpoint.item().containsKey("done")
+                    && checkpoint.item().get("done").bool()) {
+                return true;
+            }
+            written = checkpoint.hasItem() && checkpoint.item().containsKey("last_key")
+                    ? checkpoint.item().get("last_key").m()
+                    : null;
+            Map<String, AttributeValue> next = written;
+            do {
+                if (deadline.remainingNanos() == 0) {
+                    return stop();
+                }
+                ScanRequest.Builder request = ScanRequest.builder()
+                        .tableName(source.table)
+                        .segment(segment)
+                        .totalSegments(segments)
+                        .projectionExpression(source == Source.BOYCOTTS
+                                ? "user_id, company_cause_id, company_id"
+                                : "user_id, cause_id");
+                if (next != null) {
+                    request.exclusiveStartKey(next);
+                }
+                ScanResponse page = AsyncDynamoDb.join(dynamoDb.scan(request.build()));
+                for (Map<String, AttributeValue> row : page.items()) {
+                    String rowUser = row.get("user_id").s();
+                    if (!rowUser.equals(user) && user != null && !finishUser()) {
+                        return stop();
+                    }
+                    user = rowUser;
+                    if (source == Source.BOYCOTTS) {
+                        companies.add(row.get("company_id").s());
+                    } else {
+                        rows++;
+                    }
+                    lastRow = row;
+                }
+                next = page.hasLastEvaluatedKey() && !page.lastEvaluatedKey().isEmpty()
+                        ? page.lastEvaluatedKey()
+                        : null;
+            } while (next != null);
+            if ((user != null && !finishUser()) || !flush()) {
+                return stop();
+            }
+            saveCheckpoint(true);
+            return true;
+        }
+
+        /**
+         * Adds the count of the current user to the batch, and writes the batch when full.
+         *
+         * @return false when the deadline came before the batch was written
+         */
+        private boolean finishUser() {
+            int count = source == Source.BOYCOTTS ? companies.size() : rows;
+            Map<String, AttributeValue> item = new HashMap<>();
+            item.put(UserStatsRepository.PARTITION_KEY, AttributeValue.fromS(user));
+            item.put(UserStatsRepository.SORT_KEY, AttributeValue.fromS(DIGEST_PREFIX + source.field));
+            item.put("value", AttributeValue.fromN(Integer.toString(count)));
+            item.put("run_id", AttributeValue.fromS(runId));
+            item.put("expires_at", AttributeValue.fromN(Long.toString(clock.getAsLong() / 1000 + TTL_SECONDS)));
+            batch.add(WriteRequest.builder().putRequest(PutRequest.builder().item(item).build()).build());
+            batchEnd = Map.of("user_id", lastRow.get("user_id"), source.sortKey, lastRow.get(source.sortKey));
+            user = null;
+            rows = 0;
+            if (companies.capacity() > MAX_COUNTER_CAPACITY) {
+                companies = new DistinctCounter();
+            } else {
+                companies.clear();
+            }
+            return batch.size() < BATCH_WRITE_LIMIT || flush();
+        }
+
+        /**
+         * Writes the batch, backing off while DynamoDB leaves items unprocessed or throttles.
+         *
+         * @return false when the deadline came first
+         */
+        private boolean flush() {
+            if (batch.isEmpty()) {
+                return true;
+            }
+            Map<String, List<WriteRequest>> pending = Map.of(UserStatsRepository.TABLE_NAME, batch);
+            for (int attempt = 0; !pending.isEmpty(); attempt++) {
+                if (attempt > 0) {
+                    throttledWrites.incrementAndGet();
+                    long backoff = Math.min(MAX_BACKOFF_MILLIS, 50L << Math.min(attempt, 10));
+                    // full jitter, so the segments that were throttled together do not retry together
+                    long pause = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+                    if (deadline.remainingNanos() <= pause) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(pause);
+                }
+                try {
+                    BatchWriteItemResponse response = AsyncDynamoDb.join(dynamoDb.batchWriteItem(
+                            BatchWriteItemRequest.builder().requestItems(pending).build()));
+                    pending = response.hasUnprocessedItems() ? response.unprocessedItems() : Map.of();
+                } catch (ProvisionedThroughputExceededException | RequestLimitExceededException e) {
+                    // the SDK's own retries are used up; keep the same items pending
+                }
+            }
+            usersWritten.addAndGet(batch.size());
+            batch.clear();
+            written = batchEnd;
+            if (++batchesSinceCheckpoint == CHECKPOINT_EVERY) {
+                saveCheckpoint(false);
+            }
+            return true;
+        }
+
+        /**
+         * Keeps what was written; the rest is scanned again by the next run.
+         */
+        private boolean stop() {
+            if (batchesSinceCheckpoint > 0) {
+                saveCheckpoint(false);
+            }
+            return false;
+        }
+
+        private void saveCheckpoint(boolean done) {
+            Map<String, AttributeValue> item = checkpointKey();
+            item.put("done", AttributeValue.fromBool(done));
+            if (written != null) {
+                item.put("last_key", AttributeValue.fromM(written));
+            }
+            item.put("expires_at", AttributeValue.fromN(Long.toString(clock.getAsLong() / 1000 + TTL_SECONDS)));
+            AsyncDynamoDb.join(dynamoDb.putItem(PutItemRequest.builder()
+                    .tableName(UserStatsRepository.TABLE_NAME)
+                    .item(item)
+                    .build()));
+            batchesSinceCheckpoint = 0;
+        }
+
+        private Map<String, AttributeValue> checkpointKey() {
+            Map<String, AttributeValue> key = new HashMap<>();
+            key.put(UserStatsRepository.PARTITION_KEY, AttributeValue.fromS(JOB_PREFIX + runId));
+            key.put(UserStatsRepository.SORT_KEY, AttributeValue.fromS(source.table + "#" + segment));
+            return key;
+        }
+    }
+}
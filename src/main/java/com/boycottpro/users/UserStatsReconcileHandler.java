@@ -0,0 +1,51 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.boycottpro.users.model.UserStats;
+import com.boycottpro.utilities.Logger;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rebuilds the "user_stats" counters of the given users from user_boycotts and user_causes.
+ * Run it once per user to backfill the counters before the stream takes over, and again
+ * whenever they may have drifted. Input: {@code {"user_ids": ["...", "..."]}}.
+ */
+public class UserStatsReconcileHandler implements RequestHandler<Map<String, Object>, Map<String, Object>> {
+
+    private final UserStatsRepository repository;
+
+    public UserStatsReconcileHandler() {
+        this(DynamoDbClients.create());
+    }
+
+    public UserStatsReconcileHandler(DynamoDbClient dynamoDb) {
+        this.repository = new UserStatsRepository(AsyncDynamoDb.of(dynamoDb, Runnable::run));
+    }
+
+    @Override
+    public Map<String, Object> handleRequest(Map<String, Object> input, Context context) {
+        Object userIds = input == null ? null : input.get("user_ids");
+        List<String> failed = new ArrayList<>();
+        Map<String, Object> reconciled = new HashMap<>();
+        if (userIds instanceof List) {
+            for (Object userId : (List<?>) userIds) {
+                try {
+                    UserStats stats = repository.reconcile(String.valueOf(userId));
+                    reconciled.put(String.valueOf(userId), Map.of(
+                            "totalBoycotts", stats.getDistinctCompaniesBoycotted(),
+                            "numCausesFollowed", stats.getCausesFollowed()));
+                } catch (Exception e) {
+                    Logger.error(SourceLines.here(), String.valueOf(userId), "reconciliation failed: " + e.getMessage());
+                    failed.add(String.valueOf(userId));
+                }
+            }
+        }
+        return Map.of("reconciled", reconciled, "failed", failed);
+    }
+}
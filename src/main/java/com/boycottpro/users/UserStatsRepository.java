@@ -0,0 +1,525 @@
+package com.boycottpro.users;
+
+import com.boycottpro.users.model.UserStats;
+import com.boycottpro.utilities.Logger;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * Reads and writes the materialised per-user counters in the "user_stats" table, and holds
+ * the user_boycotts/user_causes queries that count them from scratch.
+ * <p>
+ * The table is keyed by user_id and stat_key and holds three kinds of items per user:
+ * <ul>
+ *   <li>{@code totals}: distinct_companies_boycotted, causes_followed and reconciled_at</li>
+ *   <li>{@code company#<company_id>}: refs, the number of the user's boycott rows for that
+ *       company, so the distinct count only moves on the first and the last row</li>
+ *   <li>{@code event#<event_id>}: a marker per applied stream record, expiring through the
+ *       expires_at TTL attribute, so a re-delivered record is applied only once</li>
+ * </ul>
+ * Each stream record is applied in one transaction together with its marker. The totals
+ * are only trusted once reconciled_at is stamped on them, by {@link #reconcile(String)} or
+ * by the stream when the user's first row creates them; until then readers count from the
+ * source tables. A row removed before the stream applied it can still make freshly created
+ * totals drift until the next reconcile.
+ */
+public class UserStatsRepository {
+
+    static final String TABLE_NAME = "user_stats";
+    static final String PARTITION_KEY = "user_id";
+    static final String SORT_KEY = "stat_key";
+    static final String TOTALS_KEY = "totals";
+    static final String COMPANY_PREFIX = "company#";
+    static final String EVENT_PREFIX = "event#";
+    // stream records are kept for 24 hours, so markers only need to outlive that
+    static final long EVENT_MARKER_TTL_SECONDS = 2 * 24 * 60 * 60;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final int BATCH_WRITE_LIMIT = 25;
+    private static final int BATCH_GET_LIMIT = 100;
+    private static final String CONDITIONAL_CHECK_FAILED = "ConditionalCheckFailed";
+    // buffers of finished distinct counts, reused by the next requests on a warm instance;
+    // a burst of concurrent counts leaves at most MAX_POOLED_COUNTERS of them pooled, and
+    // counters that grew past 1M slots (8 MB) are left to the GC
+    private static final int MAX_POOLED_COUNTERS = 16;
+    private static final int MAX_POOLED_COUNTER_CAPACITY = 1 << 20;
+    private static final Queue<DistinctCounter> DISTINCT_COUNTERS = new ArrayBlockingQueue<>(MAX_POOLED_COUNTERS);
+
+    private final AsyncDynamoDb dynamoDb;
+    private final LongSupplier clock;
+
+    /**
+     * How a stream record writes the totals item, which it may have to create.
+     */
+    private enum Totals {
+        EXISTING,
+        CREATED,
+        // the record's row is the user's only one, so the new totals are exact
+        CREATED_TRUSTED
+    }
+
+    public UserStatsRepository(AsyncDynamoDb dynamoDb) {
+        this(dynamoDb, System::currentTimeMillis);
+    }
+
+    public UserStatsRepository(AsyncDynamoDb dynamoDb, LongSupplier clock) {
+        this.dynamoDb = dynamoDb;
+        this.clock = clock;
+    }
+
+    /**
+     * @return the stored counters, or null if the user has not been reconciled yet
+     */
+    public CompletableFuture<UserStats> load(String userId) {
+        GetItemRequest request = GetItemRequest.builder()
+                .tableName(TABLE_NAME)
+                .key(key(userId, TOTALS_KEY))
+                .build();
+        return dynamoDb.getItem(request).thenApply(response ->
+                response.hasItem() && response.item().containsKey("reconciled_at")
+                        ? fromItem(response.item())
+                        : null);
+    }
+
+    /**
+     * The stored counters, or when there are none yet, the counts of the source tables.
+     */
+    public CompletableFuture<UserStats> loadOrCount(String userId) {
+        return loadOrCount(userId, true, true);
+    }
+
+    /**
+     * Like {@link #loadOrCount(String)}, but when counting, only the counts asked for are
+     * queried; the others are 0.
+     */
+    public CompletableFuture<UserStats> loadOrCount(String userId, boolean companies, boolean causes) {
+        return countIfMissing(load(userId), userId, companies, causes);
+    }
+
+    /**
+     * The second half of {@link #loadOrCount(String, boolean, boolean)}, for a caller that
+     * looks at the stored counters of {@link #load} first.
+     */
+    public CompletableFuture<UserStats> countIfMissing(CompletableFuture<UserStats> stored, String userId,
+                                                       boolean companies, boolean causes) {
+        return stored.thenCompose(stats -> stats != null
+                ? CompletableFuture.completedFuture(stats)
+                : count(userId, companies, causes));
+    }
+
+    /**
+     * The stored counters of many users, read with BatchGetItem, 100 users per call and the
+     * calls concurrently. UnprocessedKeys are asked for again after a backoff.
+     *
+     * @return the counters of the users that have been reconciled; the others are missing
+     */
+    public CompletableFuture<Map<String, UserStats>> loadAll(Collection<String> userIds) {
+        Map<String, UserStats> found = new ConcurrentHashMap<>();
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(userIds));
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += BATCH_GET_LIMIT) {
+            List<Map<String, AttributeValue>> keys = new ArrayList<>();
+            for (String userId : ids.subList(start, Math.min(ids.size(), start + BATCH_GET_LIMIT))) {
+                keys.add(key(userId, TOTALS_KEY));
+            }
+            calls.add(batchGet(Map.of(TABLE_NAME, KeysAndAttributes.builder().keys(keys).build()), found, 0));
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture[0])).thenApply(done -> found);
+    }
+
+    private CompletableFuture<Void> batchGet(Map<String, KeysAndAttributes> keys, Map<String, UserStats> found,
+                                             int attempt) {
+        return dynamoDb.batchGetItem(BatchGetItemRequest.builder().requestItems(keys).build()).thenCompose(response -> {
+            for (Map<String, AttributeValue> item : response.responses().getOrDefault(TABLE_NAME, List.of())) {
+                if (item.containsKey("reconciled_at")) {
+                    found.put(item.get(PARTITION_KEY).s(), fromItem(item));
+                }
+            }
+            if (!response.hasUnprocessedKeys() || response.unprocessedKeys().isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (attempt + 1 == MAX_ATTEMPTS) {
+                return CompletableFuture.failedFuture(
+                        new IllegalStateException("user_stats batch get kept returning unprocessed keys"));
+            }
+            return CompletableFuture.runAsync(() -> { },
+                            CompletableFuture.delayedExecutor(50L << (attempt + 1), TimeUnit.MILLISECONDS))
+                    .thenCompose(backoff -> batchGet(response.unprocessedKeys(), found, attempt + 1));
+        });
+    }
+
+    /**
+     * {@link #loadOrCount(String, boolean, boolean)} for many users: the stored counters are
+     * read with {@link #loadAll}, and the users without any are counted from the source tables,
+     * at most {@code concurrency} of them at a time.
+     *
+     * @return a future per distinct user, in the order of {@code userIds}, failing on its own
+     * when the user's count fails
+     */
+    public Map<String, CompletableFuture<UserStats>> loadOrCountAll(Collection<String> userIds, boolean companies,
+                                                                    boolean causes, int concurrency) {
+        Map<String, CompletableFuture<UserStats>> results = new LinkedHashMap<>();
+        for (String userId : userIds) {
+            results.putIfAbsent(userId, new CompletableFuture<>());
+        }
+        loadAll(results.keySet()).whenComplete((stored, error) -> {
+            if (error != null) {
+                results.values().forEach(result -> result.completeExceptionally(error));
+                return;
+            }
+            Queue<String> uncounted = new ConcurrentLinkedQueue<>();
+            results.forEach((userId, result) -> {
+                UserStats stats = stored.get(userId);
+                if (stats != null) {
+                    result.complete(stats);
+                } else {
+                    uncounted.add(userId);
+                }
+            });
+            for (int i = Math.min(concurrency, uncounted.size()); i > 0; i--) {
+                countNext(uncounted, results, companies, causes);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Counts the next user of {@code uncounted}, and when done, the next one after that.
+     */
+    private void countNext(Queue<String> uncounted, Map<String, CompletableFuture<UserStats>> results,
+                           boolean companies, boolean causes) {
+        String userId = uncounted.poll();
+        if (userId == null) {
+            return;
+        }
+        count(userId, companies, causes).whenComplete((stats, error) -> {
+            if (error != null) {
+                results.get(userId).completeExceptionally(error);
+            } else {
+                results.get(userId).complete(stats);
+            }
+            countNext(uncounted, results, companies, causes);
+        });
+    }
+
+    public CompletableFuture<UserStats> count(String userId) {
+        return count(userId, true, true);
+    }
+
+    private CompletableFuture<UserStats> count(String userId, boolean companies, boolean causes) {
+        CompletableFuture<Integer> distinctCompanies = companies
+                ? countDistinctCompanies(userId)
+                : CompletableFuture.completedFuture(0);
+        CompletableFuture<Integer> causesFollowed = causes
+                ? countCausesFollowed(userId, false)
+                : CompletableFuture.completedFuture(0);
+        return distinctCompanies.thenCombine(causesFollowed, (companyCount, causeCount) ->
+                new UserStats(companyCount, causeCount, 0));
+    }
+
+    /**
+     * Streams every page of the user's boycotts, projecting only company_id, and counts the
+     * distinct companies without keeping the ids or the pages around.
+     */
+    public CompletableFuture<Integer> countDistinctCompanies(String userId) {
+        DistinctCounter pooled = DISTINCT_COUNTERS.poll();
+        DistinctCounter distinctCompanyIds = pooled == null ? new DistinctCounter() : pooled;
+        return dynamoDb.queryPages(boycottsQuery(userId, false), page -> {
+            for (Map<String, AttributeValue> item : page.items()) {
+                distinctCompanyIds.add(item.get("company_id").s());
+            }
+        }).thenApply(done -> distinctCompanyIds.size()).whenComplete((count, error) -> {
+            if (distinctCompanyIds.capacity() <= MAX_POOLED_COUNTER_CAPACITY) {
+                distinctCompanyIds.clear();
+                DISTINCT_COUNTERS.offer(distinctCompanyIds);
+            }
+        });
+    }
+
+    /**
+     * Only the number of rows matters, so DynamoDB returns counts instead of items.
+     */
+    public CompletableFuture<Integer> countCausesFollowed(String userId, boolean consistentRead) {
+        QueryRequest query = QueryRequest.builder()
+                .tableName("user_causes")
+                .keyConditionExpression("user_id = :uid")
+                .expressionAttributeValues(Map.of(":uid", AttributeValue.fromS(userId)))
+                .select(Select.COUNT)
+                .consistentRead(consistentRead)
+                .build();
+
+        int[] causeCount = new int[1];
+        return dynamoDb.queryPages(query, page -> causeCount[0] += page.count())
+                .thenApply(done -> causeCount[0]);
+    }
+
+    /**
+     * Applies one user_boycotts row being added or removed.
+     *
+     * @return false if the stream record {@code eventId} was applied before and was skipped
+     */
+    public boolean applyBoycott(String userId, String companyId, String eventId, boolean added) {
+        String companyKey = COMPANY_PREFIX + companyId;
+        Totals totals = Totals.EXISTING;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            // the first or last row for the company creates or deletes its ref and moves the distinct count
+            TransactWriteItem edge = added
+                    ? TransactWriteItem.builder().put(Put.builder()
+                            .tableName(TABLE_NAME)
+                            .item(companyRef(userId, companyId, 1))
+                            .conditionExpression("attribute_not_exists(" + SORT_KEY + ")")
+                            .build()).build()
+                    : TransactWriteItem.builder().delete(Delete.builder()
+                            .tableName(TABLE_NAME)
+                            .key(key(userId, companyKey))
+                            .conditionExpression("refs = :one")
+                            .expressionAttributeValues(Map.of(":one", AttributeValue.fromN("1")))
+                            .build()).build();
+            int failed = transact(marker(userId, eventId), edge,
+                    addToTotals(userId, "distinct_companies_boycotted", added ? 1 : -1, totals));
+            if (failed == 2) {
+                totals = retry(totals, userId, added);
+                continue;
+            }
+            if (failed < 1) {
+                return failed < 0;
+            }
+            // the company has other rows as well, so only its ref count moves
+            TransactWriteItem ref = TransactWriteItem.builder().update(Update.builder()
+                    .tableName(TABLE_NAME)
+                    .key(key(userId, companyKey))
+                    .updateExpression("ADD refs :delta")
+                    .conditionExpression(added ? "attribute_exists(" + SORT_KEY + ")" : "refs > :one")
+                    .expressionAttributeValues(added
+                            ? Map.of(":delta", AttributeValue.fromN("1"))
+                            : Map.of(":delta", AttributeValue.fromN("-1"), ":one", AttributeValue.fromN("1")))
+                    .build()).build();
+            failed = transact(marker(userId, eventId), ref);
+            if (failed < 1) {
+                return failed < 0;
+            }
+        }
+        // a removed row whose company has no ref: the counters drifted, reconcile() repairs them
+        Logger.error(SourceLines.here(), userId, "user_stats has no ref for company " + companyId
+                + ", skipping " + eventId + " until the user is reconciled");
+        return transact(marker(userId, eventId)) < 0;
+    }
+
+    /**
+     * Applies one user_causes row being added or removed.
+     *
+     * @return false if the stream record {@code eventId} was applied before and was skipped
+     */
+    public boolean applyCause(String userId, String eventId, boolean added) {
+        Totals totals = Totals.EXISTING;
+        for (int attempt = 1; ; attempt++) {
+            int failed = transact(marker(userId, eventId),
+                    addToTotals(userId, "causes_followed", added ? 1 : -1, totals));
+            if (failed != 1 || attempt == MAX_ATTEMPTS) {
+                return failed < 0;
+            }
+            totals = retry(totals, userId, added);
+        }
+    }
+
+    /**
+     * The way to write the totals after {@code failed} found them missing, or found them
+     * created by another record in the meantime.
+     */
+    private Totals retry(Totals failed, String userId, boolean added) {
+        if (failed != Totals.EXISTING) {
+            return Totals.EXISTING;
+        }
+        return added && isOnlyRow(userId) ? Totals.CREATED_TRUSTED : Totals.CREATED;
+    }
+
+    /**
+     * Whether the user has exactly one row in user_boycotts and user_causes together; two
+     * counted rows per table are enough to tell.
+     */
+    private boolean isOnlyRow(String userId) {
+        CompletableFuture<QueryResponse> boycotts = dynamoDb.query(onlyRowQuery("user_boycotts", userId));
+        CompletableFuture<QueryResponse> causes = dynamoDb.query(onlyRowQuery("user_causes", userId));
+        return AsyncDynamoDb.join(boycotts).count() + AsyncDynamoDb.join(causes).count() == 1;
+    }
+
+    private static QueryRequest onlyRowQuery(String table, String userId) {
+        return QueryRequest.builder()
+                .tableName(table)
+                .keyConditionExpression("user_id = :uid")
+                .expressionAttributeValues(Map.of(":uid", AttributeValue.fromS(userId)))
+                .select(Select.COUNT)
+                .limit(2)
+                .consistentRead(true)
+                .build();
+    }
+
+    /**
+     * Rebuilds the user's counters and company refs from user_boycotts and user_causes and
+     * marks the totals as trusted. Memory is bounded by the number of distinct companies.
+     * Records applied by the stream while this runs may be lost; run it again to repair.
+     */
+    public UserStats reconcile(String userId) {
+        long startedAt = clock.getAsLong();
+        Map<String, Integer> refs = new HashMap<>();
+        CompletableFuture<Void> boycotts = dynamoDb.queryPages(boycottsQuery(userId, true), page -> {
+            for (Map<String, AttributeValue> item : page.items()) {
+                refs.merge(item.get("company_id").s(), 1, Integer::sum);
+            }
+        });
+        CompletableFuture<Integer> causes = countCausesFollowed(userId, true);
+        List<String> storedRefs = new ArrayList<>();
+        QueryRequest storedQuery = QueryRequest.builder()
+                .tableName(TABLE_NAME)
+                .keyConditionExpression("user_id = :uid AND begins_with(stat_key, :prefix)")
+                .expressionAttributeValues(Map.of(
+                        ":uid", AttributeValue.fromS(userId),
+                        ":prefix", AttributeValue.fromS(COMPANY_PREFIX)))
+                .projectionExpression(SORT_KEY)
+                .consistentRead(true)
+                .build();
+        CompletableFuture<Void> stored = dynamoDb.queryPages(storedQuery, page -> {
+            for (Map<String, AttributeValue> item : page.items()) {
+                storedRefs.add(item.get(SORT_KEY).s());
+            }
+        });
+        AsyncDynamoDb.join(boycotts);
+        int causesFollowed = AsyncDynamoDb.join(causes);
+        AsyncDynamoDb.join(stored);
+
+        List<WriteRequest> writes = new ArrayList<>();
+        refs.forEach((companyId, count) -> writes.add(WriteRequest.builder()
+                .putRequest(PutRequest.builder().item(companyRef(userId, companyId, count)).build())
+                .build()));
+        for (String statKey : storedRefs) {
+            if (!refs.containsKey(statKey.substring(COMPANY_PREFIX.length()))) {
+                writes.add(WriteRequest.builder()
+                        .deleteRequest(DeleteRequest.builder().key(key(userId, statKey)).build())
+                        .build());
+            }
+        }
+        batchWrite(writes);
+
+        UserStats stats = new UserStats(refs.size(), causesFollowed, startedAt);
+        Map<String, AttributeValue> totals = key(userId, TOTALS_KEY);
+        totals.putAll(toItem(stats));
+        AsyncDynamoDb.join(dynamoDb.putItem(PutItemRequest.builder().tableName(TABLE_NAME).item(totals).build()));
+        return stats;
+    }
+
+    /**
+     * @return -1 when the transaction was written, otherwise the index of the item whose
+     * condition failed; other cancellations are thrown so the stream retries the record
+     */
+    private int transact(TransactWriteItem... items) {
+        try {
+            AsyncDynamoDb.join(dynamoDb.transactWriteItems(TransactWriteItemsRequest.builder()
+                    .transactItems(items)
+                    .build()));
+            return -1;
+        } catch (TransactionCanceledException e) {
+            List<CancellationReason> reasons = e.cancellationReasons();
+            for (int i = 0; i < reasons.size(); i++) {
+                if (CONDITIONAL_CHECK_FAILED.equals(reasons.get(i).code())) {
+                    return i;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private void batchWrite(List<WriteRequest> writes) {
+        for (int start = 0; start < writes.size(); start += BATCH_WRITE_LIMIT) {
+            Map<String, List<WriteRequest>> pending = Map.of(TABLE_NAME,
+                    writes.subList(start, Math.min(writes.size(), start + BATCH_WRITE_LIMIT)));
+            for (int attempt = 0; !pending.isEmpty(); attempt++) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw new IllegalStateException("user_stats batch write kept returning unprocessed items");
+                }
+                if (attempt > 0) {
+                    LockSupport.parkNanos((50L << attempt) * 1_000_000);
+                }
+                BatchWriteItemResponse response = AsyncDynamoDb.join(dynamoDb.batchWriteItem(
+                        BatchWriteItemRequest.builder().requestItems(pending).build()));
+                pending = response.hasUnprocessedItems() ? response.unprocessedItems() : Map.of();
+            }
+        }
+    }
+
+    private TransactWriteItem marker(String userId, String eventId) {
+        Map<String, AttributeValue> item = key(userId, EVENT_PREFIX + eventId);
+        item.put("expires_at", AttributeValue.fromN(Long.toString(clock.getAsLong() / 1000 + EVENT_MARKER_TTL_SECONDS)));
+        return TransactWriteItem.builder().put(Put.builder()
+                .tableName(TABLE_NAME)
+                .item(item)
+                .conditionExpression("attribute_not_exists(" + SORT_KEY + ")")
+                .build()).build();
+    }
+
+    private TransactWriteItem addToTotals(String userId, String counter, int delta, Totals totals) {
+        Map<String, AttributeValue> values = new HashMap<>();
+        values.put(":delta", AttributeValue.fromN(Integer.toString(delta)));
+        String update = "ADD " + counter + " :delta";
+        if (totals == Totals.CREATED_TRUSTED) {
+            update += " SET reconciled_at = :now";
+            values.put(":now", AttributeValue.fromN(Long.toString(clock.getAsLong())));
+        }
+        return TransactWriteItem.builder().update(Update.builder()
+                .tableName(TABLE_NAME)
+                .key(key(userId, TOTALS_KEY))
+                .updateExpression(update)
+                .conditionExpression((totals == Totals.EXISTING ? "attribute_exists(" : "attribute_not_exists(")
+                        + SORT_KEY + ")")
+                .expressionAttributeValues(values)
+                .build()).build();
+    }
+
+    private static Map<String, AttributeValue> companyRef(String userId, String companyId, int refs) {
+        Map<String, AttributeValue> item = key(userId, COMPANY_PREFIX + companyId);
+        item.put("refs", AttributeValue.fromN(Integer.toString(refs)));
+        return item;
+    }
+
+    private static QueryRequest boycottsQuery(String userId, boolean consistentRead) {
+        return QueryRequest.builder()
+                .tableName("user_boycotts")
+                .keyConditionExpression("user_id = :uid")
+                .expressionAttributeValues(Map.of(":uid", AttributeValue.fromS(userId)))
+                .projectionExpression("company_id")
+                .consistentRead(consistentRead)
+                .build();
+    }
+
+    private static Map<String, AttributeValue> key(String userId, String statKey) {
+        Map<String, AttributeValue> key = new HashMap<>();
+        key.put(PARTITION_KEY, AttributeValue.fromS(userId));
+        key.put(SORT_KEY, AttributeValue.fromS(statKey));
+        return key;
+    }
+
+    static UserStats fromItem(Map<String, AttributeValue> item) {
+        return new UserStats(intOrZero(item, "distinct_companies_boycotted"),
+                intOrZero(item, "causes_followed"),
+                item.containsKey("reconciled_at") ? Long.parseLong(item.get("reconciled_at").n()) : 0);
+    }
+
+    static Map<String, AttributeValue> toItem(UserStats stats) {
+        Map<String, AttributeValue> item = new HashMap<>();
+        item.put("distinct_companies_boycotted", AttributeValue.fromN(Integer.toString(stats.getDistinctCompaniesBoycotted())));
+        item.put("causes_followed", AttributeValue.fromN(Integer.toString(stats.getCausesFollowed())));
+        item.put("reconciled_at", AttributeValue.fromN(Long.toString(stats.getReconciledAt())));
+        return item;
+    }
+
+    private static int intOrZero(Map<String, AttributeValue> item, String name) {
+        AttributeValue value = item.get(name);
+        return value == null || value.n() == null ? 0 : Integer.parseInt(value.n());
+    }
+}
@@ -0,0 +1,90 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue;
+import com.boycottpro.utilities.Logger;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Consumes the DynamoDB streams of the user_boycotts and user_causes tables and keeps
+ * the per-user counters in "user_stats" up to date, so that {@link GetUserStatsHandler}
+ * reads a user's numbers with one GetItem instead of paging through all of their rows.
+ * Re-delivered records are detected by {@link UserStatsRepository} and skipped.
+ */
+public class UserStatsStreamHandler implements RequestHandler<DynamodbEvent, StreamsEventResponse> {
+
+    private final UserStatsRepository repository;
+
+    public UserStatsStreamHandler() {
+        this(DynamoDbClients.create());
+    }
+
+    public UserStatsStreamHandler(DynamoDbClient dynamoDb) {
+        this.repository = new UserStatsRepository(AsyncDynamoDb.of(dynamoDb, Runnable::run));
+    }
+
+    @Override
+    public StreamsEventResponse handleRequest(DynamodbEvent event, Context context) {
+        List<StreamsEventResponse.BatchItemFailure> failures = new ArrayList<>();
+        for (DynamodbEvent.DynamodbStreamRecord record : event.getRecords()) {
+            try {
+                apply(record);
+            } catch (Exception e) {
+                Logger.error(SourceLines.here(), null, "failed to apply stream record " + record.getEventID() + ": " + e.getMessage());
+                // records of a shard must be applied in order, so everything from here on is retried
+                failures.add(new StreamsEventResponse.BatchItemFailure(record.getDynamodb().getSequenceNumber()));
+                break;
+            }
+        }
+        return new StreamsEventResponse(failures);
+    }
+
+    void apply(DynamodbEvent.DynamodbStreamRecord record) {
+        String table = GlobalStatsStreamHandler.tableName(record.getEventSourceARN());
+        Map<String, AttributeValue> oldImage = record.getDynamodb().getOldImage();
+        Map<String, AttributeValue> newImage = record.getDynamodb().getNewImage();
+        String eventId = record.getEventID();
+        switch (table) {
+            case "user_boycotts":
+                if ("INSERT".equals(record.getEventName())) {
+                    applyBoycott(newImage, eventId, true);
+                } else if ("REMOVE".equals(record.getEventName())) {
+                    applyBoycott(oldImage, eventId, false);
+                } else if (oldImage != null && newImage != null
+                        && !stringOrEmpty(oldImage, "company_id").equals(stringOrEmpty(newImage, "company_id"))) {
+                    // a row moved to another company: one marker per half, so both are idempotent
+                    applyBoycott(oldImage, eventId + "#old", false);
+                    applyBoycott(newImage, eventId + "#new", true);
+                }
+                break;
+            case "user_causes":
+                if ("INSERT".equals(record.getEventName())) {
+                    repository.applyCause(newImage.get("user_id").getS(), eventId, true);
+                } else if ("REMOVE".equals(record.getEventName())) {
+                    repository.applyCause(oldImage.get("user_id").getS(), eventId, false);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void applyBoycott(Map<String, AttributeValue> image, String eventId, boolean added) {
+        if (image == null || !image.containsKey("company_id")) {
+            return;
+        }
+        repository.applyBoycott(image.get("user_id").getS(), image.get("company_id").getS(), eventId, added);
+    }
+
+    private static String stringOrEmpty(Map<String, AttributeValue> image, String name) {
+        AttributeValue value = image.get(name);
+        return value == null || value.getS() == null ? "" : value.getS();
+    }
+}
@@ -0,0 +1,61 @@
+package com.boycottpro.users.model;
+
+/**
+ * Snapshot of the single "global_stats" leaderboard item: the company with the
+ * most boycotts, the top reason people boycott it and the most followed cause.
+ */
+public class GlobalStats {
+
+    private String worstCompanyId;
+    private String worstCompanyName;
+    private int worstCount;
+    private String topReason;
+    private String topCauseId;
+    private String causeName;
+    private int followerCount;
+    private long version;
+
+    public GlobalStats(String worstCompanyId, String worstCompanyName, int worstCount, String topReason,
+                       String topCauseId, String causeName, int followerCount, long version) {
+        this.worstCompanyId = worstCompanyId;
+        this.worstCompanyName = worstCompanyName;
+        this.worstCount = worstCount;
+        this.topReason = topReason;
+        this.topCauseId = topCauseId;
+        this.causeName = causeName;
+        this.followerCount = followerCount;
+        this.version = version;
+    }
+
+    public String getWorstCompanyId() {
+        return worstCompanyId;
+    }
+
+    public String getWorstCompanyName() {
+        return worstCompanyName;
+    }
+
+    public int getWorstCount() {
+        return worstCount;
+    }
+
+    public String getTopReason() {
+        return topReason;
+    }
+
+    public String getTopCauseId() {
+        return topCauseId;
+    }
+
+    public String getCauseName() {
+        return causeName;
+    }
+
+    public int getFollowerCount() {
+        return followerCount;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,28 @@
+package com.boycottpro.users.model;
+
+import java.util.List;
+
+/**
+ * The top N companies by boycotts and the top N causes by followers, highest first. Like
+ * {@link GlobalStats} they are the same for every user.
+ */
+public class Leaderboards {
+
+    public static final Leaderboards EMPTY = new Leaderboards(List.of(), List.of());
+
+    private final List<TopCompany> companies;
+    private final List<TopCause> causes;
+
+    public Leaderboards(List<TopCompany> companies, List<TopCause> causes) {
+        this.companies = List.copyOf(companies);
+        this.causes = List.copyOf(causes);
+    }
+
+    public List<TopCompany> getCompanies() {
+        return companies;
+    }
+
+    public List<TopCause> getCauses() {
+        return causes;
+    }
+}
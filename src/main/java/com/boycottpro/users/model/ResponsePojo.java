@@ -1,17 +1,38 @@
 package com.boycottpro.users.model;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * The stats response. Fields the caller did not ask for are null and left out of the JSON,
+ * which is written from the fields; their getters return 0 or null for them.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY, getterVisibility = JsonAutoDetect.Visibility.NONE,
+        isGetterVisibility = JsonAutoDetect.Visibility.NONE)
 public class ResponsePojo {
 
-    private int totalBoycotts;
-    private int numCausesFollowed;
+    private Integer totalBoycotts;
+    private Integer numCausesFollowed;
     private String worstCompanyName;
-    private int worstCount;
+    private Integer worstCount;
     private String topReason;
     private String causeName;
-    private int followerCount;
+    private Integer followerCount;
+    private List<TopCompany> topCompanies;
+    private List<TopCause> topCauses;
 
     public ResponsePojo(int totalBoycotts, int numCausesFollowed, String worstCompanyName,
                         int worstCount, String topReason, String causeName, int followerCount) {
+        this(totalBoycotts, numCausesFollowed, worstCompanyName, worstCount, topReason, causeName,
+                followerCount, null, null);
+    }
+
+    public ResponsePojo(Integer totalBoycotts, Integer numCausesFollowed, String worstCompanyName,
+                        Integer worstCount, String topReason, String causeName, Integer followerCount,
+                        List<TopCompany> topCompanies, List<TopCause> topCauses) {
         this.totalBoycotts = totalBoycotts;
         this.numCausesFollowed = numCausesFollowed;
         this.worstCompanyName = worstCompanyName;
@@ -19,14 +40,16 @@ public class ResponsePojo {
         this.topReason = topReason;
         this.causeName = causeName;
         this.followerCount = followerCount;
+        this.topCompanies = topCompanies;
+        this.topCauses = topCauses;
     }
 
     public int getTotalBoycotts() {
-        return totalBoycotts;
+        return totalBoycotts == null ? 0 : totalBoycotts;
     }
 
     public int getNumCausesFollowed() {
-        return numCausesFollowed;
+        return numCausesFollowed == null ? 0 : numCausesFollowed;
     }
 
     public String getWorstCompanyName() {
@@ -34,7 +57,7 @@ public class ResponsePojo {
     }
 
     public int getWorstCount() {
-        return worstCount;
+        return worstCount == null ? 0 : worstCount;
     }
 
     public String getTopReason() {
@@ -46,6 +69,14 @@ public class ResponsePojo {
     }
 
     public int getFollowerCount() {
-        return followerCount;
+        return followerCount == null ? 0 : followerCount;
+    }
+
+    public List<TopCompany> getTopCompanies() {
+        return topCompanies;
+    }
+
+    public List<TopCause> getTopCauses() {
+        return topCauses;
     }
-}
+}
\ No newline at end of file
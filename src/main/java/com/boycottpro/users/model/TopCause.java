@@ -0,0 +1,29 @@
+package com.boycottpro.users.model;
+
+/**
+ * One entry of the top causes list.
+ */
+public class TopCause {
+
+    private String causeId;
+    private String causeName;
+    private int followerCount;
+
+    public TopCause(String causeId, String causeName, int followerCount) {
+        this.causeId = causeId;
+        this.causeName = causeName;
+        this.followerCount = followerCount;
+    }
+
+    public String getCauseId() {
+        return causeId;
+    }
+
+    public String getCauseName() {
+        return causeName;
+    }
+
+    public int getFollowerCount() {
+        return followerCount;
+    }
+}
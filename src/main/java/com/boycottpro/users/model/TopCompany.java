@@ -0,0 +1,36 @@
+package com.boycottpro.users.model;
+
+/**
+ * One entry of the top companies list: a company, how many boycott it and the cause most
+ * of those boycotts are for.
+ */
+public class TopCompany {
+
+    private String companyId;
+    private String companyName;
+    private int boycottCount;
+    private String topReason;
+
+    public TopCompany(String companyId, String companyName, int boycottCount, String topReason) {
+        this.companyId = companyId;
+        this.companyName = companyName;
+        this.boycottCount = boycottCount;
+        this.topReason = topReason;
+    }
+
+    public String getCompanyId() {
+        return companyId;
+    }
+
+    public String getCompanyName() {
+        return companyName;
+    }
+
+    public int getBoycottCount() {
+        return boycottCount;
+    }
+
+    public String getTopReason() {
+        return topReason;
+    }
+}
@@ -0,0 +1,34 @@
+package com.boycottpro.users.model;
+
+/**
+ * The per-user numbers of the stats response: how many distinct companies the user
+ * boycotts and how many causes they follow.
+ */
+public class UserStats {
+
+    private int distinctCompaniesBoycotted;
+    private int causesFollowed;
+    private long reconciledAt;
+
+    /**
+     * @param reconciledAt epoch millis of the reconciliation the stored counters build on,
+     *                     or 0 when the numbers were counted from the source tables
+     */
+    public UserStats(int distinctCompaniesBoycotted, int causesFollowed, long reconciledAt) {
+        this.distinctCompaniesBoycotted = distinctCompaniesBoycotted;
+        this.causesFollowed = causesFollowed;
+        this.reconciledAt = reconciledAt;
+    }
+
+    public int getDistinctCompaniesBoycotted() {
+        return distinctCompaniesBoycotted;
+    }
+
+    public int getCausesFollowed() {
+        return causesFollowed;
+    }
+
+    public long getReconciledAt() {
+        return reconciledAt;
+    }
+}
@@ -0,0 +1,166 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.sun.net.httpserver.HttpServer;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the cold start of {@link GetUserStatsHandler}, each run in a fresh JVM: handler
+ * construction (the Lambda init phase) and the first two invocations, against a local endpoint
+ * that answers every DynamoDB call with an empty result. Modes:
+ * <ul>
+ *   <li>classpath-default: the clients as the handler built them before, with region,
+ *       credentials and HTTP clients discovered by the SDK (Apache sync, Netty async)</li>
+ *   <li>lean: the no-arg constructor, i.e. {@link DynamoDbClients}</li>
+ *   <li>lean-primed: as lean, with the SnapStart priming run between construction and the
+ *       first invocation, which is roughly what a restored snapshot starts from</li>
+ * </ul>
+ * Not a unit test; run it with
+ * <pre>
+ * mvn -B test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.boycottpro.users.ColdStartBenchmark \
+ *     -Dexec.args="10 classpath-default,lean,lean-primed"
+ * </pre>
+ * Arguments: runs per mode, modes. Prints the median and the minimum of each phase in milliseconds.
+ */
+public class ColdStartBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && "probe".equals(args[0])) {
+            probe(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String[] modes = (args.length > 1 ? args[1] : "classpath-default,lean,lean-primed").split(",");
+
+        System.out.printf("%-18s %5s %18s %18s %18s%n", "mode", "runs", "init med/min", "1st call med/min",
+                "2nd call med/min");
+        for (String mode : modes) {
+            double[][] samples = new double[3][runs];
+            for (int run = 0; run < runs; run++) {
+                double[] result = fork(mode.trim());
+                for (int phase = 0; phase < 3; phase++) {
+                    samples[phase][run] = result[phase];
+                }
+            }
+            System.out.printf("%-18s %5d %18s %18s %18s%n", mode.trim(), runs,
+                    summary(samples[0]), summary(samples[1]), summary(samples[2]));
+        }
+    }
+
+    private static String summary(double[] millis) {
+        double[] sorted = millis.clone();
+        Arrays.sort(sorted);
+        return String.format("%8.1f /%7.1f", sorted[sorted.length / 2], sorted[0]);
+    }
+
+    private static double[] fork(String mode) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                ColdStartBenchmark.class.getName(), "probe", mode, Integer.toString(port))
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+        Map<String, String> env = builder.environment();
+        env.put("AWS_REGION", "us-east-1");
+        env.put("AWS_ACCESS_KEY_ID", "local");
+        env.put("AWS_SECRET_ACCESS_KEY", "local");
+        env.put("DYNAMODB_ENDPOINT", "http://localhost:" + port);
+        Process process = builder.start();
+        String result = null;
+        try (BufferedReader out = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = out.readLine(); line != null; line = out.readLine()) {
+                if (line.startsWith("RESULT ")) {
+                    result = line;
+                }
+            }
+        }
+        if (process.waitFor() != 0 || result == null) {
+            throw new IllegalStateException("probe " + mode + " failed with exit code " + process.exitValue());
+        }
+        return Arrays.stream(result.substring(7).split(" ")).mapToDouble(Double::parseDouble).toArray();
+    }
+
+    /**
+     * Runs in the forked JVM and prints "RESULT init first second" in milliseconds.
+     */
+    private static void probe(String mode, int port) throws Exception {
+        HttpServer server = emptyDynamoDb(port);
+        try {
+            long start = System.nanoTime();
+            GetUserStatsHandler handler;
+            if ("classpath-default".equals(mode)) {
+                URI endpoint = URI.create("http://localhost:" + port);
+                handler = new GetUserStatsHandler(DynamoDbClient.builder().endpointOverride(endpoint).build(),
+                        DynamoDbAsyncClient.builder().endpointOverride(endpoint).build());
+            } else {
+                handler = new GetUserStatsHandler();
+            }
+            long init = System.nanoTime() - start;
+            if ("lean-primed".equals(mode)) {
+                handler.prime();
+            }
+            long first = invoke(handler);
+            long second = invoke(handler);
+            System.out.printf("RESULT %.3f %.3f %.3f%n", init / 1e6, first / 1e6, second / 1e6);
+        } finally {
+            server.stop(0);
+        }
+        System.exit(0);
+    }
+
+    private static long invoke(GetUserStatsHandler handler) {
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", "11111111-2222-3333-4444-555555555555"));
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        long start = System.nanoTime();
+        APIGatewayProxyResponseEvent response = handler.handleRequest(event, null);
+        long nanos = System.nanoTime() - start;
+        if (response.getStatusCode() != 200) {
+            throw new IllegalStateException("unexpected response " + response.getBody());
+        }
+        return nanos;
+    }
+
+    /**
+     * Answers GetItem with no item and Query/Scan with an empty page.
+     */
+    static HttpServer emptyDynamoDb(int port) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            String target = String.valueOf(exchange.getRequestHeaders().getFirst("X-Amz-Target"));
+            byte[] body = (target.endsWith(".GetItem") ? "{}" : "{\"Count\":0,\"ScannedCount\":0,\"Items\":[]}")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/x-amz-json-1.0");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(RuntimeApiEmulator.daemonPool());
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,83 @@
+package com.boycottpro.users;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DistinctCounterTest {
+
+    @Test
+    public void testCountsDistinctValues() {
+        DistinctCounter counter = new DistinctCounter();
+        counter.add("c1");
+        counter.add("c2");
+        counter.add("c1");
+        counter.add("");
+
+        assertEquals(3, counter.size());
+    }
+
+    @Test
+    public void testGrowsPastInitialCapacityAndClearKeepsWorking() {
+        DistinctCounter counter = new DistinctCounter(4);
+        for (int i = 0; i < 10_000; i++) {
+            counter.add("company-" + (i % 7_000));
+        }
+        assertEquals(7_000, counter.size());
+
+        counter.clear();
+        counter.add("company-1");
+        assertEquals(1, counter.size());
+    }
+
+    @Test
+    public void testFiftyThousandRowsReuseOneBufferInsteadOfAllocating() {
+        // 50k boycott rows of one heavy user: 25k companies, each boycotted for two causes
+        String[] companyIds = new String[50_000];
+        for (int i = 0; i < companyIds.length; i++) {
+            companyIds[i] = "b5c0a3e2-7f1d-4c8e-9a6b-" + String.format("%012d", i % 25_000);
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        DistinctCounter counter = new DistinctCounter();
+
+        // first user grows the buffer; warm both paths so class loading and JIT do not count
+        count(counter, companyIds);
+        countWithHashSet(companyIds);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        counter.clear();
+        int counted = count(counter, companyIds);
+        long counterBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+        before = threads.getThreadAllocatedBytes(threadId);
+        int expected = countWithHashSet(companyIds);
+        long hashSetBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(25_000, counted);
+        assertEquals(expected, counted);
+        assertTrue(counterBytes < 1024, "reused counter allocated " + counterBytes + " bytes");
+        assertTrue(hashSetBytes > 1_000_000, "HashSet allocated " + hashSetBytes + " bytes");
+        assertEquals(65_536, counter.capacity());
+    }
+
+    private static int count(DistinctCounter counter, String[] companyIds) {
+        for (String companyId : companyIds) {
+            counter.add(companyId);
+        }
+        return counter.size();
+    }
+
+    private static int countWithHashSet(String[] companyIds) {
+        Set<String> set = new HashSet<>();
+        for (String companyId : companyIds) {
+            set.add(companyId);
+        }
+        return set.size();
+    }
+}
@@ -0,0 +1,47 @@
+package com.boycottpro.users;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.ContainerCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.EnvironmentVariableCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+
+import java.net.URI;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+public class DynamoDbClientsTest {
+
+    @Test
+    public void testSnapStartUsesContainerCredentials() {
+        assertInstanceOf(ContainerCredentialsProvider.class, DynamoDbClients.credentialsProvider(Map.of(
+                "AWS_CONTAINER_CREDENTIALS_FULL_URI", "http://127.0.0.1:9001/2021-04-23/credentials",
+                "AWS_ACCESS_KEY_ID", "snapshotted")));
+    }
+
+    @Test
+    public void testLambdaWithoutSnapStartUsesEnvironmentCredentials() {
+        assertInstanceOf(EnvironmentVariableCredentialsProvider.class,
+                DynamoDbClients.credentialsProvider(Map.of("AWS_ACCESS_KEY_ID", "key")));
+    }
+
+    @Test
+    public void testOutsideLambdaFallsBackToDefaultChain() {
+        assertInstanceOf(DefaultCredentialsProvider.class, DynamoDbClients.credentialsProvider(Map.of()));
+    }
+
+    @Test
+    public void testRegionAndEndpointComeFromEnvironment() {
+        try (DynamoDbClient client = DynamoDbClients.create(Map.of(
+                "AWS_REGION", "eu-west-1",
+                "AWS_ACCESS_KEY_ID", "key",
+                "DYNAMODB_ENDPOINT", "http://localhost:8000"))) {
+            assertEquals(Region.EU_WEST_1, client.serviceClientConfiguration().region());
+            assertEquals(URI.create("http://localhost:8000"),
+                    client.serviceClientConfiguration().endpointOverride().orElseThrow());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.boycottpro.users;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Stand-in for a misbehaving DynamoDB in front of another client, usually
+ * {@link InMemoryDynamoDb}. Faults are queued per table and each read of the table takes the
+ * next one: a slow call sleeps before it is answered, a throttled call fails with
+ * ProvisionedThroughputExceededException as DynamoDB does once the SDK has given up retrying,
+ * and a failing call throws what it was given. Reads without a queued fault and all writes go
+ * straight through.
+ */
+public class FaultInjectingDynamoDb implements DynamoDbClient {
+
+    private final DynamoDbClient delegate;
+    private final Map<String, Queue<Runnable>> faults = new ConcurrentHashMap<>();
+
+    public FaultInjectingDynamoDb(DynamoDbClient delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * The next {@code times} reads of {@code table} each take {@code millis} longer.
+     */
+    public FaultInjectingDynamoDb slow(String table, long millis, int times) {
+        return queue(table, times, () -> {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    /**
+     * The next {@code times} reads of {@code table} are throttled.
+     */
+    public FaultInjectingDynamoDb throttle(String table, int times) {
+        return fail(table, ProvisionedThroughputExceededException.builder()
+                .message("The level of configured provisioned throughput for the table was exceeded")
+                .build(), times);
+    }
+
+    /**
+     * The next {@code times} reads of {@code table} throw {@code failure}.
+     */
+    public FaultInjectingDynamoDb fail(String table, RuntimeException failure, int times) {
+        return queue(table, times, () -> {
+            throw failure;
+        });
+    }
+
+    private FaultInjectingDynamoDb queue(String table, int times, Runnable fault) {
+        for (int i = 0; i < times; i++) {
+            faults.computeIfAbsent(table, t -> new ConcurrentLinkedQueue<>()).add(fault);
+        }
+        return this;
+    }
+
+    private void inject(String table) {
+        Queue<Runnable> queue = faults.get(table);
+        Runnable fault = queue == null ? null : queue.poll();
+        if (fault != null) {
+            fault.run();
+        }
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        inject(request.tableName());
+        return delegate.getItem(request);
+    }
+
+    /**
+     * Takes the fault of the first table in the request.
+     */
+    @Override
+    public BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        inject(request.requestItems().keySet().iterator().next());
+        return delegate.batchGetItem(request);
+    }
+
+    @Override
+    public QueryResponse query(QueryRequest request) {
+        inject(request.tableName());
+        return delegate.query(request);
+    }
+
+    @Override
+    public ScanResponse scan(ScanRequest request) {
+        inject(request.tableName());
+        return delegate.scan(request);
+    }
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest request) {
+        return delegate.putItem(request);
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(UpdateItemRequest request) {
+        return delegate.updateItem(request);
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        return delegate.deleteItem(request);
+    }
+
+    @Override
+    public TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+        return delegate.transactWriteItems(request);
+    }
+
+    @Override
+    public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+        return delegate.batchWriteItem(request);
+    }
+
+    @Override
+    public String serviceName() {
+        return delegate.serviceName();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
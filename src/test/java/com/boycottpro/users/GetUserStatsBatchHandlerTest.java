@@ -0,0 +1,142 @@
+package com.boycottpro.users;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.DeleteItemRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GetUserStatsBatchHandlerTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private InMemoryDynamoDb local;
+    private final List<String> userIds = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        GetUserStatsHandler.globalStatsCache().clear();
+        local = new InMemoryDynamoDb()
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", Map.of(
+                "stat_id", AttributeValue.fromS("leaderboard"),
+                "worst_company_name", AttributeValue.fromS("Worst Co"),
+                "worst_count", AttributeValue.fromN("15"),
+                "top_reason", AttributeValue.fromS("Labor"),
+                "top_cause_desc", AttributeValue.fromS("Environment"),
+                "top_cause_follower_count", AttributeValue.fromN("99")));
+        // 90 users with materialised counters, the last 10 only in the source tables
+        for (int i = 0; i < 100; i++) {
+            String userId = "user" + i;
+            userIds.add(userId);
+            if (i < 90) {
+                local.put("user_stats", Map.of("user_id", AttributeValue.fromS(userId),
+                        "stat_key", AttributeValue.fromS("totals"),
+                        "distinct_companies_boycotted", AttributeValue.fromN(Integer.toString(i)),
+                        "causes_followed", AttributeValue.fromN("1"),
+                        "reconciled_at", AttributeValue.fromN("1700000000000")));
+            } else {
+                local.put("user_boycotts", Map.of("user_id", AttributeValue.fromS(userId),
+                        "company_cause_id", AttributeValue.fromS("c1#k1"), "company_id", AttributeValue.fromS("c1")));
+                local.put("user_boycotts", Map.of("user_id", AttributeValue.fromS(userId),
+                        "company_cause_id", AttributeValue.fromS("c1#k2"), "company_id", AttributeValue.fromS("c1")));
+                local.put("user_causes", Map.of("user_id", AttributeValue.fromS(userId),
+                        "cause_id", AttributeValue.fromS("k1")));
+            }
+        }
+    }
+
+    @Test
+    public void testGlobalFieldsOnceAndCountersInOneBatchGet() throws Exception {
+        JsonNode response = invoke(local, Map.of("user_ids", userIds));
+
+        assertEquals(100, response.get("stats").size());
+        assertEquals(0, response.get("failed").size());
+        JsonNode materialised = response.get("stats").get("user42");
+        assertEquals(42, materialised.get("totalBoycotts").asInt());
+        assertEquals(1, materialised.get("numCausesFollowed").asInt());
+        assertEquals("Worst Co", materialised.get("worstCompanyName").asText());
+        assertEquals("Environment", materialised.get("causeName").asText());
+        JsonNode counted = response.get("stats").get("user95");
+        assertEquals(1, counted.get("totalBoycotts").asInt());
+        assertEquals(1, counted.get("numCausesFollowed").asInt());
+
+        assertEquals(1, local.calls("batchGetItem", "user_stats"));
+        assertEquals(0, local.calls("getItem", "user_stats"));
+        assertEquals(1, local.calls("getItem", "global_stats"));
+        assertEquals(10, local.calls("query", "user_boycotts"), "only the users without counters are counted");
+        assertEquals(10, local.calls("query", "user_causes"));
+    }
+
+    @Test
+    public void testUnprocessedKeysAreAskedForAgain() throws Exception {
+        local.batchGetLimit(40);
+
+        JsonNode response = invoke(local, Map.of("user_ids", userIds, "fields", "totalBoycotts"));
+
+        assertEquals(100, response.get("stats").size());
+        assertEquals(89, response.get("stats").get("user89").get("totalBoycotts").asInt());
+        assertEquals(3, local.calls("batchGetItem", "user_stats"));
+        assertEquals(Set.of("user_stats", "user_boycotts"), local.touchedTables(), "no global lookups for these fields");
+    }
+
+    @Test
+    public void testFailedUserIsListedWithoutFailingTheBatch() throws Exception {
+        local.deleteItem(DeleteItemRequest.builder()
+                .tableName("user_stats")
+                .key(Map.of("user_id", AttributeValue.fromS("user7"), "stat_key", AttributeValue.fromS("totals")))
+                .build());
+        List<String> someUsers = List.of("user6", "user7", "user8");
+        // the count of user7 is throttled after the SDK's retries
+        FaultInjectingDynamoDb throttled = new FaultInjectingDynamoDb(local).throttle("user_boycotts", 1);
+
+        JsonNode response = invoke(throttled, Map.of("user_ids", someUsers));
+
+        assertEquals(List.of("user6", "user8"), names(response.get("stats")));
+        assertEquals("user7", response.get("failed").get(0).asText());
+    }
+
+    @Test
+    public void testInvalidInputFailsTheInvocation() {
+        List<String> tooMany = new ArrayList<>(userIds);
+        tooMany.add("user100");
+        assertThrows(IllegalArgumentException.class, () -> invoke(local, Map.of("user_ids", tooMany)));
+        assertThrows(IllegalArgumentException.class, () -> invoke(local, Map.of("user_id", "user1")));
+        assertThrows(IllegalArgumentException.class, () -> invoke(local, Map.of("user_ids", List.of(1, 2))));
+        assertThrows(IllegalArgumentException.class,
+                () -> invoke(local, Map.of("user_ids", userIds, "fields", "password")));
+        assertThrows(IllegalArgumentException.class,
+                () -> invoke(local, Map.of("user_ids", userIds, "window", "30d")));
+        assertEquals(0, local.touchedTables().size());
+    }
+
+    private static JsonNode invoke(DynamoDbClient dynamoDb, Map<String, Object> input) throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new GetUserStatsBatchHandler(new GetUserStatsHandler(dynamoDb)).handleRequest(
+                new ByteArrayInputStream(MAPPER.writeValueAsString(input).getBytes(StandardCharsets.UTF_8)), output, null);
+        return MAPPER.readTree(output.toByteArray());
+    }
+
+    private static List<String> names(JsonNode object) {
+        List<String> names = new ArrayList<>();
+        Iterator<String> fieldNames = object.fieldNames();
+        fieldNames.forEachRemaining(names::add);
+        return names;
+    }
+}
@@ -1,226 +1,131 @@
 package com.boycottpro.users;
 
-import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import com.boycottpro.models.Causes;
-import com.boycottpro.models.Companies;
-import com.boycottpro.utilities.CausesUtility;
-import com.boycottpro.utilities.CompanyUtility;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
-import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
-import org.mockito.junit.jupiter.MockitoExtension;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
 import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
 import software.amazon.awssdk.services.dynamodb.model.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
-import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.argThat;
-import static org.mockito.Mockito.mockStatic;
-import static org.mockito.Mockito.when;
 import java.lang.reflect.Field;
 import static org.junit.jupiter.api.Assertions.*;
 import java.util.HashMap;
 import java.util.Map;
 
-@ExtendWith(MockitoExtension.class)
+/**
+ * Runs the handler against {@link InMemoryDynamoDb} and the other stand-ins of this package
+ * rather than mocks, so that the same tests run on the JVM and against the native image.
+ */
 public class GetUserStatsHandlerTest {
 
-    @Mock
-    private DynamoDbClient dynamoDb;
+    private static final String SUB = "11111111-2222-3333-4444-555555555555";
 
-    @Mock
-    private Context context;
+    private final TestContext context = new TestContext();
 
-    @InjectMocks
-    private GetUserStatsHandler handler;
+    @BeforeEach
+    public void clearProcessWideState() {
+        GetUserStatsHandler.globalStatsCache().clear();
+    }
 
     @Test
     public void testHandleRequestReturnsStatsSuccessfully() throws Exception {
-        String userId = "user-123";
-
-        // Mock user_boycotts response
-        QueryResponse mockBoycotts = QueryResponse.builder()
-                .items(List.of(
-                        Map.of("company_id", AttributeValue.fromS("c1")),
-                        Map.of("company_id", AttributeValue.fromS("c2"))
-                ))
-                .build();
-        when(dynamoDb.query(argThat((QueryRequest r) -> r != null &&
-                r.tableName().equals("user_boycotts"))))
-                .thenReturn(mockBoycotts);
-
-        // Mock user_causes response
-        QueryResponse mockCauses = QueryResponse.builder()
-                .items(List.of(
-                        Map.of("cause_id", AttributeValue.fromS("cause1")),
-                        Map.of("cause_id", AttributeValue.fromS("cause2"))
-                ))
-                .build();
-        when(dynamoDb.query(argThat((QueryRequest r) -> r != null &&
-                r.tableName().equals("user_causes"))))
-                .thenReturn(mockCauses);
-
-        // Mock companies scan
-        Map<String, AttributeValue> maxCompanyItem = Map.of(
-                "company_id", AttributeValue.fromS("worstCo"),
-                "company_name", AttributeValue.fromS("Worst Co"),
-                "boycott_count", AttributeValue.fromN("15")
-        );
-        when(dynamoDb.scan(argThat((ScanRequest r) -> r != null &&
-                r.tableName().equals("companies"))))
-                .thenReturn(ScanResponse.builder().items(List.of(maxCompanyItem)).build());
-
-        // Mock cause_company_stats scan
-        Map<String, AttributeValue> topReason = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor"),
-                "boycott_count", AttributeValue.fromN("7")
-        );
-
-        when(dynamoDb.query(argThat((QueryRequest r) ->
-                r != null &&
-                        "cause_company_stats".equals(r.tableName()) &&
-                        "company_cause_stats_index".equals(r.indexName()) &&
-                        r.keyConditionExpression().contains("company_id")
-        ))).thenReturn(QueryResponse.builder().items(List.of(topReason)).build());
-        // Mock causes scan
-        Map<String, AttributeValue> topCauseItem = Map.of(
-                "cause_id", AttributeValue.fromS("causeA"),
-                "cause_desc", AttributeValue.fromS("Environment"),
-                "follower_count", AttributeValue.fromN("99")
-        );
-        when(dynamoDb.scan(argThat((ScanRequest r) -> r != null &&
-                r.tableName().equals("causes"))))
-                .thenReturn(ScanResponse.builder().items(List.of(topCauseItem)).build());
-
-        // Static mocks: CompanyUtility.mapToCompany and CausesUtility.mapToCauses
-        Companies mockCompany = new Companies("worstCoId", "Worst Co",
-                "description", "industry", "city", "state", "zip",
-                0,0L,0L,0L,"SYMB","CEO",15); // adjust to your constructor
-        Causes mockCause = new Causes("causeA", "category","Environment", 99);       // adjust to your constructor
-
-        try (var companyMocked = mockStatic(CompanyUtility.class);
-             var causeMocked = mockStatic(CausesUtility.class)) {
-
-            companyMocked.when(() -> CompanyUtility.mapToCompany(maxCompanyItem)).thenReturn(mockCompany);
-            causeMocked.when(() -> CausesUtility.mapToCauses(topCauseItem)).thenReturn(mockCause);
-
-            APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
-            Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
-            Map<String, Object> authorizer = new HashMap<>();
-            authorizer.put("claims", claims);
-
-            APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
-            rc.setAuthorizer(authorizer);
-            event.setRequestContext(rc);
-
-            // Path param "s" since client calls /users/s
-            event.setPathParameters(Map.of("user_id", "s"));
-            APIGatewayProxyResponseEvent response = handler.handleRequest(event, context);
-
-            assertEquals(200, response.getStatusCode());
-            assertTrue(response.getBody().contains("Worst Co"));
-            assertTrue(response.getBody().contains("Labor"));
-            assertTrue(response.getBody().contains("Environment"));
-        }
+        // Leaderboard item not seeded yet, so the handler computes the global stats from the tables
+        InMemoryDynamoDb dynamoDb = unseededTables(15, 7, 99);
+        GetUserStatsHandler handler = new GetUserStatsHandler(dynamoDb);
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        Map<String, String> claims = Map.of("sub", SUB);
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        // Path param "s" since client calls /users/s
+        event.setPathParameters(Map.of("user_id", "s"));
+        APIGatewayProxyResponseEvent response = handler.handleRequest(event, context);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().contains("Worst Co"));
+        assertTrue(response.getBody().contains("Labor"));
+        assertTrue(response.getBody().contains("Environment"));
+        assertTrue(response.getBody().contains("\"totalBoycotts\":2"));
+        assertTrue(response.getBody().contains("\"numCausesFollowed\":2"));
     }
 
     @Test
     public void testZeroFollowerCount() throws Exception {
-        String userId = "user-123";
-
-        // Mock user_boycotts response
-        QueryResponse mockBoycotts = QueryResponse.builder()
-                .items(List.of(
-                        Map.of("company_id", AttributeValue.fromS("c1")),
-                        Map.of("company_id", AttributeValue.fromS("c2"))
-                ))
-                .build();
-        when(dynamoDb.query(argThat((QueryRequest r) -> r != null &&
-                r.tableName().equals("user_boycotts"))))
-                .thenReturn(mockBoycotts);
-
-        // Mock user_causes response
-        QueryResponse mockCauses = QueryResponse.builder()
-                .items(List.of(
-                        Map.of("cause_id", AttributeValue.fromS("cause1")),
-                        Map.of("cause_id", AttributeValue.fromS("cause2"))
-                ))
-                .build();
-        when(dynamoDb.query(argThat((QueryRequest r) -> r != null &&
-                r.tableName().equals("user_causes"))))
-                .thenReturn(mockCauses);
-
-        // Mock companies scan
-        Map<String, AttributeValue> maxCompanyItem = Map.of(
-                "company_id", AttributeValue.fromS("worstCo"),
-                "company_name", AttributeValue.fromS("Worst Co"),
-                "boycott_count", AttributeValue.fromN("0")
-        );
-        when(dynamoDb.scan(argThat((ScanRequest r) -> r != null &&
-                r.tableName().equals("companies"))))
-                .thenReturn(ScanResponse.builder().items(List.of(maxCompanyItem)).build());
-
-        // Mock cause_company_stats scan
-        Map<String, AttributeValue> topReason = Map.of(
-                "cause_desc", AttributeValue.fromS("Labor"),
-                "boycott_count", AttributeValue.fromN("0")
-        );
-
-        when(dynamoDb.query(argThat((QueryRequest r) ->
-                r != null &&
-                        "cause_company_stats".equals(r.tableName()) &&
-                        "company_cause_stats_index".equals(r.indexName()) &&
-                        r.keyConditionExpression().contains("company_id")
-        ))).thenReturn(QueryResponse.builder().items(List.of(topReason)).build());
-        // Mock causes scan
-        Map<String, AttributeValue> topCauseItem = Map.of(
-                "cause_id", AttributeValue.fromS("causeA"),
-                "cause_desc", AttributeValue.fromS("Environment"),
-                "follower_count", AttributeValue.fromN("0")
-        );
-        when(dynamoDb.scan(argThat((ScanRequest r) -> r != null &&
-                r.tableName().equals("causes"))))
-                .thenReturn(ScanResponse.builder().items(List.of(topCauseItem)).build());
-
-        // Static mocks: CompanyUtility.mapToCompany and CausesUtility.mapToCauses
-        Companies mockCompany = new Companies("worstCoId", "Worst Co",
-                "description", "industry", "city", "state", "zip",
-                0,0L,0L,0L,"SYMB","CEO",0); // adjust to your constructor
-        Causes mockCause = new Causes("causeA", "category","Environment", 0);       // adjust to your constructor
-
-        try (var companyMocked = mockStatic(CompanyUtility.class);
-             var causeMocked = mockStatic(CausesUtility.class)) {
-
-            companyMocked.when(() -> CompanyUtility.mapToCompany(maxCompanyItem)).thenReturn(mockCompany);
-            causeMocked.when(() -> CausesUtility.mapToCauses(topCauseItem)).thenReturn(mockCause);
-
-            APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
-            Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
-            Map<String, Object> authorizer = new HashMap<>();
-            authorizer.put("claims", claims);
-
-            APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
-            rc.setAuthorizer(authorizer);
-            event.setRequestContext(rc);
-
-            // Path param "s" since client calls /users/s
-            event.setPathParameters(Map.of("user_id", "s"));
-            APIGatewayProxyResponseEvent response = handler.handleRequest(event, context);
-
-            assertEquals(200, response.getStatusCode());
-            assertTrue(response.getBody().contains("Worst Co"));
-            assertTrue(response.getBody().contains("Labor"));
-        }
+        InMemoryDynamoDb dynamoDb = unseededTables(0, 0, 0);
+        GetUserStatsHandler handler = new GetUserStatsHandler(dynamoDb);
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        Map<String, String> claims = Map.of("sub", SUB);
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", claims);
+
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        // Path param "s" since client calls /users/s
+        event.setPathParameters(Map.of("user_id", "s"));
+        APIGatewayProxyResponseEvent response = handler.handleRequest(event, context);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().contains("Worst Co"));
+        assertTrue(response.getBody().contains("Labor"));
+    }
+
+    @Test
+    public void testGlobalStatsReadFromLeaderboardItem() {
+        InMemoryDynamoDb dynamoDb = leaderboardTables(new InMemoryDynamoDb())
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                // no materialised counters for this user yet
+                .createTable("user_stats", "user_id", "stat_key");
+        dynamoDb.put("user_boycotts", Map.of("user_id", AttributeValue.fromS(SUB),
+                "company_cause_id", AttributeValue.fromS("c1#k1"), "company_id", AttributeValue.fromS("c1")));
+        dynamoDb.put("global_stats", leaderboardItem().item());
+        GetUserStatsHandler handler = new GetUserStatsHandler(dynamoDb);
+
+        APIGatewayProxyRequestEvent event = authorizedEvent();
+        APIGatewayProxyResponseEvent response = handler.handleRequest(event, context);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().contains("\"worstCompanyName\":\"Worst Co\""));
+        assertTrue(response.getBody().contains("\"topReason\":\"Labor\""));
+        assertTrue(response.getBody().contains("\"causeName\":\"Environment\""));
+        assertTrue(response.getBody().contains("\"totalBoycotts\":1"));
+        assertEquals(0, dynamoDb.calls("scan", "companies") + dynamoDb.calls("scan", "causes"));
+
+        // a warm instance serves the global part from the cache on the next request
+        long hits = GetUserStatsHandler.globalStatsCache().getHits();
+        APIGatewayProxyResponseEvent second = handler.handleRequest(event, context);
+
+        assertEquals(response.getBody(), second.getBody());
+        assertEquals(1, dynamoDb.calls("getItem", "global_stats"));
+        assertEquals(2, dynamoDb.calls("query", "user_boycotts"));
+        assertEquals(hits + 1, GetUserStatsHandler.globalStatsCache().getHits());
     }
 
     @Test
@@ -250,7 +155,8 @@ public class GetUserStatsHandlerTest {
     @Test
     public void testUnauthorizedUser() {
         // Test the unauthorized block coverage
-        handler = new GetUserStatsHandler(dynamoDb);
+        InMemoryDynamoDb dynamoDb = new InMemoryDynamoDb();
+        GetUserStatsHandler handler = new GetUserStatsHandler(dynamoDb);
 
         // Create event without JWT token (or invalid token that returns null sub)
         APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
@@ -260,24 +166,18 @@ public class GetUserStatsHandlerTest {
 
         assertEquals(401, response.getStatusCode());
         assertTrue(response.getBody().contains("Unauthorized"));
+        assertTrue(dynamoDb.touchedTables().isEmpty());
     }
 
     @Test
     public void testJsonProcessingExceptionInResponse() throws Exception {
         // Test JsonProcessingException coverage in response method by using reflection
-        handler = new GetUserStatsHandler(dynamoDb);
+        GetUserStatsHandler handler = new GetUserStatsHandler(new InMemoryDynamoDb());
 
         // Use reflection to access the private response method
         java.lang.reflect.Method responseMethod = GetUserStatsHandler.class.getDeclaredMethod("response", int.class, Object.class);
         responseMethod.setAccessible(true);
 
-        // Create an object that will cause JsonProcessingException
-        Object problematicObject = new Object() {
-            public Object writeReplace() throws java.io.ObjectStreamException {
-                throw new java.io.NotSerializableException("Not serializable");
-            }
-        };
-
         // Create a circular reference object that will cause JsonProcessingException
         Map<String, Object> circularMap = new HashMap<>();
         circularMap.put("self", circularMap);
@@ -303,11 +203,22 @@ public class GetUserStatsHandlerTest {
     @Test
     public void testGenericExceptionHandling() {
         // Test the generic Exception catch block coverage
-        handler = new GetUserStatsHandler(dynamoDb);
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        // the global stats are read concurrently with the failing per-user queries
+        local.put("global_stats", leaderboardItem().item());
+        // DynamoDB throws a generic exception (e.g., RuntimeException)
+        RuntimeException failure = new RuntimeException("Database connection failed");
+        GetUserStatsHandler handler = new GetUserStatsHandler(new FaultInjectingDynamoDb(local)
+                .fail("user_boycotts", failure, 1)
+                .fail("user_causes", failure, 1));
 
         // Create a valid JWT event
         APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
-        Map<String, String> claims = Map.of("sub", "11111111-2222-3333-4444-555555555555");
+        Map<String, String> claims = Map.of("sub", SUB);
         Map<String, Object> authorizer = new HashMap<>();
         authorizer.put("claims", claims);
 
@@ -315,10 +226,6 @@ public class GetUserStatsHandlerTest {
         rc.setAuthorizer(authorizer);
         event.setRequestContext(rc);
 
-        // Mock DynamoDB to throw a generic exception (e.g., RuntimeException)
-        when(dynamoDb.query(any(QueryRequest.class)))
-                .thenThrow(new RuntimeException("Database connection failed"));
-
         // Act
         APIGatewayProxyResponseEvent response = handler.handleRequest(event, null);
 
@@ -326,5 +233,711 @@ public class GetUserStatsHandlerTest {
         assertEquals(500, response.getStatusCode());
         assertTrue(response.getBody().contains("Unexpected server error"));
         assertTrue(response.getBody().contains("Database connection failed"));
+        assertEquals("\"{\\\"error\\\": \\\"Unexpected server error: Database connection failed\\\"}\"",
+                response.getBody(), "the legacy body");
+    }
+
+    @Test
+    public void testAsyncClientIssuesIndependentCallsConcurrently() {
+        InMemoryDynamoDb dynamoDb = new InMemoryDynamoDb();
+        CountDownLatch bothQueriesIssued = new CountDownLatch(2);
+        DynamoDbAsyncClient asyncDb = asyncClient(request -> {
+            bothQueriesIssued.countDown();
+            // neither query completes until the other one has been sent
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    assertTrue(bothQueriesIssued.await(5, TimeUnit.SECONDS), "queries ran one after another");
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return "user_boycotts".equals(request.tableName())
+                        ? QueryResponse.builder().items(List.of(
+                                Map.of("company_id", AttributeValue.fromS("c1")),
+                                Map.of("company_id", AttributeValue.fromS("c1")),
+                                Map.of("company_id", AttributeValue.fromS("c2")))).build()
+                        : QueryResponse.builder().count(1).build();
+            });
+        }, request -> CompletableFuture.completedFuture(leaderboardItem()));
+        GetUserStatsHandler handler = new GetUserStatsHandler(dynamoDb, asyncDb);
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(), context);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().contains("\"totalBoycotts\":2"));
+        assertTrue(response.getBody().contains("\"numCausesFollowed\":1"));
+        assertTrue(response.getBody().contains("\"worstCompanyName\":\"Worst Co\""));
+        assertTrue(dynamoDb.touchedTables().isEmpty());
+    }
+
+    @Test
+    public void testAsyncClientFailureStillReturns500WithCause() {
+        DynamoDbAsyncClient asyncDb = asyncClient(
+                request -> CompletableFuture.failedFuture(
+                        ProvisionedThroughputExceededException.builder().message("Throughput exceeded").build()),
+                request -> CompletableFuture.completedFuture(leaderboardItem()));
+        GetUserStatsHandler handler = new GetUserStatsHandler(new InMemoryDynamoDb(), asyncDb);
+
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(), context);
+
+        assertEquals(500, response.getStatusCode());
+        assertTrue(response.getBody().contains("Unexpected server error: Throughput exceeded"));
+    }
+
+    private static GetItemResponse leaderboardItem() {
+        return GetItemResponse.builder().item(Map.of(
+                "stat_id", AttributeValue.fromS("leaderboard"),
+                "worst_company_id", AttributeValue.fromS("worstCo"),
+                "worst_company_name", AttributeValue.fromS("Worst Co"),
+                "worst_count", AttributeValue.fromN("15"),
+                "top_reason", AttributeValue.fromS("Labor"),
+                "top_cause_id", AttributeValue.fromS("causeA"),
+                "top_cause_desc", AttributeValue.fromS("Environment"),
+                "top_cause_follower_count", AttributeValue.fromN("99"),
+                "version", AttributeValue.fromN("3"))).build();
+    }
+
+    /**
+     * Two boycotts and two followed causes of the user, without materialised counters, and the
+     * company, its reason and the cause the global stats are computed from, without a
+     * leaderboard item.
+     */
+    private static InMemoryDynamoDb unseededTables(int worstCount, int reasonCount, int followers) {
+        InMemoryDynamoDb local = leaderboardTables(new InMemoryDynamoDb())
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        for (String company : List.of("c1", "c2")) {
+            local.put("user_boycotts", Map.of("user_id", AttributeValue.fromS(SUB),
+                    "company_cause_id", AttributeValue.fromS(company + "#causeA"),
+                    "company_id", AttributeValue.fromS(company)));
+        }
+        for (String cause : List.of("causeA", "causeB")) {
+            local.put("user_causes", Map.of("user_id", AttributeValue.fromS(SUB), "cause_id", AttributeValue.fromS(cause)));
+        }
+        local.put("companies", Map.of("company_id", AttributeValue.fromS("worstCo"),
+                "company_name", AttributeValue.fromS("Worst Co"),
+                "boycott_count", AttributeValue.fromN(Integer.toString(worstCount)),
+                "leaderboard_shard", AttributeValue.fromN(Integer.toString(
+                        LeaderboardRepository.shardOf("worstCo", LeaderboardRepository.SHARDS)))));
+        local.put("cause_company_stats", Map.of("cause_id", AttributeValue.fromS("causeL"),
+                "company_id", AttributeValue.fromS("worstCo"),
+                "cause_desc", AttributeValue.fromS("Labor"),
+                "boycott_count", AttributeValue.fromN(Integer.toString(reasonCount))));
+        local.put("causes", Map.of("cause_id", AttributeValue.fromS("causeA"),
+                "category", AttributeValue.fromS("category"),
+                "cause_desc", AttributeValue.fromS("Environment"),
+                "follower_count", AttributeValue.fromN(Integer.toString(followers)),
+                "leaderboard_shard", AttributeValue.fromN(Integer.toString(
+                        LeaderboardRepository.shardOf("causeA", LeaderboardRepository.SHARDS)))));
+        return local;
+    }
+
+    /**
+     * An async client that answers Query and GetItem with the given functions.
+     */
+    private static DynamoDbAsyncClient asyncClient(Function<QueryRequest, CompletableFuture<QueryResponse>> query,
+                                                   Function<GetItemRequest, CompletableFuture<GetItemResponse>> getItem) {
+        return new DynamoDbAsyncClient() {
+            @Override
+            public CompletableFuture<QueryResponse> query(QueryRequest request) {
+                return query.apply(request);
+            }
+
+            @Override
+            public CompletableFuture<GetItemResponse> getItem(GetItemRequest request) {
+                return getItem.apply(request);
+            }
+
+            @Override
+            public String serviceName() {
+                return SERVICE_NAME;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static APIGatewayProxyRequestEvent authorizedEvent() {
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", SUB));
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+        return event;
+    }
+
+    @Test
+    public void testHeavyUserCountsFollowEveryPage() {
+        GetUserStatsHandler.globalStatsCache().clear();
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .pageSize(1000)
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        String sub = SUB;
+        // 50k boycott rows over 25k companies, and 2500 followed causes
+        for (int i = 0; i < 50_000; i++) {
+            local.put("user_boycotts", Map.of("user_id", AttributeValue.fromS(sub),
+                    "company_cause_id", AttributeValue.fromS("company" + (i % 25_000) + "#cause" + (i / 25_000)),
+                    "company_id", AttributeValue.fromS("company" + (i % 25_000))));
+        }
+        for (int i = 0; i < 2500; i++) {
+            local.put("user_causes", Map.of("user_id", AttributeValue.fromS(sub),
+                    "cause_id", AttributeValue.fromS("cause" + i)));
+        }
+        local.put("global_stats", leaderboardItem().item());
+
+        // without hedging, which duplicates the odd slow page once 20 latencies are known
+        GetUserStatsHandler unhedged = new GetUserStatsHandler(local).hedgedBy(new HedgingPolicy(10_000, 0, 5));
+        APIGatewayProxyResponseEvent response = unhedged.handleRequest(authorizedEvent(), context);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().contains("\"totalBoycotts\":25000"));
+        assertTrue(response.getBody().contains("\"numCausesFollowed\":2500"));
+        assertEquals(50, local.calls("query", "user_boycotts"));
+        assertEquals(3, local.calls("query", "user_causes"));
+    }
+
+    @Test
+    public void testMaterialisedUserStatsReadWithOneGetItem() {
+        InMemoryDynamoDb local = leaderboardTables(new InMemoryDynamoDb())
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        String sub = SUB;
+        local.put("global_stats", leaderboardItem().item());
+        local.put("user_stats", Map.of("user_id", AttributeValue.fromS(sub),
+                "stat_key", AttributeValue.fromS("totals"),
+                "distinct_companies_boycotted", AttributeValue.fromN("12"),
+                "causes_followed", AttributeValue.fromN("4"),
+                "reconciled_at", AttributeValue.fromN("1700000000000")));
+
+        APIGatewayProxyResponseEvent response = new GetUserStatsHandler(local).handleRequest(authorizedEvent(), context);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().contains("\"totalBoycotts\":12"));
+        assertTrue(response.getBody().contains("\"numCausesFollowed\":4"));
+        assertEquals(1, local.calls("getItem", "user_stats"));
+        assertEquals(Set.of("global_stats", "user_stats"), local.touchedTables());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTopListsMergedFromShardedIndexes() throws Exception {
+        InMemoryDynamoDb local = leaderboardTables(new InMemoryDynamoDb())
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", leaderboardItem().item());
+        Random random = new Random(42);
+        List<int[]> companies = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int boycotts = random.nextInt(10_000);
+            companies.add(new int[]{i, boycotts});
+            local.put("companies", Map.of("company_id", AttributeValue.fromS("c" + i),
+                    "company_name", AttributeValue.fromS("Company " + i),
+                    "boycott_count", AttributeValue.fromN(Integer.toString(boycotts)),
+                    "leaderboard_shard", AttributeValue.fromN(Integer.toString(
+                            LeaderboardRepository.shardOf("c" + i, LeaderboardRepository.SHARDS)))));
+            local.put("cause_company_stats", Map.of("cause_id", AttributeValue.fromS("reason" + i),
+                    "company_id", AttributeValue.fromS("c" + i),
+                    "cause_desc", AttributeValue.fromS("Reason " + i),
+                    "boycott_count", AttributeValue.fromN(Integer.toString(boycotts))));
+        }
+        for (int i = 0; i < 50; i++) {
+            local.put("causes", Map.of("cause_id", AttributeValue.fromS("k" + i),
+                    "cause_desc", AttributeValue.fromS("Cause " + i),
+                    "follower_count", AttributeValue.fromN(Integer.toString(i * 3)),
+                    "leaderboard_shard", AttributeValue.fromN(Integer.toString(
+                            LeaderboardRepository.shardOf("k" + i, LeaderboardRepository.SHARDS)))));
+        }
+        companies.sort((a, b) -> Integer.compare(b[1], a[1]));
+
+        GetUserStatsHandler handler = new GetUserStatsHandler(local);
+        APIGatewayProxyRequestEvent event = authorizedEvent();
+        event.setQueryStringParameters(Map.of("fields", "worstCompanyName,topCompanies,topCauses"));
+        APIGatewayProxyResponseEvent response = handler.handleRequest(event, context);
+
+        assertEquals(200, response.getStatusCode());
+        Map<String, Object> body = new ObjectMapper().readValue(response.getBody(), new TypeReference<>() {});
+        assertEquals("Worst Co", body.get("worstCompanyName"), "the existing fields are unchanged");
+        List<Map<String, Object>> topCompanies = (List<Map<String, Object>>) body.get("topCompanies");
+        assertEquals(LeaderboardRepository.SIZE, topCompanies.size());
+        for (int rank = 0; rank < topCompanies.size(); rank++) {
+            int[] expected = companies.get(rank);
+            assertEquals("c" + expected[0], topCompanies.get(rank).get("companyId"));
+            assertEquals(expected[1], topCompanies.get(rank).get("boycottCount"));
+            assertEquals("Reason " + expected[0], topCompanies.get(rank).get("topReason"));
+        }
+        List<Map<String, Object>> topCauses = (List<Map<String, Object>>) body.get("topCauses");
+        assertEquals(List.of("Cause 49", "Cause 48", "Cause 47", "Cause 46", "Cause 45"),
+                topCauses.stream().map(cause -> cause.get("causeName")).collect(java.util.stream.Collectors.toList()));
+        // reads are bounded by N per shard and one reason per entry, whatever the table size
+        assertEquals(LeaderboardRepository.SHARDS, local.calls("query", "companies"));
+        assertEquals(LeaderboardRepository.SHARDS, local.calls("query", "causes"));
+        assertEquals(LeaderboardRepository.SIZE, local.calls("query", "cause_company_stats"));
+        assertEquals(0, local.calls("scan", "companies") + local.calls("scan", "causes"));
+
+        handler.handleRequest(event, context);
+        assertEquals(LeaderboardRepository.SHARDS, local.calls("query", "companies"), "served from the cache");
+    }
+
+    @Test
+    public void testFieldsTouchOnlyTheTablesTheyNeed() throws Exception {
+        InMemoryDynamoDb local = leaderboardTables(new InMemoryDynamoDb())
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        String sub = SUB;
+        // no leaderboard item and no materialised counters, so every field takes its slowest path
+        local.put("companies", Map.of("company_id", AttributeValue.fromS("c1"),
+                "company_name", AttributeValue.fromS("Acme"), "boycott_count", AttributeValue.fromN("9"),
+                "leaderboard_shard", AttributeValue.fromN(Integer.toString(
+                        LeaderboardRepository.shardOf("c1", LeaderboardRepository.SHARDS)))));
+        local.put("causes", Map.of("cause_id", AttributeValue.fromS("k1"),
+                "category", AttributeValue.fromS("category"), "cause_desc", AttributeValue.fromS("Labor"),
+                "follower_count", AttributeValue.fromN("5"),
+                "leaderboard_shard", AttributeValue.fromN(Integer.toString(
+                        LeaderboardRepository.shardOf("k1", LeaderboardRepository.SHARDS)))));
+        local.put("cause_company_stats", Map.of("cause_id", AttributeValue.fromS("k1"),
+                "company_id", AttributeValue.fromS("c1"), "cause_desc", AttributeValue.fromS("Labor"),
+                "boycott_count", AttributeValue.fromN("9")));
+        local.put("user_boycotts", Map.of("user_id", AttributeValue.fromS(sub),
+                "company_cause_id", AttributeValue.fromS("c1#k1"), "company_id", AttributeValue.fromS("c1")));
+        local.put("user_causes", Map.of("user_id", AttributeValue.fromS(sub), "cause_id", AttributeValue.fromS("k1")));
+
+        Map<String, Set<String>> expectedTables = new LinkedHashMap<>();
+        expectedTables.put("totalBoycotts", Set.of("user_stats", "user_boycotts"));
+        expectedTables.put("numCausesFollowed", Set.of("user_stats", "user_causes"));
+        expectedTables.put("worstCount", Set.of("global_stats", "companies"));
+        expectedTables.put("worstCompanyName,topReason", Set.of("global_stats", "companies", "cause_company_stats"));
+        expectedTables.put("causeName, followerCount", Set.of("global_stats", "causes"));
+        expectedTables.put("topCauses", Set.of("causes"));
+        expectedTables.put("topCompanies", Set.of("companies", "cause_company_stats"));
+        expectedTables.put("totalBoycotts,numCausesFollowed,worstCompanyName,worstCount,topReason,causeName,"
+                + "followerCount,topCompanies,topCauses", Set.of("user_stats", "user_boycotts", "user_causes",
+                "global_stats", "companies", "causes", "cause_company_stats"));
+
+        ObjectMapper mapper = new ObjectMapper();
+        for (Map.Entry<String, Set<String>> expected : expectedTables.entrySet()) {
+            GetUserStatsHandler.globalStatsCache().clear();
+            local.resetCalls();
+            APIGatewayProxyRequestEvent event = authorizedEvent();
+            event.setQueryStringParameters(Map.of("fields", expected.getKey()));
+
+            APIGatewayProxyResponseEvent response = new GetUserStatsHandler(local).handleRequest(event, context);
+
+            assertEquals(200, response.getStatusCode(), expected.getKey());
+            assertEquals(expected.getValue(), local.touchedTables(), expected.getKey());
+            Set<String> requested = new HashSet<>();
+            for (String field : expected.getKey().split(",")) {
+                requested.add(field.trim());
+            }
+            Map<String, Object> body = mapper.readValue(response.getBody(), new TypeReference<>() {});
+            assertEquals(requested, body.keySet(), "unrequested fields are left out");
+        }
+
+        local.resetCalls();
+        APIGatewayProxyResponseEvent defaults = new GetUserStatsHandler(local).handleRequest(authorizedEvent(), context);
+        Map<String, Object> body = mapper.readValue(defaults.getBody(), new TypeReference<>() {});
+        assertEquals(Set.of("totalBoycotts", "numCausesFollowed", "worstCompanyName", "worstCount", "topReason",
+                "causeName", "followerCount"), body.keySet(), "no fields, the fields from before the parameter");
+    }
+
+    @Test
+    public void testWindowServesTrendingInsteadOfAllTime() throws Exception {
+        InMemoryDynamoDb local = leaderboardTables(new InMemoryDynamoDb())
+                .createTable("global_stats", "stat_id", null)
+                .createTable("trending_stats", "bucket", "item_id");
+        local.put("global_stats", leaderboardItem().item());
+        local.put("companies", Map.of("company_id", AttributeValue.fromS("c1"),
+                "company_name", AttributeValue.fromS("Rising Co"), "boycott_count", AttributeValue.fromN("3")));
+        local.put("causes", Map.of("cause_id", AttributeValue.fromS("k1"),
+                "cause_desc", AttributeValue.fromS("Rising Cause"), "follower_count", AttributeValue.fromN("2")));
+        AsyncDynamoDb sync = AsyncDynamoDb.of(local, Runnable::run);
+        TrendingRepository trending = new TrendingRepository(sync, new GlobalStatsRepository(sync, 1),
+                TrendingRepository.SHARDS, System::currentTimeMillis);
+        trending.record(TrendingRepository.Kind.COMPANY, "c1", "e1", System.currentTimeMillis());
+        trending.record(TrendingRepository.Kind.COMPANY, "c1", "e2", System.currentTimeMillis());
+        trending.record(TrendingRepository.Kind.CAUSE, "k1", "e3", System.currentTimeMillis());
+        ObjectMapper mapper = new ObjectMapper();
+
+        APIGatewayProxyRequestEvent event = authorizedEvent();
+        event.setQueryStringParameters(Map.of("fields", "worstCompanyName,worstCount,topReason,causeName,followerCount",
+                "window", "24h"));
+        Map<String, Object> body = mapper.readValue(
+                new GetUserStatsHandler(local).handleRequest(event, context).getBody(), new TypeReference<>() {});
+        assertEquals(Map.of("worstCompanyName", "Rising Co", "worstCount", 2, "topReason", "N/A",
+                "causeName", "Rising Cause", "followerCount", 1), body);
+
+        event.setQueryStringParameters(Map.of("fields", "worstCompanyName,causeName"));
+        body = mapper.readValue(
+                new GetUserStatsHandler(local).handleRequest(event, context).getBody(), new TypeReference<>() {});
+        assertEquals(Map.of("worstCompanyName", "Worst Co", "causeName", "Environment"), body, "all time without a window");
+
+        event.setQueryStringParameters(Map.of("fields", "worstCompanyName", "window", "1y"));
+        APIGatewayProxyResponseEvent response = new GetUserStatsHandler(local).handleRequest(event, context);
+        assertEquals(400, response.getStatusCode());
+        assertEquals("{\"message\":\"unknown window 1y\"}", response.getBody());
+    }
+
+    @Test
+    public void testSlowGlobalLookupDegradesToPlaceholders() throws Exception {
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", leaderboardItem().item());
+        local.put("user_stats", Map.of("user_id", AttributeValue.fromS(SUB),
+                "stat_key", AttributeValue.fromS("totals"),
+                "distinct_companies_boycotted", AttributeValue.fromN("4"),
+                "causes_followed", AttributeValue.fromN("2"),
+                "reconciled_at", AttributeValue.fromN("1")));
+        FaultInjectingDynamoDb faulty = new FaultInjectingDynamoDb(local).slow("global_stats", 5_000, 1);
+        GetUserStatsHandler slowHandler = new GetUserStatsHandler(faulty);
+        context.remainingTimeInMillis((int) Deadline.RESERVE_MILLIS + 500);
+        APIGatewayProxyRequestEvent event = authorizedEvent();
+        // a first request of the user's fields only, so class loading does not eat the budget
+        event.setQueryStringParameters(Map.of("fields", "totalBoycotts"));
+        assertEquals(200, slowHandler.handleRequest(event, context).getStatusCode());
+        event.setQueryStringParameters(Map.of("fields", "totalBoycotts,worstCompanyName,worstCount,causeName"));
+
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(captured, true));
+        APIGatewayProxyResponseEvent response;
+        try {
+            response = slowHandler.handleRequest(event, context);
+        } finally {
+            System.setOut(stdout);
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(200, response.getStatusCode());
+        assertEquals(Map.of("totalBoycotts", 4, "worstCompanyName", "N/A", "worstCount", 0, "causeName", "N/A"),
+                mapper.readValue(response.getBody(), new TypeReference<Map<String, Object>>() {}));
+        Map<String, Object> emf = null;
+        for (String line : captured.toString().split("\\R")) {
+            if (line.startsWith("{\"_aws\"")) {
+                emf = mapper.readValue(line, new TypeReference<Map<String, Object>>() {});
+            }
+        }
+        assertEquals(1, emf.get("DegradedResponses"));
+
+        // a later request looks the global stats up again and gets the real values
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        String body;
+        do {
+            Thread.sleep(50);
+            body = slowHandler.handleRequest(event, context).getBody();
+        } while (!body.contains("Worst Co") && System.nanoTime() < until);
+        assertTrue(body.contains("\"causeName\":\"Environment\""), body);
+    }
+
+    @Test
+    public void testRefreshOutlivesTheRequestBudgetAndIsCountedByTheNextLine() throws Exception {
+        InMemoryDynamoDb local = new InMemoryDynamoDb().createTable("global_stats", "stat_id", null);
+        local.put("global_stats", leaderboardItem().item());
+        FaultInjectingDynamoDb faulty = new FaultInjectingDynamoDb(local);
+        AtomicLong now = new AtomicLong();
+        ExecutorService refresher = Executors.newSingleThreadExecutor();
+        GetUserStatsHandler handler = new GetUserStatsHandler(faulty)
+                .cachedIn(new GlobalStatsCache(1_000, now::get, refresher));
+        APIGatewayProxyRequestEvent event = authorizedEvent();
+        event.setQueryStringParameters(Map.of("fields", "worstCompanyName"));
+        assertEquals(200, handler.handleRequest(event, context).getStatusCode());
+
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(captured, true));
+        try {
+            // the refresh takes longer than the budget of the request that found the entry stale
+            now.addAndGet(1_000);
+            faulty.slow("global_stats", 300, 1);
+            context.remainingTimeInMillis((int) Deadline.RESERVE_MILLIS + 100);
+            assertTrue(handler.handleRequest(event, context.awsRequestId("req-1")).getBody().contains("Worst Co"));
+            refresher.shutdown();
+            assertTrue(refresher.awaitTermination(5, TimeUnit.SECONDS));
+            context.remainingTimeInMillis(0);
+            handler.handleRequest(event, context.awsRequestId("req-2"));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, Map<String, Object>> emf = new HashMap<>();
+        for (String line : captured.toString().split("\\R")) {
+            if (line.startsWith("{\"_aws\"")) {
+                Map<String, Object> metrics = mapper.readValue(line, new TypeReference<Map<String, Object>>() {});
+                emf.put((String) metrics.get("requestId"), metrics);
+            }
+        }
+        assertEquals(1, emf.get("req-1").get("CacheStaleHits"));
+        assertNull(emf.get("req-1").get("global_stats.GetItem.Calls"), "the refresh is not the request's call");
+        assertEquals(1, emf.get("req-2").get("CacheRefreshes"));
+        assertNull(emf.get("req-2").get("CacheRefreshFailures"));
+        assertEquals(1, emf.get("req-2").get("CacheHits"));
+        assertEquals(1, emf.get("req-2").get("global_stats.GetItem.Calls"), "the refresh is counted by the next line");
+    }
+
+    @Test
+    public void testUnknownFieldIsBadRequest() {
+        InMemoryDynamoDb local = new InMemoryDynamoDb();
+        APIGatewayProxyRequestEvent event = authorizedEvent();
+        event.setQueryStringParameters(Map.of("fields", "totalBoycotts,password"));
+
+        APIGatewayProxyResponseEvent response = new GetUserStatsHandler(local).handleRequest(event, context);
+
+        assertEquals(400, response.getStatusCode());
+        assertEquals("{\"message\":\"unknown field password\"}", response.getBody());
+        assertTrue(local.touchedTables().isEmpty());
+    }
+
+    private static InMemoryDynamoDb leaderboardTables(InMemoryDynamoDb local) {
+        return local.createTable("companies", "company_id", null)
+                .createIndex("companies", LeaderboardRepository.COMPANIES_INDEX, "leaderboard_shard", "boycott_count")
+                .createTable("causes", "cause_id", null)
+                .createIndex("causes", LeaderboardRepository.CAUSES_INDEX, "leaderboard_shard", "follower_count")
+                .createTable("cause_company_stats", "cause_id", "company_id")
+                .createIndex("cause_company_stats", "company_cause_stats_index", "company_id", "boycott_count");
+    }
+
+    @Test
+    public void testUnchangedPollIsNotModified() {
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        String sub = SUB;
+        local.put("global_stats", leaderboardItem().item());
+        local.put("user_stats", Map.of("user_id", AttributeValue.fromS(sub),
+                "stat_key", AttributeValue.fromS("totals"),
+                "distinct_companies_boycotted", AttributeValue.fromN("12"),
+                "causes_followed", AttributeValue.fromN("4"),
+                "reconciled_at", AttributeValue.fromN("1700000000000")));
+        GetUserStatsHandler polled = new GetUserStatsHandler(local);
+
+        APIGatewayProxyResponseEvent first = polled.handleRequest(authorizedEvent(), context);
+        String etag = first.getHeaders().get("ETag");
+        assertTrue(etag.matches("\"[0-9a-f]+\""), etag);
+        assertEquals("private, max-age=0, must-revalidate", first.getHeaders().get("Cache-Control"));
+        assertEquals("Authorization", first.getHeaders().get("Vary"));
+
+        APIGatewayProxyRequestEvent poll = authorizedEvent();
+        poll.setHeaders(Map.of("if-none-match", "W/\"other\", " + etag));
+        APIGatewayProxyResponseEvent unchanged = polled.handleRequest(poll, context);
+        assertEquals(304, unchanged.getStatusCode());
+        assertNull(unchanged.getBody());
+        assertEquals(etag, unchanged.getHeaders().get("ETag"));
+        assertEquals(1, local.calls("getItem", "global_stats"), "the global part comes from the cache");
+
+        local.put("user_stats", Map.of("user_id", AttributeValue.fromS(sub),
+                "stat_key", AttributeValue.fromS("totals"),
+                "distinct_companies_boycotted", AttributeValue.fromN("13"),
+                "causes_followed", AttributeValue.fromN("4"),
+                "reconciled_at", AttributeValue.fromN("1700000000000")));
+        APIGatewayProxyResponseEvent changed = polled.handleRequest(poll, context);
+        assertEquals(200, changed.getStatusCode());
+        assertNotEquals(etag, changed.getHeaders().get("ETag"));
+        assertTrue(changed.getBody().contains("\"totalBoycotts\":13"));
+    }
+
+    @Test
+    public void testStalePollIsAnsweredBeforeTheRefresh() {
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", leaderboardItem().item());
+        local.put("user_stats", Map.of("user_id", AttributeValue.fromS(SUB),
+                "stat_key", AttributeValue.fromS("totals"),
+                "distinct_companies_boycotted", AttributeValue.fromN("12"),
+                "causes_followed", AttributeValue.fromN("4"),
+                "reconciled_at", AttributeValue.fromN("1700000000000")));
+        AtomicLong now = new AtomicLong(1_000_000);
+        List<Runnable> refreshes = new ArrayList<>();
+        // a stale read of the full path would wait for the refresh, which never runs, until
+        // the deadline and then serve the placeholders
+        GlobalStatsCache cache = new GlobalStatsCache(60_000, 10_000, now::get, refreshes::add);
+        GetUserStatsHandler polled = new GetUserStatsHandler(local).cachedIn(cache);
+        context.remainingTimeInMillis((int) Deadline.RESERVE_MILLIS + 1000);
+        APIGatewayProxyRequestEvent poll = authorizedEvent();
+        poll.setQueryStringParameters(Map.of("fields", "totalBoycotts,worstCompanyName,worstCount,causeName"));
+        String etag = polled.handleRequest(poll, context).getHeaders().get("ETag");
+        now.addAndGet(61_000);
+
+        poll.setHeaders(Map.of("If-None-Match", etag));
+        APIGatewayProxyResponseEvent unchanged = polled.handleRequest(poll, context);
+
+        assertEquals(304, unchanged.getStatusCode());
+        assertEquals(etag, unchanged.getHeaders().get("ETag"));
+        assertEquals(1, refreshes.size(), "the stale value is refreshed in the background");
+        assertEquals(1, local.calls("getItem", "global_stats"));
+        assertEquals(2, local.calls("getItem", "user_stats"));
+    }
+
+    @Test
+    public void testGlobalOnlyResponseIsPublic() {
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", leaderboardItem().item());
+        GetUserStatsHandler polled = new GetUserStatsHandler(local);
+        APIGatewayProxyRequestEvent event = authorizedEvent();
+        event.setQueryStringParameters(Map.of("fields", "worstCompanyName,worstCount"));
+
+        APIGatewayProxyResponseEvent first = polled.handleRequest(event, context);
+        assertEquals("public, max-age=0, s-maxage=60", first.getHeaders().get("Cache-Control"));
+        assertFalse(first.getHeaders().containsKey("Vary"));
+
+        event.setHeaders(Map.of("If-None-Match", first.getHeaders().get("ETag")));
+        APIGatewayProxyResponseEvent unchanged = polled.handleRequest(event, context);
+        assertEquals(304, unchanged.getStatusCode());
+        assertEquals("public, max-age=0, s-maxage=60", unchanged.getHeaders().get("Cache-Control"));
+        assertEquals(Set.of("global_stats"), local.touchedTables());
+    }
+
+    @Test
+    public void testEmfLinePerInvocation() throws Exception {
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", leaderboardItem().item());
+        GetUserStatsHandler instrumented = new GetUserStatsHandler(local);
+
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(captured, true));
+        try {
+            instrumented.handleRequest(authorizedEvent(), context.awsRequestId("req-1"));
+            instrumented.handleRequest(authorizedEvent(), context.awsRequestId("req-2"));
+        } finally {
+            System.setOut(stdout);
+        }
+
+        ObjectMapper mapper = new ObjectMapper();
+        List<Map<String, Object>> lines = new ArrayList<>();
+        for (String line : captured.toString().split("\\R")) {
+            if (line.startsWith("{\"_aws\"")) {
+                lines.add(mapper.readValue(line, new TypeReference<Map<String, Object>>() {}));
+            }
+        }
+        assertEquals(2, lines.size());
+        Map<String, Object> cold = lines.get(0);
+        assertEquals("req-1", cold.get("requestId"));
+        assertEquals(1, cold.get("ColdStart"));
+        assertTrue(cold.containsKey("InitDuration"));
+        assertTrue(cold.containsKey("Duration"));
+        // not materialised: user_stats miss, then counted from both tables, plus the leaderboard read
+        assertEquals(1, cold.get("user_stats.GetItem.Calls"));
+        assertEquals(0, cold.get("user_stats.GetItem.Items"));
+        assertEquals(1, cold.get("user_boycotts.Query.Calls"));
+        assertEquals(1, cold.get("user_causes.Query.Calls"));
+        assertEquals(1, cold.get("global_stats.GetItem.Calls"));
+        assertEquals(0.5, cold.get("global_stats.GetItem.ConsumedCapacity"));
+        Map<String, Object> warm = lines.get(1);
+        assertEquals("req-2", warm.get("requestId"));
+        assertEquals(0, warm.get("ColdStart"));
+        assertFalse(warm.containsKey("InitDuration"));
+        assertFalse(warm.containsKey("global_stats.GetItem.Calls"), "served from the cache");
+        assertEquals(1, warm.get("user_stats.GetItem.Calls"));
+    }
+
+    @Test
+    public void testPrimingReadsWithoutFillingTheCache() {
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", leaderboardItem().item());
+        long misses = GetUserStatsHandler.globalStatsCache().getMisses();
+
+        new GetUserStatsHandler(local).prime();
+
+        assertEquals(1, local.calls("getItem", "global_stats"));
+        assertEquals(1, local.calls("getItem", "user_stats"));
+        assertEquals(misses, GetUserStatsHandler.globalStatsCache().getMisses());
+    }
+
+    @Test
+    public void testReconnectAfterRestoreSwitchesClients() {
+        InMemoryDynamoDb restored = new InMemoryDynamoDb()
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        restored.put("global_stats", leaderboardItem().item());
+        InMemoryDynamoDb snapshotted = new InMemoryDynamoDb();
+        GetUserStatsHandler handler = new GetUserStatsHandler(snapshotted);
+
+        handler.reconnect(restored);
+        APIGatewayProxyResponseEvent response = handler.handleRequest(authorizedEvent(), context);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(snapshotted.isClosed());
+        assertTrue(snapshotted.touchedTables().isEmpty());
+        assertEquals(1, restored.calls("getItem", "global_stats"));
+    }
+
+    @Test
+    public void testConcurrentRequestsShareOneGlobalLookup() throws Exception {
+        InMemoryDynamoDb local = leaderboardTables(new InMemoryDynamoDb())
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key")
+                // so that the requests overlap while the global lookups are in flight
+                .latencyMicros(5000);
+        local.put("global_stats", leaderboardItem().item());
+        // without hedging, whose duplicate reads would be counted as calls
+        GetUserStatsHandler shared = new GetUserStatsHandler(local).hedgedBy(new HedgingPolicy(10_000, 0, 5));
+        List<String> globalTables = List.of("global_stats", "companies", "causes", "cause_company_stats");
+        List<String> operations = List.of("getItem", "query", "scan");
+
+        assertEquals(200, shared.handleRequest(authorizedEvent(), null).getStatusCode());
+        Map<String, Integer> oneRequest = new TreeMap<>();
+        for (String table : globalTables) {
+            for (String operation : operations) {
+                oneRequest.put(operation + " " + table, local.calls(operation, table));
+            }
+        }
+        GetUserStatsHandler.globalStatsCache().clear();
+        local.resetCalls();
+
+        int requests = 64;
+        ExecutorService callers = Executors.newFixedThreadPool(requests);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<APIGatewayProxyResponseEvent>> responses = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                responses.add(callers.submit(() -> {
+                    start.await();
+                    return shared.handleRequest(authorizedEvent(), null);
+                }));
+            }
+            start.countDown();
+            for (Future<APIGatewayProxyResponseEvent> response : responses) {
+                APIGatewayProxyResponseEvent event = response.get(30, TimeUnit.SECONDS);
+                assertEquals(200, event.getStatusCode());
+                assertTrue(event.getBody().contains("\"worstCompanyName\":\"Worst Co\""), event.getBody());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        Map<String, Integer> concurrent = new TreeMap<>();
+        for (String table : globalTables) {
+            for (String operation : operations) {
+                concurrent.put(operation + " " + table, local.calls(operation, table));
+            }
+        }
+        assertEquals(oneRequest, concurrent, "the global lookups of all requests are made once");
+        assertEquals(requests, local.calls("getItem", "user_stats"), "the personal reads are not shared");
     }
-}
\ No newline at end of file
+}
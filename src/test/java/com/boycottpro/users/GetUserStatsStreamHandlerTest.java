@@ -0,0 +1,166 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GetUserStatsStreamHandlerTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String SUB = "11111111-2222-3333-4444-555555555555";
+    // the sub comes last, after headers, a body and look-alike fields that must be skipped
+    private static final String EVENT = "{\"resource\":\"/stats\",\"headers\":{\"sub\":\"header\",\"Accept\":\"*/*\"},"
+            + "\"multiValueHeaders\":{\"Accept\":[\"*/*\"]},\"body\":\"{\\\"requestContext\\\":{}}\","
+            + "\"claims\":{\"sub\":\"top-level\"},"
+            + "\"requestContext\":{\"accountId\":\"123\",\"identity\":{\"claims\":{\"sub\":\"identity\"}},"
+            + "\"authorizer\":{\"principalId\":\"p\",\"claims\":{\"email\":\"a@b.c\",\"sub\":\"" + SUB + "\"}}}}";
+
+    private InMemoryDynamoDb local;
+
+    @BeforeEach
+    public void setUp() {
+        GetUserStatsHandler.globalStatsCache().clear();
+        local = new InMemoryDynamoDb()
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", Map.of(
+                "stat_id", AttributeValue.fromS("leaderboard"),
+                "worst_company_name", AttributeValue.fromS("Worst \"Co\""),
+                "worst_count", AttributeValue.fromN("15"),
+                "top_reason", AttributeValue.fromS("Labor"),
+                "top_cause_desc", AttributeValue.fromS("Environment"),
+                "top_cause_follower_count", AttributeValue.fromN("99")));
+        local.put("user_stats", Map.of("user_id", AttributeValue.fromS(SUB),
+                "stat_key", AttributeValue.fromS("totals"),
+                "distinct_companies_boycotted", AttributeValue.fromN("12"),
+                "causes_followed", AttributeValue.fromN("4"),
+                "reconciled_at", AttributeValue.fromN("1700000000000")));
+    }
+
+    @Test
+    public void testReadSubFollowsOnlyTheAuthorizerClaims() throws Exception {
+        assertEquals(SUB, GetUserStatsStreamHandler.readRequest(stream(EVENT)).getSub());
+        assertNull(GetUserStatsStreamHandler.readRequest(stream("{\"requestContext\":{\"authorizer\":{\"claims\":{}}}}")).getSub());
+        assertNull(GetUserStatsStreamHandler.readRequest(stream("{\"requestContext\":{\"authorizer\":null}}")).getSub());
+        assertNull(GetUserStatsStreamHandler.readRequest(stream("[]")).getSub());
+        assertNull(GetUserStatsStreamHandler.readRequest(stream(EVENT)).getIfNoneMatch());
+    }
+
+    @Test
+    public void testReadRequestFindsHeaderAndParameter() throws Exception {
+        // cut off after "body": reading stops once the headers, parameters and request context are done
+        StatsRequest request = GetUserStatsStreamHandler.readRequest(stream(
+                "{\"headers\":{\"Accept\":\"*/*\",\"if-none-match\":\"\\\"abc\\\"\"},"
+                        + "\"queryStringParameters\":{\"Fields\":\"causeName\",\"fields\":\"totalBoycotts\",\"window\":\"7d\"},"
+                        + "\"requestContext\":{\"authorizer\":{\"claims\":{\"sub\":\"u1\"}},\"stage\":\"dev\"},"
+                        + "\"body\":\"never read\""));
+        assertEquals("u1", request.getSub());
+        assertEquals("\"abc\"", request.getIfNoneMatch());
+        assertEquals("totalBoycotts", request.getFields());
+        assertEquals("7d", request.getWindow());
+
+        StatsRequest noParameters = GetUserStatsStreamHandler.readRequest(stream(
+                "{\"headers\":null,\"queryStringParameters\":null,\"requestContext\":{}}"));
+        assertNull(noParameters.getIfNoneMatch());
+        assertNull(noParameters.getFields());
+        assertNull(noParameters.getWindow());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMatchingIfNoneMatchIsNotModified() throws Exception {
+        GetUserStatsHandler handler = new GetUserStatsHandler(local);
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        new GetUserStatsStreamHandler(handler).handleRequest(stream(EVENT), first, null);
+        Map<String, Object> response = MAPPER.readValue(first.toByteArray(), new TypeReference<>() {});
+        String etag = ((Map<String, String>) response.get("headers")).get("ETag");
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        new GetUserStatsStreamHandler(handler).handleRequest(stream(EVENT.replace("\"Accept\":\"*/*\"",
+                "\"If-None-Match\":" + MAPPER.writeValueAsString(etag))), second, null);
+
+        Map<String, Object> notModified = MAPPER.readValue(second.toByteArray(), new TypeReference<>() {});
+        assertEquals(304, notModified.get("statusCode"));
+        assertEquals(etag, ((Map<String, String>) notModified.get("headers")).get("ETag"));
+        assertFalse(notModified.containsKey("body"));
+    }
+
+    @Test
+    public void testResponseMatchesThePojoEntryPoint() throws Exception {
+        GetUserStatsHandler handler = new GetUserStatsHandler(local);
+        ClosingAwareOutput output = new ClosingAwareOutput();
+
+        new GetUserStatsStreamHandler(handler).handleRequest(stream(EVENT), output, null);
+
+        Map<String, Object> response = MAPPER.readValue(output.toByteArray(), new TypeReference<>() {});
+        assertEquals(200, response.get("statusCode"));
+        APIGatewayProxyResponseEvent pojo = handler.handleRequest(authorizedEvent(), null);
+        assertEquals(pojo.getHeaders(), response.get("headers"));
+        assertEquals(pojo.getBody(), response.get("body"));
+        assertTrue(((String) response.get("body")).contains("\"worstCompanyName\":\"Worst \\\"Co\\\"\""));
+        assertFalse(output.closed, "the runtime owns the output stream");
+    }
+
+    @Test
+    public void testMissingSubIsUnauthorized() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        new GetUserStatsStreamHandler(new GetUserStatsHandler(local))
+                .handleRequest(stream("{\"requestContext\":{}}"), output, null);
+
+        Map<String, Object> response = MAPPER.readValue(output.toByteArray(), new TypeReference<>() {});
+        assertEquals(401, response.get("statusCode"));
+        assertEquals("{\"message\":\"Unauthorized\"}", response.get("body"));
+    }
+
+    @Test
+    public void testServerErrorBodyIsJsonObject() throws Exception {
+        InMemoryDynamoDb missingTables = new InMemoryDynamoDb();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        new GetUserStatsStreamHandler(new GetUserStatsHandler(missingTables))
+                .handleRequest(stream(EVENT), output, null);
+
+        Map<String, Object> response = MAPPER.readValue(output.toByteArray(), new TypeReference<>() {});
+        assertEquals(500, response.get("statusCode"));
+        Map<String, Object> body = MAPPER.readValue((String) response.get("body"), new TypeReference<>() {});
+        assertTrue(((String) body.get("error")).startsWith("Unexpected server error: Requested resource not found"));
+    }
+
+    private static ByteArrayInputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static APIGatewayProxyRequestEvent authorizedEvent() {
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", SUB));
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+        return event;
+    }
+
+    private static final class ClosingAwareOutput extends ByteArrayOutputStream {
+        boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.boycottpro.users;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GlobalStatsCacheTest {
+
+    private static final int THREADS = 64;
+
+    private final AtomicLong now = new AtomicLong(1_000);
+    private final List<Runnable> pendingRefreshes = new ArrayList<>();
+    private final GlobalStatsCache cache = new GlobalStatsCache(60_000, now::get, pendingRefreshes::add);
+    private final ExecutorService pool = Executors.newFixedThreadPool(8);
+
+    @AfterEach
+    public void shutDownPool() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testMissLoadsOnceThenHits() {
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<String> loader = () -> "v" + loads.incrementAndGet();
+
+        assertEquals("v1", cache.get("k", loader));
+        now.addAndGet(59_999);
+        assertEquals("v1", cache.get("k", loader));
+
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertTrue(pendingRefreshes.isEmpty());
+    }
+
+    @Test
+    public void testStaleEntryIsServedWhileOneRefreshRunsInBackground() {
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<String> loader = () -> "v" + loads.incrementAndGet();
+        cache.get("k", loader);
+        now.addAndGet(60_000);
+
+        assertEquals("v1", cache.get("k", loader));
+        assertEquals("v1", cache.get("k", loader));
+        assertEquals(1, pendingRefreshes.size());
+
+        pendingRefreshes.remove(0).run();
+
+        assertEquals("v2", cache.get("k", loader));
+        assertEquals(2, cache.getStaleHits());
+        assertEquals(1, cache.getRefreshes());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testRefreshRunsTheReloaderAndTheCountersAreFlushedAsDeltas() {
+        RequestMetrics first = new RequestMetrics();
+        cache.flushCounters(first);
+        cache.getAsync("k", () -> "loaded", () -> "reloaded", Runnable::run).join();
+        now.addAndGet(60_000);
+
+        assertEquals("loaded", cache.getAsync("k", () -> "loaded", () -> "reloaded", Runnable::run).join());
+        pendingRefreshes.remove(0).run();
+        assertEquals("reloaded", cache.getAsync("k", () -> "loaded", () -> "reloaded", Runnable::run).join());
+
+        RequestMetrics second = new RequestMetrics();
+        cache.flushCounters(second);
+        String line = second.flush("f", null, 0, false, 0, 0);
+        assertTrue(line.contains("\"CacheHits\":1"), line);
+        assertTrue(line.contains("\"CacheMisses\":1"), line);
+        assertTrue(line.contains("\"CacheStaleHits\":1"), line);
+        assertTrue(line.contains("\"CacheRefreshes\":1"), line);
+        RequestMetrics third = new RequestMetrics();
+        cache.flushCounters(third);
+        assertFalse(third.flush("f", null, 0, false, 0, 0).contains("Cache"), "nothing happened since");
+    }
+
+    @Test
+    public void testPeekNeverLoadsButStartsTheRefreshOfAStaleEntry() {
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<String> loader = () -> "v" + loads.incrementAndGet();
+
+        assertNull(cache.peek("k", loader));
+        assertEquals(0, loads.get());
+        cache.get("k", loader);
+        assertEquals("v1", cache.peek("k", loader));
+        now.addAndGet(60_000);
+        assertEquals("v1", cache.peek("k", loader));
+        assertEquals("v1", cache.peek("k", loader));
+
+        assertEquals(1, pendingRefreshes.size());
+        pendingRefreshes.remove(0).run();
+        assertEquals("v2", cache.peek("k", loader));
+    }
+
+    @Test
+    public void testFailedRefreshKeepsLastKnownGoodValue() {
+        cache.get("k", () -> "good");
+        now.addAndGet(120_000);
+        Supplier<String> failing = () -> {
+            throw new RuntimeException("ProvisionedThroughputExceeded");
+        };
+
+        assertEquals("good", cache.get("k", failing));
+        pendingRefreshes.remove(0).run();
+        assertEquals("good", cache.get("k", failing));
+
+        assertEquals(1, cache.getRefreshFailures());
+        assertEquals(1, pendingRefreshes.size(), "a later stale read retries the refresh");
+    }
+
+    @Test
+    public void testMissPropagatesLoaderFailure() {
+        assertThrows(RuntimeException.class, () -> cache.get("k", () -> {
+            throw new RuntimeException("down");
+        }));
+        assertEquals("up", cache.get("k", () -> "up"));
+    }
+
+    @Test
+    public void testZeroTtlDisablesCaching() {
+        GlobalStatsCache disabled = new GlobalStatsCache(0, now::get, pendingRefreshes::add);
+        AtomicInteger loads = new AtomicInteger();
+
+        disabled.get("k", loads::incrementAndGet);
+        disabled.get("k", loads::incrementAndGet);
+
+        assertEquals(2, loads.get());
+        assertEquals(2, disabled.getMisses());
+    }
+
+    @Test
+    public void testLoadFinishingAfterClearIsNotKept() {
+        assertEquals("old", cache.get("k", () -> {
+            cache.clear();
+            return "old";
+        }));
+
+        assertEquals("new", cache.get("k", () -> "new"));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<String> loader = () -> {
+            sleep(20);
+            return "v" + loads.incrementAndGet();
+        };
+
+        List<String> values = concurrently(THREADS, () -> cache.getAsync("k", loader, pool).join());
+
+        assertEquals(Collections.nCopies(THREADS, "v1"), values);
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(THREADS - 1, cache.getCoalesced() + cache.getHits());
+    }
+
+    @Test
+    public void testConcurrentStaleReadsShareOneRefresh() throws Exception {
+        GlobalStatsCache waiting = new GlobalStatsCache(60_000, 5_000, now::get, pool);
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<String> loader = () -> {
+            sleep(20);
+            return "v" + loads.incrementAndGet();
+        };
+        waiting.get("k", loader);
+
+        for (int refresh = 1; refresh <= 5; refresh++) {
+            now.addAndGet(60_000);
+            List<String> values = concurrently(THREADS, () -> waiting.get("k", loader));
+
+            assertEquals(Collections.nCopies(THREADS, "v" + (refresh + 1)), values, "the refresh is waited for");
+            assertEquals(refresh + 1, loads.get(), "one load per refresh");
+        }
+        assertEquals(5, waiting.getRefreshes());
+    }
+
+    @Test
+    public void testStaleReadWaitsForTheRefreshOnlySoLong() {
+        GlobalStatsCache waiting = new GlobalStatsCache(60_000, 50, now::get, pendingRefreshes::add);
+        waiting.get("k", () -> "good");
+        now.addAndGet(60_000);
+
+        long start = System.nanoTime();
+        assertEquals("good", waiting.get("k", () -> "never run"));
+        assertEquals("good", waiting.getAsync("k", () -> "never run", pool).join());
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(1, pendingRefreshes.size());
+    }
+
+    @Test
+    public void testFailedFirstLoadFailsEveryWaiterAndIsRetried() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<String> failing = () -> {
+            loads.incrementAndGet();
+            sleep(200);
+            throw new RuntimeException("down");
+        };
+
+        List<String> outcomes = concurrently(THREADS, () -> {
+            try {
+                return cache.getAsync("k", failing, pool).join();
+            } catch (CompletionException e) {
+                return e.getCause().getMessage();
+            }
+        });
+
+        assertEquals(Collections.nCopies(THREADS, "down"), outcomes);
+        assertEquals(1, loads.get());
+        assertEquals("up", cache.get("k", () -> "up"));
+    }
+
+    /**
+     * Runs {@code call} on {@code threads} threads that start together.
+     */
+    private static <T> List<T> concurrently(int threads, Callable<T> call) throws Exception {
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch ready = new CountDownLatch(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(callers.submit(() -> {
+                    ready.countDown();
+                    start.await();
+                    return call.call();
+                }));
+            }
+            ready.await();
+            start.countDown();
+            List<T> values = new ArrayList<>();
+            for (Future<T> future : futures) {
+                values.add(future.get(10, TimeUnit.SECONDS));
+            }
+            return values;
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.boycottpro.users;
+
+import com.boycottpro.models.Companies;
+import com.boycottpro.users.model.GlobalStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GlobalStatsRepositoryTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+    private InMemoryDynamoDb dynamoDb;
+
+    @BeforeEach
+    public void setUp() {
+        // 5 items per page, so every table below spans many pages
+        dynamoDb = new InMemoryDynamoDb()
+                .pageSize(5)
+                .createTable("companies", "company_id", null)
+                .createTable("causes", "cause_id", null)
+                .createTable("cause_company_stats", "cause_id", "company_id")
+                .createIndex("cause_company_stats", "company_cause_stats_index", "company_id", "boycott_count");
+        for (int i = 0; i < 200; i++) {
+            dynamoDb.put("companies", Map.of("company_id", AttributeValue.fromS("c" + i),
+                    "company_name", AttributeValue.fromS("Company " + i),
+                    "boycott_count", AttributeValue.fromN(Integer.toString(i % 50))));
+            dynamoDb.put("causes", Map.of("cause_id", AttributeValue.fromS("k" + i),
+                    "category", AttributeValue.fromS("category"),
+                    "cause_desc", AttributeValue.fromS("Cause " + i),
+                    "follower_count", AttributeValue.fromN(Integer.toString(i % 70))));
+        }
+        dynamoDb.put("companies", Map.of("company_id", AttributeValue.fromS("zz-last"),
+                "company_name", AttributeValue.fromS("Last Page Inc"),
+                "boycott_count", AttributeValue.fromN("500")));
+        dynamoDb.put("cause_company_stats", Map.of("cause_id", AttributeValue.fromS("k1"),
+                "company_id", AttributeValue.fromS("zz-last"),
+                "cause_desc", AttributeValue.fromS("Cause 1"),
+                "boycott_count", AttributeValue.fromN("12")));
+        // company without a count is ignored, like in the original single-page scan
+        dynamoDb.put("companies", Map.of("company_id", AttributeValue.fromS("no-count"),
+                "company_name", AttributeValue.fromS("No Count")));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSingleSegmentScanFollowsEveryPage() {
+        GlobalStatsRepository repository = new GlobalStatsRepository(dynamoDb);
+
+        Companies worst = repository.getCompanyWithMostBoycotts();
+
+        assertEquals("zz-last", worst.getCompany_id());
+        assertEquals(500, worst.getBoycott_count());
+        assertEquals(41, dynamoDb.calls("scan", "companies"));
+    }
+
+    @Test
+    public void testParallelSegmentsMergeIntoGlobalMax() {
+        GlobalStatsRepository repository = new GlobalStatsRepository(AsyncDynamoDb.of(dynamoDb, executor), 4);
+
+        GlobalStats stats = repository.computeFromTables(0);
+
+        assertEquals("zz-last", stats.getWorstCompanyId());
+        assertEquals("Last Page Inc", stats.getWorstCompanyName());
+        assertEquals(500, stats.getWorstCount());
+        assertEquals("Cause 1", stats.getTopReason());
+        assertEquals(69, stats.getFollowerCount());
+        assertTrue(dynamoDb.calls("scan", "companies") >= 41);
+    }
+
+    @Test
+    public void testEmptyTablesYieldPlaceholders() {
+        InMemoryDynamoDb empty = new InMemoryDynamoDb()
+                .createTable("companies", "company_id", null)
+                .createTable("causes", "cause_id", null);
+        GlobalStatsRepository repository = new GlobalStatsRepository(AsyncDynamoDb.of(empty, executor), 3);
+
+        GlobalStats stats = repository.computeFromTables(0);
+
+        assertNull(stats.getWorstCompanyName());
+        assertEquals("N/A", stats.getTopReason());
+        assertEquals(0, stats.getFollowerCount());
+    }
+}
@@ -0,0 +1,347 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.StreamRecord;
+import com.boycottpro.users.model.GlobalStats;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replays DynamoDB stream records against {@link InMemoryDynamoDb} and checks the
+ * resulting "global_stats" leaderboard item.
+ */
+public class GlobalStatsStreamHandlerTest {
+
+    private InMemoryDynamoDb dynamoDb;
+    private GlobalStatsStreamHandler handler;
+    private int sequence;
+
+    @BeforeEach
+    public void setUp() {
+        dynamoDb = new InMemoryDynamoDb()
+                .createTable("companies", "company_id", null)
+                .createIndex("companies", "companies_leaderboard_index", "leaderboard_shard", "boycott_count")
+                .createTable("causes", "cause_id", null)
+                .createIndex("causes", "causes_leaderboard_index", "leaderboard_shard", "follower_count")
+                .createTable("cause_company_stats", "cause_id", "company_id")
+                .createIndex("cause_company_stats", "company_cause_stats_index", "company_id", "boycott_count")
+                .createTable("global_stats", "stat_id", null);
+        putCompany("c1", "Acme", 10);
+        putCompany("c2", "Globex", 4);
+        putCause("k1", "Labor", 7);
+        putCause("k2", "Environment", 3);
+        putReason("k1", "c1", "Labor", 6);
+        putReason("k2", "c1", "Environment", 2);
+        putReason("k2", "c2", "Environment", 4);
+        handler = new GlobalStatsStreamHandler(dynamoDb);
+    }
+
+    @Test
+    public void testFirstRecordSeedsLeaderboardFromTables() {
+        replay(companyRecord("MODIFY", "c2", "Globex", 4, 5));
+
+        GlobalStats stats = leaderboard();
+        assertEquals("c1", stats.getWorstCompanyId());
+        assertEquals("Acme", stats.getWorstCompanyName());
+        assertEquals(10, stats.getWorstCount());
+        assertEquals("Labor", stats.getTopReason());
+        assertEquals("Labor", stats.getCauseName());
+        assertEquals(7, stats.getFollowerCount());
+        assertEquals(1, stats.getVersion());
+    }
+
+    @Test
+    public void testCompanyOvertakingLeaderBecomesWorstCompany() {
+        seed();
+        putCompany("c2", "Globex", 12);
+
+        replay(companyRecord("MODIFY", "c2", "Globex", 4, 12));
+
+        GlobalStats stats = leaderboard();
+        assertEquals("c2", stats.getWorstCompanyId());
+        assertEquals(12, stats.getWorstCount());
+        assertEquals("Environment", stats.getTopReason());
+        assertEquals("Labor", stats.getCauseName());
+        assertEquals(0, dynamoDb.calls("scan", "companies"));
+    }
+
+    @Test
+    public void testLeaderLosingBoycottsTakesTheRunnerUpFromTheIndex() {
+        seed();
+        putCompany("c1", "Acme", 3);
+
+        replay(companyRecord("MODIFY", "c1", "Acme", 10, 3));
+
+        GlobalStats stats = leaderboard();
+        assertEquals("c2", stats.getWorstCompanyId());
+        assertEquals(4, stats.getWorstCount());
+        assertEquals("Environment", stats.getTopReason());
+        assertEquals(0, dynamoDb.calls("scan", "companies"));
+        assertEquals(LeaderboardRepository.SHARDS, dynamoDb.calls("query", "companies"));
+    }
+
+    @Test
+    public void testLeaderStillAheadKeepsItsPlaceWithTheNewCount() {
+        seed();
+        putCompany("c1", "Acme", 6);
+
+        replay(companyRecord("MODIFY", "c1", "Acme", 10, 6));
+
+        GlobalStats stats = leaderboard();
+        assertEquals("c1", stats.getWorstCompanyId());
+        assertEquals(6, stats.getWorstCount());
+        assertEquals("Labor", stats.getTopReason());
+    }
+
+    @Test
+    public void testRenamedLeaderIsRenamedInTheLeaderboard() {
+        seed();
+        putCompany("c1", "Acme Corp", 10);
+        putCause("k1", "Labour", 7);
+
+        replay(companyRecord("MODIFY", "c1", "Acme", "Acme Corp", 10),
+                record("causes", "MODIFY",
+                        Map.of("cause_id", s("k1"), "cause_desc", s("Labor"), "follower_count", n(7)),
+                        Map.of("cause_id", s("k1"), "cause_desc", s("Labour"), "follower_count", n(7))));
+
+        GlobalStats stats = leaderboard();
+        assertEquals("Acme Corp", stats.getWorstCompanyName());
+        assertEquals(10, stats.getWorstCount());
+        assertEquals("Labour", stats.getCauseName());
+        assertEquals(0, dynamoDb.calls("scan", "companies") + dynamoDb.calls("scan", "causes"));
+    }
+
+    @Test
+    public void testSmallerCountAndUnrelatedChangesLeaveLeaderboardUntouched() {
+        seed();
+
+        replay(companyRecord("MODIFY", "c2", "Globex", 4, 5),
+                companyRecord("MODIFY", "c2", "Globex Corp", 5, 5),
+                companyRecord("MODIFY", "c1", "Acme", 10, 10),
+                causeRecord("INSERT", "k3", "Animals", 0, 1));
+
+        assertEquals(1, leaderboard().getVersion());
+        assertEquals(0, dynamoDb.calls("putItem", "global_stats"));
+    }
+
+    @Test
+    public void testRedeliveredRecordIsIdempotent() {
+        seed();
+        putCause("k2", "Environment", 9);
+        DynamodbEvent.DynamodbStreamRecord record = causeRecord("MODIFY", "k2", "Environment", 3, 9);
+
+        replay(record);
+        replay(record);
+
+        GlobalStats stats = leaderboard();
+        assertEquals("k2", stats.getTopCauseId());
+        assertEquals(9, stats.getFollowerCount());
+        assertEquals(2, stats.getVersion());
+    }
+
+    @Test
+    public void testTopCauseLosingFollowersTakesTheRunnerUpFromTheIndex() {
+        seed();
+        putCause("k1", "Labor", 1);
+
+        replay(causeRecord("MODIFY", "k1", "Labor", 7, 1));
+
+        GlobalStats stats = leaderboard();
+        assertEquals("k2", stats.getTopCauseId());
+        assertEquals(3, stats.getFollowerCount());
+        assertEquals(0, dynamoDb.calls("scan", "causes"));
+        assertEquals(LeaderboardRepository.SHARDS, dynamoDb.calls("query", "causes"));
+    }
+
+    @Test
+    public void testReasonChangeForLeaderUpdatesTopReason() {
+        seed();
+        putReason("k2", "c1", "Environment", 8);
+
+        DynamodbEvent.DynamodbStreamRecord record = record("cause_company_stats", "MODIFY",
+                Map.of("cause_id", s("k2"), "company_id", s("c1"), "cause_desc", s("Environment"),
+                        "boycott_count", n(8)));
+        replay(record);
+
+        assertEquals("Environment", leaderboard().getTopReason());
+    }
+
+    @Test
+    public void testFailedRecordIsReportedForRetry() {
+        seed();
+        DynamodbEvent.DynamodbStreamRecord good = companyRecord("MODIFY", "c2", "Globex", 4, 5);
+        DynamodbEvent.DynamodbStreamRecord bad = companyRecord("MODIFY", "c9", "Initech", 0, 50);
+        bad.getDynamodb().getNewImage().remove("company_id");
+
+        StreamsEventResponse response = replay(good, bad, causeRecord("MODIFY", "k1", "Labor", 7, 8));
+
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals(bad.getDynamodb().getSequenceNumber(),
+                response.getBatchItemFailures().get(0).getItemIdentifier());
+        assertEquals(7, leaderboard().getFollowerCount());
+    }
+
+    @Test
+    public void testStatsHandlerReadsLeaderboardWithoutScanning() {
+        seed();
+        dynamoDb.createTable("user_boycotts", "user_id", "company_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("user_stats", "user_id", "stat_key");
+        dynamoDb.put("user_boycotts", Map.of("user_id", AttributeValue.fromS("u1"),
+                "company_id", AttributeValue.fromS("c1")));
+        dynamoDb.resetCalls();
+        GetUserStatsHandler.globalStatsCache().clear();
+
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent();
+        Map<String, Object> authorizer = new HashMap<>();
+        authorizer.put("claims", Map.of("sub", "u1"));
+        APIGatewayProxyRequestEvent.ProxyRequestContext rc = new APIGatewayProxyRequestEvent.ProxyRequestContext();
+        rc.setAuthorizer(authorizer);
+        event.setRequestContext(rc);
+
+        APIGatewayProxyResponseEvent response = new GetUserStatsHandler(dynamoDb).handleRequest(event, null);
+
+        assertEquals(200, response.getStatusCode());
+        assertTrue(response.getBody().contains("\"worstCompanyName\":\"Acme\""));
+        assertEquals(1, dynamoDb.calls("getItem", "global_stats"));
+        assertEquals(Set.of("global_stats", "user_stats", "user_boycotts", "user_causes"), dynamoDb.touchedTables());
+    }
+
+    @Test
+    public void testNewItemsArePutOnALeaderboardShard() {
+        seed();
+        putCompany("c3", "Initech", 0);
+
+        replay(companyRecord("INSERT", "c3", "Initech", 0, 0), causeRecord("MODIFY", "k2", "Environment", 3, 3));
+
+        assertEquals(AttributeValue.fromN(Integer.toString(LeaderboardRepository.shardOf("c3", LeaderboardRepository.SHARDS))),
+                dynamoDb.get("companies", Map.of("company_id", AttributeValue.fromS("c3"))).get("leaderboard_shard"));
+        assertEquals(AttributeValue.fromN(Integer.toString(LeaderboardRepository.shardOf("k2", LeaderboardRepository.SHARDS))),
+                dynamoDb.get("causes", Map.of("cause_id", AttributeValue.fromS("k2"))).get("leaderboard_shard"));
+        assertEquals(1, dynamoDb.calls("updateItem", "companies"));
+
+        // the update comes back on the stream with the shard set, and is not written again
+        Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> sharded = Map.of(
+                "company_id", s("c3"), "company_name", s("Initech"), "boycott_count", n(0),
+                "leaderboard_shard", n(LeaderboardRepository.shardOf("c3", LeaderboardRepository.SHARDS)));
+        replay(record("companies", "MODIFY", sharded), record("companies", "REMOVE", sharded));
+        assertEquals(1, dynamoDb.calls("updateItem", "companies"));
+        assertEquals(1, leaderboard().getVersion());
+    }
+
+    @Test
+    public void testItemsOnTheShardOfAnEarlierCountAreMoved() {
+        seed();
+        putCompany("c3", "Initech", 0);
+
+        // written while LEADERBOARD_SHARDS was 8
+        replay(record("companies", "MODIFY", Map.of("company_id", s("c3"), "company_name", s("Initech"),
+                "boycott_count", n(0), "leaderboard_shard", n(7))));
+
+        assertEquals(AttributeValue.fromN(Integer.toString(LeaderboardRepository.shardOf("c3", LeaderboardRepository.SHARDS))),
+                dynamoDb.get("companies", Map.of("company_id", AttributeValue.fromS("c3"))).get("leaderboard_shard"));
+        assertEquals(1, dynamoDb.calls("updateItem", "companies"));
+    }
+
+    private void seed() {
+        replay(companyRecord("MODIFY", "c1", "Acme", 9, 10));
+        dynamoDb.resetCalls();
+    }
+
+    private GlobalStats leaderboard() {
+        return GlobalStatsRepository.fromItem(dynamoDb.get("global_stats",
+                Map.of("stat_id", AttributeValue.fromS("leaderboard"))));
+    }
+
+    private StreamsEventResponse replay(DynamodbEvent.DynamodbStreamRecord... records) {
+        DynamodbEvent event = new DynamodbEvent();
+        event.setRecords(Arrays.asList(records));
+        return handler.handleRequest(event, null);
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord companyRecord(String eventName, String id, String name,
+                                                             int oldCount, int newCount) {
+        return record("companies", eventName,
+                Map.of("company_id", s(id), "company_name", s(name), "boycott_count", n(oldCount)),
+                Map.of("company_id", s(id), "company_name", s(name), "boycott_count", n(newCount)));
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord companyRecord(String eventName, String id, String oldName,
+                                                             String newName, int count) {
+        return record("companies", eventName,
+                Map.of("company_id", s(id), "company_name", s(oldName), "boycott_count", n(count)),
+                Map.of("company_id", s(id), "company_name", s(newName), "boycott_count", n(count)));
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord causeRecord(String eventName, String id, String desc,
+                                                           int oldCount, int newCount) {
+        return record("causes", eventName,
+                Map.of("cause_id", s(id), "cause_desc", s(desc), "follower_count", n(oldCount)),
+                Map.of("cause_id", s(id), "cause_desc", s(desc), "follower_count", n(newCount)));
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord record(
+            String table, String eventName,
+            Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> newImage) {
+        return record(table, eventName, newImage, newImage);
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord record(
+            String table, String eventName,
+            Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> oldImage,
+            Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> newImage) {
+        String sequenceNumber = Integer.toString(++sequence);
+        StreamRecord streamRecord = new StreamRecord()
+                .withSequenceNumber(sequenceNumber)
+                .withOldImage("INSERT".equals(eventName) ? null : new HashMap<>(oldImage))
+                .withNewImage("REMOVE".equals(eventName) ? null : new HashMap<>(newImage));
+        DynamodbEvent.DynamodbStreamRecord record = new DynamodbEvent.DynamodbStreamRecord();
+        record.setEventSourceARN("arn:aws:dynamodb:us-east-1:123456789012:table/" + table
+                + "/stream/2024-01-01T00:00:00.000");
+        record.setEventID("event-" + sequenceNumber);
+        record.setEventName(eventName);
+        record.setDynamodb(streamRecord);
+        return record;
+    }
+
+    private void putCompany(String id, String name, int boycottCount) {
+        dynamoDb.put("companies", Map.of("company_id", AttributeValue.fromS(id),
+                "company_name", AttributeValue.fromS(name),
+                "boycott_count", AttributeValue.fromN(Integer.toString(boycottCount)),
+                "leaderboard_shard", AttributeValue.fromN(Integer.toString(
+                        LeaderboardRepository.shardOf(id, LeaderboardRepository.SHARDS)))));
+    }
+
+    private void putCause(String id, String desc, int followerCount) {
+        dynamoDb.put("causes", Map.of("cause_id", AttributeValue.fromS(id),
+                "category", AttributeValue.fromS("category"),
+                "cause_desc", AttributeValue.fromS(desc),
+                "follower_count", AttributeValue.fromN(Integer.toString(followerCount)),
+                "leaderboard_shard", AttributeValue.fromN(Integer.toString(
+                        LeaderboardRepository.shardOf(id, LeaderboardRepository.SHARDS)))));
+    }
+
+    private void putReason(String causeId, String companyId, String causeDesc, int boycottCount) {
+        dynamoDb.put("cause_company_stats", Map.of("cause_id", AttributeValue.fromS(causeId),
+                "company_id", AttributeValue.fromS(companyId),
+                "cause_desc", AttributeValue.fromS(causeDesc),
+                "boycott_count", AttributeValue.fromN(Integer.toString(boycottCount))));
+    }
+
+    private static com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue s(String value) {
+        return new com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue().withS(value);
+    }
+
+    private static com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue n(int value) {
+        return new com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue()
+                .withN(Integer.toString(value));
+    }
+}
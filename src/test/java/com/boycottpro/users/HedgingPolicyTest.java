@@ -0,0 +1,146 @@
+package com.boycottpro.users;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.GetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.ProvisionedThroughputExceededException;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Slow and throttled reads from {@link FaultInjectingDynamoDb} through
+ * {@link AsyncDynamoDb#hedged}.
+ */
+public class HedgingPolicyTest {
+
+    private static final GetItemRequest READ = GetItemRequest.builder()
+            .tableName("stats")
+            .key(Map.of("id", AttributeValue.fromS("a")))
+            .build();
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private InMemoryDynamoDb local;
+    private FaultInjectingDynamoDb dynamoDb;
+    private RequestMetrics metrics;
+
+    @BeforeEach
+    public void setUp() {
+        local = new InMemoryDynamoDb().createTable("stats", "id", null);
+        local.put("stats", Map.of("id", AttributeValue.fromS("a"), "n", AttributeValue.fromN("1")));
+        dynamoDb = new FaultInjectingDynamoDb(local);
+        metrics = new RequestMetrics();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSlowReadIsHedgedAfterThePercentile() {
+        AsyncDynamoDb hedged = hedged(new HedgingPolicy(10_000, 95, 5));
+        for (int i = 0; i < 50; i++) {
+            AsyncDynamoDb.join(hedged.getItem(READ));
+        }
+        events();
+        dynamoDb.slow("stats", 2000, 1);
+
+        long start = System.nanoTime();
+        assertEquals("1", AsyncDynamoDb.join(hedged.getItem(READ)).item().get("n").n());
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000, "the duplicate answered");
+        assertTrue(events().contains("\"HedgedReads\":1"));
+    }
+
+    @Test
+    public void testNothingIsHedgedBeforeLatenciesAreKnown() {
+        HedgingPolicy policy = new HedgingPolicy(10_000, 95, 5);
+        AsyncDynamoDb hedged = hedged(policy);
+        for (int i = 0; i < 5; i++) {
+            AsyncDynamoDb.join(hedged.getItem(READ));
+        }
+        assertEquals(0, policy.hedgeDelayNanos("stats.GetItem"));
+        assertEquals(0, new HedgingPolicy(10_000, 0, 5).hedgeDelayNanos("stats.GetItem"), "disabled");
+        assertFalse(events().contains("HedgedReads"));
+    }
+
+    @Test
+    public void testThrottledReadIsNotDuplicated() {
+        AsyncDynamoDb hedged = hedged(new HedgingPolicy(10_000, 95, 5));
+        dynamoDb.throttle("stats", 1);
+
+        // a duplicate would have found the table answering again; retrying is the SDK's job
+        assertThrows(ProvisionedThroughputExceededException.class, () -> AsyncDynamoDb.join(hedged.getItem(READ)));
+        assertFalse(events().contains("HedgedReads"));
+    }
+
+    @Test
+    public void testAttemptTimeoutBoundsEachAttempt() {
+        AsyncDynamoDb hedged = hedged(new HedgingPolicy(100, 0, 5));
+        dynamoDb.slow("stats", 3000, 1);
+
+        long start = System.nanoTime();
+        CompletionException e = assertThrows(CompletionException.class, () -> AsyncDynamoDb.join(hedged.getItem(READ)));
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1500, "the attempt gave up");
+        String events = events();
+        assertTrue(events.contains("\"AttemptTimeouts\":1"));
+        assertFalse(events.contains("HedgedReads"), "a timeout is not hedged");
+    }
+
+    @Test
+    public void testScanPagesAreNotHedged() {
+        AsyncDynamoDb hedged = hedged(new HedgingPolicy(10_000, 95, 5));
+        ScanRequest scan = ScanRequest.builder().tableName("stats").build();
+        for (int i = 0; i < 50; i++) {
+            AsyncDynamoDb.join(hedged.scan(scan));
+        }
+        dynamoDb.slow("stats", 300, 1);
+
+        assertEquals(1, AsyncDynamoDb.join(hedged.scan(scan)).items().size());
+        assertFalse(events().contains("HedgedReads"));
+    }
+
+    @Test
+    public void testAttemptTimeoutIsCutToTheDeadline() {
+        // the attempt would answer after 3 s, well within its own timeout
+        AsyncDynamoDb hedged = hedged(new HedgingPolicy(10_000, 0, 5), Deadline.in(100));
+        dynamoDb.slow("stats", 3000, 1);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> AsyncDynamoDb.join(hedged.getItem(READ)));
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        String events = events();
+        assertTrue(events.contains("\"AttemptTimeouts\":1"));
+        assertFalse(events.contains("HedgedReads"), "no duplicate once the budget is used up");
+
+        local.resetCalls();
+        AsyncDynamoDb late = hedged(new HedgingPolicy(10_000, 0, 5), Deadline.in(0));
+        e = assertThrows(CompletionException.class, () -> AsyncDynamoDb.join(late.getItem(READ)));
+        assertInstanceOf(TimeoutException.class, e.getCause());
+        assertEquals(0, local.calls("getItem", "stats"), "nothing is sent without a budget");
+        assertThrows(TimeoutException.class, () -> Deadline.in(0).await(late.getItem(READ)),
+                "a wait on the cut attempt times out like the deadline itself");
+    }
+
+    private AsyncDynamoDb hedged(HedgingPolicy policy) {
+        return hedged(policy, Deadline.NONE);
+    }
+
+    private AsyncDynamoDb hedged(HedgingPolicy policy, Deadline deadline) {
+        return AsyncDynamoDb.hedged(AsyncDynamoDb.of(dynamoDb, executor), policy, deadline, metrics);
+    }
+
+    private String events() {
+        return metrics.flush("test", null, 0, false, 0, 0);
+    }
+}
@@ -0,0 +1,622 @@
+package com.boycottpro.users;
+
+import software.amazon.awssdk.services.dynamodb.DynamoDbClient;
+import software.amazon.awssdk.services.dynamodb.model.*;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Local stand-in for DynamoDB that keeps tables in memory. It understands the subset of
+ * key conditions, condition expressions and paging this project uses, and counts the
+ * calls made against every table so tests can assert on access patterns.
+ */
+public class InMemoryDynamoDb implements DynamoDbClient {
+
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final Object transactionLock = new Object();
+    private int pageSize = 1000;
+    private int batchGetLimit = 100;
+    private int batchWriteLimit = 25;
+    private long latencyMicros;
+    private volatile boolean closed;
+
+    public InMemoryDynamoDb createTable(String name, String partitionKey, String sortKey) {
+        tables.put(name, new Table(partitionKey, sortKey));
+        return this;
+    }
+
+    public InMemoryDynamoDb createIndex(String table, String indexName, String partitionKey, String sortKey) {
+        tables.get(table).indexes.put(indexName, new String[]{partitionKey, sortKey});
+        return this;
+    }
+
+    /**
+     * Maximum number of items returned per Query/Scan page, standing in for the 1 MB limit.
+     */
+    public InMemoryDynamoDb pageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * Maximum number of keys answered per BatchGetItem; the others come back as
+     * UnprocessedKeys, standing in for the 16 MB limit and throttled partitions.
+     */
+    public InMemoryDynamoDb batchGetLimit(int batchGetLimit) {
+        this.batchGetLimit = batchGetLimit;
+        return this;
+    }
+
+    /**
+     * Maximum number of writes applied per BatchWriteItem; the others come back as
+     * UnprocessedItems, as they do when the table is throttled.
+     */
+    public InMemoryDynamoDb batchWriteLimit(int batchWriteLimit) {
+        this.batchWriteLimit = batchWriteLimit;
+        return this;
+    }
+
+    /**
+     * Delay added to every call, standing in for the network round trip to DynamoDB.
+     */
+    public InMemoryDynamoDb latencyMicros(long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+        return this;
+    }
+
+    public void put(String table, Map<String, AttributeValue> item) {
+        Table t = table(table);
+        synchronized (t) {
+            t.items.put(t.key(item), new HashMap<>(item));
+        }
+    }
+
+    public Map<String, AttributeValue> get(String table, Map<String, AttributeValue> key) {
+        Table t = table(table);
+        synchronized (t) {
+            return t.items.get(t.key(key));
+        }
+    }
+
+    public int size(String table) {
+        return table(table).items.size();
+    }
+
+    /**
+     * @return how often {@code operation} ("getItem", "query", "scan", ...) was called on {@code table}
+     */
+    public int calls(String operation, String table) {
+        AtomicInteger count = calls.get(operation + ":" + table);
+        return count == null ? 0 : count.get();
+    }
+
+    public Set<String> touchedTables() {
+        Set<String> touched = new TreeSet<>();
+        calls.keySet().forEach(k -> touched.add(k.substring(k.indexOf(':') + 1)));
+        return touched;
+    }
+
+    public void resetCalls() {
+        calls.clear();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public GetItemResponse getItem(GetItemRequest request) {
+        count("getItem", request.tableName());
+        Map<String, AttributeValue> item = get(request.tableName(), request.key());
+        GetItemResponse.Builder response = GetItemResponse.builder();
+        if (item != null) {
+            response.item(project(item, request.projectionExpression(), request.expressionAttributeNames()));
+        }
+        return response.consumedCapacity(readCapacity(request.tableName(), request.returnConsumedCapacity(),
+                request.consistentRead())).build();
+    }
+
+    /**
+     * Like DynamoDB, more than 100 keys in one request are rejected rather than left unprocessed.
+     */
+    @Override
+    public BatchGetItemResponse batchGetItem(BatchGetItemRequest request) {
+        int keys = 0;
+        for (KeysAndAttributes table : request.requestItems().values()) {
+            keys += table.keys().size();
+        }
+        if (keys > 100) {
+            throw DynamoDbException.builder().message("Too many items requested for the BatchGetItem call").build();
+        }
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        Map<String, KeysAndAttributes> unprocessed = new HashMap<>();
+        List<ConsumedCapacity> consumed = new ArrayList<>();
+        int answered = 0;
+        for (Map.Entry<String, KeysAndAttributes> entry : request.requestItems().entrySet()) {
+            String table = entry.getKey();
+            KeysAndAttributes read = entry.getValue();
+            count("batchGetItem", table);
+            List<Map<String, AttributeValue>> items = new ArrayList<>();
+            List<Map<String, AttributeValue>> left = new ArrayList<>();
+            for (Map<String, AttributeValue> key : read.keys()) {
+                if (answered++ >= batchGetLimit) {
+                    left.add(key);
+                    continue;
+                }
+                Map<String, AttributeValue> item = get(table, key);
+                if (item != null) {
+                    items.add(project(item, read.projectionExpression(), read.expressionAttributeNames()));
+                }
+            }
+            responses.put(table, items);
+            if (!left.isEmpty()) {
+                unprocessed.put(table, read.toBuilder().keys(left).build());
+            }
+            ConsumedCapacity capacity = readCapacity(table, request.returnConsumedCapacity(), read.consistentRead());
+            if (capacity != null) {
+                consumed.add(capacity);
+            }
+        }
+        return BatchGetItemResponse.builder()
+                .responses(responses)
+                .unprocessedKeys(unprocessed)
+                .consumedCapacity(consumed)
+                .build();
+    }
+
+    @Override
+    public PutItemResponse putItem(PutItemRequest request) {
+        count("putItem", request.tableName());
+        Table t = table(request.tableName());
+        synchronized (t) {
+            String key = t.key(request.item());
+            checkCondition(t.items.get(key), request.conditionExpression(),
+                    request.expressionAttributeNames(), request.expressionAttributeValues());
+            t.items.put(key, new HashMap<>(request.item()));
+        }
+        return PutItemResponse.builder().build();
+    }
+
+    @Override
+    public DeleteItemResponse deleteItem(DeleteItemRequest request) {
+        count("deleteItem", request.tableName());
+        Table t = table(request.tableName());
+        synchronized (t) {
+            String key = t.key(request.key());
+            checkCondition(t.items.get(key), request.conditionExpression(),
+                    request.expressionAttributeNames(), request.expressionAttributeValues());
+            t.items.remove(key);
+        }
+        return DeleteItemResponse.builder().build();
+    }
+
+    @Override
+    public UpdateItemResponse updateItem(UpdateItemRequest request) {
+        count("updateItem", request.tableName());
+        Table t = table(request.tableName());
+        synchronized (t) {
+            Map<String, AttributeValue> existing = t.items.get(t.key(request.key()));
+            checkCondition(existing, request.conditionExpression(),
+                    request.expressionAttributeNames(), request.expressionAttributeValues());
+            update(t, request.key(), existing, request.updateExpression(),
+                    request.expressionAttributeNames(), request.expressionAttributeValues());
+        }
+        return UpdateItemResponse.builder().build();
+    }
+
+    /**
+     * All conditions are checked before anything is written. When one fails, nothing is
+     * written and the cancellation reasons say which one, as with the real service.
+     * Transactions are atomic with respect to each other, not to single-item writes.
+     */
+    @Override
+    public TransactWriteItemsResponse transactWriteItems(TransactWriteItemsRequest request) {
+        List<Write> writes = new ArrayList<>();
+        for (TransactWriteItem item : request.transactItems()) {
+            writes.add(new Write(item));
+        }
+        count("transactWriteItems", writes.get(0).table);
+        synchronized (transactionLock) {
+            List<CancellationReason> reasons = new ArrayList<>();
+            boolean cancelled = false;
+            for (Write write : writes) {
+                Table t = table(write.table);
+                try {
+                    synchronized (t) {
+                        checkCondition(t.items.get(t.key(write.key)), write.condition, write.names, write.values);
+                    }
+                    reasons.add(CancellationReason.builder().code("None").build());
+                } catch (ConditionalCheckFailedException e) {
+                    reasons.add(CancellationReason.builder().code("ConditionalCheckFailed")
+                            .message(e.getMessage()).build());
+                    cancelled = true;
+                }
+            }
+            if (cancelled) {
+                throw TransactionCanceledException.builder()
+                        .message("Transaction cancelled, please refer cancellation reasons for specific reasons")
+                        .cancellationReasons(reasons)
+                        .build();
+            }
+            for (Write write : writes) {
+                Table t = table(write.table);
+                synchronized (t) {
+                    write.apply(t);
+                }
+            }
+        }
+        return TransactWriteItemsResponse.builder().build();
+    }
+
+    @Override
+    public BatchWriteItemResponse batchWriteItem(BatchWriteItemRequest request) {
+        Map<String, List<WriteRequest>> unprocessed = new HashMap<>();
+        int applied = 0;
+        for (Map.Entry<String, List<WriteRequest>> entry : request.requestItems().entrySet()) {
+            count("batchWriteItem", entry.getKey());
+            Table t = table(entry.getKey());
+            synchronized (t) {
+                for (WriteRequest write : entry.getValue()) {
+                    if (applied++ >= batchWriteLimit) {
+                        unprocessed.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(write);
+                    } else if (write.putRequest() != null) {
+                        t.items.put(t.key(write.putRequest().item()), new HashMap<>(write.putRequest().item()));
+                    } else {
+                        t.items.remove(t.key(write.deleteRequest().key()));
+                    }
+                }
+            }
+        }
+        return BatchWriteItemResponse.builder().unprocessedItems(unprocessed).build();
+    }
+
+    @Override
+    public QueryResponse query(QueryRequest request) {
+        count("query", request.tableName());
+        Table t = table(request.tableName());
+        String[] keys = request.indexName() == null
+                ? new String[]{t.partitionKey, t.sortKey}
+                : t.indexes.get(request.indexName());
+        String[] condition = request.keyConditionExpression().trim().split("(?i)\\s+AND\\s+");
+        AttributeValue partition = request.expressionAttributeValues().get(
+                condition[0].substring(condition[0].indexOf(':')).trim());
+        String sortPrefix = null;
+        if (condition.length > 1 && condition[1].startsWith("begins_with(")) {
+            String valueName = condition[1].substring(condition[1].indexOf(':'), condition[1].indexOf(')')).trim();
+            sortPrefix = request.expressionAttributeValues().get(valueName).s();
+        }
+
+        List<Map<String, AttributeValue>> matches = new ArrayList<>();
+        synchronized (t) {
+            Collection<Map<String, AttributeValue>> candidates = request.indexName() == null
+                    ? t.items.subMap(t.partitionPrefix(partition), t.partitionPrefix(partition) + '\uffff').values()
+                    : t.items.values();
+            for (Map<String, AttributeValue> item : candidates) {
+                if (partition.equals(item.get(keys[0])) && (sortPrefix == null
+                        || (item.containsKey(keys[1]) && String.valueOf(item.get(keys[1]).s()).startsWith(sortPrefix)))) {
+                    matches.add(item);
+                }
+            }
+        }
+        if (request.indexName() != null && keys[1] != null) {
+            matches.sort((a, b) -> compare(a.get(keys[1]), b.get(keys[1])));
+        }
+        if (Boolean.FALSE.equals(request.scanIndexForward())) {
+            Collections.reverse(matches);
+        }
+        int start = 0;
+        if (request.hasExclusiveStartKey()) {
+            String after = t.key(request.exclusiveStartKey());
+            while (start < matches.size() && !t.key(matches.get(start)).equals(after)) {
+                start++;
+            }
+            start++;
+        }
+        int limit = request.limit() == null ? pageSize : Math.min(request.limit(), pageSize);
+        int end = Math.min(matches.size(), start + limit);
+        QueryResponse.Builder response = QueryResponse.builder()
+                .count(end - start)
+                .scannedCount(end - start);
+        if (request.select() != Select.COUNT) {
+            List<Map<String, AttributeValue>> page = new ArrayList<>(end - start);
+            for (Map<String, AttributeValue> item : matches.subList(start, end)) {
+                page.add(project(item, request.projectionExpression(), request.expressionAttributeNames()));
+            }
+            response.items(page);
+        }
+        if (end < matches.size()) {
+            response.lastEvaluatedKey(t.keyOf(matches.get(end - 1), keys));
+        }
+        return response.consumedCapacity(readCapacity(request.tableName(), request.returnConsumedCapacity(),
+                request.consistentRead())).build();
+    }
+
+    @Override
+    public ScanResponse scan(ScanRequest request) {
+        count("scan", request.tableName());
+        Table t = table(request.tableName());
+        int segment = request.segment() == null ? 0 : request.segment();
+        int totalSegments = request.totalSegments() == null ? 1 : request.totalSegments();
+        int limit = request.limit() == null ? pageSize : Math.min(request.limit(), pageSize);
+
+        List<Map<String, AttributeValue>> page = new ArrayList<>();
+        Map<String, AttributeValue> lastKey = null;
+        synchronized (t) {
+            NavigableMap<String, Map<String, AttributeValue>> remaining = request.hasExclusiveStartKey()
+                    ? t.items.tailMap(t.key(request.exclusiveStartKey()), false)
+                    : t.items;
+            Iterator<Map<String, AttributeValue>> it = remaining.values().iterator();
+            while (it.hasNext() && page.size() < limit) {
+                Map<String, AttributeValue> item = it.next();
+                if (Math.floorMod(item.get(t.partitionKey).hashCode(), totalSegments) == segment) {
+                    page.add(project(item, request.projectionExpression(), request.expressionAttributeNames()));
+                    lastKey = item;
+                }
+            }
+            if (!it.hasNext()) {
+                lastKey = null;
+            }
+        }
+        ScanResponse.Builder response = ScanResponse.builder()
+                .items(page)
+                .count(page.size())
+                .scannedCount(page.size());
+        if (lastKey != null) {
+            response.lastEvaluatedKey(t.keyOf(lastKey, new String[]{t.partitionKey, t.sortKey}));
+        }
+        return response.consumedCapacity(readCapacity(request.tableName(), request.returnConsumedCapacity(),
+                request.consistentRead())).build();
+    }
+
+    /**
+     * One read unit per call, half of it for an eventually consistent read; item sizes are not modelled.
+     */
+    private static ConsumedCapacity readCapacity(String table, ReturnConsumedCapacity returnConsumedCapacity,
+                                                 Boolean consistentRead) {
+        if (returnConsumedCapacity == null || returnConsumedCapacity == ReturnConsumedCapacity.NONE) {
+            return null;
+        }
+        return ConsumedCapacity.builder()
+                .tableName(table)
+                .capacityUnits(Boolean.TRUE.equals(consistentRead) ? 1.0 : 0.5)
+                .build();
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private void count(String operation, String table) {
+        calls.computeIfAbsent(operation + ":" + table, k -> new AtomicInteger()).incrementAndGet();
+        if (latencyMicros > 0) {
+            LockSupport.parkNanos(latencyMicros * 1000);
+        }
+    }
+
+    private Table table(String name) {
+        Table t = tables.get(name);
+        if (t == null) {
+            throw ResourceNotFoundException.builder().message("Requested resource not found: " + name).build();
+        }
+        return t;
+    }
+
+    private static int compare(AttributeValue a, AttributeValue b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a.n() != null && b.n() != null) {
+            return new BigDecimal(a.n()).compareTo(new BigDecimal(b.n()));
+        }
+        return String.valueOf(a.s()).compareTo(String.valueOf(b.s()));
+    }
+
+    private static Map<String, AttributeValue> project(Map<String, AttributeValue> item, String projection,
+                                                       Map<String, String> names) {
+        if (projection == null) {
+            return item;
+        }
+        Map<String, AttributeValue> projected = new HashMap<>();
+        for (String name : projection.split(",")) {
+            String attribute = resolve(name.trim(), names);
+            if (item.containsKey(attribute)) {
+                projected.put(attribute, item.get(attribute));
+            }
+        }
+        return projected;
+    }
+
+    /**
+     * Supports {@code SET a = :v}, {@code ADD a :n} and {@code REMOVE a} actions, comma-separated.
+     */
+    private static void update(Table t, Map<String, AttributeValue> key, Map<String, AttributeValue> existing,
+                               String expression, Map<String, String> names, Map<String, AttributeValue> values) {
+        Map<String, AttributeValue> item = existing == null ? new HashMap<>(key) : new HashMap<>(existing);
+        String[] clauses = expression.trim().split("(?i)(?=\\b(SET|ADD|REMOVE)\\s)");
+        for (String clause : clauses) {
+            String trimmed = clause.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int space = trimmed.indexOf(' ');
+            String action = trimmed.substring(0, space).toUpperCase(Locale.ROOT);
+            for (String part : trimmed.substring(space + 1).split(",")) {
+                String[] tokens = part.trim().split("\\s*=\\s*|\\s+");
+                String attribute = resolve(tokens[0], names);
+                switch (action) {
+                    case "SET":
+                        item.put(attribute, values.get(tokens[1]));
+                        break;
+                    case "ADD":
+                        AttributeValue current = item.get(attribute);
+                        BigDecimal sum = new BigDecimal(values.get(tokens[1]).n())
+                                .add(current == null ? BigDecimal.ZERO : new BigDecimal(current.n()));
+                        item.put(attribute, AttributeValue.fromN(sum.toPlainString()));
+                        break;
+                    case "REMOVE":
+                        item.remove(attribute);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unsupported update " + expression);
+                }
+            }
+        }
+        t.items.put(t.key(key), item);
+    }
+
+    private static String resolve(String name, Map<String, String> names) {
+        return name.startsWith("#") ? names.get(name) : name;
+    }
+
+    /**
+     * Supports OR-separated clauses, each an AND of {@code attribute_exists(a)},
+     * {@code attribute_not_exists(a)} or {@code a <op> :value}.
+     */
+    private static void checkCondition(Map<String, AttributeValue> existing, String condition,
+                                       Map<String, String> names, Map<String, AttributeValue> values) {
+        if (condition == null) {
+            return;
+        }
+        Map<String, AttributeValue> item = existing == null ? Map.of() : existing;
+        for (String alternative : condition.split("(?i)\\s+OR\\s+")) {
+            boolean all = true;
+            for (String clause : alternative.split("(?i)\\s+AND\\s+")) {
+                String trimmed = clause.trim();
+                if (trimmed.startsWith("(") && trimmed.endsWith(")")) {
+                    trimmed = trimmed.substring(1, trimmed.length() - 1).trim();
+                }
+                all &= evaluate(item, trimmed, names, values);
+            }
+            if (all) {
+                return;
+            }
+        }
+        throw ConditionalCheckFailedException.builder().message("The conditional request failed").build();
+    }
+
+    private static boolean evaluate(Map<String, AttributeValue> item, String clause,
+                                    Map<String, String> names, Map<String, AttributeValue> values) {
+        if (clause.startsWith("attribute_not_exists(")) {
+            return !item.containsKey(resolve(clause.substring(21, clause.indexOf(')')).trim(), names));
+        }
+        if (clause.startsWith("attribute_exists(")) {
+            return item.containsKey(resolve(clause.substring(17, clause.indexOf(')')).trim(), names));
+        }
+        String[] parts = clause.split("\\s+");
+        AttributeValue actual = item.get(resolve(parts[0], names));
+        AttributeValue expected = values.get(parts[2]);
+        if (actual == null) {
+            return false;
+        }
+        int cmp = compare(actual, expected);
+        switch (parts[1]) {
+            case "=": return cmp == 0;
+            case "<>": return cmp != 0;
+            case "<": return cmp < 0;
+            case "<=": return cmp <= 0;
+            case ">": return cmp > 0;
+            case ">=": return cmp >= 0;
+            default: throw new IllegalArgumentException("unsupported condition " + clause);
+        }
+    }
+
+    /**
+     * One Put, Update, Delete or ConditionCheck of a transaction.
+     */
+    private static final class Write {
+        final String table;
+        final Map<String, AttributeValue> key;
+        final String condition;
+        final Map<String, String> names;
+        final Map<String, AttributeValue> values;
+        final TransactWriteItem item;
+
+        Write(TransactWriteItem item) {
+            this.item = item;
+            if (item.put() != null) {
+                Put put = item.put();
+                table = put.tableName();
+                key = put.item();
+                condition = put.conditionExpression();
+                names = put.expressionAttributeNames();
+                values = put.expressionAttributeValues();
+            } else if (item.update() != null) {
+                Update update = item.update();
+                table = update.tableName();
+                key = update.key();
+                condition = update.conditionExpression();
+                names = update.expressionAttributeNames();
+                values = update.expressionAttributeValues();
+            } else if (item.delete() != null) {
+                Delete delete = item.delete();
+                table = delete.tableName();
+                key = delete.key();
+                condition = delete.conditionExpression();
+                names = delete.expressionAttributeNames();
+                values = delete.expressionAttributeValues();
+            } else {
+                ConditionCheck check = item.conditionCheck();
+                table = check.tableName();
+                key = check.key();
+                condition = check.conditionExpression();
+                names = check.expressionAttributeNames();
+                values = check.expressionAttributeValues();
+            }
+        }
+
+        void apply(Table t) {
+            if (item.put() != null) {
+                t.items.put(t.key(key), new HashMap<>(key));
+            } else if (item.update() != null) {
+                update(t, key, t.items.get(t.key(key)), item.update().updateExpression(), names, values);
+            } else if (item.delete() != null) {
+                t.items.remove(t.key(key));
+            }
+        }
+    }
+
+    private static final class Table {
+        final String partitionKey;
+        final String sortKey;
+        final Map<String, String[]> indexes = new HashMap<>();
+        final TreeMap<String, Map<String, AttributeValue>> items = new TreeMap<>();
+
+        Table(String partitionKey, String sortKey) {
+            this.partitionKey = partitionKey;
+            this.sortKey = sortKey;
+        }
+
+        String partitionPrefix(AttributeValue partition) {
+            return asString(partition) + '\u0000';
+        }
+
+        String key(Map<String, AttributeValue> item) {
+            return partitionPrefix(item.get(partitionKey)) + (sortKey == null ? "" : asString(item.get(sortKey)));
+        }
+
+        Map<String, AttributeValue> keyOf(Map<String, AttributeValue> item, String[] indexKeys) {
+            Map<String, AttributeValue> key = new HashMap<>();
+            for (String name : new String[]{partitionKey, sortKey, indexKeys[0], indexKeys[1]}) {
+                if (name != null && item.containsKey(name)) {
+                    key.put(name, item.get(name));
+                }
+            }
+            return key;
+        }
+
+        private static String asString(AttributeValue value) {
+            return value.s() != null ? value.s() : value.n();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.boycottpro.users;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LeaderboardRepositoryTest {
+
+    @Test
+    public void testMergeMatchesSortingEverything() {
+        Random random = new Random(7);
+        List<List<Map<String, AttributeValue>>> pages = new ArrayList<>();
+        List<Map<String, AttributeValue>> all = new ArrayList<>();
+        for (int shard = 0; shard < 8; shard++) {
+            List<Map<String, AttributeValue>> page = new ArrayList<>();
+            int size = random.nextInt(6);
+            for (int i = 0; i < size; i++) {
+                page.add(Map.of("id", AttributeValue.fromS(shard + "-" + i),
+                        "count", AttributeValue.fromN(Integer.toString(random.nextInt(20)))));
+            }
+            page.sort(Comparator.comparingInt((Map<String, AttributeValue> item) -> count(item)).reversed());
+            pages.add(page);
+            all.addAll(page);
+        }
+        all.sort(Comparator.comparingInt((Map<String, AttributeValue> item) -> count(item)).reversed());
+
+        List<Map<String, AttributeValue>> top = LeaderboardRepository.merge(pages, "count", 5);
+
+        assertEquals(all.subList(0, 5).stream().map(LeaderboardRepositoryTest::count).collect(Collectors.toList()),
+                top.stream().map(LeaderboardRepositoryTest::count).collect(Collectors.toList()));
+        assertEquals(all.size(), LeaderboardRepository.merge(pages, "count", 1000).size());
+        assertTrue(LeaderboardRepository.merge(List.of(List.of(), List.of()), "count", 5).isEmpty());
+    }
+
+    @Test
+    public void testBackfillAssignsItemsNotOnTheirShard() {
+        InMemoryDynamoDb dynamoDb = new InMemoryDynamoDb()
+                .pageSize(7)
+                .createTable("companies", "company_id", null);
+        int onShard = 0;
+        for (int i = 0; i < 100; i++) {
+            dynamoDb.put("companies", i % 10 == 0
+                    ? Map.of("company_id", AttributeValue.fromS("c" + i), "leaderboard_shard", AttributeValue.fromN("0"))
+                    : Map.of("company_id", AttributeValue.fromS("c" + i)));
+            onShard += i % 10 == 0 && LeaderboardRepository.shardOf("c" + i, 4) == 0 ? 1 : 0;
+        }
+        AsyncDynamoDb sync = AsyncDynamoDb.of(dynamoDb, Runnable::run);
+        LeaderboardRepository repository = new LeaderboardRepository(sync, new GlobalStatsRepository(sync, 1), 4);
+
+        assertEquals(100 - onShard, repository.assignShards("companies", "company_id"));
+        assertEquals(0, repository.assignShards("companies", "company_id"));
+
+        int[] perShard = new int[4];
+        for (int i = 0; i < 100; i++) {
+            Map<String, AttributeValue> item = dynamoDb.get("companies", Map.of("company_id", AttributeValue.fromS("c" + i)));
+            int shard = Integer.parseInt(item.get("leaderboard_shard").n());
+            assertEquals(LeaderboardRepository.shardOf("c" + i, 4), shard);
+            perShard[shard]++;
+        }
+        for (int count : perShard) {
+            assertTrue(count > 10, "items are spread over every shard");
+        }
+        assertFalse(repository.assignShard("companies", "company_id", "deleted"));
+        assertNull(dynamoDb.get("companies", Map.of("company_id", AttributeValue.fromS("deleted"))));
+    }
+
+    @Test
+    public void testBackfillAfterFewerShardsListsEveryItemAgain() {
+        InMemoryDynamoDb dynamoDb = new InMemoryDynamoDb()
+                .createTable("causes", "cause_id", null)
+                .createIndex("causes", LeaderboardRepository.CAUSES_INDEX, "leaderboard_shard", "follower_count");
+        for (int i = 0; i < 40; i++) {
+            dynamoDb.put("causes", Map.of("cause_id", AttributeValue.fromS("k" + i),
+                    "follower_count", AttributeValue.fromN(Integer.toString(i))));
+        }
+        AsyncDynamoDb sync = AsyncDynamoDb.of(dynamoDb, Runnable::run);
+        LeaderboardRepository eight = new LeaderboardRepository(sync, new GlobalStatsRepository(sync, 1), 8);
+        LeaderboardRepository four = new LeaderboardRepository(sync, new GlobalStatsRepository(sync, 1), 4);
+        assertEquals(40, eight.assignShards("causes", "cause_id"));
+
+        // LEADERBOARD_SHARDS goes from 8 to 4: the causes on shards 4 to 7 are not queried
+        List<String> reachable = new ArrayList<>();
+        int moved = 0;
+        for (int i = 39; i >= 0; i--) {
+            int shard = LeaderboardRepository.shardOf("k" + i, 8);
+            if (shard < 4) {
+                reachable.add("k" + i);
+            }
+            moved += shard == LeaderboardRepository.shardOf("k" + i, 4) ? 0 : 1;
+        }
+        assertEquals(reachable.subList(0, 5), causeIds(four));
+
+        assertEquals(moved, four.assignShards("causes", "cause_id"));
+
+        assertEquals(List.of("k39", "k38", "k37", "k36", "k35"), causeIds(four));
+    }
+
+    private static List<String> causeIds(LeaderboardRepository repository) {
+        return repository.load(5, false, true).getCauses().stream()
+                .map(cause -> cause.getCauseId())
+                .collect(Collectors.toList());
+    }
+
+    private static int count(Map<String, AttributeValue> item) {
+        return Integer.parseInt(item.get("count").n());
+    }
+}
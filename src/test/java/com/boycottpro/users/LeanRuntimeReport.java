@@ -0,0 +1,187 @@
+package com.boycottpro.users;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+/**
+ * Trains the AppCDS archive of the lean-runtime package and reports what the package saves.
+ * It has to run in the java17 runtime's image: the archive only maps into the JDK build that
+ * wrote it, with the class path the runtime starts the function with. The jar and
+ * {@code src/main/lean/cds-wrapper} are copied to the task root ({@code /var/task}, the
+ * runtime's class path has it), and the runtime's {@code /var/runtime/bootstrap} serves
+ * {@link GetUserStatsHandler} against a local runtime API ({@link RuntimeApiEmulator}) and the
+ * empty DynamoDB endpoint of {@link ColdStartBenchmark}. The training run answers a few rounds
+ * of invocations, with and without fields, window and If-None-Match, and writes
+ * {@code app-cds.jsa} of every class it loaded when it exits. An invocation that fails, e.g.
+ * on a class the minimised jar lacks, fails the report.
+ * <p>
+ * The report, printed and written to the report file, has the jar size and class count, and
+ * for fresh processes without and with the wrapper the time from process start until the
+ * first response is posted and the classes loaded, of which from the CDS archives. The report
+ * fails when the wrapper's run maps no class from {@code app-cds.jsa}. Run by the
+ * lean-runtime profile after shading, in {@code lean.runtime.image}.
+ * Arguments: jar, task root, runs per target, wrapper, report file.
+ */
+public class LeanRuntimeReport {
+
+    private static final String ARCHIVE = "app-cds.jsa";
+    private static final String WRAPPER = "cds-wrapper";
+    private static final Path BOOTSTRAP = Paths.get("/var/runtime/bootstrap");
+    private static final String HANDLER = GetUserStatsHandler.class.getName() + "::handleRequest";
+    private static final int TRAINING_ROUNDS = 3;
+    private static final List<String> TRAINING_EVENTS = List.of(
+            NativeStartupReport.EVENT,
+            "{\"queryStringParameters\":{\"fields\":\"totalBoycotts,worstCompanyName\"},"
+                    + "\"requestContext\":{\"authorizer\":{\"claims\":{\"sub\":\"11111111-2222-3333-4444-555555555555\"}}}}",
+            "{\"queryStringParameters\":{\"window\":\"24h\"},"
+                    + "\"requestContext\":{\"authorizer\":{\"claims\":{\"sub\":\"11111111-2222-3333-4444-555555555555\"}}}}",
+            "{\"headers\":{\"If-None-Match\":\"W/\\\"0\\\"\"},"
+                    + "\"requestContext\":{\"authorizer\":{\"claims\":{\"sub\":\"11111111-2222-3333-4444-555555555555\"}}}}");
+
+    public static void main(String[] args) throws Exception {
+        Path jar = Paths.get(args.length > 0 ? args[0] : "target/users-stats-lambda.jar");
+        Path dir = Paths.get(args.length > 1 ? args[1] : "/var/task");
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Path wrapper = Paths.get(args.length > 3 ? args[3] : "src/main/lean/cds-wrapper");
+        Path reportFile = Paths.get(args.length > 4 ? args[4] : "target/lean-runtime-report.txt");
+        if (!Files.isExecutable(BOOTSTRAP)) {
+            throw new IllegalStateException("no " + BOOTSTRAP + ": run in the java17 runtime's image,"
+                    + " whose JDK and class path the archive has to match");
+        }
+
+        Files.createDirectories(dir.resolve("lib"));
+        Path staged = dir.resolve("lib").resolve(jar.getFileName());
+        Files.copy(jar, staged, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        Path stagedWrapper = dir.resolve(WRAPPER);
+        Files.copy(wrapper, stagedWrapper, StandardCopyOption.REPLACE_EXISTING);
+        stagedWrapper.toFile().setExecutable(true);
+        Path archive = dir.resolve(ARCHIVE);
+        Files.deleteIfExists(archive);
+
+        HttpServer dynamoDb = ColdStartBenchmark.emptyDynamoDb(0);
+        List<String> report = new ArrayList<>();
+        try {
+            train(Map.of("JAVA_TOOL_OPTIONS", "-XX:ArchiveClassesAtExit=" + archive), dir, dynamoDb);
+            if (!Files.exists(archive)) {
+                throw new IllegalStateException("the training run wrote no " + archive);
+            }
+            report.add(String.format("%s: %.1f MB, %d classes; %s: %.1f MB", jar.getFileName(),
+                    Files.size(staged) / 1048576.0, classCount(staged), ARCHIVE, Files.size(archive) / 1048576.0));
+            report.add(String.format("%-10s %5s %22s %15s %10s", "target", "runs", "first response med/min",
+                    "classes loaded", "from CDS"));
+            report.add(measure("no-archive", Map.of(), dir, runs, dynamoDb));
+            report.add(measure("app-cds", Map.of("AWS_LAMBDA_EXEC_WRAPPER", stagedWrapper.toString()),
+                    dir, runs, dynamoDb));
+        } finally {
+            dynamoDb.stop(0);
+        }
+        report.forEach(System.out::println);
+        Files.write(reportFile, report, StandardCharsets.UTF_8);
+    }
+
+    private static void train(Map<String, String> env, Path dir, HttpServer dynamoDb) throws Exception {
+        try (RuntimeApiEmulator runtimeApi = RuntimeApiEmulator.start()) {
+            Process process = runtimeProcess(env, dir, runtimeApi, dynamoDb).start();
+            try {
+                for (int round = 0; round < TRAINING_ROUNDS; round++) {
+                    for (String event : TRAINING_EVENTS) {
+                        runtimeApi.enqueue(event);
+                        RuntimeApiEmulator.Result result = runtimeApi.awaitResult(60, TimeUnit.SECONDS);
+                        if (result == null || result.error || result.body.contains("\"statusCode\":5")) {
+                            throw new IllegalStateException("the training run failed on " + event
+                                    + (result == null ? "" : ": " + result.body));
+                        }
+                    }
+                }
+            } finally {
+                // the archive is written while the JVM exits, which SIGTERM lets it do
+                process.destroy();
+                if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                    process.destroyForcibly().waitFor();
+                }
+            }
+        }
+    }
+
+    private static String measure(String target, Map<String, String> env, Path dir, int runs,
+                                  HttpServer dynamoDb) throws Exception {
+        double[] millis = new double[runs];
+        for (int run = 0; run < runs; run++) {
+            millis[run] = firstResponseMillis(env, dir, dynamoDb);
+        }
+        Arrays.sort(millis);
+        // one more run that logs the classes loaded, apart from the timed ones
+        Path log = Files.createTempFile("class-load", ".log");
+        try {
+            Map<String, String> logged = new HashMap<>(env);
+            logged.put("JAVA_TOOL_OPTIONS", "-Xlog:class+load=info:file=" + log);
+            firstResponseMillis(logged, dir, dynamoDb);
+            List<String> lines = Files.readAllLines(log, StandardCharsets.UTF_8);
+            long loaded = lines.stream().filter(line -> line.contains(" source: ")).count();
+            long shared = lines.stream().filter(line -> line.contains(" source: shared objects file")).count();
+            // classes of the dynamic archive are logged as from its top layer
+            long archived = lines.stream().filter(line -> line.contains(" source: shared objects file (top)")).count();
+            if (env.containsKey("AWS_LAMBDA_EXEC_WRAPPER") && archived == 0) {
+                throw new IllegalStateException("the " + target + " run mapped no class from " + ARCHIVE);
+            }
+            return String.format("%-10s %5d %22s %15d %10d", target, runs,
+                    String.format("%9.1f /%8.1f", millis[runs / 2], millis[0]), loaded, shared);
+        } finally {
+            Files.deleteIfExists(log);
+        }
+    }
+
+    private static double firstResponseMillis(Map<String, String> env, Path dir, HttpServer dynamoDb) throws Exception {
+        // a fresh runtime API per run, so a killed process's pending /next cannot take the next event
+        try (RuntimeApiEmulator runtimeApi = RuntimeApiEmulator.start()) {
+            ProcessBuilder builder = runtimeProcess(env, dir, runtimeApi, dynamoDb);
+            runtimeApi.enqueue(NativeStartupReport.EVENT);
+            long start = System.nanoTime();
+            Process process = builder.start();
+            try {
+                RuntimeApiEmulator.Result result = runtimeApi.awaitResult(60, TimeUnit.SECONDS);
+                if (result == null || result.error) {
+                    throw new IllegalStateException(BOOTSTRAP + " " + env + " did not answer the first invocation"
+                            + (result == null ? "" : ": " + result.body));
+                }
+                return (result.receivedNanos - start) / 1e6;
+            } finally {
+                process.destroy();
+                process.waitFor();
+            }
+        }
+    }
+
+    /**
+     * The runtime's own bootstrap, which starts java with the runtime's command line, through
+     * AWS_LAMBDA_EXEC_WRAPPER when it is set.
+     */
+    private static ProcessBuilder runtimeProcess(Map<String, String> env, Path dir, RuntimeApiEmulator runtimeApi,
+                                                 HttpServer dynamoDb) {
+        ProcessBuilder builder = NativeStartupReport.lambdaProcess(List.of(BOOTSTRAP.toString()), runtimeApi, dynamoDb)
+                .directory(dir.toFile());
+        builder.environment().put("_HANDLER", HANDLER);
+        builder.environment().put("LAMBDA_TASK_ROOT", dir.toString());
+        builder.environment().putAll(env);
+        return builder;
+    }
+
+    private static long classCount(Path jar) throws IOException {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            return zip.stream().filter(entry -> entry.getName().endsWith(".class")).count();
+        }
+    }
+}
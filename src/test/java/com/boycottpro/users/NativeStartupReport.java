@@ -0,0 +1,116 @@
+package com.boycottpro.users;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the startup of the native executable with {@link RuntimeApiBootstrap} on a JVM.
+ * Each run starts a fresh process against a local runtime API ({@link RuntimeApiEmulator}) and
+ * the empty DynamoDB endpoint of {@link ColdStartBenchmark}, and measures the time from process
+ * start until the response to the first invocation is posted, plus the peak resident set size
+ * (VmHWM, Linux only). A target whose file does not exist is skipped. Run by the native profile after packaging, or with
+ * <pre>
+ * mvn -B test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.boycottpro.users.NativeStartupReport \
+ *     -Dexec.args="target/users-stats-lambda-native target/users-stats-lambda.jar 5"
+ * </pre>
+ * Arguments: native executable, jar (or class path) for the JVM, runs per target.
+ */
+public class NativeStartupReport {
+
+    static final String EVENT =
+            "{\"requestContext\":{\"authorizer\":{\"claims\":{\"sub\":\"11111111-2222-3333-4444-555555555555\"}}}}";
+
+    public static void main(String[] args) throws Exception {
+        String executable = args.length > 0 ? args[0] : "target/users-stats-lambda-native";
+        String jar = args.length > 1 ? args[1] : "target/users-stats-lambda.jar";
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+
+        HttpServer dynamoDb = ColdStartBenchmark.emptyDynamoDb(0);
+        try {
+            System.out.printf("%-8s %5s %22s %16s%n", "target", "runs", "first response med/min", "peak RSS med");
+            report("native", List.of(executable), executable, runs, dynamoDb);
+            report("jvm", List.of(java, "-cp", jar, RuntimeApiBootstrap.class.getName()),
+                    jar.split(File.pathSeparator)[0], runs, dynamoDb);
+        } finally {
+            dynamoDb.stop(0);
+        }
+    }
+
+    private static void report(String target, List<String> command, String artifact, int runs,
+                               HttpServer dynamoDb) throws Exception {
+        if (!Files.exists(Paths.get(artifact))) {
+            System.out.printf("%-8s skipped, %s not found%n", target, artifact);
+            return;
+        }
+        double[] millis = new double[runs];
+        long[] peakKb = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            // a fresh runtime API per run, so a killed process's pending /next cannot take the next event
+            RuntimeApiEmulator runtimeApi = RuntimeApiEmulator.start();
+            ProcessBuilder builder = lambdaProcess(command, runtimeApi, dynamoDb);
+
+            runtimeApi.enqueue(EVENT);
+            long start = System.nanoTime();
+            Process process = builder.start();
+            try {
+                RuntimeApiEmulator.Result result = runtimeApi.awaitResult(60, TimeUnit.SECONDS);
+                if (result == null || result.error) {
+                    throw new IllegalStateException(target + " did not answer the first invocation"
+                            + (result == null ? "" : ": " + result.body));
+                }
+                millis[run] = (result.receivedNanos - start) / 1e6;
+                peakKb[run] = peakRssKb(process.pid());
+            } finally {
+                process.destroyForcibly().waitFor();
+                runtimeApi.close();
+            }
+        }
+        Arrays.sort(millis);
+        Arrays.sort(peakKb);
+        System.out.printf("%-8s %5d %22s %16s%n", target, runs,
+                String.format("%9.1f /%8.1f", millis[runs / 2], millis[0]),
+                peakKb[runs / 2] < 0 ? "n/a" : String.format("%.1f MB", peakKb[runs / 2] / 1024.0));
+    }
+
+    /**
+     * A process that takes its invocations from {@code runtimeApi} and whose DynamoDB client
+     * calls {@code dynamoDb}; its output is discarded.
+     */
+    static ProcessBuilder lambdaProcess(List<String> command, RuntimeApiEmulator runtimeApi, HttpServer dynamoDb) {
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+        Map<String, String> env = builder.environment();
+        env.put("AWS_LAMBDA_RUNTIME_API", runtimeApi.address());
+        env.put("AWS_REGION", "us-east-1");
+        env.put("AWS_ACCESS_KEY_ID", "local");
+        env.put("AWS_SECRET_ACCESS_KEY", "local");
+        env.put("DYNAMODB_ENDPOINT", "http://localhost:" + dynamoDb.getAddress().getPort());
+        return builder;
+    }
+
+    private static long peakRssKb(long pid) {
+        Path status = Paths.get("/proc", Long.toString(pid), "status");
+        try {
+            for (String line : Files.readAllLines(status, StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception e) {
+            // not Linux, or the process is gone
+        }
+        return -1;
+    }
+}
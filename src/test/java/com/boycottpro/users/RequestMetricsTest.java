@@ -0,0 +1,71 @@
+package com.boycottpro.users;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestMetricsTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void testFlushWritesOneEmfDocumentPerInvocation() throws Exception {
+        RequestMetrics metrics = new RequestMetrics();
+        metrics.record("user_boycotts", RequestMetrics.Operation.Query, 2_000_000, 1000, 64.5);
+        metrics.record("user_boycotts", RequestMetrics.Operation.Query, 3_000_000, 200, 12.0);
+        metrics.record("global_stats", RequestMetrics.Operation.GetItem, 1_500_000, 1, null);
+
+        JsonNode line = MAPPER.readTree(metrics.flush("users-stats", "req-1", 9_000_000, true, 450_000_000, 1700000000000L));
+
+        JsonNode directive = line.get("_aws").get("CloudWatchMetrics").get(0);
+        assertEquals(1700000000000L, line.get("_aws").get("Timestamp").asLong());
+        assertEquals(RequestMetrics.NAMESPACE, directive.get("Namespace").asText());
+        assertEquals("FunctionName", directive.get("Dimensions").get(0).get(0).asText());
+        Set<String> declared = new HashSet<>();
+        directive.get("Metrics").forEach(metric -> declared.add(metric.get("Name").asText()));
+        // every declared metric has its value at the root of the document
+        declared.forEach(name -> assertTrue(line.has(name), name));
+
+        assertEquals("users-stats", line.get("FunctionName").asText());
+        assertEquals("req-1", line.get("requestId").asText());
+        assertEquals(9.0, line.get("Duration").asDouble());
+        assertEquals(1, line.get("ColdStart").asInt());
+        assertEquals(450.0, line.get("InitDuration").asDouble());
+        assertEquals(2, line.get("user_boycotts.Query.Calls").asInt());
+        assertEquals(5.0, line.get("user_boycotts.Query.Time").asDouble());
+        assertEquals(3.0, line.get("user_boycotts.Query.MaxTime").asDouble());
+        assertEquals(1200, line.get("user_boycotts.Query.Items").asInt());
+        assertEquals(76.5, line.get("user_boycotts.Query.ConsumedCapacity").asDouble());
+        assertEquals(1, line.get("global_stats.GetItem.Items").asInt());
+        assertEquals(0.0, line.get("global_stats.GetItem.ConsumedCapacity").asDouble());
+    }
+
+    @Test
+    public void testFlushResetsTheCounters() throws Exception {
+        RequestMetrics metrics = new RequestMetrics();
+        metrics.record("user_stats", RequestMetrics.Operation.GetItem, 1_000_000, 1, 0.5);
+        metrics.flush("f", "req-1", 1, true, 1, 0);
+
+        JsonNode line = MAPPER.readTree(metrics.flush("f", "req-2", 1, false, 1, 0));
+
+        assertFalse(line.has("user_stats.GetItem.Calls"));
+        assertFalse(line.has("InitDuration"));
+        assertEquals(0, line.get("ColdStart").asInt());
+        assertEquals(2, line.get("_aws").get("CloudWatchMetrics").get(0).get("Metrics").size());
+    }
+
+    @Test
+    public void testNamesFromOutsideAreEscaped() throws Exception {
+        RequestMetrics metrics = new RequestMetrics();
+
+        JsonNode line = MAPPER.readTree(metrics.flush("f\"n\\x", "req\n\"1\"", 1, false, 0, 0));
+
+        assertEquals("f\"n\\x", line.get("FunctionName").asText());
+        assertEquals("req\n\"1\"", line.get("requestId").asText());
+    }
+}
@@ -0,0 +1,92 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RuntimeApiBootstrapTest {
+
+    private static final String EVENT =
+            "{\"requestContext\":{\"authorizer\":{\"claims\":{\"sub\":\"u1\"}}},\"unknownField\":true}";
+
+    private RuntimeApiEmulator runtimeApi;
+
+    @BeforeEach
+    public void startRuntimeApi() throws Exception {
+        GetUserStatsHandler.globalStatsCache().clear();
+        runtimeApi = RuntimeApiEmulator.start();
+    }
+
+    @AfterEach
+    public void stopRuntimeApi() {
+        runtimeApi.close();
+    }
+
+    @Test
+    public void testInvocationResponseIsPosted() throws Exception {
+        InMemoryDynamoDb local = new InMemoryDynamoDb()
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("global_stats", "stat_id", null)
+                .createTable("user_stats", "user_id", "stat_key");
+        local.put("global_stats", Map.of(
+                "stat_id", AttributeValue.fromS("leaderboard"),
+                "worst_company_id", AttributeValue.fromS("worstCo"),
+                "worst_company_name", AttributeValue.fromS("Worst Co"),
+                "worst_count", AttributeValue.fromN("15"),
+                "top_cause_id", AttributeValue.fromS("causeA"),
+                "top_cause_desc", AttributeValue.fromS("Environment"),
+                "top_cause_follower_count", AttributeValue.fromN("99")));
+        runtimeApi.enqueue(EVENT);
+
+        new RuntimeApiBootstrap(runtimeApi.address(), new GetUserStatsHandler(local)).processNext();
+
+        RuntimeApiEmulator.Result result = runtimeApi.awaitResult(5, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertFalse(result.error);
+        assertEquals("request-1", result.requestId);
+        assertTrue(result.body.contains("\"statusCode\":200"), result.body);
+        assertTrue(result.body.contains("Worst Co"), result.body);
+    }
+
+    @Test
+    public void testHandlerExceptionIsPostedAsError() throws Exception {
+        runtimeApi.enqueue(EVENT);
+
+        new RuntimeApiBootstrap(runtimeApi.address(), (event, context) -> {
+            throw new IllegalStateException("boom");
+        }).processNext();
+
+        RuntimeApiEmulator.Result result = runtimeApi.awaitResult(5, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertTrue(result.error);
+        assertTrue(result.body.contains("\"errorType\":\"java.lang.IllegalStateException\""), result.body);
+        assertTrue(result.body.contains("\"errorMessage\":\"boom\""), result.body);
+    }
+
+    @Test
+    public void testContextCarriesInvocationHeaders() throws Exception {
+        AtomicReference<Context> seen = new AtomicReference<>();
+        runtimeApi.enqueue(EVENT);
+
+        new RuntimeApiBootstrap(runtimeApi.address(), (event, context) -> {
+            seen.set(context);
+            assertEquals("u1", ((Map<?, ?>) event.getRequestContext().getAuthorizer().get("claims")).get("sub"));
+            return new APIGatewayProxyResponseEvent().withStatusCode(204);
+        }).processNext();
+
+        assertNotNull(runtimeApi.awaitResult(5, TimeUnit.SECONDS));
+        assertEquals("request-1", seen.get().getAwsRequestId());
+        assertTrue(seen.get().getRemainingTimeInMillis() > 0);
+        assertTrue(seen.get().getInvokedFunctionArn().endsWith(":function:users-stats-lambda"));
+    }
+}
@@ -0,0 +1,123 @@
+package com.boycottpro.users;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local stand-in for the Lambda runtime API: hands out queued events on
+ * {@code /invocation/next} and collects the responses and errors posted back.
+ */
+public class RuntimeApiEmulator implements AutoCloseable {
+
+    private static final String API_PATH = "/2018-06-01/runtime";
+    private final HttpServer server;
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+    private final AtomicInteger requestIds = new AtomicInteger();
+
+    /**
+     * Adds the runtime API to {@code server}, which may serve other paths as well.
+     */
+    public RuntimeApiEmulator(HttpServer server) {
+        this.server = server;
+        server.createContext(API_PATH + "/invocation/next", this::next);
+        server.createContext(API_PATH + "/invocation/", exchange -> collect(exchange,
+                exchange.getRequestURI().getPath().endsWith("/error")));
+        server.createContext(API_PATH + "/init/error", exchange -> collect(exchange, true));
+    }
+
+    public static RuntimeApiEmulator start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(daemonPool());
+        server.start();
+        return new RuntimeApiEmulator(server);
+    }
+
+    /**
+     * A pool whose threads do not keep the JVM alive while they wait for the next event.
+     */
+    static Executor daemonPool() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "runtime-api-emulator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * host:port, as in AWS_LAMBDA_RUNTIME_API
+     */
+    public String address() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    public void enqueue(String event) {
+        events.add(event);
+    }
+
+    public Result awaitResult(long timeout, TimeUnit unit) throws InterruptedException {
+        return results.poll(timeout, unit);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void next(HttpExchange exchange) throws IOException {
+        String event;
+        try {
+            event = events.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        exchange.getResponseHeaders().add("Lambda-Runtime-Aws-Request-Id", "request-" + requestIds.incrementAndGet());
+        exchange.getResponseHeaders().add("Lambda-Runtime-Deadline-Ms",
+                Long.toString(System.currentTimeMillis() + 30_000));
+        exchange.getResponseHeaders().add("Lambda-Runtime-Invoked-Function-Arn",
+                "arn:aws:lambda:us-east-1:123456789012:function:users-stats-lambda");
+        send(exchange, 200, event);
+    }
+
+    private void collect(HttpExchange exchange, boolean error) throws IOException {
+        long received = System.nanoTime();
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        results.add(new Result(path[path.length - 2], error, body, received));
+        send(exchange, 202, "{\"status\":\"OK\"}");
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static final class Result {
+        final String requestId;
+        final boolean error;
+        final String body;
+        final long receivedNanos;
+
+        Result(String requestId, boolean error, String body, long receivedNanos) {
+            this.requestId = requestId;
+            this.error = error;
+            this.body = body;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.boycottpro.users;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SourceLinesTest {
+
+    @Test
+    public void testHereIsTheCallersLine() {
+        int line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+        assertEquals(line, SourceLines.here());
+    }
+
+    @Test
+    public void testOfIsTheLineTheExceptionPassedThrough() {
+        int line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+        RuntimeException thrown = assertThrows(RuntimeException.class, () -> { throw new RuntimeException("here"); });
+
+        assertEquals(line, SourceLines.of(thrown, SourceLinesTest.class));
+    }
+
+    @Test
+    public void testOfFallsBackToTheCallersLine() {
+        // as a failure rethrown from a pool thread, which never ran this class
+        RuntimeException elsewhere = new RuntimeException("pool");
+        elsewhere.setStackTrace(new StackTraceElement[0]);
+
+        int line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+        assertEquals(line, SourceLines.of(elsewhere, SourceLinesTest.class));
+    }
+}
@@ -0,0 +1,81 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * Lambda context for tests. Like a context mock, it reports no remaining time, so the handler
+ * runs without a deadline, and no request id until they are set.
+ */
+public class TestContext implements Context {
+
+    private volatile int remainingTimeInMillis;
+    private volatile String awsRequestId;
+
+    public TestContext remainingTimeInMillis(int remainingTimeInMillis) {
+        this.remainingTimeInMillis = remainingTimeInMillis;
+        return this;
+    }
+
+    public TestContext awsRequestId(String awsRequestId) {
+        this.awsRequestId = awsRequestId;
+        return this;
+    }
+
+    @Override
+    public String getAwsRequestId() {
+        return awsRequestId;
+    }
+
+    @Override
+    public String getLogGroupName() {
+        return null;
+    }
+
+    @Override
+    public String getLogStreamName() {
+        return null;
+    }
+
+    @Override
+    public String getFunctionName() {
+        return null;
+    }
+
+    @Override
+    public String getFunctionVersion() {
+        return null;
+    }
+
+    @Override
+    public String getInvokedFunctionArn() {
+        return null;
+    }
+
+    @Override
+    public CognitoIdentity getIdentity() {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext() {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis() {
+        return remainingTimeInMillis;
+    }
+
+    @Override
+    public int getMemoryLimitInMB() {
+        return 0;
+    }
+
+    @Override
+    public LambdaLogger getLogger() {
+        return null;
+    }
+}
@@ -0,0 +1,216 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.StreamRecord;
+import com.boycottpro.users.model.Leaderboards;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Counts user_boycotts and user_causes stream records into the sharded hourly and daily
+ * buckets of {@link InMemoryDynamoDb} and reads the windows back.
+ */
+public class TrendingRepositoryTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+    // noon UTC, so the windows cross day boundaries
+    private static final long NOW = 1_792_238_400_000L;
+
+    private InMemoryDynamoDb dynamoDb;
+    private final AtomicLong clock = new AtomicLong(NOW);
+    private TrendingRepository repository;
+    private TrendingStatsStreamHandler handler;
+    private int sequence;
+
+    @BeforeEach
+    public void setUp() {
+        dynamoDb = new InMemoryDynamoDb()
+                .createTable("trending_stats", "bucket", "item_id")
+                .createTable("companies", "company_id", null)
+                .createTable("causes", "cause_id", null)
+                .createTable("cause_company_stats", "cause_id", "company_id")
+                .createIndex("cause_company_stats", "company_cause_stats_index", "company_id", "boycott_count");
+        AsyncDynamoDb sync = AsyncDynamoDb.of(dynamoDb, Runnable::run);
+        repository = new TrendingRepository(sync, new GlobalStatsRepository(sync, 1), TrendingRepository.SHARDS,
+                clock::get);
+        handler = new TrendingStatsStreamHandler(dynamoDb);
+    }
+
+    @Test
+    public void testWindowsSumOnlyTheirBuckets() {
+        // c1 was hot a week ago, c2 today; c3 within the week only
+        for (int i = 0; i < 10; i++) {
+            replay(boycott("INSERT", "c1", NOW - 8 * DAY));
+        }
+        for (int i = 0; i < 3; i++) {
+            replay(boycott("INSERT", "c2", NOW - 2 * HOUR));
+        }
+        replay(boycott("INSERT", "c2", NOW - 23 * HOUR));
+        for (int i = 0; i < 5; i++) {
+            replay(boycott("INSERT", "c3", NOW - 3 * DAY));
+        }
+        replay(boycott("INSERT", "c3", NOW - 25 * HOUR));
+
+        assertEquals(List.of(Map.entry("c2", 4)), top(TrendingRepository.Kind.COMPANY, TrendingRepository.Window.LAST_24_HOURS));
+        assertEquals(List.of(Map.entry("c3", 6), Map.entry("c2", 4)),
+                top(TrendingRepository.Kind.COMPANY, TrendingRepository.Window.LAST_7_DAYS));
+
+        // an hour later the oldest c2 boycott has left the 24 hours
+        clock.addAndGet(HOUR);
+        assertEquals(List.of(Map.entry("c2", 3)), top(TrendingRepository.Kind.COMPANY, TrendingRepository.Window.LAST_24_HOURS));
+    }
+
+    @Test
+    public void testReadsDoNotGrowWithEvents() {
+        for (int i = 0; i < 500; i++) {
+            replay(boycott("INSERT", "c" + (i % 3), NOW - (i % 48) * HOUR));
+        }
+        dynamoDb.resetCalls();
+
+        top(TrendingRepository.Kind.COMPANY, TrendingRepository.Window.LAST_24_HOURS);
+        assertEquals(24 * TrendingRepository.SHARDS, dynamoDb.calls("query", "trending_stats"),
+                "one query per shard of each hourly bucket");
+        dynamoDb.resetCalls();
+        top(TrendingRepository.Kind.COMPANY, TrendingRepository.Window.LAST_7_DAYS);
+        assertEquals(7 * TrendingRepository.SHARDS, dynamoDb.calls("query", "trending_stats"),
+                "one query per shard of each daily bucket");
+    }
+
+    @Test
+    public void testRedeliveredRecordsAreCountedOnce() {
+        DynamodbEvent.DynamodbStreamRecord boycott = boycott("INSERT", "c1", NOW);
+        DynamodbEvent.DynamodbStreamRecord follow = follow("INSERT", "k1", NOW);
+        replay(boycott, follow);
+        replay(boycott, follow);
+        // only new rows count
+        replay(boycott("REMOVE", "c1", NOW), follow("REMOVE", "k1", NOW));
+
+        assertEquals(List.of(Map.entry("c1", 1)), top(TrendingRepository.Kind.COMPANY, TrendingRepository.Window.LAST_24_HOURS));
+        assertEquals(List.of(Map.entry("k1", 1)), top(TrendingRepository.Kind.CAUSE, TrendingRepository.Window.LAST_7_DAYS));
+    }
+
+    @Test
+    public void testBucketsExpireOnceNoWindowReadsThem() {
+        replay(boycott("INSERT", "c1", NOW));
+
+        long hour = NOW / HOUR;
+        long day = NOW / DAY;
+        int shard = LeaderboardRepository.shardOf("c1", TrendingRepository.SHARDS);
+        Map<String, AttributeValue> hourly = dynamoDb.get("trending_stats", Map.of(
+                "bucket", AttributeValue.fromS("company#h#" + hour + "#" + shard), "item_id", AttributeValue.fromS("c1")));
+        Map<String, AttributeValue> daily = dynamoDb.get("trending_stats", Map.of(
+                "bucket", AttributeValue.fromS("company#d#" + day + "#" + shard), "item_id", AttributeValue.fromS("c1")));
+        assertEquals("1", hourly.get("event_count").n());
+        assertEquals(Long.toString((hour + 24) * HOUR / 1000), hourly.get("expires_at").n());
+        assertEquals(Long.toString((day + 7) * DAY / 1000), daily.get("expires_at").n());
+    }
+
+    @Test
+    public void testBucketsAreSpreadOverShardsAndMergedOnRead() {
+        Set<String> partitions = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            repository.record(TrendingRepository.Kind.COMPANY, "c" + i, "e" + i, NOW);
+            String bucket = "company#h#" + NOW / HOUR + "#" + LeaderboardRepository.shardOf("c" + i, TrendingRepository.SHARDS);
+            assertNotNull(dynamoDb.get("trending_stats", Map.of(
+                    "bucket", AttributeValue.fromS(bucket), "item_id", AttributeValue.fromS("c" + i))));
+            partitions.add(bucket);
+        }
+        assertEquals(TrendingRepository.SHARDS, partitions.size(), "one hour's events on every shard");
+
+        // after raising the shard count an id may be counted on two shards of the same bucket
+        AsyncDynamoDb sync = AsyncDynamoDb.of(dynamoDb, Runnable::run);
+        TrendingRepository wider = new TrendingRepository(sync, new GlobalStatsRepository(sync, 1),
+                TrendingRepository.SHARDS * 2, clock::get);
+        for (int i = 0; i < 40; i++) {
+            wider.record(TrendingRepository.Kind.COMPANY, "c" + i, "f" + i, NOW);
+        }
+        wider.record(TrendingRepository.Kind.COMPANY, "c7", "g1", NOW);
+        wider.record(TrendingRepository.Kind.COMPANY, "c7", "g2", NOW);
+
+        assertEquals(List.of(Map.entry("c7", 4), Map.entry("c0", 2), Map.entry("c1", 2)), AsyncDynamoDb.join(
+                wider.top(TrendingRepository.Kind.COMPANY, TrendingRepository.Window.LAST_24_HOURS, 3)));
+    }
+
+    @Test
+    public void testLoadNamesTheEntries() {
+        dynamoDb.put("companies", Map.of("company_id", AttributeValue.fromS("c1"),
+                "company_name", AttributeValue.fromS("Acme")));
+        dynamoDb.put("causes", Map.of("cause_id", AttributeValue.fromS("k1"),
+                "cause_desc", AttributeValue.fromS("Labor")));
+        dynamoDb.put("cause_company_stats", Map.of("cause_id", AttributeValue.fromS("k1"),
+                "company_id", AttributeValue.fromS("c1"), "cause_desc", AttributeValue.fromS("Labor"),
+                "boycott_count", AttributeValue.fromN("4")));
+        replay(boycott("INSERT", "c1", NOW), boycott("INSERT", "c1", NOW), follow("INSERT", "k1", NOW));
+
+        Leaderboards trending = repository.load(TrendingRepository.Window.LAST_24_HOURS, 5, true, true);
+
+        assertEquals(1, trending.getCompanies().size());
+        assertEquals("Acme", trending.getCompanies().get(0).getCompanyName());
+        assertEquals(2, trending.getCompanies().get(0).getBoycottCount());
+        assertEquals("Labor", trending.getCompanies().get(0).getTopReason());
+        assertEquals("Labor", trending.getCauses().get(0).getCauseName());
+        assertEquals(1, trending.getCauses().get(0).getFollowerCount());
+        assertTrue(repository.load(TrendingRepository.Window.LAST_7_DAYS, 5, false, false).getCompanies().isEmpty());
+    }
+
+    @Test
+    public void testWindowNames() {
+        assertNull(TrendingRepository.Window.parse(null));
+        assertEquals(TrendingRepository.Window.LAST_24_HOURS, TrendingRepository.Window.parse("24h"));
+        assertEquals(TrendingRepository.Window.LAST_7_DAYS, TrendingRepository.Window.parse(" 7d "));
+        assertThrows(IllegalArgumentException.class, () -> TrendingRepository.Window.parse("30d"));
+    }
+
+    private List<Map.Entry<String, Integer>> top(TrendingRepository.Kind kind, TrendingRepository.Window window) {
+        return AsyncDynamoDb.join(repository.top(kind, window, 5));
+    }
+
+    private void replay(DynamodbEvent.DynamodbStreamRecord... records) {
+        DynamodbEvent event = new DynamodbEvent();
+        event.setRecords(Arrays.asList(records));
+        assertTrue(handler.handleRequest(event, null).getBatchItemFailures().isEmpty());
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord boycott(String eventName, String companyId, long at) {
+        return record("user_boycotts", eventName, Map.of("user_id", s("u1"),
+                "company_cause_id", s(companyId + "#k1"), "company_id", s(companyId)), at);
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord follow(String eventName, String causeId, long at) {
+        return record("user_causes", eventName, Map.of("user_id", s("u1"), "cause_id", s(causeId)), at);
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord record(
+            String table, String eventName,
+            Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> image, long at) {
+        String sequenceNumber = Integer.toString(++sequence);
+        StreamRecord streamRecord = new StreamRecord()
+                .withSequenceNumber(sequenceNumber)
+                .withApproximateCreationDateTime(new Date(at))
+                .withOldImage("INSERT".equals(eventName) ? null : image)
+                .withNewImage("REMOVE".equals(eventName) ? null : image);
+        DynamodbEvent.DynamodbStreamRecord record = new DynamodbEvent.DynamodbStreamRecord();
+        record.setEventSourceARN("arn:aws:dynamodb:us-east-1:123456789012:table/" + table
+                + "/stream/2024-01-01T00:00:00.000");
+        record.setEventID("event-" + sequenceNumber);
+        record.setEventName(eventName);
+        record.setDynamodb(streamRecord);
+        return record;
+    }
+
+    private static com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue s(String value) {
+        return new com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue().withS(value);
+    }
+}
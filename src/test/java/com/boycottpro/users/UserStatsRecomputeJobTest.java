@@ -0,0 +1,140 @@
+package com.boycottpro.users;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Recomputes the digest counters from scans of {@link InMemoryDynamoDb} with small pages, so
+ * users' rows straddle page boundaries, and checks them against the seeded rows.
+ */
+public class UserStatsRecomputeJobTest {
+
+    private static final long NOW = 1_792_238_400_000L;
+    private static final int USERS = 500;
+
+    private InMemoryDynamoDb dynamoDb;
+
+    @BeforeEach
+    public void setUp() {
+        dynamoDb = new InMemoryDynamoDb()
+                .pageSize(50)
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("user_stats", "user_id", "stat_key");
+        // user i has i % 6 boycott rows over at most 3 companies, and i % 4 causes
+        for (int i = 0; i < USERS; i++) {
+            AttributeValue user = AttributeValue.fromS(userId(i));
+            for (int j = 0; j < i % 6; j++) {
+                dynamoDb.put("user_boycotts", Map.of("user_id", user,
+                        "company_cause_id", AttributeValue.fromS("c" + (j % 3) + "#k" + j),
+                        "company_id", AttributeValue.fromS("c" + (j % 3))));
+            }
+            for (int j = 0; j < i % 4; j++) {
+                dynamoDb.put("user_causes", Map.of("user_id", user, "cause_id", AttributeValue.fromS("k" + j)));
+            }
+        }
+    }
+
+    @Test
+    public void testEveryUserCountedFromTheScans() {
+        UserStatsRecomputeJob job = new UserStatsRecomputeJob(AsyncDynamoDb.of(dynamoDb, Runnable::run), 4, () -> NOW);
+
+        assertTrue(job.run("week-1", Deadline.NONE));
+
+        assertCounts("week-1");
+        assertEquals(0, dynamoDb.calls("query", "user_boycotts"));
+        assertEquals(0, dynamoDb.calls("query", "user_causes"));
+        Map<String, AttributeValue> digest = dynamoDb.get("user_stats", Map.of(
+                "user_id", AttributeValue.fromS(userId(5)), "stat_key", AttributeValue.fromS("digest#totalBoycotts")));
+        assertEquals(Long.toString(NOW / 1000 + 8 * 24 * 60 * 60), digest.get("expires_at").n());
+
+        // a finished run is not scanned again
+        dynamoDb.resetCalls();
+        assertTrue(job.run("week-1", Deadline.NONE));
+        assertEquals(0, dynamoDb.calls("scan", "user_boycotts"));
+    }
+
+    @Test
+    public void testStoppedRunResumesFromItsCheckpoint() {
+        int pages = 0;
+        for (int i = 0; i < USERS; i++) {
+            pages += i % 6;
+        }
+        pages = (pages + 49) / 50;
+        // one segment, whose eleventh page comes after the deadline
+        FaultInjectingDynamoDb slow = new FaultInjectingDynamoDb(dynamoDb)
+                .slow("user_boycotts", 0, 10)
+                .slow("user_boycotts", 600, 1);
+        UserStatsRecomputeJob job = new UserStatsRecomputeJob(AsyncDynamoDb.of(slow, Runnable::run), 1, () -> NOW);
+
+        assertFalse(job.run("week-1", Deadline.in(300)));
+        Map<String, AttributeValue> checkpoint = dynamoDb.get("user_stats", Map.of(
+                "user_id", AttributeValue.fromS("job#week-1"), "stat_key", AttributeValue.fromS("user_boycotts#0")));
+        assertFalse(checkpoint.get("done").bool());
+        assertTrue(checkpoint.containsKey("last_key"));
+
+        dynamoDb.resetCalls();
+        assertTrue(job.run("week-1", Deadline.NONE));
+
+        assertCounts("week-1");
+        int resumedPages = dynamoDb.calls("scan", "user_boycotts");
+        assertTrue(resumedPages < pages - 8, resumedPages + " of " + pages + " pages scanned again");
+    }
+
+    @Test
+    public void testUnprocessedWritesAreRetried() {
+        dynamoDb.batchWriteLimit(10);
+        UserStatsRecomputeJob job = new UserStatsRecomputeJob(AsyncDynamoDb.of(dynamoDb, Runnable::run), 2, () -> NOW);
+
+        assertTrue(job.run("week-1", Deadline.NONE));
+
+        assertCounts("week-1");
+        assertTrue(job.throttledWrites() > 0);
+    }
+
+    @Test
+    public void testHandlerNamesTheRunAfterTheDay() {
+        UserStatsRecomputeHandler handler = new UserStatsRecomputeHandler(dynamoDb, () -> NOW);
+
+        Map<String, Object> output = handler.handleRequest(Map.of(), null);
+
+        assertEquals("2026-10-17", output.get("run_id"));
+        assertEquals(true, output.get("done"));
+        long withBoycotts = 0;
+        long withCauses = 0;
+        for (int i = 0; i < USERS; i++) {
+            withBoycotts += i % 6 == 0 ? 0 : 1;
+            withCauses += i % 4 == 0 ? 0 : 1;
+        }
+        assertEquals(withBoycotts + withCauses, output.get("users_written"));
+        assertCounts("2026-10-17");
+    }
+
+    private void assertCounts(String runId) {
+        for (int i = 0; i < USERS; i++) {
+            assertDigest(i, "totalBoycotts", Math.min(i % 6, 3), runId);
+            assertDigest(i, "numCausesFollowed", i % 4, runId);
+        }
+    }
+
+    private void assertDigest(int user, String field, int expected, String runId) {
+        Map<String, AttributeValue> item = dynamoDb.get("user_stats", Map.of(
+                "user_id", AttributeValue.fromS(userId(user)), "stat_key", AttributeValue.fromS("digest#" + field)));
+        if (expected == 0) {
+            assertNull(item, userId(user) + " " + field);
+            return;
+        }
+        assertNotNull(item, userId(user) + " " + field);
+        assertEquals(Integer.toString(expected), item.get("value").n(), userId(user) + " " + field);
+        assertEquals(runId, item.get("run_id").s());
+    }
+
+    private static String userId(int i) {
+        return "user" + i;
+    }
+}
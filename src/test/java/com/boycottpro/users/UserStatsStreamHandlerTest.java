@@ -0,0 +1,265 @@
+package com.boycottpro.users;
+
+import com.amazonaws.services.lambda.runtime.events.DynamodbEvent;
+import com.amazonaws.services.lambda.runtime.events.StreamsEventResponse;
+import com.amazonaws.services.lambda.runtime.events.models.dynamodb.StreamRecord;
+import com.boycottpro.users.model.UserStats;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replays user_boycotts and user_causes stream records against {@link InMemoryDynamoDb}
+ * and checks the "user_stats" counters against a count of the source tables.
+ */
+public class UserStatsStreamHandlerTest {
+
+    private InMemoryDynamoDb dynamoDb;
+    private UserStatsStreamHandler handler;
+    private UserStatsRepository repository;
+    private int sequence;
+
+    @BeforeEach
+    public void setUp() {
+        dynamoDb = new InMemoryDynamoDb()
+                .createTable("user_boycotts", "user_id", "company_cause_id")
+                .createTable("user_causes", "user_id", "cause_id")
+                .createTable("user_stats", "user_id", "stat_key");
+        handler = new UserStatsStreamHandler(dynamoDb);
+        repository = new UserStatsRepository(AsyncDynamoDb.of(dynamoDb, Runnable::run));
+        repository.reconcile("u1");
+    }
+
+    @Test
+    public void testDistinctCompaniesOnlyMoveOnFirstAndLastRow() {
+        replay(boycott("INSERT", "u1", "c1", "k1"),
+                boycott("INSERT", "u1", "c1", "k2"),
+                boycott("INSERT", "u1", "c2", "k1"));
+        assertEquals(2, stored("u1").getDistinctCompaniesBoycotted());
+
+        replay(boycott("REMOVE", "u1", "c1", "k1"));
+        assertEquals(2, stored("u1").getDistinctCompaniesBoycotted());
+
+        replay(boycott("REMOVE", "u1", "c1", "k2"));
+        assertEquals(1, stored("u1").getDistinctCompaniesBoycotted());
+        assertNull(dynamoDb.get("user_stats", key("u1", "company#c1")));
+        assertEquals(counted("u1").getDistinctCompaniesBoycotted(), stored("u1").getDistinctCompaniesBoycotted());
+    }
+
+    @Test
+    public void testRedeliveredRecordsAreAppliedOnce() {
+        DynamodbEvent.DynamodbStreamRecord first = boycott("INSERT", "u1", "c1", "k1");
+        DynamodbEvent.DynamodbStreamRecord second = boycott("INSERT", "u1", "c1", "k2");
+        DynamodbEvent.DynamodbStreamRecord cause = cause("INSERT", "u1", "k1");
+        replay(first, second, cause);
+        // the whole batch comes again after a partial failure
+        StreamsEventResponse response = replay(first, second, cause);
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        assertEquals(1, stored("u1").getDistinctCompaniesBoycotted());
+        assertEquals(1, stored("u1").getCausesFollowed());
+        assertEquals("2", dynamoDb.get("user_stats", key("u1", "company#c1")).get("refs").n());
+
+        DynamodbEvent.DynamodbStreamRecord remove = boycott("REMOVE", "u1", "c1", "k1");
+        replay(remove, remove);
+        assertEquals("1", dynamoDb.get("user_stats", key("u1", "company#c1")).get("refs").n());
+    }
+
+    @Test
+    public void testCausesFollowedTrackInsertsAndRemoves() {
+        replay(cause("INSERT", "u1", "k1"), cause("INSERT", "u1", "k2"), cause("INSERT", "u1", "k3"));
+        replay(cause("REMOVE", "u1", "k2"));
+
+        assertEquals(2, stored("u1").getCausesFollowed());
+        assertEquals(counted("u1").getCausesFollowed(), stored("u1").getCausesFollowed());
+    }
+
+    @Test
+    public void testRowMovedToAnotherCompany() {
+        replay(boycott("INSERT", "u1", "c1", "k1"));
+        replay(record("user_boycotts", "MODIFY", row("u1", "c1", "k1"), row("u1", "c2", "k1")));
+
+        assertEquals(1, stored("u1").getDistinctCompaniesBoycotted());
+        assertNull(dynamoDb.get("user_stats", key("u1", "company#c1")));
+        assertNotNull(dynamoDb.get("user_stats", key("u1", "company#c2")));
+    }
+
+    @Test
+    public void testCountersAreIgnoredUntilReconciled() {
+        // the stream only sees the newest row, the user had older ones
+        putBoycott("u2", "c7", "k1");
+        putBoycott("u2", "c8", "k1");
+        replay(boycott("INSERT", "u2", "c1", "k1"));
+
+        assertNull(AsyncDynamoDb.join(repository.load("u2")));
+        assertEquals(3, AsyncDynamoDb.join(repository.loadOrCount("u2")).getDistinctCompaniesBoycotted());
+
+        repository.reconcile("u2");
+        assertEquals(3, stored("u2").getDistinctCompaniesBoycotted());
+    }
+
+    @Test
+    public void testFirstRowOfANewUserCreatesTrustedCounters() {
+        replay(cause("INSERT", "u3", "k1"));
+        replay(boycott("INSERT", "u3", "c1", "k1"));
+
+        UserStats loaded = AsyncDynamoDb.join(repository.load("u3"));
+        assertNotNull(loaded, "no reconcile needed");
+        assertEquals(1, loaded.getDistinctCompaniesBoycotted());
+        assertEquals(1, loaded.getCausesFollowed());
+        assertEquals(counted("u3").getDistinctCompaniesBoycotted(), loaded.getDistinctCompaniesBoycotted());
+    }
+
+    @Test
+    public void testReconcileRepairsDriftAndDropsStaleRefs() {
+        putBoycott("u1", "c1", "k1");
+        putBoycott("u1", "c1", "k2");
+        putCause("u1", "k1");
+        // counters and refs that no longer match the source tables
+        dynamoDb.put("user_stats", Map.of("user_id", AttributeValue.fromS("u1"),
+                "stat_key", AttributeValue.fromS("totals"),
+                "distinct_companies_boycotted", AttributeValue.fromN("5"),
+                "causes_followed", AttributeValue.fromN("-1"),
+                "reconciled_at", AttributeValue.fromN("1")));
+        dynamoDb.put("user_stats", Map.of("user_id", AttributeValue.fromS("u1"),
+                "stat_key", AttributeValue.fromS("company#gone"),
+                "refs", AttributeValue.fromN("3")));
+
+        Map<String, Object> result = new UserStatsReconcileHandler(dynamoDb)
+                .handleRequest(Map.of("user_ids", List.of("u1")), null);
+
+        assertEquals(Map.of("totalBoycotts", 1, "numCausesFollowed", 1),
+                ((Map<?, ?>) result.get("reconciled")).get("u1"));
+        assertEquals(List.of(), result.get("failed"));
+        assertEquals(1, stored("u1").getDistinctCompaniesBoycotted());
+        assertEquals(1, stored("u1").getCausesFollowed());
+        assertEquals("2", dynamoDb.get("user_stats", key("u1", "company#c1")).get("refs").n());
+        assertNull(dynamoDb.get("user_stats", key("u1", "company#gone")));
+    }
+
+    @Test
+    public void testRemoveWithoutRefIsSkippedInsteadOfBlockingTheShard() {
+        StreamsEventResponse response = replay(boycott("REMOVE", "u1", "c9", "k1"),
+                cause("INSERT", "u1", "k1"));
+
+        assertTrue(response.getBatchItemFailures().isEmpty());
+        assertEquals(0, stored("u1").getDistinctCompaniesBoycotted());
+        assertEquals(1, stored("u1").getCausesFollowed());
+    }
+
+    @Test
+    public void testFailedRecordIsReportedForRetry() {
+        DynamodbEvent.DynamodbStreamRecord good = cause("INSERT", "u1", "k1");
+        DynamodbEvent.DynamodbStreamRecord bad = record("user_causes", "INSERT",
+                Map.of("cause_id", s("k2")), Map.of("cause_id", s("k2")));
+
+        StreamsEventResponse response = replay(good, bad, cause("INSERT", "u1", "k3"));
+
+        assertEquals(1, response.getBatchItemFailures().size());
+        assertEquals(bad.getDynamodb().getSequenceNumber(),
+                response.getBatchItemFailures().get(0).getItemIdentifier());
+        assertEquals(1, stored("u1").getCausesFollowed());
+    }
+
+    private UserStats stored(String userId) {
+        return UserStatsRepository.fromItem(dynamoDb.get("user_stats", key(userId, "totals")));
+    }
+
+    /**
+     * Counts the source tables, which {@link #replay} keeps in line with the records.
+     */
+    private UserStats counted(String userId) {
+        return AsyncDynamoDb.join(repository.count(userId));
+    }
+
+    private StreamsEventResponse replay(DynamodbEvent.DynamodbStreamRecord... records) {
+        for (DynamodbEvent.DynamodbStreamRecord record : records) {
+            mirror(record);
+        }
+        DynamodbEvent event = new DynamodbEvent();
+        event.setRecords(Arrays.asList(records));
+        return handler.handleRequest(event, null);
+    }
+
+    /**
+     * Keeps the source tables in line with the records, as the writes that produced them would.
+     */
+    private void mirror(DynamodbEvent.DynamodbStreamRecord record) {
+        String table = GlobalStatsStreamHandler.tableName(record.getEventSourceARN());
+        Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> image =
+                "REMOVE".equals(record.getEventName()) ? record.getDynamodb().getOldImage()
+                        : record.getDynamodb().getNewImage();
+        if (!image.containsKey("user_id")) {
+            return;
+        }
+        String sortKey = "user_boycotts".equals(table) ? "company_cause_id" : "cause_id";
+        Map<String, AttributeValue> item = new HashMap<>();
+        image.forEach((name, value) -> item.put(name, AttributeValue.fromS(value.getS())));
+        if ("REMOVE".equals(record.getEventName())) {
+            dynamoDb.deleteItem(b -> b.tableName(table).key(Map.of("user_id", item.get("user_id"),
+                    sortKey, item.get(sortKey))));
+        } else {
+            dynamoDb.put(table, item);
+        }
+    }
+
+    private void putBoycott(String userId, String companyId, String causeId) {
+        dynamoDb.put("user_boycotts", Map.of("user_id", AttributeValue.fromS(userId),
+                "company_cause_id", AttributeValue.fromS(companyId + "#" + causeId),
+                "company_id", AttributeValue.fromS(companyId)));
+    }
+
+    private void putCause(String userId, String causeId) {
+        dynamoDb.put("user_causes", Map.of("user_id", AttributeValue.fromS(userId),
+                "cause_id", AttributeValue.fromS(causeId)));
+    }
+
+    private static Map<String, AttributeValue> key(String userId, String statKey) {
+        return Map.of("user_id", AttributeValue.fromS(userId), "stat_key", AttributeValue.fromS(statKey));
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord boycott(String eventName, String userId, String companyId,
+                                                       String causeId) {
+        Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> row =
+                row(userId, companyId, causeId);
+        return record("user_boycotts", eventName, row, row);
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord cause(String eventName, String userId, String causeId) {
+        Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> row =
+                Map.of("user_id", s(userId), "cause_id", s(causeId));
+        return record("user_causes", eventName, row, row);
+    }
+
+    private static Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> row(
+            String userId, String companyId, String causeId) {
+        return Map.of("user_id", s(userId), "company_cause_id", s(companyId + "#" + causeId),
+                "company_id", s(companyId), "cause_id", s(causeId));
+    }
+
+    private DynamodbEvent.DynamodbStreamRecord record(
+            String table, String eventName,
+            Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> oldImage,
+            Map<String, com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue> newImage) {
+        String sequenceNumber = Integer.toString(++sequence);
+        StreamRecord streamRecord = new StreamRecord()
+                .withSequenceNumber(sequenceNumber)
+                .withOldImage("INSERT".equals(eventName) ? null : new HashMap<>(oldImage))
+                .withNewImage("REMOVE".equals(eventName) ? null : new HashMap<>(newImage));
+        DynamodbEvent.DynamodbStreamRecord record = new DynamodbEvent.DynamodbStreamRecord();
+        record.setEventSourceARN("arn:aws:dynamodb:us-east-1:123456789012:table/" + table
+                + "/stream/2024-01-01T00:00:00.000");
+        record.setEventID("event-" + sequenceNumber);
+        record.setEventName(eventName);
+        record.setDynamodb(streamRecord);
+        return record;
+    }
+
+    private static com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue s(String value) {
+        return new com.amazonaws.services.lambda.runtime.events.models.dynamodb.AttributeValue().withS(value);
+    }
+}